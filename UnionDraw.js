@@ -12,12 +12,19 @@ var UPC = net.user1.orbiter.UPC;
 var roomID = "room10";
 // A hash of client attribute names used in this application. Each client sets a
 // "thickness" attribute and a "color" attribute, specify the thickness and 
-// color of the current line being drawn.
-var Attributes = {THICKNESS:"thickness", COLOR:"color"};
+// color of the current line being drawn. The "pathCodec" attribute tells the
+// room module which PATH encoding this client sends and understands.
+var Attributes = {THICKNESS:"thickness", COLOR:"color", PATH_CODEC:"pathCodec"};
+// The version of the compact PATH encoding (see encodePath()). Must match
+// PathCodec.VERSION on the server.
+var pathCodecVersion = 1;
 // A hash of room message names used in this application. MOVE means move the
 // drawing pen to the specified position. PATH supplies a list of points to be
-// drawn.
-var Messages = {MOVE:"MOVE", PATH:"PATH"};
+// drawn. SNAPSHOT supplies everything drawn before this client joined.
+var Messages = {MOVE:"MOVE", PATH:"PATH", SNAPSHOT:"SNAPSHOT"};
+// The server-side room module that keeps the drawing and relays MOVE and PATH
+// messages to the other users in the room
+var roomModule = "net.user1.union.example.blackboard.BlackboardRoomModule";
 
 //==============================================================================
 // LOCAL USER VARIABLES
@@ -37,10 +44,16 @@ var localPen = {};
 var localLineColor = defaultLineColor;
 var localLineThickness = defaultLineThickness;
 
-// A list of points in a path to send to other connected users
+// A list of point coordinates (x1, y1, x2, y2...) in a path to send to other 
+// connected users
 var bufferedPath = [];
 // A timestamp indicating the last time a point was added to the bufferedPath
 var lastBufferTime = new Date().getTime();
+// The last point sent to other users, from which the next path continues
+var lastBroadcastPoint = {};
+// Points within this many pixels of a straight line through their neighbours
+// are dropped from a path before it is sent (see simplifyPath())
+var pathTolerance = 1;
 
 //==============================================================================
 // REMOTE USER VARIABLES
@@ -175,9 +188,27 @@ function readyListener (e) {
   // Register for custom messages from other users
   msgManager.addMessageListener(Messages.MOVE, moveMessageListener, this, [roomID]);
   msgManager.addMessageListener(Messages.PATH, pathMessageListener, this, [roomID]);
+  msgManager.addMessageListener(Messages.SNAPSHOT, snapshotMessageListener, this);
     
-  // Create a room for the drawing app, then join it
-  msgManager.sendUPC(UPC.CREATE_ROOM, roomID);
+  // Create a room for the drawing app with the blackboard room module 
+  // attached, then join it. The module class must be on the server's
+  // classpath: it is in union/examples/union_examples.jar, which is rebuilt
+  // by running "mvn package" in union/examples and copying
+  // jar/target/union_examples.jar over it. Arguments for CREATE_ROOM are:
+  //   roomID
+  //   roomSettings (None in this case)
+  //   roomAttributes (None in this case)
+  //   roomModules (A module type and source, separated by "|")
+  msgManager.sendUPC(UPC.CREATE_ROOM, roomID, "", "", "class|" + roomModule);
+  // Tell the room module that this client sends and receives compact paths.
+  // The attribute is not shared ("0") since only the server needs it.
+  msgManager.sendUPC(UPC.SET_CLIENT_ATTR, 
+                     orbiter.getClientID(),
+                     "",
+                     Attributes.PATH_CODEC,
+                     pathCodecVersion,
+                     roomID,
+                     "0");
   msgManager.sendUPC(UPC.JOIN_ROOM, roomID);
 }
 
@@ -289,26 +320,139 @@ function processClientAttributeUpdate (clientID, attrName, attrVal) {
 //==============================================================================
 // HANDLE INCOMING CLIENT MESSAGES
 //==============================================================================
-// Triggered when a remote client sends a "MOVE" message to this client
-function moveMessageListener (fromClientID, coordsString) {
+// Triggered when the room module relays a remote client's "MOVE" message to 
+// this client. The message is sent by the server, so the ID of the client that
+// moved its pen is supplied as the first argument.
+function moveMessageListener (fromClientID, clientID, coordsString) {
   // Parse the specified (x, y) coordinate
   var coords = coordsString.split(",");
   var position = {x:parseInt(coords[0]), y:parseInt(coords[1])};
   // Push a "moveTo" command onto the drawing-command stack for the sender
-  addDrawingCommand(fromClientID, DrawingCommands.MOVE_TO, position);
+  addDrawingCommand(clientID, DrawingCommands.MOVE_TO, position);
 }
 
-// Triggered when a remote client sends a "PATH" message to this client
-function pathMessageListener (fromClientID, pathString) {
-  // Parse the specified list of points
-  var path = pathString.split(",");
+// Triggered when the room module relays a remote client's "PATH" message to
+// this client
+function pathMessageListener (fromClientID, clientID, pathString) {
+  // Parse the specified list of points. Paths are compact unless the server
+  // fell back to comma-separated text.
+  var path = pathString.indexOf(",") == -1 ? decodePath(pathString) 
+                                           : pathString.split(",");
   
   // For each point, push a "lineTo" command onto the drawing-command stack 
   // for the sender
   var position;
   for (var i = 0; i < path.length; i+=2) {
     position = {x:parseInt(path[i]), y:parseInt(path[i+1])};
-    addDrawingCommand(fromClientID, DrawingCommands.LINE_TO, position);
+    addDrawingCommand(clientID, DrawingCommands.LINE_TO, position);
+  }
+}
+
+// Triggered when the room module sends this client everything that was drawn
+// before it joined. The snapshot has two parts, each a base64 string and 
+// empty when there is nothing to send: the PNG tiles of the server's last 
+// checkpoint (see RasterCheckpoint.toSnapshot()) and the deflated strokes 
+// drawn since (see StrokeLog.toSnapshot()). Browsers that cannot decode the 
+// snapshot start with a blank canvas.
+function snapshotMessageListener (fromClientID, tiles, strokes) {
+  if (typeof DecompressionStream == "undefined" 
+      || typeof createImageBitmap == "undefined") {
+    return;
+  }
+  
+  // The tiles must be drawn before the strokes that were drawn over them
+  var tilesLoaded = tiles ? loadTiles(decodeBase64(tiles)) : Promise.resolve([]);
+  var strokesLoaded = strokes ? inflate(decodeBase64(strokes)) : Promise.resolve(null);
+  Promise.all([tilesLoaded, strokesLoaded]).then(function (parts) {
+    for (var i = 0; i < parts[0].length; i++) {
+      context.drawImage(parts[0][i].image, parts[0][i].x, parts[0][i].y);
+    }
+    if (parts[1] != null) {
+      drawSnapshot(parts[1]);
+    }
+  });
+}
+
+// Returns the bytes of a base64 string
+function decodeBase64 (string) {
+  var binary = atob(string);
+  var bytes = new Uint8Array(binary.length);
+  for (var i = 0; i < binary.length; i++) {
+    bytes[i] = binary.charCodeAt(i);
+  }
+  return bytes;
+}
+
+// Returns a promise for the inflated contents of deflated bytes
+function inflate (bytes) {
+  var stream = new Blob([bytes]).stream().pipeThrough(new DecompressionStream("deflate"));
+  return new Response(stream).arrayBuffer();
+}
+
+// Returns a promise for a list of decoded checkpoint tiles, in the format:
+//  [{image:ImageBitmap, x:0, y:64}]
+function loadTiles (bytes) {
+  var data = new DataView(bytes.buffer);
+  var offset = 0;
+  if (data.getUint8(offset++) != 1) {
+    // Unknown snapshot version
+    return Promise.resolve([]);
+  }
+  var tileSize = data.getInt32(offset);
+  var numTiles = data.getInt32(offset+4);
+  offset += 8;
+  
+  var loaded = [];
+  var col, row, length;
+  for (var i = 0; i < numTiles; i++) {
+    col = data.getInt16(offset);
+    row = data.getInt16(offset+2);
+    length = data.getInt32(offset+4);
+    offset += 8;
+    loaded.push(loadTile(bytes.subarray(offset, offset+length), col*tileSize, row*tileSize));
+    offset += length;
+  }
+  return Promise.all(loaded);
+}
+
+// Returns a promise for a single decoded PNG tile
+function loadTile (png, x, y) {
+  return createImageBitmap(new Blob([png], {type:"image/png"})).then(function (image) {
+    return {image:image, x:x, y:y};
+  });
+}
+
+// Draws the strokes in an inflated snapshot onto the canvas
+function drawSnapshot (buffer) {
+  var data = new DataView(buffer);
+  var offset = 0;
+  if (data.getUint8(offset++) != 1) {
+    // Unknown snapshot version
+    return;
+  }
+  var numStrokes = data.getInt32(offset);
+  offset += 4;
+  
+  var style, color, thickness, numPoints, x, y, lastX, lastY;
+  for (var i = 0; i < numStrokes; i++) {
+    // The style packs the color (high 24 bits) and thickness (low 8 bits)
+    style = data.getInt32(offset);
+    numPoints = data.getInt32(offset+4);
+    offset += 8;
+    color = "#" + ("00000" + (style >>> 8).toString(16)).slice(-6);
+    thickness = style & 0xFF;
+    
+    lastX = data.getInt16(offset);
+    lastY = data.getInt16(offset+2);
+    offset += 4;
+    for (var j = 1; j < numPoints; j++) {
+      x = data.getInt16(offset);
+      y = data.getInt16(offset+2);
+      offset += 4;
+      drawLine(color, thickness, lastX, lastY, x, y);
+      lastX = x;
+      lastY = y;
+    }
   }
 }
 
@@ -323,15 +467,20 @@ function broadcastPath () {
   if (bufferedPath.length == 0) {
     return;
   }
-  // Use SEND_MESSAGE_TO_ROOMS to deliver the message to all users in the room
-  // Parameters are: messageName, roomID, includeSelf, filters, ...args. For
-  // details, see http://unionplatform.com/specs/upc/.
-  msgManager.sendUPC(UPC.SEND_MESSAGE_TO_ROOMS, 
-                     Messages.PATH, 
+  // Use SEND_ROOMMODULE_MESSAGE to deliver the message to the room module,
+  // which records the path and relays it to all other users in the room.
+  // Parameters are: roomID, messageName, ...args, where each arg is a name and
+  // value separated by "|". For details, see http://unionplatform.com/specs/upc/.
+  // Drop redundant points. The path continues from the last point sent, so 
+  // simplify from there and leave that point out again.
+  var path = simplifyPath([lastBroadcastPoint.x, lastBroadcastPoint.y].concat(bufferedPath), 
+                          pathTolerance).slice(2);
+  lastBroadcastPoint.x = path[path.length-2];
+  lastBroadcastPoint.y = path[path.length-1];
+  msgManager.sendUPC(UPC.SEND_ROOMMODULE_MESSAGE, 
                      roomID, 
-                     "false", 
-                     "", 
-                     bufferedPath.join(","));
+                     Messages.PATH, 
+                     "PATH|" + encodePath(path));
   // Clear the local user's outgoing path data
   bufferedPath = [];
   // If the user is no longer drawing, stop broadcasting drawing information
@@ -343,12 +492,117 @@ function broadcastPath () {
 // Sends all users in the drawing room an instruction to reposition the local
 // user's pen.
 function broadcastMove (x, y) {
-  msgManager.sendUPC(UPC.SEND_MESSAGE_TO_ROOMS, 
-                     Messages.MOVE, 
+  lastBroadcastPoint.x = x;
+  lastBroadcastPoint.y = y;
+  msgManager.sendUPC(UPC.SEND_ROOMMODULE_MESSAGE, 
                      roomID, 
-                     "false", 
-                     "", 
-                     x + "," + y);
+                     Messages.MOVE, 
+                     "X|" + x,
+                     "Y|" + y);
+}
+
+//==============================================================================
+// PATH SIMPLIFICATION
+//==============================================================================
+// Returns a list of point coordinates without the points that lie within 
+// tolerance pixels of the line between the points kept around them 
+// (Ramer-Douglas-Peucker). The first and last points are always kept. This is
+// the same algorithm as PathSimplifier.java on the server.
+function simplifyPath (coords, tolerance) {
+  var numPoints = coords.length / 2;
+  if (numPoints < 3 || tolerance <= 0) {
+    return coords;
+  }
+  
+  var keep = [];
+  keep[0] = keep[numPoints-1] = true;
+  var stack = [0, numPoints-1];
+  var toleranceSq = tolerance * tolerance;
+  var first, last, furthest, furthestSq, distanceSq;
+  while (stack.length > 0) {
+    last = stack.pop();
+    first = stack.pop();
+    furthest = -1;
+    furthestSq = toleranceSq;
+    for (var i = first+1; i < last; i++) {
+      distanceSq = segmentDistanceSq(coords, i, first, last);
+      if (distanceSq > furthestSq) {
+        furthest = i;
+        furthestSq = distanceSq;
+      }
+    }
+    if (furthest != -1) {
+      keep[furthest] = true;
+      stack.push(first, furthest, furthest, last);
+    }
+  }
+  
+  var simplified = [];
+  for (var j = 0; j < numPoints; j++) {
+    if (keep[j]) {
+      simplified.push(coords[j*2], coords[j*2+1]);
+    }
+  }
+  return simplified;
+}
+
+// Returns the squared distance of a point from the line segment between two
+// other points
+function segmentDistanceSq (coords, point, first, last) {
+  var x = coords[point*2], y = coords[point*2+1];
+  var x1 = coords[first*2], y1 = coords[first*2+1];
+  var dx = coords[last*2] - x1, dy = coords[last*2+1] - y1;
+  var lengthSq = dx*dx + dy*dy;
+  if (lengthSq > 0) {
+    var t = Math.max(0, Math.min(((x-x1)*dx + (y-y1)*dy) / lengthSq, 1));
+    x1 += t*dx;
+    y1 += t*dy;
+  }
+  return (x-x1)*(x-x1) + (y-y1)*(y-y1);
+}
+
+//==============================================================================
+// COMPACT PATH ENCODING
+//==============================================================================
+// Returns a compact, base64 string for a list of point coordinates. The 
+// string encodes a version byte followed by the difference of each coordinate
+// from the same coordinate of the previous point, zig-zag encoded as a 
+// variable-length integer. See PathCodec.java on the server.
+function encodePath (coords) {
+  var bytes = [pathCodecVersion];
+  var delta, value;
+  for (var i = 0; i < coords.length; i++) {
+    delta = coords[i] - (i < 2 ? 0 : coords[i-2]);
+    value = ((delta << 1) ^ (delta >> 31)) >>> 0;
+    while (value > 0x7F) {
+      bytes.push((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes.push(value);
+  }
+  return btoa(String.fromCharCode.apply(null, bytes));
+}
+
+// Returns the list of point coordinates in a compact path string
+function decodePath (pathString) {
+  var binary = atob(pathString);
+  var coords = [];
+  if (binary.charCodeAt(0) != pathCodecVersion) {
+    return coords;
+  }
+  var pos = 1, value, shift, b, delta;
+  while (pos < binary.length) {
+    value = 0;
+    shift = 0;
+    do {
+      b = binary.charCodeAt(pos++);
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b & 0x80);
+    delta = (value >>> 1) ^ -(value & 1);
+    coords.push((coords.length < 2 ? 0 : coords[coords.length-2]) + delta);
+  }
+  return coords;
 }
 
 //==============================================================================
@@ -593,7 +847,7 @@ function penMove (x, y) {
     // Buffer the new position for broadcast to other users. Buffer a maximum
     // of 100 points per second.
     if ((new Date().getTime() - lastBufferTime) > 10) {
-      bufferedPath.push(x + "," + y);
+      bufferedPath.push(x, y);
       lastBufferTime = new Date().getTime();
     }
     
@@ -0,0 +1,56 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.example.util.ArgParser;
+
+/**
+ * ArgParser against the JDK parsing it replaced, on the arguments the Pong and fridge
+ * magnets modules receive. Run with -prof gc: the ArgParser methods allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgParserBenchmark {
+    public String paddle = "10,205.5,300,1.5707963";
+    public String magnet = "magnet17";
+    private double[] m_values = new double[4];
+
+    @Benchmark
+    public double[] paddleArgParser() {
+        ArgParser.parseDoubles(paddle, ',', m_values);
+        return m_values;
+    }
+
+    @Benchmark
+    public double[] paddleSplit() {
+        String[] parts = paddle.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            m_values[i] = Float.parseFloat(parts[i]);
+        }
+        return m_values;
+    }
+
+    @Benchmark
+    public int magnetArgParser() {
+        return ArgParser.parseInt(magnet, 6, magnet.length());
+    }
+
+    @Benchmark
+    public int magnetSubstring() {
+        return Integer.parseInt(magnet.substring(6));
+    }
+}
@@ -0,0 +1,157 @@
+package net.user1.union.example.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.api.Client;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.upc.UPCMessage;
+import net.user1.union.core.upc.UPCMethod;
+import net.user1.union.example.blackboard.PathCodec;
+import net.user1.union.example.stub.StubClient;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.util.RoomBroadcaster;
+import net.user1.union.filter.Filter;
+
+/**
+ * Relaying a blackboard path to every other client in a room, half of which read the
+ * compact format, as BlackboardRoomModule did before RoomBroadcaster, with a Filter per
+ * format that looks up each client's attribute, and as it does now, with a RoomBroadcaster
+ * that has the clients sorted already.
+ *
+ * The room is a StubRoom, which hands each message to its clients without encoding it, so
+ * filter and broadcaster measure only grouping the clients and looking up their attributes.
+ *
+ * encodeOnce and encodePerClient measure the encoding with the server's own UPCMessage, for a
+ * text path sent to every occupant. encodeOnce does what Room.sendMessage() does in union.jar
+ * (LocalRoom): one UPCMessage for all recipients, whose XML toBytes() builds on the first call
+ * and caches, and then for each connection a new buffer holding those bytes and a terminating
+ * byte, as the socket encoder does. encodePerClient builds a UPCMessage for each recipient,
+ * which is the cost encoding once saves. Run them with -prof gc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String ROOM_ID = "examples.blackboard";
+    private static final int GROUP_TEXT = 0;
+    private static final int GROUP_COMPACT = 1;
+
+    @Param({"50", "500"})
+    public int occupants;
+
+    private StubRoom m_room;
+    private RoomBroadcaster m_broadcaster;
+    private Client m_from;
+    private String m_compact = "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8";
+    private String m_text = "10,10,12,14,15,19,20,25,26,32,33,40,41,49,50,58";
+
+    @Setup
+    public void setUp() {
+        m_room = new StubRoom(ROOM_ID);
+        for (int i = 0; i < occupants; i++) {
+            StubClient client = new StubClient(String.valueOf(i));
+            if (i%2 == 1) {
+                client.setAttribute(PathCodec.ATTR_PATH_CODEC, String.valueOf(PathCodec.VERSION),
+                        ROOM_ID, Attribute.FLAG_SHARED);
+            }
+            m_room.addClient(client);
+        }
+        m_from = (Client)m_room.getClients().iterator().next();
+        m_broadcaster = new RoomBroadcaster(m_room, 2, new RoomBroadcaster.Classifier() {
+            public int classify(Client client) {
+                return usesPathCodec(client) ? GROUP_COMPACT : GROUP_TEXT;
+            }
+        }, PathCodec.ATTR_PATH_CODEC);
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_broadcaster.shutdown();
+    }
+
+    @Benchmark
+    public void filter() {
+        final Client from = m_from;
+        m_room.sendMessage(new Filter() {
+            public boolean doFilter(Client client) {
+                return !from.equals(client) && usesPathCodec(client);
+            }
+        }, "PATH", from.getClientID(), m_compact);
+        m_room.sendMessage(new Filter() {
+            public boolean doFilter(Client client) {
+                return !from.equals(client) && !usesPathCodec(client);
+            }
+        }, "PATH", from.getClientID(), m_text);
+    }
+
+    @Benchmark
+    public void broadcaster() {
+        m_broadcaster.broadcast(GROUP_COMPACT, m_from, "PATH", m_from.getClientID(), m_compact);
+        m_broadcaster.broadcast(GROUP_TEXT, m_from, "PATH", m_from.getClientID(), m_text);
+    }
+
+    @Benchmark
+    public int encodeOnce() {
+        UPCMessage upc = toUPC("PATH", m_from.getClientID(), m_text);
+        int written = 0;
+        for (int i = 0; i < occupants; i++) {
+            written += write(upc.toBytes());
+        }
+        return written;
+    }
+
+    @Benchmark
+    public int encodePerClient() {
+        int written = 0;
+        for (int i = 0; i < occupants; i++) {
+            written += write(toUPC("PATH", m_from.getClientID(), m_text).toBytes());
+        }
+        return written;
+    }
+
+    /**
+     * Build the UPC the way LocalRoom.sendMessage() does.
+     */
+    private UPCMessage toUPC(String messageName, String... args) {
+        UPCMessage upc = new UPCMessage(UPCMethod.S2C_RECEIVE_MESSAGE.id);
+        upc.addArg(messageName);
+        upc.addArg("1");
+        upc.addArg("");
+        upc.addArg(ROOM_ID, true);
+        for (String arg : args) {
+            upc.addArg(arg, true);
+        }
+        return upc;
+    }
+
+    /**
+     * Copy encoded bytes into a connection's write buffer, as the socket encoder does.
+     */
+    private static int write(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+        buffer.put(bytes).put((byte)0).flip();
+        return buffer.remaining();
+    }
+
+    private boolean usesPathCodec(Client client) {
+        Object value = client.getAttributeValue(PathCodec.ATTR_PATH_CODEC, ROOM_ID);
+        return value != null && String.valueOf(PathCodec.VERSION).equals(value.toString());
+    }
+}
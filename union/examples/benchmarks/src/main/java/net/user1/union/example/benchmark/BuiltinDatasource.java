@@ -0,0 +1,65 @@
+package net.user1.union.example.benchmark;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import net.user1.union.api.Datasource;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+/**
+ * Starts and stops the server's built-in Hibernate/Derby datasource outside a server.
+ *
+ * The datasource reads lib/uhibernate.cfg.xml from the working directory, so benchmarks
+ * that use it must be run from the union directory. Its database, unionDB, is created in
+ * the directory given to setHome() rather than beside the server's own.
+ *
+ * Only the account methods that take a user ID work this way. The attribute methods cast
+ * their accounts and attributes to the server's own classes, which need a running server.
+ */
+final class BuiltinDatasource {
+    // --- internal to the server, and may be renamed by any server release
+    private static final String CLASS_NAME = "net.user1.union.persistence.union.c";
+    private static final String CONFIG = "lib/uhibernate.cfg.xml";
+    private static final String DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private BuiltinDatasource() {
+    }
+
+    /**
+     * Put the Derby database in a directory. Must be called before Derby starts.
+     */
+    static void setHome(File dir) {
+        if (!new File(CONFIG).exists()) {
+            throw new IllegalStateException("The built-in datasource reads " + CONFIG +
+                    ", run this benchmark from the union directory.");
+        }
+        System.setProperty("derby.system.home", dir.getAbsolutePath());
+    }
+
+    /**
+     * Create and start the datasource, starting Derby if it is stopped.
+     */
+    static Datasource start()
+    throws Exception {
+        // --- a stopped Derby is only started again by a new driver instance
+        Class.forName(DERBY_DRIVER).newInstance();
+        Datasource datasource = (Datasource)Class.forName(CLASS_NAME).newInstance();
+        if (!datasource.init(new StubDatasourceContext())) {
+            throw new IllegalStateException("Could not start the built-in datasource.");
+        }
+        return datasource;
+    }
+
+    /**
+     * Stop the datasource and Derby, so the next start reads the database from disk.
+     */
+    static void stop(Datasource datasource) {
+        datasource.shutdown();
+        try {
+            DriverManager.getConnection("jdbc:derby:;shutdown=true");
+        } catch (SQLException e) {
+            // --- Derby reports a clean shutdown as an exception
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package net.user1.union.example.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.api.Datasource;
+import net.user1.union.example.datasource.MappedLogDatasource;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+/**
+ * Creating accounts and looking up their passwords with the server's built-in datasource
+ * on Derby and with MappedLogDatasource. These are the only built-in datasource methods
+ * that run outside a server, see BuiltinDatasource.
+ *
+ * Run from the union directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatasourceAccountBenchmark {
+    private static final int NUM_ACCOUNTS = 1000;
+
+    @Param({"derby", "mappedlog"})
+    public String datasource;
+
+    private File m_dir;
+    private Datasource m_datasource;
+    private int m_nextAccount;
+    private int m_nextLookup;
+
+    @Setup
+    public void setUp()
+    throws Exception {
+        m_dir = File.createTempFile("union", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+        if ("derby".equals(datasource)) {
+            BuiltinDatasource.setHome(m_dir);
+            m_datasource = BuiltinDatasource.start();
+        } else {
+            File logFile = new File(m_dir, "union.log");
+            m_datasource = new MappedLogDatasource();
+            if (!m_datasource.init(new StubDatasourceContext()
+                    .setAttribute("logFile", logFile.getPath()))) {
+                throw new IOException("Could not open " + logFile + ".");
+            }
+        }
+        for (int i = 0; i < NUM_ACCOUNTS; i++) {
+            m_datasource.createAccount("user" + i, "password");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if ("derby".equals(datasource)) {
+            BuiltinDatasource.stop(m_datasource);
+        } else {
+            m_datasource.shutdown();
+        }
+        delete(m_dir);
+    }
+
+    @Benchmark
+    public void createAccount()
+    throws Exception {
+        m_datasource.createAccount("new" + m_nextAccount++, "password");
+    }
+
+    @Benchmark
+    public String getPassword()
+    throws Exception {
+        m_nextLookup = (m_nextLookup + 1) % NUM_ACCOUNTS;
+        return m_datasource.getPassword("user" + m_nextLookup);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
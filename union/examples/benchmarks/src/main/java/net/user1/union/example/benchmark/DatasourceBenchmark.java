@@ -0,0 +1,120 @@
+package net.user1.union.example.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.api.Datasource;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.exception.DatasourceException;
+import net.user1.union.example.datasource.MappedLogDatasource;
+import net.user1.union.example.datasource.MySqlAccountDatasource;
+import net.user1.union.example.stub.StubAccount;
+import net.user1.union.example.stub.StubAttribute;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+/**
+ * Saving and loading account attributes through MySqlAccountDatasource, on an in-memory H2
+ * database in MySQL mode so only the datasource, its connection pool and JDBC are measured,
+ * and through MappedLogDatasource, on a log in a temporary file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatasourceBenchmark {
+    private static final String DB_URL =
+            "jdbc:h2:mem:union;MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+    private static final int NUM_ACCOUNTS = 1000;
+
+    @Param({"mysql", "mappedlog"})
+    public String datasource;
+
+    private Datasource m_datasource;
+    private File m_logFile;
+    private StubAccount[] m_accounts = new StubAccount[NUM_ACCOUNTS];
+    private int m_next;
+    private int m_score;
+
+    @Setup
+    public void setUp()
+    throws IOException, SQLException, DatasourceException {
+        StubDatasourceContext ctx = new StubDatasourceContext();
+        if ("mysql".equals(datasource)) {
+            Connection con = DriverManager.getConnection(DB_URL, "sa", "");
+            Statement st = con.createStatement();
+            st.execute("CREATE TABLE IF NOT EXISTS scores " +
+                    "(user VARCHAR(64) PRIMARY KEY, score INT)");
+            st.execute("CREATE TABLE IF NOT EXISTS titles " +
+                    "(user VARCHAR(64) PRIMARY KEY, title VARCHAR(255))");
+            con.close();
+            ctx.setAttribute("dbURL", DB_URL).setAttribute("dbUsername", "sa")
+                    .setAttribute("dbPassword", "").setAttribute("dbDriver", "org.h2.Driver");
+            m_datasource = new MySqlAccountDatasource();
+        } else {
+            m_logFile = File.createTempFile("union", ".log");
+            m_logFile.delete();
+            ctx.setAttribute("logFile", m_logFile.getPath());
+            m_datasource = new MappedLogDatasource();
+        }
+        if (!m_datasource.init(ctx)) {
+            throw new IllegalStateException("Could not start the " + datasource +
+                    " datasource.");
+        }
+        for (int i = 0; i < NUM_ACCOUNTS; i++) {
+            m_accounts[i] = new StubAccount("user" + i, "password");
+            m_datasource.createAccount(m_accounts[i].getUserID(), "password");
+            saveScore(m_accounts[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_datasource.shutdown();
+        if (m_logFile != null) {
+            m_logFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void saveScore()
+    throws DatasourceException {
+        saveScore(nextAccount());
+    }
+
+    @Benchmark
+    public void loadGlobalAttributes()
+    throws DatasourceException {
+        m_datasource.loadAccountGlobalAttributes(nextAccount());
+    }
+
+    private void saveScore(StubAccount account)
+    throws DatasourceException {
+        m_datasource.saveAccountAttribute(account, new StubAttribute("score",
+                Integer.valueOf(m_score++), Attribute.SCOPE_GLOBAL, Attribute.FLAG_PERSISTENT));
+    }
+
+    private StubAccount nextAccount() {
+        m_next = (m_next + 1)%NUM_ACCOUNTS;
+        return m_accounts[m_next];
+    }
+}
@@ -0,0 +1,112 @@
+package net.user1.union.example.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.api.Datasource;
+import net.user1.union.example.datasource.MappedLogDatasource;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+/**
+ * Starting a datasource that already holds a number of accounts: the server's built-in
+ * datasource, which starts Derby on its database and builds a Hibernate SessionFactory,
+ * against MappedLogDatasource, which maps its log and replays one record per account.
+ * Each start is timed once, and the datasource and Derby are stopped between starts.
+ *
+ * Run from the union directory, see BuiltinDatasource.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DatasourceStartupBenchmark {
+    @Param({"derby", "mappedlog"})
+    public String datasource;
+
+    @Param({"1000", "10000"})
+    public int accounts;
+
+    private File m_dir;
+    private File m_logFile;
+    private Datasource m_started;
+
+    @Setup(Level.Trial)
+    public void createAccounts()
+    throws Exception {
+        m_dir = File.createTempFile("union", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_logFile = new File(m_dir, "union.log");
+        if ("derby".equals(datasource)) {
+            BuiltinDatasource.setHome(m_dir);
+        }
+        Datasource datasource = start();
+        for (int i = 0; i < accounts; i++) {
+            datasource.createAccount("user" + i, "password");
+        }
+        stop(datasource);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAccounts() {
+        delete(m_dir);
+    }
+
+    @Benchmark
+    public Datasource start()
+    throws Exception {
+        if ("derby".equals(datasource)) {
+            m_started = BuiltinDatasource.start();
+        } else {
+            m_started = new MappedLogDatasource();
+            if (!m_started.init(new StubDatasourceContext()
+                    .setAttribute("logFile", m_logFile.getPath()))) {
+                throw new IOException("Could not open " + m_logFile + ".");
+            }
+        }
+        return m_started;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        if (m_started != null) {
+            stop(m_started);
+            m_started = null;
+        }
+    }
+
+    private void stop(Datasource started) {
+        if ("derby".equals(datasource)) {
+            BuiltinDatasource.stop(started);
+        } else {
+            started.shutdown();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
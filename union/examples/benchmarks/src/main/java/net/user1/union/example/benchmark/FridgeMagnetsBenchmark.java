@@ -0,0 +1,68 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.core.event.RoomEvent;
+import net.user1.union.example.roommodule.FridgeMagnetsRoomModule;
+import net.user1.union.example.stub.StubClient;
+import net.user1.union.example.stub.StubMessage;
+import net.user1.union.example.stub.StubModuleContext;
+import net.user1.union.example.stub.StubRoom;
+
+/**
+ * FridgeMagnetsRoomModule.onModuleMessage() for a stream of MOVE messages over all the
+ * magnets, which are coalesced into one attribute write per magnet per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FridgeMagnetsBenchmark {
+    private static final int NUM_MAGNETS = 26;
+    private static final int NUM_MOVES = 1024;
+
+    private FridgeMagnetsRoomModule m_module;
+    private RoomEvent[] m_moves = new RoomEvent[NUM_MOVES];
+    private int m_next;
+
+    @Setup
+    public void setUp() {
+        StubRoom room = new StubRoom("examples.fridgemagnets");
+        m_module = new FridgeMagnetsRoomModule();
+        m_module.init(new StubModuleContext(room));
+        StubClient client = new StubClient("1");
+        room.addClient(client);
+        for (int i = 0; i < NUM_MOVES; i++) {
+            StubMessage message = new StubMessage("MOVE")
+                    .setArg("MAGNET", "magnet" + i%NUM_MAGNETS)
+                    .setArg("X", String.valueOf(i*7%600))
+                    .setArg("Y", String.valueOf(i*13%400));
+            m_moves[i] = new RoomEvent(room, client, message);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_module.shutdown();
+    }
+
+    @Benchmark
+    public void move() {
+        m_module.onModuleMessage(m_moves[m_next]);
+        m_next = (m_next + 1)%NUM_MOVES;
+    }
+}
@@ -0,0 +1,142 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.example.pong.GameWorldEngine;
+
+/**
+ * The time one fixed step of every Pong room takes, stepped by the GameWorldEngine and,
+ * as a baseline, by a thread per room as the PongRoomModule did before the engine. A step
+ * must fit in the 20 millisecond interval of the game loop, so the rooms a core can run is
+ * about 20 ms divided by the time per room of engine at threads=1, against that of
+ * threadPerRoom.
+ *
+ * The engines are created without their game loop, so nothing but the benchmark steps
+ * the rooms. In threadPerRoom each room has its own thread and its own one-room engine,
+ * and every thread is woken to step its room once per benchmark call, as each room's
+ * thread woke from its sleep once per step before; the time includes waking the threads
+ * and waiting for the last one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameWorldEngineBenchmark {
+    @Benchmark
+    public void engine(Engine state) {
+        state.m_engine.update(1);
+    }
+
+    @Benchmark
+    public void threadPerRoom(ThreadPerRoom state)
+    throws InterruptedException, BrokenBarrierException {
+        state.m_start.await();
+        state.m_done.await();
+    }
+
+    /**
+     * All rooms in one engine.
+     */
+    @State(Scope.Benchmark)
+    public static class Engine {
+        @Param({"1", "64", "1024", "8192"})
+        public int rooms;
+        @Param({"1", "4"})
+        public int threads;
+
+        private GameWorldEngine m_engine;
+
+        @Setup
+        public void setUp() {
+            m_engine = new GameWorldEngine(threads, false);
+            for (int i = 0; i < rooms; i++) {
+                m_engine.startGame(m_engine.register(new CountingListener()));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            m_engine.shutdown();
+        }
+    }
+
+    /**
+     * A thread and a one-room engine per room.
+     */
+    @State(Scope.Benchmark)
+    public static class ThreadPerRoom {
+        @Param({"1", "64", "1024", "8192"})
+        public int rooms;
+
+        private CyclicBarrier m_start;
+        private CyclicBarrier m_done;
+        private Thread[] m_threads;
+
+        @Setup
+        public void setUp() {
+            m_start = new CyclicBarrier(rooms + 1);
+            m_done = new CyclicBarrier(rooms + 1);
+            m_threads = new Thread[rooms];
+            for (int i = 0; i < rooms; i++) {
+                final GameWorldEngine engine = new GameWorldEngine(1, false);
+                engine.startGame(engine.register(new CountingListener()));
+                m_threads[i] = new Thread("PongRoom-" + i) {
+                    public void run() {
+                        try {
+                            while (true) {
+                                m_start.await();
+                                engine.update(1);
+                                m_done.await();
+                            }
+                        } catch (InterruptedException e) {
+                            // --- the trial is over
+                        } catch (BrokenBarrierException e) {
+                            // --- another room's thread was stopped first
+                        } finally {
+                            engine.shutdown();
+                        }
+                    }
+                };
+                m_threads[i].setDaemon(true);
+                m_threads[i].start();
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            for (Thread thread : m_threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : m_threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Counts the events of a room, so they are not optimized away.
+     */
+    private static class CountingListener implements GameWorldEngine.Listener {
+        private long m_numEvents;
+
+        public void onGameEvent(int events) {
+            m_numEvents++;
+        }
+    }
+}
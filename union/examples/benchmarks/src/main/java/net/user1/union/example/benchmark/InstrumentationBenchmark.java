@@ -0,0 +1,73 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.example.util.LatencyHistogram;
+import net.user1.union.example.util.StripedCounter;
+import net.user1.union.example.util.TokenBuckets;
+
+/**
+ * The per-UPC cost of the server modules that watch every UPC: a rate limit check in
+ * TokenBuckets, a LatencyHistogram record and a StripedCounter increment. Each is shared by
+ * four threads, as the server's UPC processing threads share them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class InstrumentationBenchmark {
+    private static final int NUM_CLIENTS = 1024;
+
+    private TokenBuckets m_buckets = new TokenBuckets(1000000, 1000000);
+    private LatencyHistogram m_histogram = new LatencyHistogram();
+    private StripedCounter m_counter = new StripedCounter();
+    private String[] m_clientIDs = new String[NUM_CLIENTS];
+
+    public InstrumentationBenchmark() {
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            m_clientIDs[i] = String.valueOf(i);
+        }
+    }
+
+    /**
+     * The state of each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Sequence {
+        private int m_next;
+
+        public int next() {
+            m_next = (m_next + 1)&(NUM_CLIENTS - 1);
+            return m_next;
+        }
+    }
+
+    @Benchmark
+    public boolean tokenBuckets(Sequence sequence) {
+        return m_buckets.tryAcquire(m_clientIDs[sequence.next()], System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public void latencyHistogram(Sequence sequence) {
+        m_histogram.record(sequence.next());
+    }
+
+    @Benchmark
+    public void stripedCounter() {
+        m_counter.increment();
+    }
+}
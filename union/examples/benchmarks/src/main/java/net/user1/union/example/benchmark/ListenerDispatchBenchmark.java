@@ -0,0 +1,60 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.core.event.RoomEvent;
+import net.user1.union.example.stub.StubClient;
+import net.user1.union.example.stub.StubMessage;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.util.ListenerProfiler;
+
+/**
+ * A room module message dispatched by the server's BaseEventProducer to a listener added
+ * through ListenerProfiler: unprofiled, where the producer calls the listener by reflection,
+ * and profiled, where it calls the profiler's Dispatcher by reflection and the Dispatcher
+ * calls the listener through its generated invoker and measures the call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+    private StubRoom m_room = new StubRoom("room");
+    private RoomEvent m_event;
+    private long m_numEvents;
+
+    @Setup
+    public void setUp() {
+        ListenerProfiler.addEventListener(m_room, RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
+        m_event = new RoomEvent(m_room, new StubClient("1"), new StubMessage("MOVE"));
+    }
+
+    public void onModuleMessage(RoomEvent evt) {
+        m_numEvents++;
+    }
+
+    @Benchmark
+    public void unprofiled() {
+        m_room.dispatchEvent(RoomEvent.MODULE_MESSAGE, m_event);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dunion.profileListeners=true")
+    public void profiled() {
+        m_room.dispatchEvent(RoomEvent.MODULE_MESSAGE, m_event);
+    }
+}
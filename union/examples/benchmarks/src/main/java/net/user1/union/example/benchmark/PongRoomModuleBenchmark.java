@@ -0,0 +1,66 @@
+package net.user1.union.example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.example.pong.GameWorldEngine;
+import net.user1.union.example.pong.PongRoomModule;
+import net.user1.union.example.stub.StubClient;
+import net.user1.union.example.stub.StubModuleContext;
+import net.user1.union.example.stub.StubRoom;
+
+/**
+ * The PongRoomModule's side of a game: writing the ball attribute after a tick, and reading
+ * a paddle attribute a player sets, which arrives as a ClientEvent dispatched by reflection.
+ * Run with -prof gc to see the bytes allocated per update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PongRoomModuleBenchmark {
+    private static final String ROOM_ID = "examples.pong";
+    private static final String PADDLE = "10,205.5,300,1.5707963";
+
+    private PongRoomModule m_module;
+    private StubClient m_left;
+
+    @Setup
+    public void setUp() {
+        StubRoom room = new StubRoom(ROOM_ID);
+        m_module = new PongRoomModule();
+        m_module.init(new StubModuleContext(room));
+        m_left = new StubClient("1");
+        room.addClient(m_left);
+        room.addClient(new StubClient("2"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_module.shutdown();
+    }
+
+    @Benchmark
+    public void ballUpdate() {
+        m_module.onGameEvent(GameWorldEngine.EVENT_BALL_UPDATE);
+    }
+
+    @Benchmark
+    public void paddleUpdate() {
+        m_left.setAttribute("paddle", PADDLE, ROOM_ID, Attribute.FLAG_SHARED);
+    }
+}
@@ -0,0 +1,118 @@
+package net.user1.union.example.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.user1.union.core.event.RemoteEvent;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.survey.SurveyResultsEvent;
+import net.user1.union.example.util.EventFrame;
+import net.user1.union.example.util.ExternalizableCodec;
+import net.user1.union.example.util.RemoteEventChannel;
+
+/**
+ * A SurveyResultsEvent sent between nodes: serialized as an object, which calls its
+ * writeExternal() and readExternal() inside Java serialization, against the compact layout
+ * of a RemoteEventChannel, one event per frame and twenty. The bytes each way takes are
+ * printed when the benchmark starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurveyEventBenchmark {
+    private static final String EVENT = "SURVEY_RESULTS";
+    private static final int FRAME_EVENTS = 20;
+
+    private SurveyResultsEvent m_event = new SurveyResultsEvent(42,
+            new String[] {"node-1", "node-2"}, 1234, 567);
+    private byte[] m_serialized;
+    private StubRoom m_room = new StubRoom("examples.survey");
+    // --- sends each event in its own frame
+    private RemoteEventChannel m_channel = createChannel(0);
+    // --- sends events only when flushed
+    private RemoteEventChannel m_batchingChannel = createChannel(Long.MAX_VALUE);
+    private EventFrame m_frame;
+    private long m_numReceived;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        m_serialized = serialize();
+        m_channel.dispatchRemoteEvent(EVENT, m_event);
+        m_frame = (EventFrame)m_room.getLastRemoteEvent();
+        encodeFrame();
+        int frameSize = ((EventFrame)m_room.getLastRemoteEvent()).getData().length;
+        System.out.println();
+        System.out.println("SurveyResultsEvent: serialized " + m_serialized.length +
+                " bytes, in a frame of its own " + m_frame.getData().length + " bytes, " +
+                FRAME_EVENTS + " in one frame " + frameSize + " bytes against " +
+                FRAME_EVENTS*m_serialized.length + " serialized");
+    }
+
+    private RemoteEventChannel createChannel(long flushDelay) {
+        RemoteEventChannel channel = new RemoteEventChannel(m_room, flushDelay);
+        channel.register(EVENT, 3,
+                new ExternalizableCodec<SurveyResultsEvent>(SurveyResultsEvent.class));
+        channel.addRemoteEventListener(EVENT, this, "onSurveyResults");
+        return channel;
+    }
+
+    public void onSurveyResults(RemoteEvent evt) {
+        m_numReceived++;
+    }
+
+    @Benchmark
+    public byte[] serialize()
+    throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(m_event);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize()
+    throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(m_serialized));
+        return in.readObject();
+    }
+
+    @Benchmark
+    public void encode() {
+        m_channel.dispatchRemoteEvent(EVENT, m_event);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_EVENTS)
+    public void encodeFrame() {
+        for (int i = 0; i < FRAME_EVENTS; i++) {
+            m_batchingChannel.dispatchRemoteEvent(EVENT, m_event);
+        }
+        m_batchingChannel.flush();
+    }
+
+    @Benchmark
+    public void decode() {
+        m_channel.onEventFrame(m_frame);
+    }
+}
@@ -0,0 +1,155 @@
+package net.user1.union.example.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.user1.union.api.Account;
+import net.user1.union.api.Room;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.exception.DatasourceException;
+import net.user1.union.example.stub.StubAccount;
+import net.user1.union.example.stub.StubAttribute;
+import net.user1.union.example.stub.StubDatasource;
+import net.user1.union.example.stub.StubDatasourceContext;
+import net.user1.union.example.stub.StubRoom;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs CachingDatasource in front of a datasource that, like the server's built-in one,
+ * only works with the server's own account and room classes.
+ */
+public class CachingDatasourceTest {
+    private CachingDatasource m_datasource;
+    private StubDatasource m_delegate;
+
+    @Before
+    public void setUp() throws Exception {
+        m_datasource = new CachingDatasource();
+        assertTrue(m_datasource.init(new StubDatasourceContext()
+                .setAttribute("delegate", ConcreteDatasource.class.getName())));
+        m_delegate = (StubDatasource)m_datasource.m_delegate;
+        m_delegate.saveAccountAttribute(new StubAccount("user", "password"), attr("score", 7));
+        m_delegate.saveAccountAttribute(new StubAccount("user", "password"),
+                new StubAttribute("lastRoom", "lobby", "room1", Attribute.FLAG_PERSISTENT));
+    }
+
+    @Test
+    public void requiresADelegate() {
+        assertFalse(new CachingDatasource().init(new StubDatasourceContext()));
+    }
+
+    @Test
+    public void aHitSetsTheAttributesTheMissLoaded() throws Exception {
+        StubAccount first = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(first);
+        assertEquals(Integer.valueOf(7), first.getAttributeValue("score"));
+
+        StubAccount second = new StubAccount("user", "password");
+        second.setAttribute("session", "x", Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE);
+        m_datasource.loadAccountGlobalAttributes(second);
+        StubAccount third = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(third);
+
+        assertEquals(1, m_delegate.getNumLoads());
+        assertEquals(2, m_datasource.getHits());
+        assertEquals(1, m_datasource.getMisses());
+        assertEquals(Integer.valueOf(7), third.getAttributeValue("score"));
+        // --- only the attributes the load set are cached
+        assertEquals(null, third.getAttributeValue("session"));
+        assertEquals(null, third.getAttributeValue("lastRoom", "room1"));
+    }
+
+    @Test
+    public void aSaveDropsTheAccountsEntry() throws Exception {
+        StubAccount account = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(account);
+        m_datasource.saveAccountAttribute(account, attr("score", 8));
+
+        StubAccount reloaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(reloaded);
+        assertEquals(2, m_delegate.getNumLoads());
+        assertEquals(Integer.valueOf(8), reloaded.getAttributeValue("score"));
+    }
+
+    @Test
+    public void cachesAttributesWhateverTheirFlags() throws Exception {
+        m_delegate.saveAccountAttribute(new StubAccount("user", "password"),
+                new StubAttribute("title", "Admiral", Attribute.SCOPE_GLOBAL,
+                        Attribute.FLAG_SERVER_ONLY));
+        m_datasource.loadAccountGlobalAttributes(new StubAccount("user", "password"));
+        StubAccount reloaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(reloaded);
+
+        assertEquals(1, m_delegate.getNumLoads());
+        assertEquals("Admiral", reloaded.getAttributeValue("title"));
+        assertEquals(Attribute.FLAG_SERVER_ONLY, reloaded.getAttribute("title").getFlags());
+    }
+
+    @Test
+    public void aHitDoesNotSaveWhatItSets() throws Exception {
+        m_datasource.loadAccountGlobalAttributes(new SavingAccount());
+        int saves = m_delegate.getNumSaves();
+        m_datasource.loadAccountGlobalAttributes(new SavingAccount());
+        m_datasource.loadAccountGlobalAttributes(new SavingAccount());
+
+        assertEquals(saves, m_delegate.getNumSaves());
+        assertEquals(1, m_delegate.getNumLoads());
+        assertEquals(2, m_datasource.getHits());
+    }
+
+    @Test
+    public void cachesRoomAttributes() throws Exception {
+        StubRoom room = new StubRoom("room1");
+        m_datasource.saveRoomAttribute(room, attr("topic", 1));
+        m_datasource.loadRoomAttributes(new StubRoom("room1"));
+        StubRoom reloaded = new StubRoom("room1");
+        m_datasource.loadRoomAttributes(reloaded);
+
+        assertEquals(1, m_delegate.getNumLoads());
+        assertEquals(Integer.valueOf(1), reloaded.getAttributeValue("topic"));
+    }
+
+    private static Attribute attr(String name, int value) {
+        return new StubAttribute(name, Integer.valueOf(value), Attribute.SCOPE_GLOBAL,
+                Attribute.FLAG_PERSISTENT);
+    }
+
+    /**
+     * Saves its persistent attributes through the datasource as they are set, like a
+     * server's account does.
+     */
+    private class SavingAccount extends StubAccount {
+        public SavingAccount() {
+            super("user", "password");
+        }
+
+        public void onChangeAttribute(Attribute attr) {
+            if ((attr.getFlags() & Attribute.FLAG_PERSISTENT) != 0) {
+                try {
+                    m_datasource.saveAccountAttribute(this, attr);
+                } catch (DatasourceException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Casts the accounts and rooms it loads to their concrete classes, as the server's
+     * built-in datasource does, so it fails if it is handed a proxy.
+     */
+    public static class ConcreteDatasource extends StubDatasource {
+        public void loadAccountGlobalAttributes(Account account)
+        throws DatasourceException {
+            super.loadAccountGlobalAttributes((StubAccount)account);
+        }
+
+        public void loadRoomAttributes(Room room)
+        throws DatasourceException {
+            super.loadRoomAttributes((StubRoom)room);
+        }
+    }
+}
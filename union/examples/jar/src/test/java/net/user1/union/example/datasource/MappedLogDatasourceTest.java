@@ -0,0 +1,187 @@
+package net.user1.union.example.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.example.stub.StubAccount;
+import net.user1.union.example.stub.StubAttribute;
+import net.user1.union.example.stub.StubDatasourceContext;
+import net.user1.union.example.stub.StubRoom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes, replays, compacts and recovers MappedLogDatasource logs in a temporary
+ * directory.
+ */
+public class MappedLogDatasourceTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File m_dir;
+    private File m_file;
+    private MappedLogDatasource m_datasource;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = File.createTempFile("mappedlog", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_file = new File(m_dir, "union.log");
+    }
+
+    @After
+    public void tearDown() {
+        if (m_datasource != null) {
+            m_datasource.shutdown();
+        }
+        delete(m_dir);
+    }
+
+    @Test
+    public void replaysAccountsRoomsAndServerAttributes() throws Exception {
+        m_datasource = open();
+        StubAccount account = new StubAccount("user", "password");
+        m_datasource.createAccount("user", "password");
+        m_datasource.saveAccountAttribute(account, attr("score", "1"));
+        m_datasource.saveAccountAttribute(account, attr("score", "2"));
+        m_datasource.saveRoomAttribute(new StubRoom("lobby"), attr("topic", "hello"));
+        m_datasource.removeAccountAttribute(account, attr("missing", ""));
+        m_datasource.shutdown();
+
+        m_datasource = open();
+        assertTrue(m_datasource.containsAccount("user"));
+        assertEquals("password", m_datasource.getPassword("user"));
+        StubAccount loaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(loaded);
+        assertEquals("2", loaded.getAttributeValue("score"));
+        StubRoom room = new StubRoom("lobby");
+        m_datasource.loadRoomAttributes(room);
+        assertEquals("hello", room.getAttributeValue("topic"));
+    }
+
+    @Test
+    public void aFailedCompactionKeepsTheLogAndGrowsIt() throws Exception {
+        m_datasource = open();
+        m_datasource.createAccount("user", "password");
+
+        // --- a directory where the backup goes makes the first rename fail
+        File backup = new File(m_file.getPath() + ".old");
+        backup.mkdir();
+        new FileOutputStream(new File(backup, "blocker")).close();
+
+        // --- overwriting one attribute fills the segment with stale records
+        StubAccount account = new StubAccount("user", "password");
+        for (int i = 0; i < 500; i++) {
+            m_datasource.saveAccountAttribute(account, attr("score", String.valueOf(i)));
+        }
+        long size = m_datasource.getLogSize();
+        m_datasource.maintain();
+        assertEquals(size, m_datasource.getLogSize());
+        assertTrue(m_file.exists());
+        assertFalse(new File(m_file.getPath() + ".compact").exists());
+
+        // --- the old log is mapped again and takes new saves
+        m_datasource.saveAccountAttribute(account, attr("score", "500"));
+        m_datasource.shutdown();
+
+        delete(backup);
+        m_datasource = open();
+        StubAccount loaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(loaded);
+        assertEquals("500", loaded.getAttributeValue("score"));
+    }
+
+    @Test
+    public void savesGrowTheLogAndMaintenanceCompactsIt() throws Exception {
+        m_datasource = open();
+        m_datasource.createAccount("user", "password");
+        // --- enough stale records for maintenance to compact, over 1 MB
+        StubAccount account = new StubAccount("user", "password");
+        for (int i = 0; i < 30000; i++) {
+            m_datasource.saveAccountAttribute(account, attr("score", String.valueOf(i)));
+        }
+        assertTrue(m_datasource.getLogSize() > 1024*1024);
+        m_datasource.maintain();
+        assertTrue(m_datasource.getLogSize() < SEGMENT_SIZE);
+
+        // --- the compacted log is mapped again and takes new saves
+        m_datasource.saveAccountAttribute(account, attr("score", "30000"));
+        m_datasource.shutdown();
+
+        assertFalse(new File(m_file.getPath() + ".old").exists());
+        m_datasource = open();
+        StubAccount loaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(loaded);
+        assertEquals("30000", loaded.getAttributeValue("score"));
+    }
+
+    @Test
+    public void recoversTheLogFromTheBackup() throws Exception {
+        m_datasource = open();
+        m_datasource.createAccount("user", "password");
+        m_datasource.shutdown();
+
+        // --- as left by a crash between the two renames of a compaction
+        File backup = new File(m_file.getPath() + ".old");
+        File compacted = new File(m_file.getPath() + ".compact");
+        assertTrue(m_file.renameTo(backup));
+        new FileOutputStream(compacted).close();
+
+        m_datasource = open();
+        assertTrue(m_datasource.containsAccount("user"));
+        assertTrue(m_file.exists());
+        assertFalse(backup.exists());
+        assertFalse(compacted.exists());
+    }
+
+    @Test
+    public void aGarbageLengthEndsReplay() throws Exception {
+        m_datasource = open();
+        m_datasource.createAccount("user", "password");
+        m_datasource.shutdown();
+        m_datasource = null;
+
+        // --- a length that overflows an int when added to the position
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.seek(8);
+        raf.writeInt(Integer.MAX_VALUE - 4);
+        raf.close();
+
+        m_datasource = open();
+        assertFalse(m_datasource.containsAccount("user"));
+        m_datasource.createAccount("user2", "password");
+        assertTrue(m_datasource.containsAccount("user2"));
+    }
+
+    private MappedLogDatasource open() {
+        MappedLogDatasource datasource = new MappedLogDatasource();
+        assertTrue(datasource.init(new StubDatasourceContext()
+                .setAttribute("logFile", m_file.getPath())
+                .setAttribute("segmentSize", String.valueOf(SEGMENT_SIZE))
+                .setAttribute("compactionInterval", "3600000")));
+        return datasource;
+    }
+
+    private static Attribute attr(String name, String value) {
+        return new StubAttribute(name, value, Attribute.SCOPE_GLOBAL, Attribute.FLAG_PERSISTENT);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
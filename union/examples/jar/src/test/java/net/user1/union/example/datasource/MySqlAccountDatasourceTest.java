@@ -0,0 +1,120 @@
+package net.user1.union.example.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.user1.union.api.Account;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.example.stub.StubAccount;
+import net.user1.union.example.stub.StubAttribute;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs MySqlAccountDatasource against an in-memory H2 database in MySQL mode.
+ */
+public class MySqlAccountDatasourceTest {
+    private static final String DB_URL =
+            "jdbc:h2:mem:mysqltest;MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+
+    private Connection m_keepAlive;
+    private MySqlAccountDatasource m_datasource;
+
+    @Before
+    public void setUp() throws Exception {
+        m_keepAlive = DriverManager.getConnection(DB_URL, "sa", "");
+        Statement st = m_keepAlive.createStatement();
+        st.execute("DROP TABLE IF EXISTS scores");
+        st.execute("DROP TABLE IF EXISTS titles");
+        st.execute("CREATE TABLE scores (user VARCHAR(64) PRIMARY KEY, score INT)");
+        st.execute("CREATE TABLE titles (user VARCHAR(64) PRIMARY KEY, title VARCHAR(255))");
+        st.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (m_datasource != null) {
+            m_datasource.shutdown();
+        }
+        m_keepAlive.close();
+    }
+
+    @Test
+    public void rejectsAStatementCacheTooSmallForABatch() {
+        assertFalse(new MySqlAccountDatasource().init(context("0")));
+        assertFalse(new MySqlAccountDatasource().init(context("1")));
+    }
+
+    @Test
+    public void savesABatchWithTheSmallestStatementCache() throws Exception {
+        m_datasource = new MySqlAccountDatasource();
+        assertTrue(m_datasource.init(context("2")));
+
+        List<Account> accounts = new ArrayList<Account>();
+        List<Attribute> attrs = new ArrayList<Attribute>();
+        for (int i = 0; i < 3; i++) {
+            StubAccount account = new StubAccount("user" + i, "password");
+            accounts.add(account);
+            attrs.add(new StubAttribute("score", Integer.valueOf(i*10),
+                    Attribute.SCOPE_GLOBAL, Attribute.FLAG_PERSISTENT));
+            accounts.add(account);
+            attrs.add(new StubAttribute("title", "title" + i,
+                    Attribute.SCOPE_GLOBAL, Attribute.FLAG_PERSISTENT));
+        }
+        // --- twice, so the second batch runs on the cached statements
+        m_datasource.saveAccountAttributes(accounts, attrs);
+        m_datasource.saveAccountAttributes(accounts, attrs);
+
+        for (int i = 0; i < 3; i++) {
+            StubAccount account = new StubAccount("user" + i, "password");
+            m_datasource.loadAccountGlobalAttributes(account);
+            assertEquals(Integer.valueOf(i*10), account.getAttributeValue("score"));
+            assertEquals("title" + i, account.getAttributeValue("title"));
+        }
+    }
+
+    @Test
+    public void aFailedBatchLeavesNoRowsForTheNext() throws Exception {
+        m_datasource = new MySqlAccountDatasource();
+        assertTrue(m_datasource.init(context("2")));
+
+        List<Account> accounts = new ArrayList<Account>();
+        List<Attribute> attrs = new ArrayList<Attribute>();
+        accounts.add(new StubAccount("stale", "password"));
+        attrs.add(new StubAttribute("score", Integer.valueOf(1), Attribute.SCOPE_GLOBAL,
+                Attribute.FLAG_PERSISTENT));
+        // --- a score a client set as a String
+        accounts.add(new StubAccount("client", "password"));
+        attrs.add(new StubAttribute("score", "2", Attribute.SCOPE_GLOBAL,
+                Attribute.FLAG_PERSISTENT));
+        try {
+            m_datasource.saveAccountAttributes(accounts, attrs);
+            fail("A String score was saved.");
+        } catch (ClassCastException e) {
+        }
+
+        accounts.set(0, new StubAccount("user", "password"));
+        m_datasource.saveAccountAttributes(accounts.subList(0, 1), attrs.subList(0, 1));
+        StubAccount stale = new StubAccount("stale", "password");
+        m_datasource.loadAccountGlobalAttributes(stale);
+        assertEquals(null, stale.getAttributeValue("score"));
+    }
+
+    private StubDatasourceContext context(String statementCacheSize) {
+        return new StubDatasourceContext().setAttribute("dbURL", DB_URL)
+                .setAttribute("dbUsername", "sa").setAttribute("dbPassword", "")
+                .setAttribute("dbDriver", "org.h2.Driver")
+                .setAttribute("statementCacheSize", statementCacheSize);
+    }
+}
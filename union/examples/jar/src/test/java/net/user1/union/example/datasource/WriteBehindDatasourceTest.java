@@ -0,0 +1,189 @@
+package net.user1.union.example.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.user1.union.api.Account;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.exception.DatasourceException;
+import net.user1.union.example.stub.StubAccount;
+import net.user1.union.example.stub.StubAttribute;
+import net.user1.union.example.stub.StubDatasource;
+import net.user1.union.example.stub.StubDatasourceContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs WriteBehindDatasource in front of a StubDatasource, with an interval long enough
+ * that nothing is written in the background during a test.
+ */
+public class WriteBehindDatasourceTest {
+    private WriteBehindDatasource m_datasource;
+    private StubDatasource m_delegate;
+    private StubAccount m_account = new StubAccount("user", "password");
+
+    @Before
+    public void setUp() {
+        m_datasource = new WriteBehindDatasource();
+        assertTrue(m_datasource.init(new StubDatasourceContext()
+                .setAttribute("delegate", StubDatasource.class.getName())
+                .setAttribute("writeBehindInterval", "60000")));
+        m_delegate = (StubDatasource)m_datasource.m_delegate;
+    }
+
+    @Test
+    public void coalescesSavesUntilShutdown() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            m_datasource.saveAccountAttribute(m_account, score(i));
+        }
+        assertEquals(1, m_datasource.getQueueDepth());
+        assertEquals(0, m_delegate.getNumSaves());
+
+        m_datasource.shutdown();
+        assertEquals(1, m_delegate.getNumSaves());
+        assertEquals(Integer.valueOf(10), storedScore());
+    }
+
+    @Test
+    public void loadWritesTheAccountsWaitingSavesFirst() throws Exception {
+        m_datasource.saveAccountAttribute(m_account, score(5));
+        StubAccount loaded = new StubAccount("user", "password");
+        m_datasource.loadAccountGlobalAttributes(loaded);
+        assertEquals(Integer.valueOf(5), loaded.getAttributeValue("score"));
+        assertEquals(0, m_datasource.getQueueDepth());
+        m_datasource.shutdown();
+    }
+
+    @Test
+    public void savesAfterShutdownAreWrittenThrough() throws Exception {
+        m_datasource.saveAccountAttribute(m_account, score(1));
+        m_datasource.shutdown();
+
+        m_datasource.saveAccountAttribute(m_account, score(2));
+        assertEquals(Integer.valueOf(2), storedScore());
+        assertEquals(0, m_datasource.getQueueDepth());
+    }
+
+    @Test
+    public void aBadAttributeDoesNotLoseTheOthers() throws Exception {
+        WriteBehindDatasource datasource = new WriteBehindDatasource();
+        assertTrue(datasource.init(new StubDatasourceContext()
+                .setAttribute("delegate", CastingDatasource.class.getName())
+                .setAttribute("writeBehindInterval", "60000")));
+        StubDatasource delegate = (StubDatasource)datasource.m_delegate;
+        datasource.saveAccountAttribute(new StubAccount("client", "password"),
+                new StubAttribute("score", "12", Attribute.SCOPE_GLOBAL,
+                        Attribute.FLAG_PERSISTENT));
+        datasource.saveAccountAttribute(m_account, score(3));
+
+        datasource.shutdown();
+        assertEquals(Integer.valueOf(3),
+                delegate.getStoredValue("user", Attribute.SCOPE_GLOBAL, "score"));
+        assertEquals(null, delegate.getStoredValue("client", Attribute.SCOPE_GLOBAL, "score"));
+        assertEquals(1, datasource.getQueueDepth());
+        assertTrue(datasource.getNumFailedSaves() >= 1);
+    }
+
+    @Test
+    public void failedSavesAreRetriedUntilTheDelegateRecovers() throws Exception {
+        WriteBehindDatasource datasource = new WriteBehindDatasource();
+        assertTrue(datasource.init(new StubDatasourceContext()
+                .setAttribute("delegate", FailingDatasource.class.getName())
+                .setAttribute("writeBehindInterval", "20")));
+        FailingDatasource delegate = (FailingDatasource)datasource.m_delegate;
+        delegate.setDown(true);
+        datasource.saveAccountAttribute(m_account, score(1));
+        datasource.saveAccountAttribute(new StubAccount("client", "password"), score(2));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (datasource.getNumFailedSaves() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(datasource.getNumFailedSaves() >= 2);
+        assertEquals(2, datasource.getQueueDepth());
+
+        // --- a newer save replaces the failed one rather than being overwritten by it
+        datasource.saveAccountAttribute(m_account, score(3));
+        delegate.setDown(false);
+        while (datasource.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, datasource.getQueueDepth());
+        assertEquals(Integer.valueOf(3),
+                delegate.getStoredValue("user", Attribute.SCOPE_GLOBAL, "score"));
+        assertEquals(Integer.valueOf(2),
+                delegate.getStoredValue("client", Attribute.SCOPE_GLOBAL, "score"));
+        datasource.shutdown();
+    }
+
+    @Test
+    public void shutdownKeepsSavesItCouldNotWrite() throws Exception {
+        WriteBehindDatasource datasource = new WriteBehindDatasource();
+        assertTrue(datasource.init(new StubDatasourceContext()
+                .setAttribute("delegate", FailingDatasource.class.getName())
+                .setAttribute("writeBehindInterval", "60000")));
+        FailingDatasource delegate = (FailingDatasource)datasource.m_delegate;
+        delegate.setDown(true);
+        datasource.saveAccountAttribute(m_account, score(1));
+
+        datasource.shutdown();
+        assertEquals(1, datasource.getQueueDepth());
+        assertEquals(1, datasource.getNumFailedSaves());
+
+        // --- the next save for the account writes it through once the delegate is back
+        delegate.setDown(false);
+        datasource.saveAccountAttribute(m_account, score(4));
+        assertEquals(0, datasource.getQueueDepth());
+        assertEquals(Integer.valueOf(4),
+                delegate.getStoredValue("user", Attribute.SCOPE_GLOBAL, "score"));
+    }
+
+    private Attribute score(int score) {
+        return new StubAttribute("score", Integer.valueOf(score), Attribute.SCOPE_GLOBAL,
+                Attribute.FLAG_PERSISTENT);
+    }
+
+    private Object storedScore() {
+        return m_delegate.getStoredValue("user", Attribute.SCOPE_GLOBAL, "score");
+    }
+
+    /**
+     * Fails every save while it is down, like a database that cannot be reached.
+     */
+    public static class FailingDatasource extends StubDatasource {
+        private volatile boolean m_isDown;
+
+        public void setDown(boolean isDown) {
+            m_isDown = isDown;
+        }
+
+        public void saveAccountAttribute(Account account, Attribute attr)
+        throws DatasourceException {
+            if (m_isDown) {
+                throw new DatasourceException("Database is down.");
+            }
+            super.saveAccountAttribute(account, attr);
+        }
+    }
+
+    /**
+     * Casts each score to an Integer, as MySqlAccountDatasource does, so a score a client
+     * set as a String throws a ClassCastException.
+     */
+    public static class CastingDatasource extends StubDatasource implements BatchingDatasource {
+        public void saveAccountAttribute(Account account, Attribute attr)
+        throws DatasourceException {
+            Integer score = (Integer)attr.getValue();
+            super.saveAccountAttribute(account, attr);
+        }
+
+        public void saveAccountAttributes(List<Account> accounts, List<Attribute> attrs)
+        throws DatasourceException {
+            for (int i = 0; i < attrs.size(); i++) {
+                saveAccountAttribute(accounts.get(i), attrs.get(i));
+            }
+        }
+    }
+}
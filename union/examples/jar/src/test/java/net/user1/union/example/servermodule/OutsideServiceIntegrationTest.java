@@ -0,0 +1,196 @@
+package net.user1.union.example.servermodule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.user1.union.example.stub.StubClient;
+import net.user1.union.example.stub.StubMessage;
+import net.user1.union.example.stub.StubModuleContext;
+import net.user1.union.example.util.AttributeBatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Logs clients in against a stub outside service on a local HttpServer. The token "bad"
+ * is refused, and calls for the token "slow" wait until the test lets them go.
+ */
+public class OutsideServiceIntegrationTest {
+    private HttpServer m_server;
+    private ExecutorService m_serverThreads = Executors.newCachedThreadPool();
+    private AtomicInteger m_numAuthenticates = new AtomicInteger();
+    private CountDownLatch m_slowCalls = new CountDownLatch(1);
+    private OutsideServiceIntegration m_module;
+
+    @Before
+    public void setUp() throws IOException {
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_server.setExecutor(m_serverThreads);
+        m_server.createContext("/authenticate", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                m_numAuthenticates.incrementAndGet();
+                String query = exchange.getRequestURI().getQuery();
+                if ("token=slow".equals(query)) {
+                    try {
+                        m_slowCalls.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                respond(exchange, "token=bad".equals(query) ? 403 : 200, "");
+            }
+        });
+        m_server.createContext("/fields", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "color=blue\nlevel=3\n");
+            }
+        });
+        m_server.start();
+    }
+
+    @After
+    public void tearDown() {
+        m_slowCalls.countDown();
+        if (m_module != null) {
+            m_module.shutdown();
+        }
+        m_server.stop(0);
+        m_serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void aValidTokenLogsInWithItsFields() throws Exception {
+        m_module = start(8, 100);
+        RecordingClient client = login("good");
+        assertEquals("LOGGED_IN", client.next());
+        assertEquals("blue", client.getAttributeValue("color"));
+        assertEquals("3", client.getAttributeValue("level"));
+        assertEquals(null, client.getAttributeValue("profile"));
+    }
+
+    @Test
+    public void aPackedProfileIsOneAttribute() throws Exception {
+        m_module = new OutsideServiceIntegration();
+        assertTrue(m_module.init(context(8, 100).setAttribute("packProfile", "true")));
+        RecordingClient client = login("good");
+        assertEquals("LOGGED_IN", client.next());
+        Map<String,String> profile = AttributeBatch.unpack(
+                (String)client.getAttributeValue("profile"));
+        assertEquals(2, profile.size());
+        assertEquals("blue", profile.get("color"));
+        assertEquals("3", profile.get("level"));
+        assertEquals(null, client.getAttributeValue("color"));
+    }
+
+    @Test
+    public void anInvalidTokenIsRefused() throws Exception {
+        m_module = start(8, 100);
+        RecordingClient client = login("bad");
+        assertEquals("INVALID_LOGIN", client.next());
+        assertEquals(null, client.getAttributeValue("color"));
+    }
+
+    @Test
+    public void aCachedTokenDoesNotCallTheService() throws Exception {
+        m_module = start(8, 100);
+        assertEquals("LOGGED_IN", login("good").next());
+        assertEquals("INVALID_LOGIN", login("bad").next());
+
+        assertEquals("LOGGED_IN", login("good").next());
+        assertEquals("INVALID_LOGIN", login("bad").next());
+        assertEquals(2, m_numAuthenticates.get());
+    }
+
+    @Test
+    public void aFullQueueRefusesTheLogin() throws Exception {
+        m_module = start(1, 1);
+        // --- one login waits on the service, one waits in the queue
+        RecordingClient first = login("slow");
+        RecordingClient second = login("slow");
+        RecordingClient third = login("slow");
+        assertEquals("INVALID_LOGIN", third.next());
+
+        m_slowCalls.countDown();
+        assertEquals("LOGGED_IN", first.next());
+        assertEquals("LOGGED_IN", second.next());
+    }
+
+    @Test
+    public void loginThreadsAreDaemonsOrVirtual() throws Exception {
+        ThreadFactory factory = OutsideServiceIntegration.createThreadFactory();
+        Thread thread = factory.newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertTrue(thread.isDaemon());
+        assertEquals("OutsideServiceIntegration", thread.getName());
+    }
+
+    private OutsideServiceIntegration start(int loginThreads, int loginQueueSize) {
+        OutsideServiceIntegration module = new OutsideServiceIntegration();
+        assertTrue(module.init(context(loginThreads, loginQueueSize)));
+        return module;
+    }
+
+    private StubModuleContext context(int loginThreads, int loginQueueSize) {
+        return new StubModuleContext(null)
+                .setAttribute("serviceURL", "http://127.0.0.1:" +
+                        m_server.getAddress().getPort())
+                .setAttribute("loginThreads", String.valueOf(loginThreads))
+                .setAttribute("loginQueueSize", String.valueOf(loginQueueSize));
+    }
+
+    private RecordingClient login(String token) {
+        RecordingClient client = new RecordingClient();
+        m_module.LOGIN_OUTSIDE_SERVICE(new StubMessage("LOGIN_OUTSIDE_SERVICE")
+                .setArg("token", token), client);
+        return client;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+    throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Keeps the names of the messages sent to it, which may come from a login thread.
+     */
+    private static class RecordingClient extends StubClient {
+        private BlockingQueue<String> m_messageNames = new LinkedBlockingQueue<String>();
+
+        public RecordingClient() {
+            super("client");
+        }
+
+        public void receive(String messageName, String... args) {
+            super.receive(messageName, args);
+            m_messageNames.add(messageName);
+        }
+
+        public String next() throws InterruptedException {
+            return m_messageNames.poll(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.user1.union.example.stub;
+
+import java.util.Collections;
+import java.util.Map;
+
+import net.user1.union.api.Account;
+import net.user1.union.api.Client;
+
+/**
+ * An account that datasources load attributes into.
+ */
+public class StubAccount extends StubAttributeHolder implements Account {
+    private String m_userID;
+    private String m_password;
+    private boolean m_isModerator;
+
+    public StubAccount(String userID, String password) {
+        m_userID = userID;
+        m_password = password;
+    }
+
+    public Map getEventClassMap() {
+        return Collections.EMPTY_MAP;
+    }
+
+    public String getUserID() {
+        return m_userID;
+    }
+
+    public String getPassword() {
+        return m_password;
+    }
+
+    public Client getClient() {
+        return null;
+    }
+
+    public boolean isModerator() {
+        return m_isModerator;
+    }
+
+    public void setModerator(boolean isModerator) {
+        m_isModerator = isModerator;
+    }
+
+    public void initModerator(boolean isModerator) {
+        m_isModerator = isModerator;
+    }
+
+    public void dispose() {
+    }
+}
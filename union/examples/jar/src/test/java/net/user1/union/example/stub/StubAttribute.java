@@ -0,0 +1,51 @@
+package net.user1.union.example.stub;
+
+import net.user1.union.core.attribute.Attribute;
+
+/**
+ * An attribute held by a stub.
+ */
+public class StubAttribute implements Attribute {
+    private String m_name;
+    private String m_scope;
+    private Object m_value;
+    private int m_flags;
+
+    public StubAttribute(String name, Object value, String scope, int flags) {
+        m_name = name;
+        m_value = value;
+        m_scope = scope;
+        m_flags = flags;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public String getScope() {
+        return m_scope;
+    }
+
+    public int getFlags() {
+        return m_flags;
+    }
+
+    public Object getValue() {
+        return m_value;
+    }
+
+    public String nullSafeGetValue() {
+        return m_value == null ? "" : m_value.toString();
+    }
+
+    public void setValue(Object value) {
+        m_value = value;
+    }
+
+    public void setFlags(int flags) {
+        m_flags = flags;
+    }
+
+    public void remove() {
+    }
+}
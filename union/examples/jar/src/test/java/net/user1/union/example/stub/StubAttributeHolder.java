@@ -0,0 +1,113 @@
+package net.user1.union.example.stub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.attribute.AttributeHolder;
+import net.user1.union.core.event.BaseEventProducer;
+
+/**
+ * Keeps the attributes of a stub room, client or account in a map per scope, and dispatches
+ * its events with the server's own BaseEventProducer, so listeners are called by reflection
+ * as they are on a server.
+ */
+public abstract class StubAttributeHolder extends BaseEventProducer implements AttributeHolder {
+    // --- attributes by scope, then name
+    private Map<String,Map<String,Attribute>> m_attributes =
+            new HashMap<String,Map<String,Attribute>>();
+
+    public Object getAttributeValue(String name) {
+        return getAttributeValue(name, Attribute.SCOPE_GLOBAL);
+    }
+
+    public Object getAttributeValue(String name, String scope) {
+        Attribute attr = getAttribute(name, scope);
+        return attr == null ? null : attr.getValue();
+    }
+
+    public Attribute setAttribute(String name, Object value, String scope, int flags) {
+        Attribute attr = new StubAttribute(name, value, scope, flags);
+        synchronized (m_attributes) {
+            Map<String,Attribute> attrs = m_attributes.get(scope);
+            if (attrs == null) {
+                attrs = new HashMap<String,Attribute>();
+                m_attributes.put(scope, attrs);
+            }
+            attrs.put(name, attr);
+        }
+        onChangeAttribute(attr);
+        return attr;
+    }
+
+    public Attribute getAttribute(String name, String scope) {
+        synchronized (m_attributes) {
+            Map<String,Attribute> attrs = m_attributes.get(scope);
+            return attrs == null ? null : attrs.get(name);
+        }
+    }
+
+    public Attribute getAttribute(String name) {
+        return getAttribute(name, Attribute.SCOPE_GLOBAL);
+    }
+
+    public void removeAttribute(String name, String scope) {
+        Attribute attr = null;
+        synchronized (m_attributes) {
+            Map<String,Attribute> attrs = m_attributes.get(scope);
+            if (attrs != null) {
+                attr = attrs.remove(name);
+            }
+        }
+        if (attr != null) {
+            onRemoveAttribute(attr);
+        }
+    }
+
+    public void removeAttribute(String name) {
+        removeAttribute(name, Attribute.SCOPE_GLOBAL);
+    }
+
+    public void onChangeAttribute(Attribute attr) {
+    }
+
+    public void onRemoveAttribute(Attribute attr) {
+    }
+
+    public List getAttributes(String scope, int flags) {
+        List<Attribute> result = new ArrayList<Attribute>();
+        synchronized (m_attributes) {
+            Map<String,Attribute> attrs = m_attributes.get(scope);
+            if (attrs != null) {
+                for (Attribute attr : attrs.values()) {
+                    if ((attr.getFlags() & flags) == flags) {
+                        result.add(attr);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public List getAttributes() {
+        List<Attribute> result = new ArrayList<Attribute>();
+        synchronized (m_attributes) {
+            for (Map<String,Attribute> attrs : m_attributes.values()) {
+                result.addAll(attrs.values());
+            }
+        }
+        return result;
+    }
+
+    public Map getAttributesByScope() {
+        Map<String,Map<String,Attribute>> byScope = new HashMap<String,Map<String,Attribute>>();
+        synchronized (m_attributes) {
+            for (Map.Entry<String,Map<String,Attribute>> entry : m_attributes.entrySet()) {
+                byScope.put(entry.getKey(), new HashMap<String,Attribute>(entry.getValue()));
+            }
+        }
+        return byScope;
+    }
+}
@@ -0,0 +1,155 @@
+package net.user1.union.example.stub;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.user1.union.api.Account;
+import net.user1.union.api.Client;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.event.ClientEvent;
+
+/**
+ * A client that counts the messages sent to it instead of writing them to a connection.
+ * Changing one of its attributes dispatches ClientEvent.ATTRIBUTE_CHANGED, as on a server.
+ */
+public class StubClient extends StubAttributeHolder implements Client {
+    private static final Map<String,Class<?>> EVENT_CLASSES = new HashMap<String,Class<?>>();
+    static {
+        EVENT_CLASSES.put(ClientEvent.ATTRIBUTE_CHANGED, ClientEvent.class);
+        EVENT_CLASSES.put(ClientEvent.ATTRIBUTE_REMOVED, ClientEvent.class);
+        EVENT_CLASSES.put(ClientEvent.SHUTDOWN, ClientEvent.class);
+    }
+
+    private String m_clientID;
+    private String m_address;
+    private boolean m_isAdmin;
+    // --- messages sent to the client, and the length of their arguments
+    private long m_numMessages;
+    private long m_numChars;
+
+    public StubClient(String clientID) {
+        this(clientID, "127.0.0.1");
+    }
+
+    public StubClient(String clientID, String address) {
+        m_clientID = clientID;
+        m_address = address;
+    }
+
+    /**
+     * Count a message sent to the client by a room or by the client's own sendMessage().
+     */
+    public void receive(String messageName, String... args) {
+        m_numMessages++;
+        for (String arg : args) {
+            m_numChars += arg == null ? 0 : arg.length();
+        }
+    }
+
+    public long getNumMessages() {
+        return m_numMessages;
+    }
+
+    public long getNumChars() {
+        return m_numChars;
+    }
+
+    public void setAdmin(boolean isAdmin) {
+        m_isAdmin = isAdmin;
+    }
+
+    public Map getEventClassMap() {
+        return EVENT_CLASSES;
+    }
+
+    public void onChangeAttribute(Attribute attr) {
+        dispatchEvent(ClientEvent.ATTRIBUTE_CHANGED, new ClientEvent(this, attr));
+    }
+
+    public void onRemoveAttribute(Attribute attr) {
+        dispatchEvent(ClientEvent.ATTRIBUTE_REMOVED, new ClientEvent(this, attr));
+    }
+
+    public String joinRoom(String roomID, String password) {
+        return null;
+    }
+
+    public String leaveRoom(String roomID) {
+        return null;
+    }
+
+    public String observeRoom(String roomID, String password) {
+        return null;
+    }
+
+    public String stopObservingRoom(String roomID) {
+        return null;
+    }
+
+    public void sendMessage(String messageName, String... args) {
+        receive(messageName, args);
+    }
+
+    public String getClientID() {
+        return m_clientID;
+    }
+
+    public String getUserID() {
+        return null;
+    }
+
+    public Account getAccount() {
+        return null;
+    }
+
+    public void shutdown() {
+    }
+
+    public void shutdown(boolean isGraceful) {
+    }
+
+    public Set getRoomList() {
+        return Collections.EMPTY_SET;
+    }
+
+    public String getAddress() {
+        return m_address;
+    }
+
+    public String login(String userID, String password) {
+        return null;
+    }
+
+    public String logoff(String password) {
+        return null;
+    }
+
+    public boolean isLoggedIn() {
+        return false;
+    }
+
+    public boolean isAdmin() {
+        return m_isAdmin;
+    }
+
+    public long getLastActive() {
+        return 0;
+    }
+
+    public long getConnectToServerTime() {
+        return 0;
+    }
+
+    public void setUpdateLevels(String roomID, int levels) {
+    }
+
+    public Integer getUpdateLevels(String roomID) {
+        return null;
+    }
+
+    public boolean isShutdown() {
+        return false;
+    }
+}
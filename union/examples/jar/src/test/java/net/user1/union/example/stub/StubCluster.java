@@ -0,0 +1,41 @@
+package net.user1.union.example.stub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import net.user1.union.api.Cluster;
+
+/**
+ * A cluster of the given nodes, which may or may not include the local one, as on a server.
+ */
+public class StubCluster implements Cluster {
+    private Set<String> m_nodeIDs;
+
+    public StubCluster(String... nodeIDs) {
+        m_nodeIDs = Collections.unmodifiableSet(
+                new LinkedHashSet<String>(Arrays.asList(nodeIDs)));
+    }
+
+    public Set getNodeIDs() {
+        return m_nodeIDs;
+    }
+
+    public String getAffinityAddress() {
+        return null;
+    }
+
+    public void setAffinityAddress(String address) {
+    }
+
+    public int getAffinityDuration() {
+        return 0;
+    }
+
+    public void setAffinityDuration(int duration) {
+    }
+
+    public void resetNodeStreams() {
+    }
+}
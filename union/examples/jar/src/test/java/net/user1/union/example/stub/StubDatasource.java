@@ -0,0 +1,191 @@
+package net.user1.union.example.stub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.user1.union.api.Account;
+import net.user1.union.api.Datasource;
+import net.user1.union.api.Room;
+import net.user1.union.api.Server;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.attribute.AttributeHolder;
+import net.user1.union.core.context.DatasourceContext;
+import net.user1.union.core.exception.AttributeException;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * A datasource that keeps accounts and attributes in memory, for the datasource decorators
+ * to wrap. Loading sets the stored attributes on the holder with setAttribute(), and every
+ * load and save is counted. Saves are still stored after shutdown(), so a test can see
+ * saves that arrive late.
+ */
+public class StubDatasource implements Datasource {
+    private static final String SERVER = "server";
+
+    private Map<String,String> m_passwords = new HashMap<String,String>();
+    // --- stored attributes by holder ("account.userID", "room.roomID" or "server"), then
+    // --- by scope and name
+    private Map<String,Map<String,Attribute>> m_attributes =
+            new HashMap<String,Map<String,Attribute>>();
+    private int m_numLoads;
+    private int m_numSaves;
+    private boolean m_isShutdown;
+
+    public boolean init(DatasourceContext ctx) {
+        return true;
+    }
+
+    public synchronized void shutdown() {
+        m_isShutdown = true;
+    }
+
+    public synchronized boolean isShutdown() {
+        return m_isShutdown;
+    }
+
+    public synchronized int getNumLoads() {
+        return m_numLoads;
+    }
+
+    public synchronized int getNumSaves() {
+        return m_numSaves;
+    }
+
+    /**
+     * Return the stored value of an account attribute, without counting a load.
+     */
+    public synchronized Object getStoredValue(String userID, String scope, String name) {
+        Map<String,Attribute> attrs = m_attributes.get("account." + userID);
+        Attribute attr = attrs == null ? null : attrs.get(scope + "." + name);
+        return attr == null ? null : attr.getValue();
+    }
+
+    public synchronized String createAccount(String userID, String password) {
+        m_passwords.put(userID, password);
+        return null;
+    }
+
+    public synchronized boolean containsAccount(String userID) {
+        return m_passwords.containsKey(userID);
+    }
+
+    public synchronized String saveAccount(Account account) {
+        m_passwords.put(account.getUserID(), account.getPassword());
+        return null;
+    }
+
+    public synchronized String getPassword(String userID) {
+        return m_passwords.get(userID);
+    }
+
+    public void loadAllAccountAttributes(Account account)
+    throws DatasourceException {
+        load("account." + account.getUserID(), null, account);
+    }
+
+    public void loadAccountGlobalAttributes(Account account)
+    throws DatasourceException {
+        load("account." + account.getUserID(), Attribute.SCOPE_GLOBAL, account);
+    }
+
+    public void loadAccountRoomAttributes(Account account, String roomID)
+    throws DatasourceException {
+        load("account." + account.getUserID(), roomID, account);
+    }
+
+    public void saveAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        save("account." + account.getUserID(), attr);
+    }
+
+    public void removeAccountAttribute(Account account, Attribute attr) {
+        remove("account." + account.getUserID(), attr);
+    }
+
+    public void loadAccount(Account account) {
+    }
+
+    public synchronized String removeAccount(String userID) {
+        m_passwords.remove(userID);
+        m_attributes.remove("account." + userID);
+        return null;
+    }
+
+    public synchronized List getAccounts() {
+        return new ArrayList<String>(m_passwords.keySet());
+    }
+
+    public void loadRoomAttributes(Room room)
+    throws DatasourceException {
+        load("room." + room.getQualifiedID(), null, room);
+    }
+
+    public void saveRoomAttribute(Room room, Attribute attr) {
+        save("room." + room.getQualifiedID(), attr);
+    }
+
+    public void removeRoomAttribute(Room room, Attribute attr) {
+        remove("room." + room.getQualifiedID(), attr);
+    }
+
+    public void saveServerAttribute(Attribute attr) {
+        save(SERVER, attr);
+    }
+
+    public void removeServerAttribute(Attribute attr) {
+        remove(SERVER, attr);
+    }
+
+    public void loadServerAttributes(Server server)
+    throws DatasourceException {
+        load(SERVER, null, server);
+    }
+
+    /**
+     * Set the stored attributes of a holder on the given holder, only those of one scope
+     * if scope is not null.
+     */
+    private void load(String holderID, String scope, AttributeHolder holder)
+    throws DatasourceException {
+        List<Attribute> attrs = new ArrayList<Attribute>();
+        synchronized (this) {
+            m_numLoads++;
+            Map<String,Attribute> stored = m_attributes.get(holderID);
+            if (stored != null) {
+                for (Attribute attr : stored.values()) {
+                    if (scope == null || scope.equals(attr.getScope())) {
+                        attrs.add(attr);
+                    }
+                }
+            }
+        }
+        try {
+            for (Attribute attr : attrs) {
+                holder.setAttribute(attr.getName(), attr.getValue(), attr.getScope(),
+                        attr.getFlags());
+            }
+        } catch (AttributeException e) {
+            throw new DatasourceException(e);
+        }
+    }
+
+    private synchronized void save(String holderID, Attribute attr) {
+        m_numSaves++;
+        Map<String,Attribute> stored = m_attributes.get(holderID);
+        if (stored == null) {
+            stored = new HashMap<String,Attribute>();
+            m_attributes.put(holderID, stored);
+        }
+        stored.put(attr.getScope() + "." + attr.getName(), new StubAttribute(attr.getName(),
+                attr.getValue(), attr.getScope(), attr.getFlags()));
+    }
+
+    private synchronized void remove(String holderID, Attribute attr) {
+        Map<String,Attribute> stored = m_attributes.get(holderID);
+        if (stored != null) {
+            stored.remove(attr.getScope() + "." + attr.getName());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.user1.union.example.stub;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.user1.union.api.Server;
+import net.user1.union.core.context.DatasourceContext;
+
+/**
+ * The context of a datasource, holding the attributes of its union.xml declaration. There
+ * is no server.
+ */
+public class StubDatasourceContext implements DatasourceContext {
+    private Map<String,Object> m_attributes = new HashMap<String,Object>();
+
+    /**
+     * Set a datasource attribute, returning the context so attributes can be chained.
+     */
+    public StubDatasourceContext setAttribute(String name, Object value) {
+        m_attributes.put(name, value);
+        return this;
+    }
+
+    public Server getServer() {
+        return null;
+    }
+
+    public Map getAttributes() {
+        return m_attributes;
+    }
+}
@@ -0,0 +1,38 @@
+package net.user1.union.example.stub;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.user1.union.api.Message;
+
+/**
+ * A message sent by a client, with its arguments by name.
+ */
+public class StubMessage implements Message {
+    private String m_messageName;
+    private Map<String,String> m_args = new HashMap<String,String>();
+
+    public StubMessage(String messageName) {
+        m_messageName = messageName;
+    }
+
+    /**
+     * Set an argument, returning the message so arguments can be chained.
+     */
+    public StubMessage setArg(String name, String value) {
+        m_args.put(name, value);
+        return this;
+    }
+
+    public String getMessageName() {
+        return m_messageName;
+    }
+
+    public String getArg(String name) {
+        return m_args.get(name);
+    }
+
+    public Map getArgs() {
+        return m_args;
+    }
+}
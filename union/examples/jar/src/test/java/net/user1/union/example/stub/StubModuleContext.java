@@ -0,0 +1,54 @@
+package net.user1.union.example.stub;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.user1.union.api.Room;
+import net.user1.union.api.Server;
+import net.user1.union.core.context.ModuleContext;
+
+/**
+ * The context of a room module attached to a StubRoom. There is no server unless one is set.
+ */
+public class StubModuleContext implements ModuleContext {
+    private Room m_room;
+    private Server m_server;
+    private Map<String,Object> m_attributes = new HashMap<String,Object>();
+
+    public StubModuleContext(Room room) {
+        m_room = room;
+    }
+
+    /**
+     * Set a module attribute, as union.xml or the CREATE_ROOM UPC would.
+     */
+    public StubModuleContext setAttribute(String name, Object value) {
+        m_attributes.put(name, value);
+        return this;
+    }
+
+    /**
+     * Set the server the module sees, such as a StubServer with a cluster.
+     */
+    public StubModuleContext setServer(Server server) {
+        m_server = server;
+        return this;
+    }
+
+    public Server getServer() {
+        return m_server;
+    }
+
+    public Room getRoom() {
+        return m_room;
+    }
+
+    public Map getAttributes() {
+        return m_attributes;
+    }
+
+    // --- internal to the server, not used by modules
+    public String d(String name) {
+        return null;
+    }
+}
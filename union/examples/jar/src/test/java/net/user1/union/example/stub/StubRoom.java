@@ -0,0 +1,180 @@
+package net.user1.union.example.stub;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.user1.union.api.Client;
+import net.user1.union.api.Message;
+import net.user1.union.api.Room;
+import net.user1.union.cluster.ClusterRole;
+import net.user1.union.core.event.RemoteEvent;
+import net.user1.union.core.event.RoomEvent;
+import net.user1.union.filter.Filter;
+
+/**
+ * A room of StubClients. Messages sent to the room are passed to the receive() method of
+ * each recipient, after the filter or set of recipients has been applied as the server
+ * would. Remote events are not sent anywhere; the last one dispatched is kept so a
+ * benchmark can feed it back in.
+ */
+public class StubRoom extends StubAttributeHolder implements Room {
+    private static final Map<String,Class<?>> EVENT_CLASSES = new HashMap<String,Class<?>>();
+    static {
+        EVENT_CLASSES.put(RoomEvent.ADD_CLIENT, RoomEvent.class);
+        EVENT_CLASSES.put(RoomEvent.REMOVE_CLIENT, RoomEvent.class);
+        EVENT_CLASSES.put(RoomEvent.MODULE_MESSAGE, RoomEvent.class);
+        EVENT_CLASSES.put(RoomEvent.ATTRIBUTE_CHANGED, RoomEvent.class);
+        EVENT_CLASSES.put(RoomEvent.ATTRIBUTE_REMOVED, RoomEvent.class);
+        EVENT_CLASSES.put(RoomEvent.SHUTDOWN, RoomEvent.class);
+    }
+
+    private String m_roomID;
+    private Set<Client> m_clients = new LinkedHashSet<Client>();
+    private RemoteEvent m_lastRemoteEvent;
+    private long m_numRemoteEvents;
+
+    public StubRoom(String roomID) {
+        m_roomID = roomID;
+    }
+
+    /**
+     * Add a client and dispatch RoomEvent.ADD_CLIENT.
+     */
+    public void addClient(Client client) {
+        synchronized (m_clients) {
+            m_clients.add(client);
+        }
+        dispatchEvent(RoomEvent.ADD_CLIENT, new RoomEvent(this, client, null));
+    }
+
+    /**
+     * Remove a client and dispatch RoomEvent.REMOVE_CLIENT.
+     */
+    public void removeClient(Client client) {
+        synchronized (m_clients) {
+            m_clients.remove(client);
+        }
+        dispatchEvent(RoomEvent.REMOVE_CLIENT, new RoomEvent(this, client, null));
+    }
+
+    /**
+     * Dispatch a room module message from a client, as the server does for a u70.
+     */
+    public void sendModuleMessage(Client client, Message message) {
+        dispatchEvent(RoomEvent.MODULE_MESSAGE, new RoomEvent(this, client, message));
+    }
+
+    public RemoteEvent getLastRemoteEvent() {
+        return m_lastRemoteEvent;
+    }
+
+    public long getNumRemoteEvents() {
+        return m_numRemoteEvents;
+    }
+
+    public Map getEventClassMap() {
+        return EVENT_CLASSES;
+    }
+
+    public boolean containsClient(Client client) {
+        synchronized (m_clients) {
+            return m_clients.contains(client);
+        }
+    }
+
+    public boolean containsObserver(Client client) {
+        return false;
+    }
+
+    public int getNumClients() {
+        synchronized (m_clients) {
+            return m_clients.size();
+        }
+    }
+
+    public Set getClients() {
+        synchronized (m_clients) {
+            return Collections.unmodifiableSet(new LinkedHashSet<Client>(m_clients));
+        }
+    }
+
+    public int getNumObservers() {
+        return 0;
+    }
+
+    public void sendMessage(String messageName, String... args) {
+        synchronized (m_clients) {
+            for (Client client : m_clients) {
+                ((StubClient)client).receive(messageName, args);
+            }
+        }
+    }
+
+    public void sendMessage(Filter filter, String messageName, String... args) {
+        synchronized (m_clients) {
+            for (Client client : m_clients) {
+                if (filter.doFilter(client)) {
+                    ((StubClient)client).receive(messageName, args);
+                }
+            }
+        }
+    }
+
+    public void sendMessage(Set clients, String messageName, String... args) {
+        for (Object client : clients) {
+            ((StubClient)client).receive(messageName, args);
+        }
+    }
+
+    public String getSimpleID() {
+        return m_roomID;
+    }
+
+    public String getQualifiedID() {
+        return m_roomID;
+    }
+
+    public String getOwnerID() {
+        return null;
+    }
+
+    public long getCreationTime() {
+        return 0;
+    }
+
+    public void shutdownRoom() {
+    }
+
+    public void restart() {
+    }
+
+    public boolean isShutdown() {
+        return false;
+    }
+
+    public ClusterRole getClusterRole() {
+        return null;
+    }
+
+    public void addRemoteEventListener(String type, Object listener, String methodName) {
+    }
+
+    public void removeRemoteEventListener(String type, Object listener, String methodName) {
+    }
+
+    public Map getRemoteEventClassMap() {
+        return Collections.EMPTY_MAP;
+    }
+
+    public void dispatchRemoteEvent(String type, RemoteEvent event) {
+        m_lastRemoteEvent = event;
+        m_numRemoteEvents++;
+    }
+
+    public void dispatchRemoteEvent(String type, RemoteEvent event, String nodeID) {
+        dispatchRemoteEvent(type, event);
+    }
+}
@@ -0,0 +1,193 @@
+package net.user1.union.example.stub;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.user1.union.api.Account;
+import net.user1.union.api.Client;
+import net.user1.union.api.Cluster;
+import net.user1.union.api.Module;
+import net.user1.union.api.Request;
+import net.user1.union.api.Room;
+import net.user1.union.api.Security;
+import net.user1.union.api.Server;
+import net.user1.union.api.UPCProcessor;
+import net.user1.union.core.def.ModuleDef;
+import net.user1.union.core.def.RoomDef;
+import net.user1.union.core.event.RemoteEvent;
+import net.user1.union.filter.Filter;
+
+/**
+ * A server that only knows its cluster. It has no rooms, clients or accounts, and remote
+ * events dispatched through it are dropped.
+ */
+public class StubServer extends StubAttributeHolder implements Server {
+    private Cluster m_cluster;
+
+    public StubServer(Cluster cluster) {
+        m_cluster = cluster;
+    }
+
+    public Cluster getCluster() {
+        return m_cluster;
+    }
+
+    public Map getEventClassMap() {
+        return Collections.EMPTY_MAP;
+    }
+
+    public void addRemoteEventListener(String type, Object listener, String methodName) {
+    }
+
+    public void removeRemoteEventListener(String type, Object listener, String methodName) {
+    }
+
+    public Map getRemoteEventClassMap() {
+        return Collections.EMPTY_MAP;
+    }
+
+    public void dispatchRemoteEvent(String type, RemoteEvent event) {
+    }
+
+    public void dispatchRemoteEvent(String type, RemoteEvent event, String nodeID) {
+    }
+
+    public void sendMessage(String messageName, String... args) {
+    }
+
+    public void sendMessage(Filter filter, String messageName, String... args) {
+    }
+
+    public boolean isShutdown() {
+        return false;
+    }
+
+    public Room getRoom(String roomID) {
+        return null;
+    }
+
+    public List getRooms() {
+        return Collections.EMPTY_LIST;
+    }
+
+    public List getRooms(String qualifier) {
+        return Collections.EMPTY_LIST;
+    }
+
+    public Room createRoom(RoomDef roomDef) {
+        return null;
+    }
+
+    public String shutdownRoom(String roomID, String password) {
+        return null;
+    }
+
+    public boolean containsRoom(String roomID) {
+        return false;
+    }
+
+    public boolean containsClient(String clientID) {
+        return false;
+    }
+
+    public Set getClients() {
+        return Collections.EMPTY_SET;
+    }
+
+    public Client getClient(String clientID) {
+        return null;
+    }
+
+    public Client getClientByUserID(String userID) {
+        return null;
+    }
+
+    public Module createModule(ModuleDef moduleDef) {
+        return null;
+    }
+
+    public Module getModule(String moduleID) {
+        return null;
+    }
+
+    public void shutdownModule(String moduleID) {
+    }
+
+    public String getVersion() {
+        return null;
+    }
+
+    public long getStartTime() {
+        return 0;
+    }
+
+    public int getNumClients() {
+        return 0;
+    }
+
+    public int getNumClientsTotal(String qualifier) {
+        return 0;
+    }
+
+    public int getNumClientsUnique(String qualifier) {
+        return 0;
+    }
+
+    public int getNumRooms() {
+        return 0;
+    }
+
+    public int getLifetimeNumClients() {
+        return 0;
+    }
+
+    public int getLifetimeNumRooms() {
+        return 0;
+    }
+
+    public Request getCurrentRequest() {
+        return null;
+    }
+
+    public boolean containsAccount(String userID) {
+        return false;
+    }
+
+    public Account getAccount(String userID) {
+        return null;
+    }
+
+    public boolean isAccountOnline(String userID) {
+        return false;
+    }
+
+    public String createAccount(String userID, String password) {
+        return null;
+    }
+
+    public String removeAccount(String userID, String password) {
+        return null;
+    }
+
+    public List getUsers() {
+        return Collections.EMPTY_LIST;
+    }
+
+    public String changeAccountPassword(String userID, String oldPassword,
+            String newPassword) {
+        return null;
+    }
+
+    public void shutdownServer() {
+    }
+
+    public Security getSecurity() {
+        return null;
+    }
+
+    public UPCProcessor getUPCMessageProcessor() {
+        return null;
+    }
+}
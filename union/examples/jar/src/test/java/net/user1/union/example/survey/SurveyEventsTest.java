@@ -0,0 +1,131 @@
+package net.user1.union.example.survey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.user1.union.core.event.RemoteEvent;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.util.RemoteEventChannel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Encodes each survey event with the channel SurveyEvents creates, and decodes it with a
+ * second channel as another node would.
+ */
+public class SurveyEventsTest {
+    private static final String[] NAMES = {"ASK_QUESTION", "END_QUESTION", "SURVEY_RESULTS",
+            "SURVEY_PARTIAL", "SLAVE_ROOM"};
+
+    private StubRoom m_room = new StubRoom("examples.survey");
+    private RemoteEventChannel m_sender;
+    private RemoteEventChannel m_receiver;
+    private List<String> m_names = new ArrayList<String>();
+    private List<RemoteEvent> m_events = new ArrayList<RemoteEvent>();
+
+    @Before
+    public void setUp() {
+        m_sender = SurveyEvents.createChannel(m_room);
+        m_receiver = SurveyEvents.createChannel(new StubRoom("examples.survey"));
+        m_receiver.addRemoteEventListener("ASK_QUESTION", this, "onAskQuestion");
+        m_receiver.addRemoteEventListener("END_QUESTION", this, "onEndQuestion");
+        m_receiver.addRemoteEventListener("SURVEY_RESULTS", this, "onSurveyResults");
+        m_receiver.addRemoteEventListener("SURVEY_PARTIAL", this, "onSurveyPartial");
+        m_receiver.addRemoteEventListener("SLAVE_ROOM", this, "onSlaveRoom");
+    }
+
+    @Test
+    public void roundTripsEachEvent() {
+        RemoteEvent[] events = createEvents();
+        for (int i = 0; i < events.length; i++) {
+            m_sender.dispatchRemoteEvent(NAMES[i], events[i]);
+            m_receiver.onEventFrame(m_room.getLastRemoteEvent());
+        }
+        assertEquals(events.length, m_room.getNumRemoteEvents());
+        assertReceived(events);
+    }
+
+    @Test
+    public void roundTripsABatchedFrame() {
+        // --- a channel that only sends when flushed
+        RemoteEventChannel sender = SurveyEvents.createChannel(m_room, Long.MAX_VALUE);
+
+        RemoteEvent[] events = createEvents();
+        for (int i = 0; i < events.length; i++) {
+            sender.dispatchRemoteEvent(NAMES[i], events[i]);
+        }
+        assertEquals(0, m_room.getNumRemoteEvents());
+        sender.flush();
+        assertEquals(1, m_room.getNumRemoteEvents());
+
+        m_receiver.onEventFrame(m_room.getLastRemoteEvent());
+        assertReceived(events);
+    }
+
+    public void onAskQuestion(RemoteEvent evt) {
+        received("ASK_QUESTION", evt);
+    }
+
+    public void onEndQuestion(RemoteEvent evt) {
+        received("END_QUESTION", evt);
+    }
+
+    public void onSurveyResults(RemoteEvent evt) {
+        received("SURVEY_RESULTS", evt);
+    }
+
+    public void onSurveyPartial(RemoteEvent evt) {
+        received("SURVEY_PARTIAL", evt);
+    }
+
+    public void onSlaveRoom(RemoteEvent evt) {
+        received("SLAVE_ROOM", evt);
+    }
+
+    private void received(String name, RemoteEvent evt) {
+        m_names.add(name);
+        m_events.add(evt);
+    }
+
+    private static RemoteEvent[] createEvents() {
+        return new RemoteEvent[] {
+            new AskQuestionEvent("Is été warmer than hiver?", "node-4"),
+            new EndQuestionEvent(7, "node-2", null, new String[] {"node-4", "node-5"}, 1500L),
+            new SurveyResultsEvent(7, new String[] {"node-2"}, 12, 3),
+            new SurveyResultsEvent(7, new String[] {"node-2", "node-4", "node-5"}, 40, 11),
+            new SlaveRoomEvent("node-4")
+        };
+    }
+
+    private void assertReceived(RemoteEvent[] sent) {
+        assertEquals(Arrays.asList(NAMES), m_names);
+
+        assertEquals(((AskQuestionEvent)sent[0]).getQuestion(),
+                ((AskQuestionEvent)m_events.get(0)).getQuestion());
+        assertEquals("node-4", ((AskQuestionEvent)m_events.get(0)).getNodeID());
+
+        EndQuestionEvent end = (EndQuestionEvent)m_events.get(1);
+        assertEquals(7, end.getRound());
+        assertEquals("node-2", end.getNodeID());
+        assertNull(end.getParentNodeID());
+        assertArrayEquals(new String[] {"node-4", "node-5"}, end.getChildNodeIDs());
+        assertEquals(1500L, end.getTimeout());
+
+        for (int i = 2; i < 4; i++) {
+            SurveyResultsEvent expected = (SurveyResultsEvent)sent[i];
+            SurveyResultsEvent results = (SurveyResultsEvent)m_events.get(i);
+            assertEquals(expected.getRound(), results.getRound());
+            assertArrayEquals(expected.getNodeIDs(), results.getNodeIDs());
+            assertEquals(expected.getYes(), results.getYes());
+            assertEquals(expected.getNo(), results.getNo());
+        }
+
+        assertEquals("node-4", ((SlaveRoomEvent)m_events.get(4)).getNodeID());
+    }
+}
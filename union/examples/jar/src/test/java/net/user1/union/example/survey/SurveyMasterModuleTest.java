@@ -0,0 +1,89 @@
+package net.user1.union.example.survey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.user1.union.example.stub.StubCluster;
+import net.user1.union.example.stub.StubModuleContext;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.stub.StubServer;
+import net.user1.union.example.util.RemoteEventChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a round on a cluster of the master's own node, a node with a slave room and a node
+ * without one. Remote events from the slave are passed to the master through a channel, as
+ * they would be on the cluster.
+ */
+public class SurveyMasterModuleTest {
+    private static final long RESULTS_TIMEOUT = 5000L;
+
+    private SurveyMasterModule m_master = new SurveyMasterModule();
+    private StubRoom m_slaveRoom = new StubRoom("examples.survey");
+    private SurveySlaveModule m_slave = new SurveySlaveModule();
+    // --- delivers what the slave sends to the master
+    private RemoteEventChannel m_toMaster;
+
+    @Before
+    public void setUp() {
+        StubServer server = new StubServer(new StubCluster("node-1", "node-2", "node-3"));
+        assertTrue(m_master.init(new StubModuleContext(new StubRoom("examples.survey"))
+                .setServer(server)
+                .setAttribute("resultsTimeout", Long.toString(RESULTS_TIMEOUT))));
+        assertTrue(m_slave.init(new StubModuleContext(m_slaveRoom)));
+
+        m_toMaster = SurveyEvents.createChannel(new StubRoom("examples.survey"));
+        m_toMaster.addRemoteEventListener("SLAVE_ROOM", m_master, "onSlaveRoom");
+        m_toMaster.addRemoteEventListener("SURVEY_RESULTS", m_master, "onSurveyResults");
+    }
+
+    @After
+    public void tearDown() {
+        m_slave.shutdown();
+        m_master.shutdown();
+    }
+
+    @Test
+    public void aRoundOnlyWaitsForNodesWithASlaveRoom() throws Exception {
+        // --- only node-2 has a slave room to answer the first question
+        m_slave.onAskQuestion(new AskQuestionEvent("Can you ice skate?", "node-2"));
+        m_toMaster.onEventFrame(m_slaveRoom.getLastRemoteEvent());
+
+        int round = m_master.endQuestion();
+        m_slave.onEndQuestion(new EndQuestionEvent(round, "node-2", null, new String[0],
+                RESULTS_TIMEOUT));
+        m_toMaster.onEventFrame(m_slaveRoom.getLastRemoteEvent());
+
+        long start = System.currentTimeMillis();
+        assertTrue(m_master.awaitResults());
+        assertTrue(System.currentTimeMillis() - start < RESULTS_TIMEOUT/2);
+    }
+
+    @Test
+    public void aSlaveOnlyAnswersAQuestionAddressedToItsNode() {
+        m_slave.onAskQuestion(new AskQuestionEvent("Can you ice skate?"));
+        assertEquals(0, m_slaveRoom.getNumRemoteEvents());
+
+        m_slave.onAskQuestion(new AskQuestionEvent("Can you ice skate?", "node-2"));
+        assertEquals(1, m_slaveRoom.getNumRemoteEvents());
+    }
+
+    @Test
+    public void aRoundWaitsForASlaveRoomThatHasNotReported() throws Exception {
+        SurveyMasterModule master = new SurveyMasterModule();
+        assertTrue(master.init(new StubModuleContext(new StubRoom("examples.survey"))
+                .setServer(new StubServer(new StubCluster("node-1", "node-2")))
+                .setAttribute("resultsTimeout", "100")));
+        try {
+            master.onSlaveRoom(new SlaveRoomEvent("node-2"));
+            master.endQuestion();
+            assertFalse(master.awaitResults());
+        } finally {
+            master.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.example.stub.StubClient;
+
+import org.junit.Test;
+
+/**
+ * Sets a 30-field profile on a client and counts the attribute updates it makes.
+ */
+public class AttributeBatchTest {
+    private static final int NUM_FIELDS = 30;
+
+    @Test
+    public void aProfileIsOneUpdate() throws Exception {
+        Map<String,String> fields = profile("a");
+        CountingClient client = new CountingClient();
+        assertTrue(AttributeBatch.setPacked(client, "profile", fields,
+                Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE));
+        assertEquals(1, client.m_numUpdates);
+        assertEquals(fields, AttributeBatch.unpack(
+                (String)client.getAttributeValue("profile")));
+
+        // --- the same fields again make no update, changed ones make one
+        assertFalse(AttributeBatch.setPacked(client, "profile", profile("a"),
+                Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE));
+        assertEquals(1, client.m_numUpdates);
+        assertTrue(AttributeBatch.setPacked(client, "profile", profile("b"),
+                Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE));
+        assertEquals(2, client.m_numUpdates);
+    }
+
+    @Test
+    public void fieldsOneByOneAreOneUpdateEach() throws Exception {
+        CountingClient client = new CountingClient();
+        for (Map.Entry<String,String> field : profile("a").entrySet()) {
+            client.setAttribute(field.getKey(), field.getValue(), Attribute.SCOPE_GLOBAL,
+                    Attribute.FLAG_NONE);
+        }
+        assertEquals(NUM_FIELDS, client.m_numUpdates);
+    }
+
+    @Test
+    public void setAttributesSetsOnlyChangedFields() throws Exception {
+        CountingClient client = new CountingClient();
+        assertEquals(NUM_FIELDS, AttributeBatch.setAttributes(client, profile("a"),
+                Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE));
+        assertEquals("a7", client.getAttributeValue("field7"));
+
+        Map<String,String> fields = profile("a");
+        fields.put("field7", "changed");
+        assertEquals(1, AttributeBatch.setAttributes(client, fields,
+                Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE));
+        assertEquals(NUM_FIELDS + 1, client.m_numUpdates);
+        assertEquals("changed", client.getAttributeValue("field7"));
+    }
+
+    @Test
+    public void escapesSeparatorsAndPercents() {
+        Map<String,String> fields = new LinkedHashMap<String,String>();
+        fields.put("a=b", "1&2");
+        fields.put("100%", "");
+        fields.put("url", "http://example.com/?x=1&y=%20");
+        String packed = AttributeBatch.pack(fields);
+        assertEquals("a%3Db=1%262&100%25=&url=http://example.com/?x%3D1%26y%3D%2520", packed);
+        assertEquals(fields, AttributeBatch.unpack(packed));
+    }
+
+    @Test
+    public void unpacksNothing() {
+        assertTrue(AttributeBatch.unpack(null).isEmpty());
+        assertTrue(AttributeBatch.unpack("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAFieldWithoutAValue() {
+        AttributeBatch.unpack("a=1&b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownEscape() {
+        AttributeBatch.unpack("a=%41");
+    }
+
+    private static Map<String,String> profile(String version) {
+        Map<String,String> fields = new LinkedHashMap<String,String>();
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            fields.put("field" + i, version + i);
+        }
+        return fields;
+    }
+
+    /**
+     * Counts ATTRIBUTE_CHANGED events, each of which is an update message on a server.
+     */
+    private static class CountingClient extends StubClient {
+        private int m_numUpdates;
+
+        public CountingClient() {
+            super("client");
+        }
+
+        public void onChangeAttribute(Attribute attr) {
+            super.onChangeAttribute(attr);
+            m_numUpdates++;
+        }
+    }
+}
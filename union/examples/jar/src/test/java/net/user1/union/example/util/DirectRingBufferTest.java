@@ -0,0 +1,33 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Adds records to a DirectRingBuffer with slots too small for some of them.
+ */
+public class DirectRingBufferTest {
+    @Test
+    public void keepsTheLastRecordsOldestFirst() {
+        DirectRingBuffer buffer = new DirectRingBuffer(2, 16);
+        buffer.add("one");
+        buffer.add("two");
+        buffer.add("three");
+
+        assertEquals(3, buffer.getNumAdded());
+        assertEquals(Arrays.asList("two", "three"), buffer.getRecords());
+    }
+
+    @Test
+    public void cutsALongRecordAtACharacterBoundary() {
+        // --- 6 bytes are left for text: "abé" takes 4, leaving room for only 2 of the
+        // --- 3 bytes of "€"
+        DirectRingBuffer buffer = new DirectRingBuffer(1, 10);
+        buffer.add("abé€z");
+
+        assertEquals(Arrays.asList("abé"), buffer.getRecords());
+    }
+}
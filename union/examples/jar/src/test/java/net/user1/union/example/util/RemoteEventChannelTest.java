@@ -0,0 +1,104 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.user1.union.core.event.RemoteEvent;
+import net.user1.union.example.stub.StubRoom;
+import net.user1.union.example.survey.AskQuestionEvent;
+
+import org.junit.Test;
+
+/**
+ * Sends events through a RemoteEventChannel from several threads while its flush timer runs,
+ * and checks each thread's events arrive in the order it sent them.
+ */
+public class RemoteEventChannelTest {
+    private static final String EVENT = "ASK_QUESTION";
+    private static final int NUM_THREADS = 4;
+    private static final int EVENTS_PER_THREAD = 2000;
+
+    private List<String> m_received = new ArrayList<String>();
+
+    @Test
+    public void keepsTheOrderOfEventsToOneNode() throws Exception {
+        final RecordingRoom room = new RecordingRoom();
+        final RemoteEventChannel channel = createChannel(room, 1);
+        // --- a few events fill a frame, so frames are sent by dispatchers and by the timer
+        final char[] padding = new char[RemoteEventChannel.MAX_FRAME_SIZE/5];
+        Arrays.fill(padding, 'x');
+
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                        channel.dispatchRemoteEvent(EVENT, new AskQuestionEvent(
+                                thread + ":" + j + ":" + new String(padding)), "node-1");
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        channel.flush();
+
+        RemoteEventChannel receiver = createChannel(new StubRoom("receiver"), 0);
+        receiver.addRemoteEventListener(EVENT, this, "onAskQuestion");
+        for (EventFrame frame : room.getFrames()) {
+            receiver.onEventFrame(frame);
+        }
+
+        assertEquals(NUM_THREADS*EVENTS_PER_THREAD, m_received.size());
+        int[] next = new int[NUM_THREADS];
+        for (String question : m_received) {
+            String[] parts = question.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+        assertTrue(room.getFrames().size() > 1);
+    }
+
+    public void onAskQuestion(RemoteEvent evt) {
+        m_received.add(((AskQuestionEvent)evt).getQuestion());
+    }
+
+    private static RemoteEventChannel createChannel(StubRoom room, long flushDelay) {
+        RemoteEventChannel channel = new RemoteEventChannel(room, flushDelay);
+        channel.register(EVENT, 1,
+                new ExternalizableCodec<AskQuestionEvent>(AskQuestionEvent.class));
+        return channel;
+    }
+
+    /**
+     * Keeps the frames sent to it in the order they were sent. Yields before taking each
+     * frame, so that another thread has the chance to send its own frame first.
+     */
+    private static class RecordingRoom extends StubRoom {
+        private List<EventFrame> m_frames = new ArrayList<EventFrame>();
+
+        public RecordingRoom() {
+            super("sender");
+        }
+
+        public void dispatchRemoteEvent(String type, RemoteEvent event, String nodeID) {
+            Thread.yield();
+            synchronized (m_frames) {
+                m_frames.add((EventFrame)event);
+            }
+        }
+
+        public List<EventFrame> getFrames() {
+            synchronized (m_frames) {
+                return new ArrayList<EventFrame>(m_frames);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.example.roommodule.FridgeMagnetsRoomModule;
+import net.user1.union.example.stub.StubModuleContext;
+import net.user1.union.example.stub.StubRoom;
+
+import org.junit.Test;
+
+/**
+ * Checks that room modules share the scheduler's threads, so the number of threads stays
+ * the same however many rooms there are.
+ */
+public class RoomModuleSchedulerTest {
+    private static final String THREAD_PREFIX = "RoomModuleScheduler-";
+
+    @Test
+    public void periodicTasksShareTheSchedulerThreads() throws Exception {
+        RoomModuleScheduler scheduler = new RoomModuleScheduler(2);
+        try {
+            final int numTasks = 1000;
+            final CountDownLatch allRan = new CountDownLatch(numTasks);
+            final Set<String> threadNames = new HashSet<String>();
+            List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+            final AtomicInteger runs = new AtomicInteger();
+            for (int i = 0; i < numTasks; i++) {
+                futures.add(scheduler.scheduleAtFixedRate(new Runnable() {
+                    private boolean m_hasRun;
+
+                    public void run() {
+                        synchronized (threadNames) {
+                            threadNames.add(Thread.currentThread().getName());
+                        }
+                        runs.incrementAndGet();
+                        if (!m_hasRun) {
+                            m_hasRun = true;
+                            allRan.countDown();
+                        }
+                    }
+                }, 1, 5, TimeUnit.MILLISECONDS));
+            }
+            assertTrue("every task ran", allRan.await(10, TimeUnit.SECONDS));
+            assertTrue("tasks ran on " + threadNames, threadNames.size() <= 2);
+
+            // --- cancelling stops a task right away, not after its next run
+            for (ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+            Thread.sleep(50);
+            int runsAfterCancel = runs.get();
+            Thread.sleep(100);
+            assertEquals(runsAfterCancel, runs.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void threadCountStaysFlatAsRoomsScale() throws Exception {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        // --- start the shared scheduler's threads before counting
+        List<FridgeMagnetsRoomModule> modules = startRooms(10);
+        Thread.sleep(100);
+        int before = Thread.activeCount();
+
+        modules.addAll(startRooms(1000));
+        Thread.sleep(200);
+        int schedulerThreads = countSchedulerThreads();
+        int after = Thread.activeCount();
+
+        for (FridgeMagnetsRoomModule module : modules) {
+            module.shutdown();
+        }
+
+        assertTrue(schedulerThreads + " scheduler threads", schedulerThreads <= maxThreads);
+        assertTrue("threads went from " + before + " to " + after,
+                after - before <= maxThreads);
+    }
+
+    /**
+     * Create rooms with a fridge magnets module attached. Each module resets its letters
+     * on the shared scheduler and flushes their attributes every 5 ms.
+     */
+    private List<FridgeMagnetsRoomModule> startRooms(int numRooms) {
+        List<FridgeMagnetsRoomModule> modules = new ArrayList<FridgeMagnetsRoomModule>();
+        for (int i = 0; i < numRooms; i++) {
+            StubRoom room = new StubRoom("fridge" + i);
+            FridgeMagnetsRoomModule module = new FridgeMagnetsRoomModule();
+            assertTrue(module.init(new StubModuleContext(room).setAttribute(
+                    AttributeCoalescer.ATTR_FLUSH_INTERVAL, "5")));
+            assertNotNull(room.getAttribute("magnet0", Attribute.SCOPE_GLOBAL));
+            modules.add(module);
+        }
+        return modules;
+    }
+
+    private int countSchedulerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(THREAD_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
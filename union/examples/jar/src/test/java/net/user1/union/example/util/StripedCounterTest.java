@@ -0,0 +1,72 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Increments a StripedCounter from many threads while another thread keeps draining it,
+ * as voters do while questions end.
+ */
+public class StripedCounterTest {
+    private static final int NUM_THREADS = 16;
+    private static final int INCREMENTS_PER_THREAD = 200000;
+
+    @Test
+    public void drainsEveryIncrementExactlyOnce() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final long[] drained = new long[1];
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            Thread voter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            });
+            voter.start();
+        }
+        Thread drainer = new Thread(new Runnable() {
+            public void run() {
+                while (isRunning.get()) {
+                    drained[0] += counter.drain();
+                }
+            }
+        });
+        drainer.start();
+
+        start.countDown();
+        done.await();
+        isRunning.set(false);
+        drainer.join();
+        drained[0] += counter.drain();
+
+        assertEquals((long)NUM_THREADS*INCREMENTS_PER_THREAD, drained[0]);
+        assertEquals(drained[0], counter.sum());
+    }
+
+    @Test
+    public void drainReturnsWhatWasAddedSinceTheLastDrain() {
+        StripedCounter counter = new StripedCounter();
+        counter.add(5);
+        counter.increment();
+        assertEquals(6, counter.drain());
+        assertEquals(0, counter.drain());
+        counter.add(3);
+        assertEquals(3, counter.drain());
+        assertEquals(9, counter.sum());
+    }
+}
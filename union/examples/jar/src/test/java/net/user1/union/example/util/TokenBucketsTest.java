@@ -0,0 +1,33 @@
+package net.user1.union.example.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Takes tokens from TokenBuckets at fixed times.
+ */
+public class TokenBucketsTest {
+    @Test
+    public void refillsAtTheRate() {
+        TokenBuckets buckets = new TokenBuckets(10, 2);
+        assertTrue(buckets.tryAcquire("client", 0));
+        assertTrue(buckets.tryAcquire("client", 0));
+        assertFalse(buckets.tryAcquire("client", 0));
+        // --- a token every 100 ms
+        assertFalse(buckets.tryAcquire("client", 50));
+        assertTrue(buckets.tryAcquire("client", 150));
+        // --- other keys have their own bucket
+        assertTrue(buckets.tryAcquire("other", 150));
+    }
+
+    @Test
+    public void aTokenGivenBackCanBeTakenAgain() {
+        TokenBuckets buckets = new TokenBuckets(1, 1);
+        assertTrue(buckets.tryAcquire("client", 0));
+        buckets.giveBack("client");
+        assertTrue(buckets.tryAcquire("client", 0));
+        assertFalse(buckets.tryAcquire("client", 0));
+    }
+}
@@ -0,0 +1,443 @@
+package net.user1.union.example.blackboard;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+import net.user1.union.api.Client;
+import net.user1.union.api.Message;
+import net.user1.union.api.Module;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.context.ModuleContext;
+import net.user1.union.core.event.RoomEvent;
+import net.user1.union.core.exception.AttributeException;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.RoomBroadcaster;
+import net.user1.union.example.util.RoomModuleScheduler;
+
+/**
+ * This is the RoomModule that keeps the drawing of a UnionDraw blackboard. The
+ * UnionDraw (JavaScript) client requests that the module be attached when it
+ * sends the CREATE_ROOM (u24) UPC request. The server will create a new
+ * instance of this module for each blackboard room.
+ *
+ * Clients send their pen movements to the module with room module messages
+ * (u70). The module appends each stroke to the room's StrokeLog, relays the
+ * message to the other clients in the room and sends a single snapshot of the
+ * whole drawing to clients that join late.
+ *
+ * Every checkpointStrokes strokes, or checkpointInterval seconds, the log is
+ * folded into a RasterCheckpoint so the snapshot is the checkpoint's tiles plus
+ * the short tail of strokes drawn since. Both can be set as module attributes.
+ * The log is handed to a RoomModuleScheduler thread to be drawn and encoded,
+ * and a new log started, so drawing and joining never wait for the encode;
+ * until the fold finishes, joiners get the last finished checkpoint plus the
+ * strokes being folded and those drawn since.
+ *
+ * Incoming paths are simplified with a PathSimplifier before they are logged
+ * and relayed; the simplifyTolerance module attribute sets the tolerance in
+ * pixels (0 turns it off). The ratio of points relayed to points received is
+ * published at each checkpoint in the server only room attribute
+ * "pathCompression".
+ *
+ * Drawing messages are relayed through a RoomBroadcaster that keeps the
+ * clients sorted by path format, so each relay is one message per format,
+ * encoded once by the server for every recipient.
+ */
+public class BlackboardRoomModule implements Module {
+    // --- the module context
+    // --- use this to get access to the server and the room this module
+    // --- is attached to
+    private ModuleContext m_ctx;
+    // --- the strokes drawn in the room since the last checkpoint
+    private StrokeLog m_log = new StrokeLog();
+    // --- the strokes being folded into the checkpoint, null when no fold is running
+    private StrokeLog m_folding;
+    // --- everything drawn in the room up to the last checkpoint, only used by the
+    // --- fold and shutdown, which synchronize on it
+    private RasterCheckpoint m_checkpoint = new RasterCheckpoint(CANVAS_WIDTH,
+            CANVAS_HEIGHT);
+    // --- the snapshot of the last finished checkpoint, null while it is empty;
+    // --- replaced by the fold thread
+    private volatile byte[] m_tiles;
+    // --- set by shutdown so a fold that has not started yet does nothing
+    private boolean m_isShutdown;
+    // --- when the last checkpoint was made
+    private long m_lastCheckpoint = System.currentTimeMillis();
+    // --- how many strokes or milliseconds between checkpoints
+    private int m_checkpointStrokes = DEFAULT_CHECKPOINT_STROKES;
+    private long m_checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    // --- path simplification tolerance in pixels
+    private double m_simplifyTolerance = DEFAULT_SIMPLIFY_TOLERANCE;
+    // --- path points received from clients and relayed to other clients
+    private long m_pointsReceived;
+    private long m_pointsRelayed;
+    // --- the last pen position of each client, keyed by client ID
+    private Map<String, int[]> m_pens = new HashMap<String, int[]>();
+    // --- sends drawing messages to the clients of each path format
+    private RoomBroadcaster m_broadcaster;
+    // --- message names
+    private static final String MSG_MOVE = "MOVE";
+    private static final String MSG_PATH = "PATH";
+    private static final String MSG_SNAPSHOT = "SNAPSHOT";
+    // --- broadcaster groups, by path format
+    private static final int GROUP_TEXT = 0;
+    private static final int GROUP_COMPACT = 1;
+    // --- attribute constants (room scoped client attributes set by UnionDraw)
+    private static final String ATTR_COLOR = "color";
+    private static final String ATTR_THICKNESS = "thickness";
+    // --- room attribute reporting path compression
+    private static final String ATTR_PATH_COMPRESSION = "pathCompression";
+    // --- line defaults, matching UnionDraw.js
+    private static final int DEFAULT_COLOR = 0xFFFFFF;
+    private static final int DEFAULT_THICKNESS = 3;
+    private static final int MAX_THICKNESS = 30;
+    // --- canvas size, matching initCanvas() in UnionDraw.js
+    private static final int CANVAS_WIDTH = 1224;
+    private static final int CANVAS_HEIGHT = 700;
+    // --- checkpoint defaults
+    private static final int DEFAULT_CHECKPOINT_STROKES = 1000;
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 60000L;
+    // --- simplification default, matching UnionDraw.js
+    private static final double DEFAULT_SIMPLIFY_TOLERANCE = 1.0;
+
+    /**
+     * The init method is called when the instance is created.
+     */
+    public boolean init(ModuleContext ctx) {
+        m_ctx = ctx;
+
+        // --- read the checkpoint and simplification settings
+        try {
+            Object attr = m_ctx.getAttributes().get("checkpointStrokes");
+            if (attr != null) {
+                m_checkpointStrokes = Integer.parseInt(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("checkpointInterval");
+            if (attr != null) {
+                m_checkpointInterval = Long.parseLong(attr.toString())*1000L;
+            }
+            attr = m_ctx.getAttributes().get("simplifyTolerance");
+            if (attr != null) {
+                m_simplifyTolerance = Double.parseDouble(attr.toString());
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        m_broadcaster = new RoomBroadcaster(m_ctx.getRoom(), 2,
+                new RoomBroadcaster.Classifier() {
+                    public int classify(Client client) {
+                        return usesPathCodec(client) ? GROUP_COMPACT : GROUP_TEXT;
+                    }
+                }, PathCodec.ATTR_PATH_CODEC);
+
+        // --- register to receive events
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this,
+                "onAddClient");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
+
+        // --- the module initialized fine
+        return true;
+    }
+
+    /**
+     * Called when the room receives a room module message.
+     *
+     * @param evt The RoomEvent containing information about the event.
+     */
+    public void onModuleMessage(RoomEvent evt) {
+        Message msg = evt.getMessage();
+        Client client = evt.getClient();
+
+        try {
+            if (MSG_MOVE.equals(msg.getMessageName())) {
+                // --- the pen was placed without drawing a line
+                int x = Integer.parseInt(msg.getArg("X"));
+                int y = Integer.parseInt(msg.getArg("Y"));
+                synchronized (this) {
+                    m_pens.put(client.getClientID(), new int[] {x, y});
+                }
+                relay(client, MSG_MOVE, x + "," + y);
+            } else if (MSG_PATH.equals(msg.getMessageName())) {
+                // --- a list of points was drawn from the current pen position
+                String path = msg.getArg("PATH");
+                if (path == null) {
+                    return;
+                }
+                boolean compact = usesPathCodec(client);
+                int[] coords = compact ? PathCodec.decode(path) : PathCodec.parseText(path);
+                int numPoints = coords.length/2;
+                if (numPoints == 0) {
+                    return;
+                }
+
+                // --- the stroke starts at the pen position
+                int[] stroke = new int[numPoints*2 + 2];
+                System.arraycopy(coords, 0, stroke, 2, numPoints*2);
+                int style = getStyle(client);
+                int numRelayed;
+                synchronized (this) {
+                    int[] pen = m_pens.get(client.getClientID());
+                    if (pen != null) {
+                        // --- simplify from the pen position, which is always kept
+                        stroke[0] = pen[0];
+                        stroke[1] = pen[1];
+                        int kept = PathSimplifier.simplify(stroke, 0, numPoints+1,
+                                m_simplifyTolerance);
+                        m_log.append(style, stroke, 0, kept);
+                        numRelayed = kept-1;
+                    } else {
+                        // --- no known pen position so the first point starts the stroke
+                        numRelayed = PathSimplifier.simplify(stroke, 2, numPoints,
+                                m_simplifyTolerance);
+                        m_log.append(style, stroke, 2, numRelayed);
+                        pen = new int[2];
+                        m_pens.put(client.getClientID(), pen);
+                    }
+                    pen[0] = stroke[numRelayed*2];
+                    pen[1] = stroke[numRelayed*2+1];
+                    m_pointsReceived += numPoints;
+                    m_pointsRelayed += numRelayed;
+
+                    if (m_folding == null && (m_log.getNumStrokes() >= m_checkpointStrokes ||
+                            System.currentTimeMillis() - m_lastCheckpoint >=
+                            m_checkpointInterval)) {
+                        checkpoint();
+                    }
+                }
+                // --- the received path can be passed on as is unless points were dropped
+                if (numRelayed == numPoints) {
+                    relayPath(client, stroke, numRelayed, compact ? path : null,
+                            compact ? null : path);
+                } else {
+                    relayPath(client, stroke, numRelayed, null, null);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // --- a number or path could not be parsed
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Client joined the room. Send them everything that has been drawn so far.
+     *
+     * @param evt the RoomEvent
+     */
+    public void onAddClient(RoomEvent evt) {
+        byte[] tiles;
+        byte[] strokes = null;
+        synchronized (this) {
+            // --- start folding a stale tail; this joiner still gets it as strokes
+            if (System.currentTimeMillis() - m_lastCheckpoint >= m_checkpointInterval) {
+                checkpoint();
+            }
+            tiles = m_tiles;
+            StrokeLog tail = m_log;
+            if (m_folding != null) {
+                tail = new StrokeLog();
+                tail.append(m_folding);
+                tail.append(m_log);
+            }
+            if (tiles == null && tail.isEmpty()) {
+                return;
+            }
+            if (!tail.isEmpty()) {
+                try {
+                    strokes = tail.toSnapshot();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        evt.getClient().sendMessage(MSG_SNAPSHOT,
+                tiles == null ? "" : new String(Base64.encodeBase64(tiles)),
+                strokes == null ? "" : new String(Base64.encodeBase64(strokes)));
+    }
+
+    /**
+     * Client left the room.
+     *
+     * @param evt the RoomEvent
+     */
+    public void onRemoveClient(RoomEvent evt) {
+        synchronized (this) {
+            m_pens.remove(evt.getClient().getClientID());
+        }
+    }
+
+    /**
+     * Start folding the stroke log into the raster checkpoint on a scheduler
+     * thread, unless a fold is still running. Must be called while holding the
+     * module's lock.
+     */
+    private void checkpoint() {
+        m_lastCheckpoint = System.currentTimeMillis();
+        if (m_folding == null && !m_log.isEmpty()) {
+            final StrokeLog folding = m_log;
+            m_folding = folding;
+            m_log = new StrokeLog();
+            RoomModuleScheduler.getInstance().schedule(new Runnable() {
+                public void run() {
+                    fold(folding);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+
+        // --- report how much simplification saved
+        if (m_pointsReceived > 0) {
+            try {
+                m_ctx.getRoom().setAttribute(ATTR_PATH_COMPRESSION,
+                        String.valueOf(Math.round(getCompressionRatio()*100)/100.0),
+                        Attribute.SCOPE_GLOBAL, Attribute.FLAG_SERVER_ONLY);
+            } catch (AttributeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Draw and encode the strokes handed over by checkpoint(), then publish
+     * the new tiles. Runs on a scheduler thread without the module's lock.
+     */
+    private void fold(StrokeLog folding) {
+        byte[] tiles = null;
+        boolean isFolded = false;
+        synchronized (m_checkpoint) {
+            if (m_isShutdown) {
+                return;
+            }
+            try {
+                m_checkpoint.fold(folding);
+                isFolded = true;
+                tiles = m_checkpoint.toSnapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        synchronized (this) {
+            if (tiles != null) {
+                m_tiles = tiles;
+            } else if (!isFolded) {
+                // --- the checkpoint is as it was, so put the strokes back in front
+                // --- of those drawn since and try again at the next checkpoint
+                folding.append(m_log);
+                m_log = folding;
+            }
+            m_folding = null;
+        }
+    }
+
+    /**
+     * Return the ratio of path points relayed to path points received, or 1 if
+     * no points were received.
+     */
+    public synchronized double getCompressionRatio() {
+        return m_pointsReceived == 0 ? 1 : (double)m_pointsRelayed/m_pointsReceived;
+    }
+
+    /**
+     * Send a drawing message to every other client in the room. The client
+     * that drew is passed as the first argument.
+     */
+    private void relay(Client from, String messageName, String data) {
+        m_broadcaster.broadcast(from, messageName, from.getClientID(), data);
+    }
+
+    /**
+     * Send a path to every other client in the room, in the compact format to
+     * clients that negotiated it and as text to all others. Either format that
+     * is not passed in is created here.
+     *
+     * @param stroke the stroke, with the path starting at index 2
+     * @param numPoints the number of points in the path
+     */
+    private void relayPath(Client from, int[] stroke, int numPoints,
+            String compact, String text) {
+        // --- skip a format no one else in the room reads
+        boolean fromCompact = usesPathCodec(from);
+        if (m_broadcaster.getNumClients(GROUP_COMPACT) > (fromCompact ? 1 : 0)) {
+            m_broadcaster.broadcast(GROUP_COMPACT, from, MSG_PATH, from.getClientID(),
+                    compact != null ? compact : PathCodec.encode(stroke, 2, numPoints));
+        }
+        if (m_broadcaster.getNumClients(GROUP_TEXT) > (fromCompact ? 0 : 1)) {
+            m_broadcaster.broadcast(GROUP_TEXT, from, MSG_PATH, from.getClientID(),
+                    text != null ? text : PathCodec.toText(stroke, 2, numPoints));
+        }
+    }
+
+    /**
+     * Return true if the client sends and receives paths in the compact format.
+     */
+    private boolean usesPathCodec(Client client) {
+        Object value = client.getAttributeValue(PathCodec.ATTR_PATH_CODEC,
+                m_ctx.getRoom().getQualifiedID());
+        return value != null && String.valueOf(PathCodec.VERSION).equals(value.toString());
+    }
+
+    /**
+     * Return the packed stroke style from the client's room scoped color and
+     * thickness attributes.
+     */
+    private int getStyle(Client client) {
+        String scope = m_ctx.getRoom().getQualifiedID();
+        int color = DEFAULT_COLOR;
+        int thickness = DEFAULT_THICKNESS;
+
+        Object value = client.getAttributeValue(ATTR_COLOR, scope);
+        if (value != null && value.toString().startsWith("#")) {
+            try {
+                color = Integer.parseInt(value.toString().substring(1), 16);
+            } catch (NumberFormatException e) {
+                // --- keep the default color
+            }
+        }
+        value = client.getAttributeValue(ATTR_THICKNESS, scope);
+        if (value != null) {
+            try {
+                thickness = Math.max(1, Math.min(Integer.parseInt(value.toString()),
+                        MAX_THICKNESS));
+            } catch (NumberFormatException e) {
+                // --- keep the default thickness
+            }
+        }
+
+        return StrokeLog.toStyle(color, thickness);
+    }
+
+    /**
+     * The shutdown method is called when the server removes the room which
+     * also removes the room module.
+     */
+    public void shutdown() {
+        // --- deregister for events
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this,
+                "onAddClient");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
+        m_broadcaster.shutdown();
+
+        synchronized (this) {
+            m_log.clear();
+            m_folding = null;
+            m_tiles = null;
+            m_pens.clear();
+        }
+        // --- waits for a fold in progress to finish
+        synchronized (m_checkpoint) {
+            m_isShutdown = true;
+            m_checkpoint.clear();
+        }
+    }
+}
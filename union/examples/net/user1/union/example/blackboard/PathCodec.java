@@ -0,0 +1,126 @@
+package net.user1.union.example.blackboard;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Encodes and decodes the list of points sent with a PATH message.
+ *
+ * UnionDraw.js originally sent paths as comma separated decimal text
+ * ("x1,y1,x2,y2,..."). Clients that set the room scoped client attribute
+ * ATTR_PATH_CODEC to VERSION send and receive the compact format instead:
+ * a version byte followed by the difference of each x and y from the previous
+ * point (the first point from 0,0), zig-zag encoded as unsigned varints, with
+ * the bytes base64 encoded so they fit in a single UPC argument. Pen movement
+ * between samples is small, so most points take two bytes.
+ */
+public class PathCodec {
+    // --- the version of the compact format
+    public static final int VERSION = 1;
+    // --- the client attribute used to negotiate the compact format
+    public static final String ATTR_PATH_CODEC = "pathCodec";
+
+    /**
+     * Return the points as x,y pairs from a compact path.
+     *
+     * @param data the base64 encoded path
+     * @throws IllegalArgumentException if the data is not a valid path
+     */
+    public static int[] decode(String data) {
+        byte[] bytes = Base64.decodeBase64(data.getBytes());
+        if (bytes.length == 0 || bytes[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported path version.");
+        }
+
+        // --- every value takes at least one byte
+        int[] coords = new int[bytes.length - 1];
+        int length = 0;
+        int pos = 1;
+        while (pos < bytes.length) {
+            // --- read a varint
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (pos == bytes.length || shift > 28) {
+                    throw new IllegalArgumentException("Truncated path.");
+                }
+                b = bytes[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            // --- undo the zig-zag and the delta; x and y each have their own
+            // --- previous value two places back
+            int delta = (value >>> 1) ^ -(value & 1);
+            coords[length] = (length < 2 ? 0 : coords[length-2]) + delta;
+            length++;
+        }
+        if (length%2 != 0) {
+            throw new IllegalArgumentException("Path has an odd number of coordinates.");
+        }
+
+        int[] result = new int[length];
+        System.arraycopy(coords, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Return a compact path for the given points.
+     *
+     * @param coords x,y pairs
+     * @param offset index of the first x in coords
+     * @param numPoints the number of points to encode
+     */
+    public static String encode(int[] coords, int offset, int numPoints) {
+        // --- a 32 bit varint takes at most 5 bytes
+        byte[] bytes = new byte[1 + numPoints*10];
+        int length = 0;
+        bytes[length++] = VERSION;
+        for (int i = offset; i < offset + numPoints*2; i++) {
+            int delta = coords[i] - (i - offset < 2 ? 0 : coords[i-2]);
+            int value = (delta << 1) ^ (delta >> 31);
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, 0, result, 0, length);
+        return new String(Base64.encodeBase64(result));
+    }
+
+    /**
+     * Return the points as x,y pairs from a comma separated text path.
+     *
+     * @param text the text path
+     * @throws NumberFormatException if the text is not a valid path
+     */
+    public static int[] parseText(String text) {
+        String[] values = text.split(",");
+        int[] coords = new int[values.length - values.length%2];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = Integer.parseInt(values[i]);
+        }
+        return coords;
+    }
+
+    /**
+     * Return a comma separated text path for the given points.
+     *
+     * @param coords x,y pairs
+     * @param offset index of the first x in coords
+     * @param numPoints the number of points to write
+     */
+    public static String toText(int[] coords, int offset, int numPoints) {
+        StringBuilder text = new StringBuilder(numPoints*8);
+        for (int i = offset; i < offset + numPoints*2; i++) {
+            if (i > offset) {
+                text.append(',');
+            }
+            text.append(coords[i]);
+        }
+        return text.toString();
+    }
+}
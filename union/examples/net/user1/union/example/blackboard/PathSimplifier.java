@@ -0,0 +1,99 @@
+package net.user1.union.example.blackboard;
+
+/**
+ * Removes redundant points from a path with the Ramer-Douglas-Peucker
+ * algorithm. A point is dropped when it lies within the tolerance (in pixels)
+ * of the line between the points kept around it, so slow or straight strokes
+ * shrink a lot while curves keep their shape. The first and last points are
+ * always kept.
+ *
+ * simplifyPath() in UnionDraw.js is the same algorithm, run before a client
+ * broadcasts its path.
+ */
+public class PathSimplifier {
+    /**
+     * Simplify a path in place. The points that are kept are moved to the
+     * front of the path, in order.
+     *
+     * @param coords x,y pairs
+     * @param offset index of the first x in coords
+     * @param numPoints the number of points in the path
+     * @param tolerance the largest distance in pixels a dropped point may be
+     *          from the simplified path
+     * @return the number of points kept
+     */
+    public static int simplify(int[] coords, int offset, int numPoints, double tolerance) {
+        if (numPoints < 3 || tolerance <= 0) {
+            return numPoints;
+        }
+
+        // --- mark the points to keep, working through a stack of
+        // --- first,last index ranges rather than recursing
+        boolean[] keep = new boolean[numPoints];
+        keep[0] = true;
+        keep[numPoints-1] = true;
+        int[] stack = new int[numPoints*2];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = numPoints-1;
+        double toleranceSq = tolerance*tolerance;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            // --- find the point furthest from the line first-last
+            int furthest = -1;
+            double furthestSq = toleranceSq;
+            for (int i = first + 1; i < last; i++) {
+                double distanceSq = distanceSq(coords, offset, i, first, last);
+                if (distanceSq > furthestSq) {
+                    furthest = i;
+                    furthestSq = distanceSq;
+                }
+            }
+
+            // --- keep it and look at both sides
+            if (furthest != -1) {
+                keep[furthest] = true;
+                stack[top++] = first;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = last;
+            }
+        }
+
+        // --- move the kept points to the front
+        int kept = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (keep[i]) {
+                coords[offset + kept*2] = coords[offset + i*2];
+                coords[offset + kept*2 + 1] = coords[offset + i*2 + 1];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Return the squared distance of a point from the line segment between two
+     * other points.
+     */
+    private static double distanceSq(int[] coords, int offset, int point, int first,
+            int last) {
+        double x = coords[offset + point*2];
+        double y = coords[offset + point*2 + 1];
+        double x1 = coords[offset + first*2];
+        double y1 = coords[offset + first*2 + 1];
+        double dx = coords[offset + last*2] - x1;
+        double dy = coords[offset + last*2 + 1] - y1;
+
+        // --- project the point onto the segment
+        double lengthSq = dx*dx + dy*dy;
+        if (lengthSq > 0) {
+            double t = Math.max(0, Math.min(((x - x1)*dx + (y - y1)*dy)/lengthSq, 1));
+            x1 += t*dx;
+            y1 += t*dy;
+        }
+        return (x - x1)*(x - x1) + (y - y1)*(y - y1);
+    }
+}
@@ -0,0 +1,251 @@
+package net.user1.union.example.blackboard;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import javax.imageio.ImageIO;
+
+/**
+ * A raster of everything drawn on a blackboard up to the last checkpoint. The
+ * BlackboardRoomModule periodically folds its StrokeLog into the checkpoint so
+ * that the log, and the snapshot sent to late joiners, stay short no matter
+ * how long the board has been used.
+ *
+ * The canvas is split into square tiles. Pixels are kept off-heap in a direct
+ * buffer as 32 bit ARGB, one tile after the other, and each tile that has been
+ * drawn on is also kept PNG encoded so that a snapshot can be sent without
+ * encoding anything. Only tiles touched by new strokes are redrawn and
+ * re-encoded when the log is folded.
+ *
+ * This class is not thread safe. The BlackboardRoomModule synchronizes access.
+ */
+public class RasterCheckpoint {
+    // --- version of the snapshot layout written by toSnapshot()
+    public static final int SNAPSHOT_VERSION = 1;
+    // --- width and height of a tile in pixels
+    public static final int TILE_SIZE = 64;
+
+    private int m_cols;
+    private int m_rows;
+    // --- ARGB pixels of all tiles, allocated when first needed
+    private IntBuffer m_pixels;
+    // --- PNG encoded tiles, null for tiles that were never drawn on
+    private byte[][] m_tiles;
+    // --- the snapshot of all encoded tiles, null when it must be rebuilt
+    private byte[] m_snapshot;
+    // --- a heap image the size of one tile used for drawing and encoding
+    private BufferedImage m_scratch;
+
+    /**
+     * Create a checkpoint for a canvas of the given size.
+     *
+     * @param width canvas width in pixels
+     * @param height canvas height in pixels
+     */
+    public RasterCheckpoint(int width, int height) {
+        m_cols = (width + TILE_SIZE - 1)/TILE_SIZE;
+        m_rows = (height + TILE_SIZE - 1)/TILE_SIZE;
+        m_tiles = new byte[m_cols*m_rows][];
+    }
+
+    /**
+     * Draw every stroke in the log onto the raster. The log is left as is; the
+     * caller clears it once it has been folded. If a tile fails to encode the
+     * raster is left as it was, so the same log can be folded again.
+     *
+     * @param log the strokes drawn since the last checkpoint
+     */
+    public void fold(StrokeLog log)
+    throws IOException {
+        int numStrokes = log.getNumStrokes();
+        if (numStrokes == 0) {
+            return;
+        }
+        IntBuffer pixels = m_pixels;
+        if (pixels == null) {
+            pixels = ByteBuffer.allocateDirect(m_cols*m_rows*TILE_SIZE*TILE_SIZE*4).
+                    order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        if (m_scratch == null) {
+            m_scratch = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        // --- find the first point and the tile bounds of every stroke
+        int[] firstPoints = new int[numStrokes];
+        int[] bounds = new int[numStrokes*4];
+        boolean[] dirty = new boolean[m_tiles.length];
+        int point = 0;
+        for (int i = 0; i < numStrokes; i++) {
+            firstPoints[i] = point;
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (int j = 0; j < log.getNumPoints(i); j++, point++) {
+                minX = Math.min(minX, log.getX(point));
+                minY = Math.min(minY, log.getY(point));
+                maxX = Math.max(maxX, log.getX(point));
+                maxY = Math.max(maxY, log.getY(point));
+            }
+
+            // --- half the line thickness spills over the points
+            int spill = (log.getStyle(i) & 0xFF)/2 + 1;
+            bounds[i*4] = toTile(minX - spill, m_cols);
+            bounds[i*4+1] = toTile(minY - spill, m_rows);
+            bounds[i*4+2] = toTile(maxX + spill, m_cols);
+            bounds[i*4+3] = toTile(maxY + spill, m_rows);
+            for (int row = bounds[i*4+1]; row <= bounds[i*4+3]; row++) {
+                for (int col = bounds[i*4]; col <= bounds[i*4+2]; col++) {
+                    dirty[row*m_cols + col] = true;
+                }
+            }
+        }
+
+        // --- redraw each dirty tile once with every stroke that touches it,
+        // --- keeping the results aside until every tile has been encoded
+        int[] scratch = ((DataBufferInt)m_scratch.getRaster().getDataBuffer()).getData();
+        int[][] newPixels = new int[m_tiles.length][];
+        byte[][] newTiles = new byte[m_tiles.length][];
+        for (int tile = 0; tile < m_tiles.length; tile++) {
+            if (!dirty[tile]) {
+                continue;
+            }
+            int col = tile%m_cols;
+            int row = tile/m_cols;
+
+            pixels.position(tile*scratch.length);
+            pixels.get(scratch);
+
+            Graphics2D g = m_scratch.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(-col*TILE_SIZE, -row*TILE_SIZE);
+            for (int i = 0; i < numStrokes; i++) {
+                if (col >= bounds[i*4] && col <= bounds[i*4+2] &&
+                        row >= bounds[i*4+1] && row <= bounds[i*4+3]) {
+                    drawStroke(g, log, i, firstPoints[i]);
+                }
+            }
+            g.dispose();
+
+            newTiles[tile] = encode();
+            newPixels[tile] = scratch.clone();
+        }
+
+        // --- every tile encoded, so the strokes can't be drawn twice
+        for (int tile = 0; tile < m_tiles.length; tile++) {
+            if (newTiles[tile] != null) {
+                pixels.position(tile*scratch.length);
+                pixels.put(newPixels[tile]);
+                m_tiles[tile] = newTiles[tile];
+            }
+        }
+        m_pixels = pixels;
+        m_snapshot = null;
+    }
+
+    /**
+     * Return true if nothing has been folded into the checkpoint.
+     */
+    public boolean isEmpty() {
+        return m_pixels == null;
+    }
+
+    /**
+     * Return the encoded tiles that have been drawn on. The layout is:
+     *
+     * byte version, int tileSize, int numTiles, then for each tile: short col,
+     * short row, int length followed by length bytes of PNG data.
+     *
+     * All values are big-endian.
+     */
+    public byte[] toSnapshot()
+    throws IOException {
+        if (m_snapshot == null) {
+            int numTiles = 0;
+            int length = 9;
+            for (int i = 0; i < m_tiles.length; i++) {
+                if (m_tiles[i] != null) {
+                    numTiles++;
+                    length += m_tiles[i].length + 8;
+                }
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeInt(TILE_SIZE);
+            out.writeInt(numTiles);
+            for (int i = 0; i < m_tiles.length; i++) {
+                if (m_tiles[i] != null) {
+                    out.writeShort(i%m_cols);
+                    out.writeShort(i/m_cols);
+                    out.writeInt(m_tiles[i].length);
+                    out.write(m_tiles[i]);
+                }
+            }
+            out.close();
+            m_snapshot = bytes.toByteArray();
+        }
+
+        return m_snapshot;
+    }
+
+    /**
+     * Release the raster.
+     */
+    public void clear() {
+        m_pixels = null;
+        m_scratch = null;
+        m_tiles = new byte[m_tiles.length][];
+        m_snapshot = null;
+    }
+
+    /**
+     * Draw a stroke the way UnionDraw.js does: round caps and the stroke's
+     * color and thickness.
+     */
+    private void drawStroke(Graphics2D g, StrokeLog log, int stroke, int firstPoint) {
+        int style = log.getStyle(stroke);
+        int numPoints = log.getNumPoints(stroke);
+
+        g.setColor(new Color(style >>> 8));
+        g.setStroke(new BasicStroke(style & 0xFF, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        GeneralPath path = new GeneralPath();
+        path.moveTo(log.getX(firstPoint), log.getY(firstPoint));
+        if (numPoints == 1) {
+            // --- a single point still leaves a dot
+            path.lineTo(log.getX(firstPoint), log.getY(firstPoint));
+        }
+        for (int i = firstPoint + 1; i < firstPoint + numPoints; i++) {
+            path.lineTo(log.getX(i), log.getY(i));
+        }
+        g.draw(path);
+    }
+
+    /**
+     * PNG encode the scratch image.
+     */
+    private byte[] encode()
+    throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(m_scratch, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return the tile index for a pixel coordinate, kept within the grid.
+     */
+    private static int toTile(int pixel, int numTiles) {
+        return Math.max(0, Math.min(pixel/TILE_SIZE, numTiles - 1));
+    }
+}
@@ -0,0 +1,207 @@
+package net.user1.union.example.blackboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An append-only log of the strokes drawn on a blackboard. Strokes are kept in
+ * primitive arrays rather than as objects so that a board holding hundreds of
+ * thousands of points stays compact in memory.
+ *
+ * A stroke is a polyline drawn with a single style. The style packs the line
+ * color (24 bit RGB) and thickness (8 bit) into one int. Points are stored as
+ * x,y pairs of shorts which comfortably covers the 1224x700 canvas.
+ *
+ * This class is not thread safe. The BlackboardRoomModule synchronizes access.
+ */
+public class StrokeLog {
+    // --- version of the snapshot layout written by toSnapshot()
+    public static final int SNAPSHOT_VERSION = 1;
+
+    // --- initial capacity of the arrays
+    private static final int INITIAL_POINTS = 1024;
+    private static final int INITIAL_STROKES = 64;
+
+    // --- x,y pairs for all strokes, one after the other
+    private short[] m_points = new short[INITIAL_POINTS];
+    private int m_pointsLength;
+    // --- per stroke: style and number of points
+    private int[] m_strokes = new int[INITIAL_STROKES];
+    private int m_strokesLength;
+
+    /**
+     * Append a stroke to the log.
+     *
+     * @param style the packed color and thickness of the stroke
+     * @param coords x,y pairs
+     * @param offset index of the first x in coords
+     * @param numPoints the number of points (x,y pairs) in the stroke
+     */
+    public void append(int style, int[] coords, int offset, int numPoints) {
+        if (numPoints < 1) {
+            return;
+        }
+
+        // --- grow the arrays as required
+        if (m_points.length < m_pointsLength + numPoints*2) {
+            m_points = grow(m_points, m_pointsLength + numPoints*2);
+        }
+        if (m_strokes.length < m_strokesLength + 2) {
+            int[] strokes = new int[m_strokes.length*2];
+            System.arraycopy(m_strokes, 0, strokes, 0, m_strokesLength);
+            m_strokes = strokes;
+        }
+
+        // --- copy the points and record the stroke
+        for (int i = offset; i < offset + numPoints*2; i++) {
+            m_points[m_pointsLength++] = clamp(coords[i]);
+        }
+        m_strokes[m_strokesLength++] = style;
+        m_strokes[m_strokesLength++] = numPoints;
+    }
+
+    /**
+     * Append every stroke of another log to this one.
+     */
+    public void append(StrokeLog log) {
+        if (m_points.length < m_pointsLength + log.m_pointsLength) {
+            m_points = grow(m_points, m_pointsLength + log.m_pointsLength);
+        }
+        if (m_strokes.length < m_strokesLength + log.m_strokesLength) {
+            int[] strokes = new int[Math.max(m_strokes.length*2,
+                    m_strokesLength + log.m_strokesLength)];
+            System.arraycopy(m_strokes, 0, strokes, 0, m_strokesLength);
+            m_strokes = strokes;
+        }
+        System.arraycopy(log.m_points, 0, m_points, m_pointsLength, log.m_pointsLength);
+        m_pointsLength += log.m_pointsLength;
+        System.arraycopy(log.m_strokes, 0, m_strokes, m_strokesLength, log.m_strokesLength);
+        m_strokesLength += log.m_strokesLength;
+    }
+
+    /**
+     * Remove all strokes from the log and release any memory the log grew into.
+     */
+    public void clear() {
+        if (m_points.length > INITIAL_POINTS) {
+            m_points = new short[INITIAL_POINTS];
+        }
+        if (m_strokes.length > INITIAL_STROKES) {
+            m_strokes = new int[INITIAL_STROKES];
+        }
+        m_pointsLength = 0;
+        m_strokesLength = 0;
+    }
+
+    /**
+     * Return the number of strokes in the log.
+     */
+    public int getNumStrokes() {
+        return m_strokesLength/2;
+    }
+
+    /**
+     * Return the number of points in the log.
+     */
+    public int getNumPoints() {
+        return m_pointsLength/2;
+    }
+
+    /**
+     * Return the packed style of a stroke.
+     *
+     * @param stroke the index of the stroke
+     */
+    public int getStyle(int stroke) {
+        return m_strokes[stroke*2];
+    }
+
+    /**
+     * Return the number of points in a stroke.
+     *
+     * @param stroke the index of the stroke
+     */
+    public int getNumPoints(int stroke) {
+        return m_strokes[stroke*2+1];
+    }
+
+    /**
+     * Return the x coordinate of a point. Points are indexed across all strokes
+     * in the order they were appended.
+     *
+     * @param point the index of the point
+     */
+    public int getX(int point) {
+        return m_points[point*2];
+    }
+
+    /**
+     * Return the y coordinate of a point.
+     *
+     * @param point the index of the point
+     */
+    public int getY(int point) {
+        return m_points[point*2+1];
+    }
+
+    /**
+     * Return true if nothing has been drawn.
+     */
+    public boolean isEmpty() {
+        return m_strokesLength == 0;
+    }
+
+    /**
+     * Write the log as a deflated snapshot. The layout before deflating is:
+     *
+     * byte version, int numStrokes, then for each stroke: int style,
+     * int numPoints followed by numPoints x,y pairs as shorts.
+     *
+     * All values are big-endian.
+     */
+    public byte[] toSnapshot()
+    throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(m_pointsLength*2 +
+                m_strokesLength*4 + 8);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+
+        out.writeByte(SNAPSHOT_VERSION);
+        out.writeInt(getNumStrokes());
+        int point = 0;
+        for (int i = 0; i < m_strokesLength; i += 2) {
+            out.writeInt(m_strokes[i]);
+            out.writeInt(m_strokes[i+1]);
+            for (int j = 0; j < m_strokes[i+1]*2; j++) {
+                out.writeShort(m_points[point++]);
+            }
+        }
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Pack a color and thickness into a stroke style.
+     */
+    public static int toStyle(int rgb, int thickness) {
+        return ((rgb & 0xFFFFFF) << 8) | (Math.max(0, Math.min(thickness, 0xFF)));
+    }
+
+    /**
+     * Grow the array to at least the given length.
+     */
+    private static short[] grow(short[] array, int minLength) {
+        short[] grown = new short[Math.max(array.length*2, minLength)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Keep a coordinate within the range of a short.
+     */
+    private static short clamp(int value) {
+        return (short)Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+    }
+}
@@ -0,0 +1,26 @@
+package net.user1.union.example.datasource;
+
+import java.util.List;
+import net.user1.union.api.Account;
+import net.user1.union.api.Datasource;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * A Datasource that can save many account attributes in one go, for example
+ * as a single JDBC batch. WriteBehindDatasource uses this when its delegate
+ * implements it and falls back to saveAccountAttribute() otherwise.
+ */
+public interface BatchingDatasource extends Datasource {
+    /**
+     * Save attributes of accounts. The lists are parallel: attrs.get(i)
+     * belongs to accounts.get(i).
+     *
+     * @param accounts the accounts
+     * @param attrs the attributes to save
+     * @throws DatasourceException if the batch could not be saved; none of
+     *          it should be assumed saved
+     */
+    void saveAccountAttributes(List<Account> accounts, List<Attribute> attrs)
+    throws DatasourceException;
+}
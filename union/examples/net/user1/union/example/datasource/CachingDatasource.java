@@ -0,0 +1,323 @@
+package net.user1.union.example.datasource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import net.user1.union.api.Account;
+import net.user1.union.api.Room;
+import net.user1.union.api.Server;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.attribute.AttributeHolder;
+import net.user1.union.core.context.DatasourceContext;
+import net.user1.union.core.exception.AttributeException;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * A Datasource that wraps another Datasource and caches the attributes it
+ * loads for accounts (global attributes), rooms and the server, so clients
+ * that reconnect over and over don't read the same account from disk each
+ * time. The wrapped datasource is named in the "delegate" attribute, see
+ * DatasourceDecorator. The built-in Hibernate/Derby datasource can be wrapped
+ * too, but its class is internal to the server and may be renamed by any
+ * server release, so it must be named explicitly rather than by default.
+ *
+ * The cache holds up to cacheSize entries (default 10000), evicting the least
+ * recently used, and an entry is reloaded once it is older than cacheTTL
+ * seconds (default 60). Saving or removing an attribute drops the entry of
+ * its account, room or the server. Hits and misses are counted.
+ *
+ * The wrapped datasource loads into the real account, room or server, since
+ * a datasource may depend on the server's own classes. After a miss the
+ * cache keeps a copy of each attribute the load set or changed on the holder,
+ * whatever its flags, and a hit sets them again with setAttribute(). A save
+ * that the holder makes while a hit is setting its attributes only writes back
+ * what was just read, so it is dropped, and one made while the wrapped
+ * datasource loads is passed on but does not drop the entry being loaded.
+ */
+public class CachingDatasource extends DatasourceDecorator {
+    private static Logger log = Logger.getLogger(CachingDatasource.class);
+    // --- defaults for the optional datasource attributes
+    private static final int DEFAULT_SIZE = 10000;
+    private static final long DEFAULT_TTL = 60L;
+    // --- cache key of the server attributes
+    private static final String SERVER_KEY = "server";
+
+    private int m_size;
+    private long m_ttl;
+    // --- loaded attributes by key, least recently used first
+    private Map<String,Entry> m_cache;
+    // --- counts invalidations, so a load that raced with one isn't cached
+    private long m_generation;
+    private long m_hits;
+    private long m_misses;
+    // --- the key this thread is loading from the wrapped datasource or the cache
+    private ThreadLocal<String> m_loading = new ThreadLocal<String>();
+    private ThreadLocal<String> m_replaying = new ThreadLocal<String>();
+
+    public boolean init(DatasourceContext ctx) {
+        // optional settings
+        try {
+            Object attr = ctx.getAttributes().get("cacheSize");
+            m_size = attr == null ? DEFAULT_SIZE : Integer.parseInt(attr.toString());
+            attr = ctx.getAttributes().get("cacheTTL");
+            m_ttl = (attr == null ? DEFAULT_TTL : Long.parseLong(attr.toString()))*1000L;
+        } catch (NumberFormatException e) {
+            log.fatal("Datasource CachingDatasource has an invalid attribute.", e);
+            return false;
+        }
+        m_cache = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<String,CachingDatasource.Entry> eldest) {
+                return size() > m_size;
+            }
+        };
+
+        // create the datasource we cache
+        return super.init(ctx);
+    }
+
+    public void loadAccountGlobalAttributes(Account account)
+    throws DatasourceException {
+        String key = getKey(account.getUserID());
+        if (!replay(key, account)) {
+            long generation = getGeneration();
+            Map<String,Object[]> before = snapshot(account);
+            m_loading.set(key);
+            try {
+                m_delegate.loadAccountGlobalAttributes(account);
+            } finally {
+                m_loading.remove();
+            }
+            store(key, changes(before, account), generation);
+        }
+    }
+
+    public void loadRoomAttributes(Room room)
+    throws DatasourceException {
+        String key = getKey(room);
+        if (!replay(key, room)) {
+            long generation = getGeneration();
+            Map<String,Object[]> before = snapshot(room);
+            m_loading.set(key);
+            try {
+                m_delegate.loadRoomAttributes(room);
+            } finally {
+                m_loading.remove();
+            }
+            store(key, changes(before, room), generation);
+        }
+    }
+
+    public void loadServerAttributes(Server server)
+    throws DatasourceException {
+        if (!replay(SERVER_KEY, server)) {
+            long generation = getGeneration();
+            Map<String,Object[]> before = snapshot(server);
+            m_loading.set(SERVER_KEY);
+            try {
+                m_delegate.loadServerAttributes(server);
+            } finally {
+                m_loading.remove();
+            }
+            store(SERVER_KEY, changes(before, server), generation);
+        }
+    }
+
+    public void saveAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        if (invalidate(getKey(account.getUserID()))) {
+            m_delegate.saveAccountAttribute(account, attr);
+        }
+    }
+
+    public void removeAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        if (invalidate(getKey(account.getUserID()))) {
+            m_delegate.removeAccountAttribute(account, attr);
+        }
+    }
+
+    public String removeAccount(String userID)
+    throws DatasourceException {
+        invalidate(getKey(userID));
+        return m_delegate.removeAccount(userID);
+    }
+
+    public void saveRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        if (invalidate(getKey(room))) {
+            m_delegate.saveRoomAttribute(room, attr);
+        }
+    }
+
+    public void removeRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        if (invalidate(getKey(room))) {
+            m_delegate.removeRoomAttribute(room, attr);
+        }
+    }
+
+    public void saveServerAttribute(Attribute attr)
+    throws DatasourceException {
+        if (invalidate(SERVER_KEY)) {
+            m_delegate.saveServerAttribute(attr);
+        }
+    }
+
+    public void removeServerAttribute(Attribute attr)
+    throws DatasourceException {
+        if (invalidate(SERVER_KEY)) {
+            m_delegate.removeServerAttribute(attr);
+        }
+    }
+
+    public void shutdown() {
+        if (log.isInfoEnabled()) {
+            log.info("Attribute cache had " + getHits() + " hits and " + getMisses() +
+                    " misses.");
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Return the number of loads answered from the cache.
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    /**
+     * Return the number of loads passed to the wrapped datasource.
+     */
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * Set the cached attributes of a key on a holder.
+     *
+     * @return false if the key is not cached
+     */
+    private boolean replay(String key, AttributeHolder holder)
+    throws DatasourceException {
+        Entry entry;
+        synchronized (this) {
+            entry = m_cache.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.m_loaded > m_ttl) {
+                m_cache.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                m_misses++;
+                return false;
+            }
+            m_hits++;
+        }
+
+        m_replaying.set(key);
+        try {
+            for (Object[] args : entry.m_attributes) {
+                holder.setAttribute((String)args[0], args[1], (String)args[2],
+                        ((Integer)args[3]).intValue());
+            }
+        } catch (AttributeException e) {
+            throw new DatasourceException(e);
+        } finally {
+            m_replaying.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Return the value and flags of each attribute of a holder, by scope and
+     * name.
+     */
+    private static Map<String,Object[]> snapshot(AttributeHolder holder) {
+        Map<String,Object[]> attributes = new HashMap<String,Object[]>();
+        for (Object o : holder.getAttributes()) {
+            Attribute attr = (Attribute)o;
+            attributes.put(attr.getScope() + "." + attr.getName(), new Object[] {
+                    attr.getValue(), Integer.valueOf(attr.getFlags())});
+        }
+        return attributes;
+    }
+
+    /**
+     * Return the name, value, scope and flags of each attribute of a holder
+     * that is not in a snapshot taken before, or has another value or flags.
+     */
+    private static List<Object[]> changes(Map<String,Object[]> before,
+            AttributeHolder holder) {
+        List<Object[]> attributes = new ArrayList<Object[]>();
+        for (Object o : holder.getAttributes()) {
+            Attribute attr = (Attribute)o;
+            Object[] old = before.get(attr.getScope() + "." + attr.getName());
+            Object value = attr.getValue();
+            if (old == null || ((Integer)old[1]).intValue() != attr.getFlags() ||
+                    (value == null ? old[0] != null : !value.equals(old[0]))) {
+                attributes.add(new Object[] {attr.getName(), value, attr.getScope(),
+                        Integer.valueOf(attr.getFlags())});
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Cache the attributes of a load, unless an invalidation happened since
+     * it started.
+     */
+    private synchronized void store(String key, List<Object[]> attributes,
+            long generation) {
+        if (generation == m_generation) {
+            m_cache.put(key, new Entry(attributes));
+        }
+    }
+
+    /**
+     * Drop the entry of a key before a save or remove, unless this thread is
+     * loading that key.
+     *
+     * @return false if the save or remove should not be passed on, because a
+     *         hit is setting the key's attributes on its holder
+     */
+    private boolean invalidate(String key) {
+        if (key.equals(m_replaying.get())) {
+            return false;
+        }
+        if (!key.equals(m_loading.get())) {
+            synchronized (this) {
+                m_cache.remove(key);
+                m_generation++;
+            }
+        }
+        return true;
+    }
+
+    private synchronized long getGeneration() {
+        return m_generation;
+    }
+
+    private static String getKey(String userID) {
+        return "account." + userID;
+    }
+
+    private static String getKey(Room room) {
+        return "room." + room.getQualifiedID();
+    }
+
+    /**
+     * The attributes loaded for a key.
+     */
+    private static class Entry {
+        private List<Object[]> m_attributes;
+        private long m_loaded;
+
+        public Entry(List<Object[]> attributes) {
+            m_attributes = attributes;
+            m_loaded = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package net.user1.union.example.datasource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of JDBC connections for the example datasources. Connections
+ * are opened as they are needed, up to the pool size, and are kept open
+ * between calls. A connection that has sat idle for a while is validated
+ * before it is handed out again, and a connection that failed is closed
+ * rather than returned to the pool.
+ *
+ * Each connection caches the statements prepared on it, so a datasource
+ * prepares each of its SQL strings once per connection instead of once per
+ * call.
+ */
+public class ConnectionPool {
+    private static Logger log = Logger.getLogger(ConnectionPool.class);
+    // --- idle time after which a connection is validated before use (in milliseconds)
+    private static final long VALIDATE_AFTER_IDLE = 30000L;
+
+    private String m_url;
+    private String m_username;
+    private String m_password;
+    private long m_waitTimeout;
+    private int m_validationTimeout;
+    private int m_statementCacheSize;
+    // --- permits for the connections that may still be handed out
+    private Semaphore m_permits;
+    // --- open connections not in use, most recently used first
+    private LinkedList<PooledConnection> m_idle = new LinkedList<PooledConnection>();
+    private boolean m_isClosed;
+
+    /**
+     * Create a pool. No connections are opened until they are needed.
+     *
+     * @param url the JDBC URL of the database
+     * @param username the database user
+     * @param password the database password
+     * @param size the most connections that may be open at once
+     * @param waitTimeout how long to wait for a free connection (in milliseconds)
+     * @param validationTimeout how long to wait when validating a connection (in seconds)
+     * @param statementCacheSize the most statements cached per connection, at least
+     *          the number of statements a caller uses at once on one connection, since
+     *          preparing a statement may close the least recently used one
+     * @throws IllegalArgumentException if statementCacheSize is less than 1
+     */
+    public ConnectionPool(String url, String username, String password, int size,
+            long waitTimeout, int validationTimeout, int statementCacheSize) {
+        if (statementCacheSize < 1) {
+            throw new IllegalArgumentException("Statement cache size must be at least 1.");
+        }
+        m_url = url;
+        m_username = username;
+        m_password = password;
+        m_waitTimeout = waitTimeout;
+        m_validationTimeout = validationTimeout;
+        m_statementCacheSize = statementCacheSize;
+        m_permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Return a connection from the pool, opening one if none are idle. The
+     * connection must be given back with release().
+     *
+     * @throws SQLException if no connection became free in time or a new
+     *          connection could not be opened
+     */
+    public PooledConnection acquire()
+    throws SQLException {
+        try {
+            if (!m_permits.tryAcquire(m_waitTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a pooled connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a pooled connection.");
+        }
+
+        try {
+            // --- reuse an idle connection if a valid one is left
+            while (true) {
+                PooledConnection con;
+                synchronized (this) {
+                    if (m_isClosed) {
+                        throw new SQLException("Connection pool is closed.");
+                    }
+                    con = m_idle.poll();
+                }
+                if (con == null) {
+                    break;
+                }
+                if (System.currentTimeMillis() - con.m_lastUsed < VALIDATE_AFTER_IDLE ||
+                        isValid(con)) {
+                    return con;
+                }
+                log.warn("Discarding invalid pooled connection.");
+                con.close();
+            }
+            return new PooledConnection(DriverManager.getConnection(m_url, m_username,
+                    m_password));
+        } catch (SQLException e) {
+            m_permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            m_permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return whether an idle connection still works. The connection is closed
+     * if checking it throws.
+     */
+    private boolean isValid(PooledConnection con)
+    throws SQLException {
+        try {
+            return con.m_connection.isValid(m_validationTimeout);
+        } catch (SQLException e) {
+            con.close();
+            throw e;
+        } catch (RuntimeException e) {
+            con.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool.
+     *
+     * @param con the connection, may be null
+     * @param isBroken true if using the connection failed, in which case it
+     *          is closed instead of being reused
+     */
+    public void release(PooledConnection con, boolean isBroken) {
+        if (con == null) {
+            return;
+        }
+        boolean isClosed;
+        synchronized (this) {
+            isClosed = m_isClosed;
+            if (!isBroken && !isClosed) {
+                con.m_lastUsed = System.currentTimeMillis();
+                m_idle.addFirst(con);
+            }
+        }
+        if (isBroken || isClosed) {
+            con.close();
+        }
+        m_permits.release();
+    }
+
+    /**
+     * Close the idle connections. Connections in use are closed when they
+     * are released.
+     */
+    public void close() {
+        LinkedList<PooledConnection> idle;
+        synchronized (this) {
+            m_isClosed = true;
+            idle = m_idle;
+            m_idle = new LinkedList<PooledConnection>();
+        }
+        for (PooledConnection con : idle) {
+            con.close();
+        }
+    }
+
+    /**
+     * A connection of the pool with its prepared statement cache.
+     */
+    public class PooledConnection {
+        private Connection m_connection;
+        private long m_lastUsed;
+        // --- statements by SQL, least recently used first
+        private Map<String,PreparedStatement> m_statements;
+
+        private PooledConnection(Connection connection) {
+            m_connection = connection;
+            m_statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true);
+        }
+
+        /**
+         * Return a prepared statement for the SQL, from the cache if it was
+         * prepared on this connection before. The statement must not be
+         * closed by the caller.
+         */
+        public PreparedStatement prepareStatement(String sql)
+        throws SQLException {
+            PreparedStatement ps = m_statements.get(sql);
+            if (ps != null) {
+                ps.clearParameters();
+                return ps;
+            }
+
+            // --- make room by closing the least recently used statement
+            if (m_statements.size() >= m_statementCacheSize) {
+                Iterator<PreparedStatement> i = m_statements.values().iterator();
+                closeStatement(i.next());
+                i.remove();
+            }
+            ps = m_connection.prepareStatement(sql);
+            m_statements.put(sql, ps);
+            return ps;
+        }
+
+        /**
+         * Return the JDBC connection, for work such as transactions.
+         */
+        public Connection getConnection() {
+            return m_connection;
+        }
+
+        /**
+         * Close the statements and the connection.
+         */
+        private void close() {
+            for (PreparedStatement ps : m_statements.values()) {
+                closeStatement(ps);
+            }
+            m_statements.clear();
+            try {
+                m_connection.close();
+            } catch (SQLException e) {
+                log.error("Could not close connection.", e);
+            }
+        }
+
+        private void closeStatement(PreparedStatement ps) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                log.error("Could not close prepared statement.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.user1.union.example.datasource;
+
+import java.util.List;
+import org.apache.log4j.Logger;
+import net.user1.union.api.Account;
+import net.user1.union.api.Datasource;
+import net.user1.union.api.Room;
+import net.user1.union.api.Server;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.context.DatasourceContext;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * Base class of Datasources that wrap another Datasource to add behaviour
+ * such as caching or write-behind. The wrapped datasource is created from the
+ * class name in the datasource attribute "delegate" and initialized with the
+ * same attributes. Every method passes straight through to it; subclasses
+ * override the methods they change.
+ */
+public abstract class DatasourceDecorator implements Datasource {
+    private static Logger log = Logger.getLogger(DatasourceDecorator.class);
+
+    protected Datasource m_delegate;
+
+    public boolean init(DatasourceContext ctx) {
+        // create the datasource we wrap
+        Object delegate = ctx.getAttributes().get("delegate");
+        if (delegate == null) {
+            log.fatal("Datasource " + getClass().getSimpleName() +
+                    " requires attribute [delegate].");
+            return false;
+        }
+        try {
+            m_delegate = (Datasource)Class.forName(delegate.toString()).newInstance();
+        } catch (ClassNotFoundException e) {
+            log.fatal("Could not load delegate datasource.", e);
+            return false;
+        } catch (InstantiationException e) {
+            log.fatal("Could not load delegate datasource.", e);
+            return false;
+        } catch (IllegalAccessException e) {
+            log.fatal("Could not load delegate datasource.", e);
+            return false;
+        } catch (ClassCastException e) {
+            log.fatal("Delegate [" + delegate + "] is not a Datasource.", e);
+            return false;
+        }
+
+        return m_delegate.init(ctx);
+    }
+
+    public void shutdown() {
+        m_delegate.shutdown();
+    }
+
+    public String createAccount(String userID, String password)
+    throws DatasourceException {
+        return m_delegate.createAccount(userID, password);
+    }
+
+    public boolean containsAccount(String userID)
+    throws DatasourceException {
+        return m_delegate.containsAccount(userID);
+    }
+
+    public String saveAccount(Account account)
+    throws DatasourceException {
+        return m_delegate.saveAccount(account);
+    }
+
+    public String getPassword(String userID)
+    throws DatasourceException {
+        return m_delegate.getPassword(userID);
+    }
+
+    public void loadAllAccountAttributes(Account account)
+    throws DatasourceException {
+        m_delegate.loadAllAccountAttributes(account);
+    }
+
+    public void loadAccountGlobalAttributes(Account account)
+    throws DatasourceException {
+        m_delegate.loadAccountGlobalAttributes(account);
+    }
+
+    public void loadAccountRoomAttributes(Account account, String roomID)
+    throws DatasourceException {
+        m_delegate.loadAccountRoomAttributes(account, roomID);
+    }
+
+    public void saveAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        m_delegate.saveAccountAttribute(account, attr);
+    }
+
+    public void removeAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        m_delegate.removeAccountAttribute(account, attr);
+    }
+
+    public void loadAccount(Account account)
+    throws DatasourceException {
+        m_delegate.loadAccount(account);
+    }
+
+    public String removeAccount(String userID)
+    throws DatasourceException {
+        return m_delegate.removeAccount(userID);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> getAccounts()
+    throws DatasourceException {
+        return m_delegate.getAccounts();
+    }
+
+    public void loadRoomAttributes(Room room)
+    throws DatasourceException {
+        m_delegate.loadRoomAttributes(room);
+    }
+
+    public void saveRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        m_delegate.saveRoomAttribute(room, attr);
+    }
+
+    public void removeRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        m_delegate.removeRoomAttribute(room, attr);
+    }
+
+    public void saveServerAttribute(Attribute attr)
+    throws DatasourceException {
+        m_delegate.saveServerAttribute(attr);
+    }
+
+    public void removeServerAttribute(Attribute attr)
+    throws DatasourceException {
+        m_delegate.removeServerAttribute(attr);
+    }
+
+    public void loadServerAttributes(Server server)
+    throws DatasourceException {
+        m_delegate.loadServerAttributes(server);
+    }
+}
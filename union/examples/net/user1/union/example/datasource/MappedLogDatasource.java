@@ -0,0 +1,935 @@
+package net.user1.union.example.datasource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import net.user1.union.api.Account;
+import net.user1.union.api.Datasource;
+import net.user1.union.api.Room;
+import net.user1.union.api.Server;
+import net.user1.union.api.Status;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.attribute.AttributeHolder;
+import net.user1.union.core.context.DatasourceContext;
+import net.user1.union.core.exception.AttributeException;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * A Datasource that keeps accounts, account attributes, room attributes and
+ * server attributes in a single append-only log file instead of a database.
+ * Every change is appended to the log as one record through a memory-mapped
+ * buffer, and an in-memory hash index holds the latest state, so loads never
+ * touch the disk.
+ *
+ * On startup the log is replayed to rebuild the index. Each record carries a
+ * CRC32 and its length is written last, so a record torn by a crash fails the
+ * check and replay stops there; the log is truncated to the last good record.
+ * A background thread forces the mapping to disk every compactionInterval
+ * milliseconds (default 60000) and, once records that were overwritten or
+ * removed take more room than the live ones, compacts the log by writing the
+ * live records to a new file. The new file replaces the log by two renames,
+ * the log to a backup and the new file to the log, and the backup is then
+ * deleted; on startup the log is recovered from whichever of the three files
+ * a crash or a failed rename left behind. Both files are unmapped before the
+ * renames, which Windows refuses for a mapped file. Compaction only runs on
+ * the background thread; a save that finds the mapping full doubles it.
+ *
+ * The log is mapped as one buffer, so it holds at most 2 GB. Compaction keeps
+ * it well below that as long as the live records take less than half of it;
+ * once the mapping cannot grow any more, saves fail until the next
+ * compaction makes room.
+ *
+ * Optional datasource attributes: logFile (default unionLog/union.log),
+ * segmentSize (bytes mapped at first, default 16 MB; the mapping grows as
+ * needed), compactionInterval and syncWrites (force every record to disk,
+ * default false). Attribute values are stored as strings.
+ */
+public class MappedLogDatasource implements Datasource {
+    private static Logger log = Logger.getLogger(MappedLogDatasource.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // --- defaults for the optional datasource attributes
+    private static final String DEFAULT_LOG_FILE = "unionLog/union.log";
+    private static final int DEFAULT_SEGMENT_SIZE = 16*1024*1024;
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60000L;
+    // --- the least room overwritten records must take before the log is compacted
+    private static final long MIN_COMPACTION_BYTES = 1024*1024;
+    // --- file header
+    private static final int MAGIC = 0x554C4F47;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // --- record types
+    private static final byte RECORD_ACCOUNT = 1;
+    private static final byte RECORD_REMOVE_ACCOUNT = 2;
+    private static final byte RECORD_ACCOUNT_ATTR = 3;
+    private static final byte RECORD_REMOVE_ACCOUNT_ATTR = 4;
+    private static final byte RECORD_ROOM_ATTR = 5;
+    private static final byte RECORD_REMOVE_ROOM_ATTR = 6;
+    private static final byte RECORD_SERVER_ATTR = 7;
+    private static final byte RECORD_REMOVE_SERVER_ATTR = 8;
+
+    private File m_file;
+    private int m_segmentSize;
+    private boolean m_isSyncWrites;
+    private ScheduledExecutorService m_executor;
+    // --- the open log
+    private RandomAccessFile m_raf;
+    private MappedByteBuffer m_buffer;
+    private int m_size;
+    private int m_position;
+    // --- bytes of the log taken by records that are still current
+    private long m_liveBytes;
+    // --- the index
+    private Map<String,AccountEntry> m_accounts = new HashMap<String,AccountEntry>();
+    private Map<String,Map<String,Value>> m_rooms = new HashMap<String,Map<String,Value>>();
+    private Map<String,Value> m_server = new HashMap<String,Value>();
+    // --- encodes the record being appended
+    private ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+    private DataOutputStream m_out = new DataOutputStream(m_bytes);
+    private CRC32 m_crc = new CRC32();
+
+    public boolean init(DatasourceContext ctx) {
+        // optional settings
+        long interval;
+        try {
+            Object attr = ctx.getAttributes().get("logFile");
+            m_file = new File(attr == null ? DEFAULT_LOG_FILE : attr.toString());
+            attr = ctx.getAttributes().get("segmentSize");
+            m_segmentSize = attr == null ? DEFAULT_SEGMENT_SIZE : Integer.parseInt(attr.toString());
+            attr = ctx.getAttributes().get("compactionInterval");
+            interval = attr == null ? DEFAULT_COMPACTION_INTERVAL :
+                    Long.parseLong(attr.toString());
+            attr = ctx.getAttributes().get("syncWrites");
+            m_isSyncWrites = attr != null && Boolean.valueOf(attr.toString()).booleanValue();
+        } catch (NumberFormatException e) {
+            log.fatal("Datasource MappedLogDatasource has an invalid attribute.", e);
+            return false;
+        }
+
+        // open the log and rebuild the index
+        try {
+            open();
+        } catch (IOException e) {
+            log.fatal("Could not open log [" + m_file + "].", e);
+            return false;
+        }
+
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MappedLogDatasource");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public synchronized void shutdown() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+        }
+        if (m_raf != null) {
+            m_buffer.force();
+            close(m_raf);
+            m_raf = null;
+            m_buffer = null;
+        }
+    }
+
+    public synchronized String createAccount(String userID, String password)
+    throws DatasourceException {
+        if (m_accounts.containsKey(userID)) {
+            return Status.ACCOUNT_EXISTS;
+        }
+        try {
+            beginAccount(userID, password, false);
+            putAccount(userID, password, false, append());
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        return Status.SUCCESS;
+    }
+
+    public synchronized boolean containsAccount(String userID)
+    throws DatasourceException {
+        return m_accounts.containsKey(userID);
+    }
+
+    public synchronized String saveAccount(Account account)
+    throws DatasourceException {
+        if (!m_accounts.containsKey(account.getUserID())) {
+            return Status.ACCOUNT_NOT_FOUND;
+        }
+        try {
+            beginAccount(account.getUserID(), account.getPassword(), account.isModerator());
+            putAccount(account.getUserID(), account.getPassword(), account.isModerator(),
+                    append());
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        return Status.SUCCESS;
+    }
+
+    public synchronized String getPassword(String userID)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(userID);
+        return entry == null ? null : entry.m_password;
+    }
+
+    public synchronized void loadAccount(Account account)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(account.getUserID());
+        if (entry != null) {
+            account.initModerator(entry.m_isModerator);
+        }
+    }
+
+    public synchronized String removeAccount(String userID)
+    throws DatasourceException {
+        if (!m_accounts.containsKey(userID)) {
+            return Status.ACCOUNT_NOT_FOUND;
+        }
+        try {
+            begin(RECORD_REMOVE_ACCOUNT);
+            writeString(userID);
+            append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        removeAccountEntry(userID);
+        return Status.SUCCESS;
+    }
+
+    public synchronized List<String> getAccounts()
+    throws DatasourceException {
+        return new ArrayList<String>(m_accounts.keySet());
+    }
+
+    public synchronized void loadAllAccountAttributes(Account account)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(account.getUserID());
+        if (entry != null) {
+            load(account, entry.m_attributes, null);
+        }
+    }
+
+    public synchronized void loadAccountGlobalAttributes(Account account)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(account.getUserID());
+        if (entry != null) {
+            load(account, entry.m_attributes, Attribute.SCOPE_GLOBAL);
+        }
+    }
+
+    public synchronized void loadAccountRoomAttributes(Account account, String roomID)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(account.getUserID());
+        if (entry != null) {
+            load(account, entry.m_attributes, roomID);
+        }
+    }
+
+    public synchronized void saveAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        AccountEntry entry = getAccountEntry(account.getUserID());
+        Value value = new Value(attr.getScope(), attr.getName(), attr.nullSafeGetValue(),
+                attr.getFlags());
+        try {
+            begin(RECORD_ACCOUNT_ATTR);
+            writeString(account.getUserID());
+            writeValue(value);
+            value.m_size = append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        put(entry.m_attributes, value);
+    }
+
+    public synchronized void removeAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        AccountEntry entry = getAccountEntry(account.getUserID());
+        try {
+            begin(RECORD_REMOVE_ACCOUNT_ATTR);
+            writeString(account.getUserID());
+            writeString(attr.getScope());
+            writeString(attr.getName());
+            append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        remove(entry.m_attributes, getKey(attr.getScope(), attr.getName()));
+    }
+
+    public synchronized void loadRoomAttributes(Room room)
+    throws DatasourceException {
+        Map<String,Value> attrs = m_rooms.get(room.getQualifiedID());
+        if (attrs != null) {
+            load(room, attrs, null);
+        }
+    }
+
+    public synchronized void saveRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        Value value = new Value(attr.getScope(), attr.getName(), attr.nullSafeGetValue(),
+                attr.getFlags());
+        try {
+            begin(RECORD_ROOM_ATTR);
+            writeString(room.getQualifiedID());
+            writeValue(value);
+            value.m_size = append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        put(getRoomAttributes(room.getQualifiedID()), value);
+    }
+
+    public synchronized void removeRoomAttribute(Room room, Attribute attr)
+    throws DatasourceException {
+        try {
+            begin(RECORD_REMOVE_ROOM_ATTR);
+            writeString(room.getQualifiedID());
+            writeString(attr.getScope());
+            writeString(attr.getName());
+            append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        removeRoomAttribute(room.getQualifiedID(), getKey(attr.getScope(), attr.getName()));
+    }
+
+    public synchronized void loadServerAttributes(Server server)
+    throws DatasourceException {
+        load(server, m_server, null);
+    }
+
+    public synchronized void saveServerAttribute(Attribute attr)
+    throws DatasourceException {
+        Value value = new Value(attr.getScope(), attr.getName(), attr.nullSafeGetValue(),
+                attr.getFlags());
+        try {
+            begin(RECORD_SERVER_ATTR);
+            writeValue(value);
+            value.m_size = append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        put(m_server, value);
+    }
+
+    public synchronized void removeServerAttribute(Attribute attr)
+    throws DatasourceException {
+        try {
+            begin(RECORD_REMOVE_SERVER_ATTR);
+            writeString(attr.getScope());
+            writeString(attr.getName());
+            append();
+        } catch (IOException e) {
+            throw new DatasourceException(e);
+        }
+        remove(m_server, getKey(attr.getScope(), attr.getName()));
+    }
+
+    /**
+     * Return the size of the log in bytes.
+     */
+    public synchronized long getLogSize() {
+        return m_position;
+    }
+
+    /**
+     * Return the bytes of the log taken by records that are still current.
+     */
+    public synchronized long getLiveBytes() {
+        return m_liveBytes;
+    }
+
+    /**
+     * Set the attributes of a map on a holder.
+     *
+     * @param scope the scope to load, or null for every scope
+     */
+    private void load(AttributeHolder holder, Map<String,Value> attrs, String scope)
+    throws DatasourceException {
+        try {
+            for (Value value : attrs.values()) {
+                if (scope == null || scope.equals(value.m_scope)) {
+                    holder.setAttribute(value.m_name, value.m_value, value.m_scope,
+                            value.m_flags);
+                }
+            }
+        } catch (AttributeException e) {
+            throw new DatasourceException(e);
+        }
+    }
+
+    private AccountEntry getAccountEntry(String userID)
+    throws DatasourceException {
+        AccountEntry entry = m_accounts.get(userID);
+        if (entry == null) {
+            throw new DatasourceException("Account [" + userID + "] not found.");
+        }
+        return entry;
+    }
+
+    // --- the index; shared by the datasource methods and replay so both
+    // --- build the same state
+
+    private void putAccount(String userID, String password, boolean isModerator, int size) {
+        AccountEntry entry = m_accounts.get(userID);
+        if (entry == null) {
+            entry = new AccountEntry();
+            m_accounts.put(userID, entry);
+        } else {
+            m_liveBytes -= entry.m_size;
+        }
+        entry.m_password = password;
+        entry.m_isModerator = isModerator;
+        entry.m_size = size;
+        m_liveBytes += size;
+    }
+
+    private void removeAccountEntry(String userID) {
+        AccountEntry entry = m_accounts.remove(userID);
+        if (entry != null) {
+            m_liveBytes -= entry.m_size;
+            for (Value value : entry.m_attributes.values()) {
+                m_liveBytes -= value.m_size;
+            }
+        }
+    }
+
+    private Map<String,Value> getRoomAttributes(String roomID) {
+        Map<String,Value> attrs = m_rooms.get(roomID);
+        if (attrs == null) {
+            attrs = new HashMap<String,Value>();
+            m_rooms.put(roomID, attrs);
+        }
+        return attrs;
+    }
+
+    private void removeRoomAttribute(String roomID, String key) {
+        Map<String,Value> attrs = m_rooms.get(roomID);
+        if (attrs != null) {
+            remove(attrs, key);
+            if (attrs.isEmpty()) {
+                m_rooms.remove(roomID);
+            }
+        }
+    }
+
+    private void put(Map<String,Value> attrs, Value value) {
+        Value old = attrs.put(getKey(value.m_scope, value.m_name), value);
+        if (old != null) {
+            m_liveBytes -= old.m_size;
+        }
+        m_liveBytes += value.m_size;
+    }
+
+    private void remove(Map<String,Value> attrs, String key) {
+        Value old = attrs.remove(key);
+        if (old != null) {
+            m_liveBytes -= old.m_size;
+        }
+    }
+
+    private static String getKey(String scope, String name) {
+        return scope + "." + name;
+    }
+
+    // --- the log
+
+    /**
+     * Open the log file, creating it if needed, and replay it into the index.
+     */
+    private void open()
+    throws IOException {
+        // --- a compaction that was cut short left the log in place, in which
+        // --- case its other files are dropped, or only its backup and its
+        // --- output, both complete; the backup is restored
+        File compacted = getCompactionFile();
+        File backup = getBackupFile();
+        if (!m_file.exists()) {
+            File recovered = backup.exists() ? backup : compacted;
+            if (recovered.exists()) {
+                log.warn("Log [" + m_file + "] is missing, recovering it from [" +
+                        recovered + "].");
+                if (!recovered.renameTo(m_file)) {
+                    throw new IOException("Could not rename [" + recovered + "].");
+                }
+            }
+        }
+        if (compacted.exists() && !compacted.delete()) {
+            throw new IOException("Could not delete [" + compacted + "].");
+        }
+        if (backup.exists() && !backup.delete()) {
+            throw new IOException("Could not delete [" + backup + "].");
+        }
+        if (m_file.getParentFile() != null) {
+            m_file.getParentFile().mkdirs();
+        }
+
+        m_raf = new RandomAccessFile(m_file, "rw");
+        boolean isNew = m_raf.length() == 0;
+        map(Math.max(m_raf.length(), m_segmentSize));
+        if (isNew) {
+            writeHeader();
+            return;
+        }
+        if (m_buffer.getInt(0) != MAGIC || m_buffer.getInt(4) != VERSION) {
+            close(m_raf);
+            throw new IOException("[" + m_file + "] is not a log file.");
+        }
+        replay();
+    }
+
+    /**
+     * Apply every intact record of the log to the index and truncate the log
+     * after the last one.
+     */
+    private void replay() {
+        long start = System.currentTimeMillis();
+        int position = HEADER_SIZE;
+        int numRecords = 0;
+        boolean isTorn = false;
+        while (position + 8 <= m_size) {
+            int length = m_buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || (long)position + 8 + length > m_size) {
+                isTorn = true;
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer in = m_buffer.duplicate();
+            in.position(position + 4);
+            in.get(payload);
+            m_crc.reset();
+            m_crc.update(payload);
+            if ((int)m_crc.getValue() != in.getInt()) {
+                isTorn = true;
+                break;
+            }
+            apply(ByteBuffer.wrap(payload), length + 8);
+            position += length + 8;
+            numRecords++;
+        }
+        m_position = position;
+
+        if (isTorn) {
+            // --- clear the rest so that records appended from here aren't
+            // --- followed by stale bytes on the next replay
+            log.warn("Log [" + m_file + "] is damaged after byte " + position +
+                    ", truncating.");
+            for (int i = position; i < m_size; i++) {
+                m_buffer.put(i, (byte)0);
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Replayed " + numRecords + " records of [" + m_file + "] in " +
+                    (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    /**
+     * Apply a record to the index.
+     */
+    private void apply(ByteBuffer in, int size) {
+        byte type = in.get();
+        switch (type) {
+            case RECORD_ACCOUNT:
+                putAccount(readString(in), readString(in), in.get() != 0, size);
+                break;
+            case RECORD_REMOVE_ACCOUNT:
+                removeAccountEntry(readString(in));
+                break;
+            case RECORD_ACCOUNT_ATTR: {
+                AccountEntry entry = m_accounts.get(readString(in));
+                Value value = readValue(in, size);
+                if (entry != null) {
+                    put(entry.m_attributes, value);
+                }
+                break;
+            }
+            case RECORD_REMOVE_ACCOUNT_ATTR: {
+                AccountEntry entry = m_accounts.get(readString(in));
+                String key = getKey(readString(in), readString(in));
+                if (entry != null) {
+                    remove(entry.m_attributes, key);
+                }
+                break;
+            }
+            case RECORD_ROOM_ATTR: {
+                String roomID = readString(in);
+                put(getRoomAttributes(roomID), readValue(in, size));
+                break;
+            }
+            case RECORD_REMOVE_ROOM_ATTR: {
+                String roomID = readString(in);
+                removeRoomAttribute(roomID, getKey(readString(in), readString(in)));
+                break;
+            }
+            case RECORD_SERVER_ATTR:
+                put(m_server, readValue(in, size));
+                break;
+            case RECORD_REMOVE_SERVER_ATTR:
+                remove(m_server, getKey(readString(in), readString(in)));
+                break;
+            default:
+                log.warn("Skipping log record of unknown type [" + type + "].");
+        }
+    }
+
+    /**
+     * Force the log to disk and compact it if enough of it is stale. Runs on
+     * the background thread, and is package private for the tests.
+     */
+    synchronized void maintain() {
+        if (m_raf == null) {
+            return;
+        }
+        try {
+            m_buffer.force();
+            if (isCompactionDue()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.error("Could not compact log [" + m_file + "].", e);
+        } catch (RuntimeException e) {
+            log.error("Log maintenance failed.", e);
+        }
+    }
+
+    private boolean isCompactionDue() {
+        long deadBytes = m_position - HEADER_SIZE - m_liveBytes;
+        return deadBytes >= MIN_COMPACTION_BYTES && deadBytes > m_liveBytes;
+    }
+
+    /**
+     * Rewrite the live records to a new log and replace the old one with it.
+     */
+    private void compact()
+    throws IOException {
+        long start = System.currentTimeMillis();
+        RandomAccessFile oldRaf = m_raf;
+        MappedByteBuffer oldBuffer = m_buffer;
+        int oldSize = m_size;
+        int oldPosition = m_position;
+        File compacted = getCompactionFile();
+        File backup = getBackupFile();
+        RandomAccessFile newRaf = null;
+        // --- where the old log is, which changes once it is renamed to the backup
+        File oldFile = m_file;
+        boolean isUnmapped = false;
+        if (!m_file.exists()) {
+            throw new IOException("Log [" + m_file + "] was left at [" + backup +
+                    "] by a failed compaction and is recovered on the next start.");
+        }
+
+        long size = m_segmentSize;
+        while (size < HEADER_SIZE + m_liveBytes) {
+            size *= 2;
+        }
+        try {
+            // --- write the live records to the new file through the same
+            // --- append path, the encoded sizes don't change
+            m_raf = newRaf = new RandomAccessFile(compacted, "rw");
+            map(size);
+            writeHeader();
+            for (Map.Entry<String,AccountEntry> i : m_accounts.entrySet()) {
+                AccountEntry entry = i.getValue();
+                beginAccount(i.getKey(), entry.m_password, entry.m_isModerator);
+                write();
+                for (Value value : entry.m_attributes.values()) {
+                    begin(RECORD_ACCOUNT_ATTR);
+                    writeString(i.getKey());
+                    writeValue(value);
+                    write();
+                }
+            }
+            for (Map.Entry<String,Map<String,Value>> i : m_rooms.entrySet()) {
+                for (Value value : i.getValue().values()) {
+                    begin(RECORD_ROOM_ATTR);
+                    writeString(i.getKey());
+                    writeValue(value);
+                    write();
+                }
+            }
+            for (Value value : m_server.values()) {
+                begin(RECORD_SERVER_ATTR);
+                writeValue(value);
+                write();
+            }
+            m_buffer.force();
+            int newSize = m_size;
+            int newPosition = m_position;
+
+            // --- swap the files, keeping the old log until the new one is in
+            // --- its place; neither may be mapped while it is renamed
+            unmap(m_buffer);
+            close(newRaf);
+            isUnmapped = true;
+            unmap(oldBuffer);
+            close(oldRaf);
+            m_buffer = null;
+            m_size = newSize;
+            m_position = newPosition;
+            if (!m_file.renameTo(backup)) {
+                throw new IOException("Could not rename [" + m_file + "].");
+            }
+            oldFile = backup;
+            if (!compacted.renameTo(m_file)) {
+                if (backup.renameTo(m_file)) {
+                    oldFile = m_file;
+                }
+                throw new IOException("Could not rename [" + compacted + "].");
+            }
+        } catch (IOException e) {
+            if (!isUnmapped && m_buffer != oldBuffer) {
+                unmap(m_buffer);
+            }
+            if (newRaf != null) {
+                close(newRaf);
+            }
+            // --- go on with the old log wherever it is; if it is still the
+            // --- backup, startup recovers it from there
+            if (oldFile == m_file) {
+                compacted.delete();
+            }
+            m_raf = oldRaf.getChannel().isOpen() ? oldRaf : new RandomAccessFile(oldFile, "rw");
+            if (isUnmapped) {
+                map(oldSize);
+            } else {
+                m_buffer = oldBuffer;
+                m_size = oldSize;
+            }
+            m_position = oldPosition;
+            throw e;
+        }
+
+        m_raf = new RandomAccessFile(m_file, "rw");
+        map(m_size);
+        if (!backup.delete()) {
+            log.warn("Could not delete [" + backup + "], it is deleted on the next start.");
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Compacted log [" + m_file + "] from " + oldPosition + " to " +
+                    m_position + " bytes in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    private File getCompactionFile() {
+        return new File(m_file.getPath() + ".compact");
+    }
+
+    private File getBackupFile() {
+        return new File(m_file.getPath() + ".old");
+    }
+
+    /**
+     * Map the first bytes of the open log file, growing it if needed.
+     */
+    private void map(long size)
+    throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Log [" + m_file + "] is full, a log holds at most 2 GB.");
+        }
+        m_buffer = m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        m_size = (int)size;
+    }
+
+    /**
+     * Release a mapping right away rather than when it is collected. The JDK
+     * has no public call for this, so it goes through the cleaner the buffer
+     * is created with; if that fails the mapping is left to the collector. The
+     * buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                // --- Java 9 and later
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Could not unmap the log, leaving it to the garbage collector.", e);
+        }
+    }
+
+    private void writeHeader() {
+        m_buffer.putInt(0, MAGIC);
+        m_buffer.putInt(4, VERSION);
+        m_position = HEADER_SIZE;
+    }
+
+    private void close(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            log.error("Could not close log [" + m_file + "].", e);
+        }
+    }
+
+    // --- records
+
+    private void begin(byte type)
+    throws IOException {
+        m_bytes.reset();
+        m_out.writeByte(type);
+    }
+
+    private void beginAccount(String userID, String password, boolean isModerator)
+    throws IOException {
+        begin(RECORD_ACCOUNT);
+        writeString(userID);
+        writeString(password);
+        m_out.writeByte(isModerator ? 1 : 0);
+    }
+
+    /**
+     * Append the record being encoded to the log, making room for it first.
+     *
+     * @return the size of the record in the log
+     */
+    private int append()
+    throws IOException {
+        if (m_raf == null) {
+            throw new IOException("Datasource is shut down.");
+        }
+        int size = m_bytes.size() + 8;
+        if (m_position + size > m_size) {
+            // --- grow rather than compact here, which would hold up every load
+            // --- and save for the whole rewrite; the background thread compacts
+            long newSize = m_size;
+            while (m_position + size > newSize) {
+                newSize *= 2;
+            }
+            if (newSize > Integer.MAX_VALUE && m_position + size <= Integer.MAX_VALUE) {
+                newSize = Integer.MAX_VALUE;
+            }
+            map(newSize);
+        }
+        write();
+        if (m_isSyncWrites) {
+            m_buffer.force();
+        }
+        return size;
+    }
+
+    /**
+     * Write the record being encoded at the end of the log. The length goes
+     * in last, so a record cut off part way is never read as complete.
+     */
+    private int write() {
+        byte[] payload = m_bytes.toByteArray();
+        m_crc.reset();
+        m_crc.update(payload);
+        ByteBuffer out = m_buffer.duplicate();
+        out.position(m_position + 4);
+        out.put(payload);
+        out.putInt((int)m_crc.getValue());
+        m_buffer.putInt(m_position, payload.length);
+        m_position += payload.length + 8;
+        return payload.length + 8;
+    }
+
+    private void writeValue(Value value)
+    throws IOException {
+        writeString(value.m_scope);
+        writeString(value.m_name);
+        writeString(value.m_value);
+        m_out.writeInt(value.m_flags);
+    }
+
+    private Value readValue(ByteBuffer in, int size) {
+        Value value = new Value(readString(in), readString(in), readString(in), in.getInt());
+        value.m_size = size;
+        return value;
+    }
+
+    private void writeString(String s)
+    throws IOException {
+        if (s == null) {
+            m_out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            m_out.writeInt(bytes.length);
+            m_out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * An account in the index.
+     */
+    private static class AccountEntry {
+        private String m_password;
+        private boolean m_isModerator;
+        private int m_size;
+        // --- attributes by scope and name
+        private Map<String,Value> m_attributes = new HashMap<String,Value>();
+    }
+
+    /**
+     * An attribute in the index.
+     */
+    private static class Value {
+        private String m_scope;
+        private String m_name;
+        private String m_value;
+        private int m_flags;
+        // --- size of the record holding it
+        private int m_size;
+
+        public Value(String scope, String name, String value, int flags) {
+            m_scope = scope;
+            m_name = name;
+            m_value = value;
+            m_flags = flags;
+        }
+    }
+}
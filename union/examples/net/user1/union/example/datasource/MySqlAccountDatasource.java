@@ -1,7 +1,6 @@
 package net.user1.union.example.datasource;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -14,6 +13,7 @@ import net.user1.union.api.Server;
 import net.user1.union.core.attribute.Attribute;
 import net.user1.union.core.context.DatasourceContext;
 import net.user1.union.core.exception.DatasourceException;
+import net.user1.union.example.datasource.ConnectionPool.PooledConnection;
 
 /**
  * Example of a Datasource that stores "score" and "title" attribute for 
@@ -25,13 +25,44 @@ import net.user1.union.core.exception.DatasourceException;
  * implementation of MySql database connectivity.
  * 
  * The database tables are assumed to exist and are not created in the example.
+ * 
+ * Connections come from a ConnectionPool, sized by the optional datasource attributes
+ * poolSize (default 10), poolTimeout (milliseconds to wait for a free connection, default
+ * 5000), validationTimeout (seconds, default 2) and statementCacheSize (default 16,
+ * at least 2 since saveAccountAttributes uses two statements at once).
+ * The optional attribute dbDriver names the JDBC driver class (default
+ * com.mysql.jdbc.Driver), for a MySQL compatible database with another driver.
  *
  */
-public class MySqlAccountDatasource implements Datasource {
+public class MySqlAccountDatasource implements BatchingDatasource {
     private static Logger log = Logger.getLogger(MySqlAccountDatasource.class); 
     private String dbURL;
     private String dbUsername;
     private String dbPassword;
+    private ConnectionPool pool;
+    
+    // driver default
+    private static final String DEFAULT_DB_DRIVER = "com.mysql.jdbc.Driver";
+    
+    // pool defaults
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final long DEFAULT_POOL_TIMEOUT = 5000L;
+    private static final int DEFAULT_VALIDATION_TIMEOUT = 2;
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 16;
+    // the most statements used at once on one connection, by saveAccountAttributes
+    private static final int MIN_STATEMENT_CACHE_SIZE = 2;
+    
+    // statements; score and title are loaded together in one round trip. The user column
+    // is always qualified, since databases where USER is a function would read it as one
+    private static final String SQL_LOAD = "SELECT " +
+            "(SELECT s.score FROM scores s WHERE s.user = ?) AS score, " + 
+            "(SELECT t.title FROM titles t WHERE t.user = ?) AS title";
+    private static final String SQL_SAVE_SCORE = "INSERT INTO scores (user, score) VALUES " + 
+            "(?, ?) ON DUPLICATE KEY UPDATE score = ?";
+    private static final String SQL_SAVE_TITLE = "INSERT INTO titles (user, title) VALUES " + 
+            "(?, ?) ON DUPLICATE KEY UPDATE title = ?";
+    private static final String SQL_REMOVE_SCORE = "DELETE FROM scores WHERE scores.user = ?";
+    private static final String SQL_REMOVE_TITLE = "DELETE FROM titles WHERE titles.user = ?";
     
     public boolean init(DatasourceContext ctx) {
         // load the database details which need to be provided in the union.xml datasource
@@ -53,8 +84,12 @@ public class MySqlAccountDatasource implements Datasource {
         }
 
         // load the driver class
+        String dbDriver = getAttribute(ctx, "dbDriver");
+        if (dbDriver == null) {
+            dbDriver = DEFAULT_DB_DRIVER;
+        }
         try {
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
+            Class.forName(dbDriver).newInstance();
         } catch(ClassNotFoundException e) {
             // could not load the driver class
             log.fatal("Could not load mysql driver.", e);
@@ -69,6 +104,30 @@ public class MySqlAccountDatasource implements Datasource {
             return false; 
         }
         
+        // set up the connection pool, with optional settings
+        try {
+            String attr = getAttribute(ctx, "poolSize");
+            int poolSize = attr == null ? DEFAULT_POOL_SIZE : Integer.parseInt(attr);
+            attr = getAttribute(ctx, "poolTimeout");
+            long poolTimeout = attr == null ? DEFAULT_POOL_TIMEOUT : Long.parseLong(attr);
+            attr = getAttribute(ctx, "validationTimeout");
+            int validationTimeout = attr == null ? DEFAULT_VALIDATION_TIMEOUT : 
+                    Integer.parseInt(attr);
+            attr = getAttribute(ctx, "statementCacheSize");
+            int statementCacheSize = attr == null ? DEFAULT_STATEMENT_CACHE_SIZE : 
+                    Integer.parseInt(attr);
+            if (statementCacheSize < MIN_STATEMENT_CACHE_SIZE) {
+                log.fatal("Datasource MySqlAccountDatasource requires attribute " +
+                        "[statementCacheSize] to be at least " + MIN_STATEMENT_CACHE_SIZE + ".");
+                return false;
+            }
+            pool = new ConnectionPool(dbURL, dbUsername, dbPassword, poolSize, poolTimeout, 
+                    validationTimeout, statementCacheSize);
+        } catch (NumberFormatException e) {
+            log.fatal("Datasource MySqlAccountDatasource has an invalid pool attribute.", e);
+            return false;
+        }
+        
         // everything OK
         return true;
     }
@@ -86,32 +145,9 @@ public class MySqlAccountDatasource implements Datasource {
     }
     
     /**
-     * Return a connection to the MySql database. A more efficient implementation would use
-     * a connection pool.
-     */
-    private Connection getConnection()
-    throws SQLException {
-        return DriverManager.getConnection(dbURL, dbUsername, dbPassword);
-    }
-    
-    /**
-     * Close the given resources.
+     * Close the given result set.
      */
-    private void close(Connection con, PreparedStatement ps, ResultSet rs) {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                log.error("Could not close connection.", e);
-            }
-        }
-        if (ps != null) {
-            try {
-                ps.close();
-            } catch (SQLException e) {
-                log.error("Could not close prepared statement.", e);
-            }
-        }
+    private void close(ResultSet rs) {
         if (rs != null) {
             try {
                 rs.close();
@@ -123,68 +159,62 @@ public class MySqlAccountDatasource implements Datasource {
 
     public void loadAccountGlobalAttributes(Account account)
     throws DatasourceException {
-        Connection con = null;
-        PreparedStatement ps = null;
+        PooledConnection con = null;
         ResultSet rs = null;
+        boolean isBroken = false;
         
         try {
-            con = getConnection();
+            con = pool.acquire();
             
-            // scores
-            ps = con.prepareStatement("SELECT score FROM scores " + 
-                    "WHERE user = ?");
+            // score and title
+            PreparedStatement ps = con.prepareStatement(SQL_LOAD);
             ps.setString(1, account.getUserID());
+            ps.setString(2, account.getUserID());
             rs = ps.executeQuery();
             if (rs.next()) {
                 try {
-                    account.setAttribute("score", new Integer(rs.getInt("score")), Attribute.SCOPE_GLOBAL, 
-                            Attribute.FLAG_SERVER_ONLY);
-                } catch (Exception e) {
-                    throw new DatasourceException(e);
-                } 
-            } 
-            close(null, ps, rs);
-            
-            // title
-            ps = con.prepareStatement("SELECT title FROM titles " + 
-            "WHERE user = ?");
-            ps.setString(1, account.getUserID());
-            rs = ps.executeQuery();
-            if (rs.next()) {
-                try {
-                    account.setAttribute("title", rs.getString("title"), Attribute.SCOPE_GLOBAL, 
-                            Attribute.FLAG_SERVER_ONLY);
+                    int score = rs.getInt("score");
+                    if (!rs.wasNull()) {
+                        account.setAttribute("score", new Integer(score), Attribute.SCOPE_GLOBAL, 
+                                Attribute.FLAG_SERVER_ONLY);
+                    }
+                    String title = rs.getString("title");
+                    if (title != null) {
+                        account.setAttribute("title", title, Attribute.SCOPE_GLOBAL, 
+                                Attribute.FLAG_SERVER_ONLY);
+                    }
+                } catch (SQLException e) {
+                    throw e;
                 } catch (Exception e) {
                     throw new DatasourceException(e);
                 } 
             } 
         } catch (SQLException e) {
+            isBroken = true;
             throw new DatasourceException(e);
         } finally {
-            close(con, ps, rs);
+            close(rs);
+            pool.release(con, isBroken);
         }   
     }
     
     public void saveAccountAttribute(Account account, Attribute attr)
     throws DatasourceException {
-        Connection con = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+        PooledConnection con = null;
+        boolean isBroken = false;
         
         try {                       
             // set up prepared statement according to the attribute
             if ("score".equals(attr.getName())) {
-                con = getConnection();
-                ps = con.prepareStatement("INSERT INTO scores (user, score) VALUES " + 
-                        "(?, ?) ON DUPLICATE KEY UPDATE score = ?");
+                con = pool.acquire();
+                PreparedStatement ps = con.prepareStatement(SQL_SAVE_SCORE);
                 ps.setString(1, account.getUserID());
                 ps.setInt(2, (Integer)attr.getValue());
                 ps.setInt(3, (Integer)attr.getValue());
                 ps.executeUpdate();
             } else if ("title".equals(attr.getName())) {
-                con = getConnection();
-                ps = con.prepareStatement("INSERT INTO titles (user, title) VALUES " + 
-                "(?, ?) ON DUPLICATE KEY UPDATE title = ?");
+                con = pool.acquire();
+                PreparedStatement ps = con.prepareStatement(SQL_SAVE_TITLE);
                 ps.setString(1, account.getUserID());
                 ps.setString(2, attr.getValue().toString());
                 ps.setString(3, attr.getValue().toString());
@@ -195,38 +225,123 @@ public class MySqlAccountDatasource implements Datasource {
                         attr.getName() + "] it is not able to handle. Check union.xml configuration.");
             }
         } catch (SQLException e) {
+            isBroken = true;
             throw new DatasourceException(e);
         } finally {
-            close(con, ps, rs);
+            pool.release(con, isBroken);
         } 
     }
     
-    public void removeAccountAttribute(Account account, Attribute attr)
+    /**
+     * Save many attributes as one JDBC batch per table, in a single transaction.
+     */
+    public void saveAccountAttributes(List<Account> accounts, List<Attribute> attrs)
     throws DatasourceException {
-        Connection con = null;
-        PreparedStatement ps = null;
+        PooledConnection con = null;
+        PreparedStatement scores = null;
+        PreparedStatement titles = null;
+        boolean isBroken = false;
         
         try {
-            con = getConnection();
+            con = pool.acquire();
+            scores = con.prepareStatement(SQL_SAVE_SCORE);
+            titles = con.prepareStatement(SQL_SAVE_TITLE);
+            boolean hasScores = false;
+            boolean hasTitles = false;
+            for (int i = 0; i < attrs.size(); i++) {
+                Attribute attr = attrs.get(i);
+                String userID = accounts.get(i).getUserID();
+                if ("score".equals(attr.getName())) {
+                    scores.setString(1, userID);
+                    scores.setInt(2, (Integer)attr.getValue());
+                    scores.setInt(3, (Integer)attr.getValue());
+                    scores.addBatch();
+                    hasScores = true;
+                } else if ("title".equals(attr.getName())) {
+                    titles.setString(1, userID);
+                    titles.setString(2, attr.getValue().toString());
+                    titles.setString(3, attr.getValue().toString());
+                    titles.addBatch();
+                    hasTitles = true;
+                } else {
+                    // datasource entry in union.xml not configured properly 
+                    throw new DatasourceException("Datasource method called for an attribute [" +
+                            attr.getName() + "] it is not able to handle. Check union.xml configuration.");
+                }
+            }
             
-            // set up prepared statement according to the attribute
-            if ("score".equals(attr.getName())) {
-                ps = con.prepareStatement("REMOVE FROM scores " + 
-                        "WHERE user = ?");
-            } else if ("title".equals(attr.getName())) {
-                ps = con.prepareStatement("REMOVE FROM titles " + 
-                "WHERE user = ?");
-            } else {
-                // datasource entry in union.xml not configured properly 
-                throw new DatasourceException("Datasource method called for an attribute it " + 
-                        "is not able to handle. Check union.xml configuration.");
+            Connection connection = con.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                if (hasScores) {
+                    scores.executeBatch();
+                }
+                if (hasTitles) {
+                    titles.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            isBroken = true;
+            throw new DatasourceException(e);
+        } finally {
+            // the statements are cached on the connection, so rows added before a
+            // failure must not be left for the next batch on it
+            if (!clearBatch(scores) || !clearBatch(titles)) {
+                isBroken = true;
+            }
+            pool.release(con, isBroken);
+        }
+    }
+    
+    /**
+     * Clear the batch of a statement, which may be null.
+     * 
+     * @return false if the batch could not be cleared
+     */
+    private boolean clearBatch(PreparedStatement ps) {
+        if (ps != null) {
+            try {
+                ps.clearBatch();
+            } catch (SQLException e) {
+                log.error("Could not clear statement batch.", e);
+                return false;
             }
+        }
+        return true;
+    }
+    
+    public void removeAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        // pick the statement according to the attribute
+        String sql;
+        if ("score".equals(attr.getName())) {
+            sql = SQL_REMOVE_SCORE;
+        } else if ("title".equals(attr.getName())) {
+            sql = SQL_REMOVE_TITLE;
+        } else {
+            // datasource entry in union.xml not configured properly 
+            throw new DatasourceException("Datasource method called for an attribute it " + 
+                    "is not able to handle. Check union.xml configuration.");
+        }
+        
+        PooledConnection con = null;
+        boolean isBroken = false;
+        try {
+            con = pool.acquire();
+            PreparedStatement ps = con.prepareStatement(sql);
             ps.setString(1, account.getUserID());
             ps.executeUpdate();
         } catch (SQLException e) {
+            isBroken = true;
             throw new DatasourceException(e);
         } finally {
-            close(con, ps, null);
+            pool.release(con, isBroken);
         } 
     }
     
@@ -314,7 +429,9 @@ public class MySqlAccountDatasource implements Datasource {
 
  
     public void shutdown() {
-        // since we create a new connection for each call rather than using resource such as 
-        // a pool there is nothing to clean up
+        // close the pooled connections
+        if (pool != null) {
+            pool.close();
+        }
     }
 }
@@ -0,0 +1,455 @@
+package net.user1.union.example.datasource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import net.user1.union.api.Account;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.context.DatasourceContext;
+import net.user1.union.core.exception.DatasourceException;
+
+/**
+ * A Datasource that wraps another Datasource and saves account attributes in
+ * the background. saveAccountAttribute() only records the attribute and
+ * returns; a background thread saves the recorded attributes every
+ * writeBehindInterval milliseconds (default 1000) or as soon as
+ * writeBehindBatchSize (default 100) attributes are waiting. An attribute
+ * saved several times before it is written is written once, with its latest
+ * value. If the wrapped datasource is a BatchingDatasource the attributes
+ * are written in batches of writeBehindBatchSize.
+ *
+ * The wrapped datasource is named by the class name in the datasource
+ * attribute "delegate" and all other calls go straight to it, see
+ * DatasourceDecorator. Loading an account first writes that account's
+ * waiting attributes, and removing an attribute or account drops them, so
+ * reads and removes see the saves that came before them.
+ *
+ * Because saves happen later, a save that fails is logged rather than thrown
+ * to the caller, and kept to be tried again one interval later, then twice
+ * as long after each further failure, up to a minute. A failed save is
+ * dropped only if the attribute is saved again, removed or written in the
+ * meantime. getNumFailedSaves() counts the failures. Waiting attributes are
+ * written on shutdown(), which logs those it still could not write, and a
+ * save made after shutdown() is written straight through the wrapped
+ * datasource.
+ */
+public class WriteBehindDatasource extends DatasourceDecorator {
+    private static Logger log = Logger.getLogger(WriteBehindDatasource.class);
+    // --- defaults for the optional datasource attributes
+    private static final long DEFAULT_INTERVAL = 1000L;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    // --- how long shutdown() waits for a flush in progress (in milliseconds)
+    private static final long SHUTDOWN_TIMEOUT = 10000L;
+    // --- longest wait before a failed save is tried again (in milliseconds)
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    private long m_interval;
+    private int m_batchSize;
+    private ScheduledExecutorService m_executor;
+    // --- waiting saves by user ID, then by attribute scope and name
+    private Map<String,Map<String,PendingSave>> m_pending =
+            new HashMap<String,Map<String,PendingSave>>();
+    private int m_queueDepth;
+    // --- waiting saves that failed and wait to be tried again
+    private int m_numRetrying;
+    private boolean m_isFlushRequested;
+    // --- set by shutdown(), after which saves are no longer queued
+    private boolean m_isShutdown;
+    // --- held while writing so that flushes, loads and removes are ordered
+    private final Object m_flushLock = new Object();
+    // --- metrics
+    private long m_numSaves;
+    private long m_numWritten;
+    private long m_numFailed;
+    private long m_lastFlushLatency;
+    private long m_maxFlushLatency;
+
+    // --- runs a flush on the background thread
+    private Runnable m_flushTask = new Runnable() {
+        public void run() {
+            try {
+                flush(false);
+            } catch (RuntimeException e) {
+                log.error("Write-behind flush failed.", e);
+            }
+        }
+    };
+
+    public boolean init(DatasourceContext ctx) {
+        // optional settings
+        try {
+            Object attr = ctx.getAttributes().get("writeBehindInterval");
+            m_interval = attr == null ? DEFAULT_INTERVAL : Long.parseLong(attr.toString());
+            attr = ctx.getAttributes().get("writeBehindBatchSize");
+            m_batchSize = attr == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(attr.toString());
+        } catch (NumberFormatException e) {
+            log.fatal("Datasource WriteBehindDatasource has an invalid attribute.", e);
+            return false;
+        }
+
+        // create the datasource we write behind
+        if (!super.init(ctx)) {
+            return false;
+        }
+
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WriteBehindDatasource");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_executor.scheduleWithFixedDelay(m_flushTask, m_interval, m_interval,
+                TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public void saveAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        synchronized (this) {
+            if (!m_isShutdown) {
+                Map<String,PendingSave> saves = m_pending.get(account.getUserID());
+                if (saves == null) {
+                    saves = new HashMap<String,PendingSave>();
+                    m_pending.put(account.getUserID(), saves);
+                }
+                PendingSave replaced = saves.put(getKey(attr), new PendingSave(account, attr));
+                if (replaced != null) {
+                    dropped(replaced);
+                }
+                m_queueDepth++;
+                m_numSaves++;
+
+                // a full batch is written right away rather than at the next
+                // interval, not counting failed saves that are waiting to retry
+                if (m_queueDepth - m_numRetrying >= m_batchSize && !m_isFlushRequested) {
+                    m_isFlushRequested = true;
+                    m_executor.execute(m_flushTask);
+                }
+                return;
+            }
+        }
+
+        // the background thread is stopped, so save on the caller's thread
+        saveThrough(account, attr);
+    }
+
+    public void removeAccountAttribute(Account account, Attribute attr)
+    throws DatasourceException {
+        synchronized (m_flushLock) {
+            synchronized (this) {
+                Map<String,PendingSave> saves = m_pending.get(account.getUserID());
+                PendingSave removed = saves == null ? null : saves.remove(getKey(attr));
+                if (removed != null) {
+                    dropped(removed);
+                }
+            }
+            m_delegate.removeAccountAttribute(account, attr);
+        }
+    }
+
+    public String removeAccount(String userID)
+    throws DatasourceException {
+        synchronized (m_flushLock) {
+            synchronized (this) {
+                Map<String,PendingSave> saves = m_pending.remove(userID);
+                if (saves != null) {
+                    for (PendingSave save : saves.values()) {
+                        dropped(save);
+                    }
+                }
+            }
+            return m_delegate.removeAccount(userID);
+        }
+    }
+
+    public void loadAccount(Account account)
+    throws DatasourceException {
+        flush(account.getUserID());
+        m_delegate.loadAccount(account);
+    }
+
+    public void loadAllAccountAttributes(Account account)
+    throws DatasourceException {
+        flush(account.getUserID());
+        m_delegate.loadAllAccountAttributes(account);
+    }
+
+    public void loadAccountGlobalAttributes(Account account)
+    throws DatasourceException {
+        flush(account.getUserID());
+        m_delegate.loadAccountGlobalAttributes(account);
+    }
+
+    public void loadAccountRoomAttributes(Account account, String roomID)
+    throws DatasourceException {
+        flush(account.getUserID());
+        m_delegate.loadAccountRoomAttributes(account, roomID);
+    }
+
+    public String saveAccount(Account account)
+    throws DatasourceException {
+        flush(account.getUserID());
+        return m_delegate.saveAccount(account);
+    }
+
+    public void shutdown() {
+        // stop queueing saves and the background thread, let a flush in
+        // progress finish and write whatever is left
+        synchronized (this) {
+            m_isShutdown = true;
+        }
+        m_executor.shutdown();
+        try {
+            m_executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+        synchronized (this) {
+            for (Map<String,PendingSave> saves : m_pending.values()) {
+                for (PendingSave save : saves.values()) {
+                    log.error("Attribute [" + save.m_attr.getName() + "] of account [" +
+                            save.m_account.getUserID() + "] was not written before shutdown.");
+                }
+            }
+            if (m_queueDepth > 0) {
+                log.error(m_queueDepth + " attributes were not written before shutdown.");
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Return the number of attributes waiting to be written.
+     */
+    public synchronized int getQueueDepth() {
+        return m_queueDepth;
+    }
+
+    /**
+     * Return the number of times an attribute could not be written. Each failed
+     * save is tried again, so a save that fails twice is counted twice.
+     */
+    public synchronized long getNumFailedSaves() {
+        return m_numFailed;
+    }
+
+    /**
+     * Return how long the last flush took, in milliseconds.
+     */
+    public synchronized long getLastFlushLatency() {
+        return m_lastFlushLatency;
+    }
+
+    /**
+     * Return how long the slowest flush took, in milliseconds.
+     */
+    public synchronized long getMaxFlushLatency() {
+        return m_maxFlushLatency;
+    }
+
+    /**
+     * Return the share of saves that were written: 1 if every save was
+     * written, lower the more saves were coalesced.
+     */
+    public synchronized double getWriteRatio() {
+        return m_numSaves == 0 ? 1 : (double)m_numWritten/m_numSaves;
+    }
+
+    /**
+     * Save an attribute through the delegate once the background thread is
+     * stopped, after the account's waiting attributes so it is not
+     * overwritten by an older value.
+     */
+    private void saveThrough(Account account, Attribute attr)
+    throws DatasourceException {
+        synchronized (m_flushLock) {
+            flush(account.getUserID());
+            m_delegate.saveAccountAttribute(account, attr);
+        }
+    }
+
+    /**
+     * Write the waiting attributes, leaving failed saves that are not due to be
+     * tried again unless isForced.
+     */
+    private void flush(boolean isForced) {
+        synchronized (m_flushLock) {
+            List<PendingSave> saves = new ArrayList<PendingSave>();
+            synchronized (this) {
+                m_isFlushRequested = false;
+                if (m_queueDepth == 0) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                for (Iterator<Map<String,PendingSave>> i = m_pending.values().iterator();
+                        i.hasNext();) {
+                    Map<String,PendingSave> pending = i.next();
+                    for (Iterator<PendingSave> j = pending.values().iterator(); j.hasNext();) {
+                        PendingSave save = j.next();
+                        if (isForced || save.m_retryAt <= now) {
+                            saves.add(save);
+                            j.remove();
+                            dropped(save);
+                        }
+                    }
+                    if (pending.isEmpty()) {
+                        i.remove();
+                    }
+                }
+                if (saves.isEmpty()) {
+                    return;
+                }
+            }
+            write(saves);
+        }
+    }
+
+    /**
+     * Write the waiting attributes of one account.
+     */
+    private void flush(String userID) {
+        synchronized (m_flushLock) {
+            List<PendingSave> saves;
+            synchronized (this) {
+                Map<String,PendingSave> pending = m_pending.remove(userID);
+                if (pending == null) {
+                    return;
+                }
+                saves = new ArrayList<PendingSave>(pending.values());
+                for (PendingSave save : saves) {
+                    dropped(save);
+                }
+            }
+            write(saves);
+        }
+    }
+
+    /**
+     * Write attributes through the delegate, in batches if it can, and queue
+     * those that fail to be tried again. Must be called while holding
+     * m_flushLock.
+     */
+    private void write(List<PendingSave> saves) {
+        long start = System.nanoTime();
+        List<PendingSave> failed = new ArrayList<PendingSave>();
+        for (int first = 0; first < saves.size(); first += m_batchSize) {
+            List<PendingSave> batch = saves.subList(first,
+                    Math.min(first + m_batchSize, saves.size()));
+            if (m_delegate instanceof BatchingDatasource && batch.size() > 1) {
+                List<Account> accounts = new ArrayList<Account>(batch.size());
+                List<Attribute> attrs = new ArrayList<Attribute>(batch.size());
+                for (PendingSave save : batch) {
+                    accounts.add(save.m_account);
+                    attrs.add(save.m_attr);
+                }
+                try {
+                    ((BatchingDatasource)m_delegate).saveAccountAttributes(accounts, attrs);
+                    continue;
+                } catch (DatasourceException e) {
+                    // save them one at a time so one bad attribute doesn't
+                    // lose the rest of the batch
+                    log.warn("Batch save failed, saving attributes one at a time.", e);
+                } catch (RuntimeException e) {
+                    // e.g. a delegate casting a value of the wrong type
+                    log.warn("Batch save failed, saving attributes one at a time.", e);
+                }
+            }
+            for (PendingSave save : batch) {
+                try {
+                    m_delegate.saveAccountAttribute(save.m_account, save.m_attr);
+                } catch (DatasourceException e) {
+                    log.error("Could not save attribute [" + save.m_attr.getName() +
+                            "] of account [" + save.m_account.getUserID() + "].", e);
+                    failed.add(save);
+                } catch (RuntimeException e) {
+                    log.error("Could not save attribute [" + save.m_attr.getName() +
+                            "] of account [" + save.m_account.getUserID() + "].", e);
+                    failed.add(save);
+                }
+            }
+        }
+
+        long latency = (System.nanoTime() - start)/1000000L;
+        synchronized (this) {
+            m_numWritten += saves.size() - failed.size();
+            m_numFailed += failed.size();
+            m_lastFlushLatency = latency;
+            m_maxFlushLatency = Math.max(m_maxFlushLatency, latency);
+            retry(failed);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote " + saves.size() + " attributes in " + latency + " ms, " +
+                    getQueueDepth() + " waiting.");
+        }
+    }
+
+    /**
+     * Put failed saves back in the queue, to be tried again after a delay that
+     * doubles with each failure, unless a newer save of the same attribute was
+     * queued while they were written. Must be called while holding this
+     * object's lock.
+     */
+    private void retry(List<PendingSave> failed) {
+        long now = System.currentTimeMillis();
+        for (PendingSave save : failed) {
+            Map<String,PendingSave> saves = m_pending.get(save.m_account.getUserID());
+            if (saves == null) {
+                saves = new HashMap<String,PendingSave>();
+                m_pending.put(save.m_account.getUserID(), saves);
+            }
+            String key = getKey(save.m_attr);
+            if (saves.containsKey(key)) {
+                continue;
+            }
+            save.m_attempts++;
+            save.m_retryAt = now + Math.min(m_interval << Math.min(save.m_attempts - 1, 16),
+                    MAX_RETRY_DELAY);
+            saves.put(key, save);
+            m_queueDepth++;
+            m_numRetrying++;
+        }
+    }
+
+    /**
+     * Count a save taken out of the queue. Must be called while holding this
+     * object's lock.
+     */
+    private void dropped(PendingSave save) {
+        m_queueDepth--;
+        if (save.m_attempts > 0) {
+            m_numRetrying--;
+        }
+    }
+
+    /**
+     * Return the key of an attribute within an account.
+     */
+    private static String getKey(Attribute attr) {
+        return attr.getScope() + "." + attr.getName();
+    }
+
+    /**
+     * An attribute waiting to be written.
+     */
+    private static class PendingSave {
+        private Account m_account;
+        private Attribute m_attr;
+        // --- times the save has failed, and when it may be tried again
+        private int m_attempts;
+        private long m_retryAt;
+
+        public PendingSave(Account account, Attribute attr) {
+            m_account = account;
+            m_attr = attr;
+        }
+    }
+}
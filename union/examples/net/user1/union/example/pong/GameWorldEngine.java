@@ -0,0 +1,746 @@
+package net.user1.union.example.pong;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.user1.union.example.util.RoomModuleScheduler;
+
+/**
+ * Simulates the Pong games of every room in one game loop. Each room that
+ * registers is given a slot, and the balls and paddles of all slots are kept
+ * side by side in primitive arrays so a tick is a tight loop over all rooms
+ * rather than a scheduled task per room. Once there are enough rooms the
+ * slots are split into ranges that are stepped in parallel on a fork-join
+ * pool.
+ *
+ * The loop runs on the RoomModuleScheduler with the fixed timestep the
+ * PongRoomModule used to run itself. The scheduler's task only hands each
+ * tick to the fork-join pool, so a shared scheduler thread never waits for
+ * the rooms to be stepped; a tick that is still running when the next one is
+ * due delays it until the next run. Scores and ball updates that a tick
+ * produces are reported to each room's Listener after the tick, without the
+ * engine's lock held, so listeners are free to call back into the engine.
+ *
+ * Clients are only sent the ball when they would otherwise get it wrong. For
+ * each room the engine moves a second, predicted ball from the last snapshot
+ * sent to clients the way a client does: in a straight line, bouncing off the
+ * walls but knowing nothing of paddles or scores. A new snapshot is due once
+ * the real ball is more than DIVERGENCE_THRESHOLD from the predicted one.
+ * Snapshots carry a sequence number and the engine's tick so clients can
+ * reconcile, and clients acknowledge the sequence numbers they have applied.
+ * Players that don't acknowledge a snapshot are still sent one every
+ * BALL_UPDATE_INTERVAL, as before.
+ */
+public class GameWorldEngine implements Runnable {
+    // --- events reported to a Listener, or'ed together
+    public static final int EVENT_LEFT_SCORED = 1;
+    public static final int EVENT_RIGHT_SCORED = 2;
+    public static final int EVENT_BALL_UPDATE = 4;
+    // --- paddle indexes
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    // --- how often the game loop should run (in milliseconds)
+    private static final int GAME_UPDATE_INTERVAL = 20;
+    // --- the fixed simulation step (in nanoseconds)
+    private static final long STEP = GAME_UPDATE_INTERVAL*1000000L;
+    // --- the most simulation time to catch up on after a stall (in nanoseconds)
+    private static final long MAX_ACCUMULATED = 10*STEP;
+    // --- how often clients that don't acknowledge snapshots should be
+    // --- updated with the world state (i.e. the position and velocity of the ball)
+    private static final long BALL_UPDATE_INTERVAL = 5000L;
+    private static final int BALL_UPDATE_STEPS = (int)(BALL_UPDATE_INTERVAL/GAME_UPDATE_INTERVAL);
+    // --- how far the ball may be from where clients predict it (in pixels)
+    private static final double DIVERGENCE_THRESHOLD = 2;
+    // --- the fewest rooms worth handing to a thread of the pool
+    private static final int MIN_SHARD_SIZE = 256;
+    // --- the number of slots the arrays start with
+    private static final int INITIAL_CAPACITY = 16;
+    // --- game metrics
+    private static final int COURT_HEIGHT = 480;            // pixels
+    private static final int COURT_WIDTH = 640;             // pixels
+    private static final int BALL_SIZE = 10;                // pixels
+    private static final int INITIAL_BALL_SPEED = 150;      // pixels / sec
+    private static final int BALL_SPEEDUP = 25;             // pixels / sec
+    private static final int PADDLE_HEIGHT = 60;            // pixels
+    private static final int PADDLE_WIDTH = 10;             // pixels
+    private static final int PADDLE_SPEED = 300;            // pixels / sec
+    private static final int WALL_HEIGHT = 10;              // pixels
+
+    // --- the engine shared by all Pong rooms
+    private static final GameWorldEngine s_instance = new GameWorldEngine(
+            Runtime.getRuntime().availableProcessors());
+
+    // --- the listener of each slot, null for free slots
+    private Listener[] m_listeners;
+    // --- flag that a game is being played in a slot
+    private boolean[] m_isGameRunning;
+    // --- the balls, one per slot
+    private double[] m_ballX;                               // pixels
+    private double[] m_ballY;                               // pixels
+    private int[] m_ballSpeed;                              // pixels / sec
+    private double[] m_ballDirection;                       // radians
+    // --- the paddles, two per slot at slot*2+LEFT and slot*2+RIGHT
+    private double[] m_paddleY;                             // pixels
+    private int[] m_paddleSpeed;                            // pixels / sec
+    private double[] m_paddleDirection;                     // radians
+    // --- the predicted balls, moved on from the last snapshot of each slot
+    private double[] m_predictedX;                          // pixels
+    private double[] m_predictedY;                          // pixels
+    private int[] m_predictedSpeed;                         // pixels / sec
+    private double[] m_predictedDirection;                  // radians
+    // --- the sequence number and tick of the last snapshot of each slot and
+    // --- the sequence number each player last acknowledged, at slot*2+paddle
+    private int[] m_sequence;
+    private long[] m_snapshotTick;
+    private int[] m_acknowledged;
+    // --- scores and pending events per slot
+    private int[] m_leftScore;
+    private int[] m_rightScore;
+    private int[] m_events;
+    // --- the number of steps the engine has simulated
+    private long m_tick;
+    // --- slots in use are below m_numSlots; freed slots below it are reused
+    private int m_numSlots;
+    private int[] m_freeSlots;
+    private int m_numFreeSlots;
+    // --- false if the engine is only stepped by calls to update()
+    private boolean m_isLooping;
+    // --- the game loop, null while no rooms are registered
+    private ScheduledFuture<?> m_gameTask;
+    // --- the clock of the game loop and the tick it has handed to the pool
+    // --- and not yet finished, guarded by m_loopLock rather than the engine's
+    // --- lock, which a tick holds while it steps the rooms
+    private Object m_loopLock = new Object();
+    private long m_lastTick;
+    private long m_accumulator;
+    private boolean m_isTickRunning;
+    private int m_tickSteps;
+    private Runnable m_tickTask;
+    // --- the threads that step slots in parallel and the work given to them
+    private ForkJoinPool m_pool;
+    private Shard[] m_shards;
+    // --- events collected by a tick, dispatched after the lock is released
+    private Listener[] m_dispatchListeners;
+    private int[] m_dispatchEvents;
+    // --- used to reset balls outside of the game loop
+    private Random m_random = new Random();
+
+    /**
+     * Receives the events of one room's game.
+     */
+    public interface Listener {
+        /**
+         * Called after a tick in which something happened that clients need
+         * to be told about.
+         *
+         * @param events the EVENT_ constants, or'ed together
+         */
+        void onGameEvent(int events);
+    }
+
+    /**
+     * Create an engine that steps rooms on up to the given number of threads.
+     * Rooms normally use the shared instance returned by getInstance().
+     *
+     * @param numThreads the number of threads that step rooms in parallel
+     */
+    public GameWorldEngine(int numThreads) {
+        this(numThreads, true);
+    }
+
+    /**
+     * Create an engine that steps rooms on up to the given number of threads.
+     *
+     * @param numThreads the number of threads that step rooms in parallel
+     * @param isLooping false to leave stepping the rooms to calls of update(),
+     *          as benchmarks do, instead of running the game loop
+     */
+    public GameWorldEngine(int numThreads, boolean isLooping) {
+        m_isLooping = isLooping;
+        final AtomicInteger count = new AtomicInteger();
+        // --- fork-join worker threads are daemons, so the engine never keeps
+        // --- the server running
+        m_pool = new ForkJoinPool(numThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread =
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("GameWorldEngine-" + count.incrementAndGet());
+                return thread;
+            }
+        }, null, false);
+        m_tickTask = new Runnable() {
+            public void run() {
+                tick();
+            }
+        };
+        m_shards = new Shard[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            m_shards[i] = new Shard();
+        }
+        m_listeners = new Listener[INITIAL_CAPACITY];
+        m_isGameRunning = new boolean[INITIAL_CAPACITY];
+        m_ballX = new double[INITIAL_CAPACITY];
+        m_ballY = new double[INITIAL_CAPACITY];
+        m_ballSpeed = new int[INITIAL_CAPACITY];
+        m_ballDirection = new double[INITIAL_CAPACITY];
+        m_paddleY = new double[INITIAL_CAPACITY*2];
+        m_paddleSpeed = new int[INITIAL_CAPACITY*2];
+        m_paddleDirection = new double[INITIAL_CAPACITY*2];
+        m_predictedX = new double[INITIAL_CAPACITY];
+        m_predictedY = new double[INITIAL_CAPACITY];
+        m_predictedSpeed = new int[INITIAL_CAPACITY];
+        m_predictedDirection = new double[INITIAL_CAPACITY];
+        m_sequence = new int[INITIAL_CAPACITY];
+        m_snapshotTick = new long[INITIAL_CAPACITY];
+        m_acknowledged = new int[INITIAL_CAPACITY*2];
+        m_leftScore = new int[INITIAL_CAPACITY];
+        m_rightScore = new int[INITIAL_CAPACITY];
+        m_events = new int[INITIAL_CAPACITY];
+        m_freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Return the engine shared by all Pong rooms.
+     */
+    public static GameWorldEngine getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * Add a room to the engine. The room's game is stopped until startGame is
+     * called.
+     *
+     * @param listener receives the room's events
+     * @return the slot of the room, used for all other calls
+     */
+    public synchronized int register(Listener listener) {
+        int slot;
+        if (m_numFreeSlots > 0) {
+            slot = m_freeSlots[--m_numFreeSlots];
+        } else {
+            if (m_numSlots == m_listeners.length) {
+                grow(m_numSlots*2);
+            }
+            slot = m_numSlots++;
+        }
+        m_listeners[slot] = listener;
+        m_isGameRunning[slot] = false;
+        m_ballSpeed[slot] = INITIAL_BALL_SPEED;
+        resetPaddle(slot, LEFT);
+        resetPaddle(slot, RIGHT);
+        m_sequence[slot] = 0;
+        m_acknowledged[slot*2+LEFT] = -1;
+        m_acknowledged[slot*2+RIGHT] = -1;
+
+        // --- the first room starts the game loop
+        if (m_isLooping && m_gameTask == null) {
+            synchronized (m_loopLock) {
+                m_lastTick = System.nanoTime();
+                m_accumulator = 0;
+            }
+            m_gameTask = RoomModuleScheduler.getInstance().scheduleAtFixedRate(this,
+                    GAME_UPDATE_INTERVAL, GAME_UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return slot;
+    }
+
+    /**
+     * Remove a room from the engine. The slot may be given to another room.
+     *
+     * @param slot the slot of the room
+     */
+    public synchronized void unregister(int slot) {
+        m_listeners[slot] = null;
+        m_isGameRunning[slot] = false;
+        m_events[slot] = 0;
+        m_freeSlots[m_numFreeSlots++] = slot;
+
+        // --- the last room stops the game loop
+        if (m_numFreeSlots == m_numSlots) {
+            m_numSlots = 0;
+            m_numFreeSlots = 0;
+            if (m_gameTask != null) {
+                m_gameTask.cancel(false);
+                m_gameTask = null;
+            }
+        }
+    }
+
+    /**
+     * Start a new game in a room: scores are cleared, the paddles centered
+     * and the ball served.
+     *
+     * @param slot the slot of the room
+     */
+    public synchronized void startGame(int slot) {
+        m_leftScore[slot] = 0;
+        m_rightScore[slot] = 0;
+        m_events[slot] = 0;
+        resetPaddle(slot, LEFT);
+        resetPaddle(slot, RIGHT);
+        resetBall(slot, m_random);
+        snapshot(slot, m_tick);
+        m_isGameRunning[slot] = true;
+    }
+
+    /**
+     * Stop the game in a room and clear its scores.
+     *
+     * @param slot the slot of the room
+     */
+    public synchronized void stopGame(int slot) {
+        m_isGameRunning[slot] = false;
+        m_leftScore[slot] = 0;
+        m_rightScore[slot] = 0;
+        m_events[slot] = 0;
+    }
+
+    /**
+     * Set a paddle from the state a client sent.
+     *
+     * @param slot the slot of the room
+     * @param paddle LEFT or RIGHT
+     * @param y the y position of the paddle
+     * @param speed the speed of the paddle
+     * @param direction the direction the paddle is moving in
+     */
+    public synchronized void setPaddle(int slot, int paddle, double y, int speed,
+            double direction) {
+        m_paddleY[slot*2+paddle] = y;
+        m_paddleSpeed[slot*2+paddle] = speed;
+        m_paddleDirection[slot*2+paddle] = direction;
+    }
+
+    /**
+     * Record that a player has applied a snapshot.
+     *
+     * @param slot the slot of the room
+     * @param paddle the player's paddle, LEFT or RIGHT
+     * @param sequence the sequence number of the snapshot
+     */
+    public synchronized void acknowledge(int slot, int paddle, int sequence) {
+        m_acknowledged[slot*2+paddle] = sequence;
+    }
+
+    /**
+     * Copy the last snapshot of a room's ball, moved on to the current tick.
+     * This is where clients predict the ball to be and is never further than
+     * DIVERGENCE_THRESHOLD from the real ball at the end of a tick.
+     *
+     * @param slot the slot of the room
+     * @param ball receives x, y, speed and direction
+     * @param clock receives the sequence number of the snapshot and the
+     *          current tick
+     */
+    public synchronized void getBall(int slot, double[] ball, long[] clock) {
+        ball[0] = m_predictedX[slot];
+        ball[1] = m_predictedY[slot];
+        ball[2] = m_predictedSpeed[slot];
+        ball[3] = m_predictedDirection[slot];
+        clock[0] = m_sequence[slot];
+        clock[1] = m_tick;
+    }
+
+    /**
+     * Return the left player's score in a room.
+     */
+    public synchronized int getLeftScore(int slot) {
+        return m_leftScore[slot];
+    }
+
+    /**
+     * Return the right player's score in a room.
+     */
+    public synchronized int getRightScore(int slot) {
+        return m_rightScore[slot];
+    }
+
+    /**
+     * Stop the game loop and the threads of the engine. Only used by engines
+     * created with the constructor.
+     */
+    public synchronized void shutdown() {
+        if (m_gameTask != null) {
+            m_gameTask.cancel(false);
+            m_gameTask = null;
+        }
+        m_pool.shutdownNow();
+    }
+
+    /**
+     * Called by the scheduler every GAME_UPDATE_INTERVAL. Hands one tick of
+     * the game loop for all rooms to the pool.
+     */
+    public void run() {
+        synchronized (m_loopLock) {
+            long thisTick = System.nanoTime();
+
+            // --- owe the simulation the time since the last run, but don't
+            // --- try to catch up on a long stall all at once
+            m_accumulator = Math.min(m_accumulator + thisTick-m_lastTick, MAX_ACCUMULATED);
+            m_lastTick = thisTick;
+
+            // --- the time stays owed while the last tick is still running
+            if (m_isTickRunning || m_accumulator < STEP) {
+                return;
+            }
+            m_tickSteps = (int)(m_accumulator/STEP);
+            m_accumulator -= m_tickSteps*STEP;
+            m_isTickRunning = true;
+        }
+        m_pool.execute(m_tickTask);
+    }
+
+    /**
+     * Run the tick handed to the pool by run().
+     */
+    private void tick() {
+        int steps;
+        synchronized (m_loopLock) {
+            steps = m_tickSteps;
+        }
+        try {
+            update(steps);
+        } finally {
+            synchronized (m_loopLock) {
+                m_isTickRunning = false;
+            }
+        }
+    }
+
+    /**
+     * Step every room and report the events of the steps to the listeners.
+     * Called on the pool with the steps the clock is owed; benchmarks call it
+     * directly, and it then waits for the pool.
+     *
+     * @param steps the number of fixed steps to simulate
+     */
+    public void update(int steps) {
+        int numSlots;
+        synchronized (this) {
+            if (m_numSlots == 0) {
+                return;
+            }
+            numSlots = m_numSlots;
+
+            // --- step every room, on this thread if there are only a few
+            int numShards = Math.min(m_shards.length, numSlots/MIN_SHARD_SIZE);
+            if (numShards <= 1) {
+                m_shards[0].set(0, numSlots, m_tick, steps);
+                m_shards[0].compute();
+            } else {
+                int shardSize = (numSlots + numShards - 1)/numShards;
+                for (int i = 0; i < numShards; i++) {
+                    m_shards[i].set(i*shardSize, Math.min((i+1)*shardSize, numSlots),
+                            m_tick, steps);
+                }
+                try {
+                    if (ForkJoinTask.getPool() == m_pool) {
+                        // --- a pool thread helps with the shards while it waits
+                        ForkJoinTask.invokeAll(Arrays.asList(m_shards).subList(0, numShards));
+                    } else {
+                        m_pool.invoke(new Shards(numShards));
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            m_tick += steps;
+
+            // --- collect the events of the tick
+            if (m_dispatchListeners == null || m_dispatchListeners.length < numSlots) {
+                m_dispatchListeners = new Listener[m_listeners.length];
+                m_dispatchEvents = new int[m_listeners.length];
+            }
+            for (int slot = 0; slot < numSlots; slot++) {
+                m_dispatchEvents[slot] = m_events[slot];
+                m_dispatchListeners[slot] = m_events[slot] == 0 ? null : m_listeners[slot];
+                m_events[slot] = 0;
+            }
+        }
+
+        // --- report them without holding the lock
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (m_dispatchListeners[slot] != null) {
+                try {
+                    m_dispatchListeners[slot].onGameEvent(m_dispatchEvents[slot]);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                m_dispatchListeners[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * Update the world of one room by one step.
+     *
+     * @param slot the slot of the room
+     * @param tick the tick the step ends on
+     * @param random used to serve the ball after a score
+     */
+    private void step(int slot, long tick, Random random) {
+        // --- update players
+        updatePaddle(slot*2+LEFT);
+        updatePaddle(slot*2+RIGHT);
+
+        // --- update the ball and where clients think it is
+        updateBall(slot, random);
+        updatePredictedBall(slot);
+
+        // --- check if clients need a new snapshot: either their prediction
+        // --- is off or a player hasn't acknowledged the last one in a while
+        double dx = m_ballX[slot] - m_predictedX[slot];
+        double dy = m_ballY[slot] - m_predictedY[slot];
+        if (dx*dx + dy*dy > DIVERGENCE_THRESHOLD*DIVERGENCE_THRESHOLD ||
+                (tick - m_snapshotTick[slot] >= BALL_UPDATE_STEPS &&
+                (m_acknowledged[slot*2+LEFT] != m_sequence[slot] ||
+                m_acknowledged[slot*2+RIGHT] != m_sequence[slot]))) {
+            snapshot(slot, tick);
+            m_events[slot] |= EVENT_BALL_UPDATE;
+        }
+    }
+
+    /**
+     * Start predicting from the real ball of a room.
+     *
+     * @param slot the slot of the room
+     * @param tick the current tick
+     */
+    private void snapshot(int slot, long tick) {
+        m_predictedX[slot] = m_ballX[slot];
+        m_predictedY[slot] = m_ballY[slot];
+        m_predictedSpeed[slot] = m_ballSpeed[slot];
+        m_predictedDirection[slot] = m_ballDirection[slot];
+        m_sequence[slot]++;
+        m_snapshotTick[slot] = tick;
+    }
+
+    /**
+     * Update the position of a paddle.
+     *
+     * @param paddle the index of the paddle
+     */
+    private void updatePaddle(int paddle) {
+        m_paddleY[paddle] = Math.max(Math.min(m_paddleY[paddle]-
+                Math.sin(m_paddleDirection[paddle])*m_paddleSpeed[paddle]*GAME_UPDATE_INTERVAL/1000,
+                COURT_HEIGHT-WALL_HEIGHT-PADDLE_HEIGHT), WALL_HEIGHT);
+    }
+
+    /**
+     * Place a paddle at the middle of its side, not moving.
+     *
+     * @param slot the slot of the room
+     * @param paddle LEFT or RIGHT
+     */
+    private void resetPaddle(int slot, int paddle) {
+        m_paddleY[slot*2+paddle] = COURT_HEIGHT/2 - PADDLE_HEIGHT/2;
+        m_paddleSpeed[slot*2+paddle] = PADDLE_SPEED;
+        m_paddleDirection[slot*2+paddle] = 0;
+    }
+
+    /**
+     * Update the ball of a room.
+     *
+     * @param slot the slot of the room
+     * @param random used to serve the ball after a score
+     */
+    private void updateBall(int slot, Random random) {
+        // --- determine the new X,Y without regard to game boundaries
+        double ballX = m_ballX[slot] +
+                Math.cos(m_ballDirection[slot])*m_ballSpeed[slot]*GAME_UPDATE_INTERVAL/1000;
+        double ballY = m_ballY[slot] -
+                Math.sin(m_ballDirection[slot])*m_ballSpeed[slot]*GAME_UPDATE_INTERVAL/1000;
+
+        // --- set the potential new ball position which may be overridden below
+        m_ballX[slot] = ballX;
+        m_ballY[slot] = ballY;
+
+        // --- determine if the ball hit a boundary
+        // --- NOTE: this is a rough calculation and does not attempt to
+        // --- interpolate within a tick to determine the exact position
+        // --- of the ball and paddle at the potential time of a collision
+        if (ballX < PADDLE_WIDTH) {
+            // --- left side
+            double paddleY = m_paddleY[slot*2+LEFT];
+            if ((ballY + BALL_SIZE > paddleY) && ballY < (paddleY + PADDLE_HEIGHT)) {
+                // --- paddle hit the ball so it will appear the same distance
+                // --- on the other side of the collision point and angle will
+                // --- flip
+                m_ballX[slot] = 2*PADDLE_WIDTH - ballX;
+                bounceBall(slot, m_ballDirection[slot] > Math.PI ? 3*Math.PI/2 : Math.PI/2);
+                m_ballSpeed[slot] += BALL_SPEEDUP;
+            } else {
+                // --- increase score and reset ball
+                m_rightScore[slot]++;
+                m_events[slot] |= EVENT_RIGHT_SCORED;
+                resetBall(slot, random);
+            }
+        } else if (ballX > (COURT_WIDTH-PADDLE_WIDTH-BALL_SIZE)) {
+            // --- right side
+            double paddleY = m_paddleY[slot*2+RIGHT];
+            if ((ballY + BALL_SIZE > paddleY) && ballY < (paddleY + PADDLE_HEIGHT)) {
+                // --- paddle hit the ball so it will appear the same distance
+                // --- on the other side of the collision point and angle will
+                // --- flip
+                m_ballX[slot] = 2*(COURT_WIDTH-PADDLE_WIDTH-BALL_SIZE) - ballX;
+                bounceBall(slot, m_ballDirection[slot] > 3*Math.PI/2 ? 3*Math.PI/2 : Math.PI/2);
+                m_ballSpeed[slot] += BALL_SPEEDUP;
+            } else {
+                // --- increase score and reset ball
+                m_leftScore[slot]++;
+                m_events[slot] |= EVENT_LEFT_SCORED;
+                resetBall(slot, random);
+            }
+        }
+
+        // --- the ball may also have hit a top or bottom wall
+        if (ballY < WALL_HEIGHT) {
+            // --- top wall
+            m_ballY[slot] = 2*WALL_HEIGHT-ballY;
+            bounceBall(slot, m_ballDirection[slot] > Math.PI/2 ? Math.PI : 2*Math.PI);
+        } else if (ballY + BALL_SIZE > COURT_HEIGHT - WALL_HEIGHT) {
+            // --- bottom wall
+            m_ballY[slot] = 2*(COURT_HEIGHT-WALL_HEIGHT-BALL_SIZE)-ballY;
+            bounceBall(slot, m_ballDirection[slot] > 3*Math.PI/2 ? 2*Math.PI : Math.PI);
+        }
+    }
+
+    /**
+     * Update the predicted ball of a room the way clients do between 
+     * snapshots: the same as updateBall() but without paddles or scoring.
+     *
+     * @param slot the slot of the room
+     */
+    private void updatePredictedBall(int slot) {
+        double ballY = m_predictedY[slot] -
+                Math.sin(m_predictedDirection[slot])*m_predictedSpeed[slot]*GAME_UPDATE_INTERVAL/1000;
+        m_predictedX[slot] +=
+                Math.cos(m_predictedDirection[slot])*m_predictedSpeed[slot]*GAME_UPDATE_INTERVAL/1000;
+        m_predictedY[slot] = ballY;
+
+        // --- the ball may have hit a top or bottom wall
+        double direction = m_predictedDirection[slot];
+        if (ballY < WALL_HEIGHT) {
+            m_predictedY[slot] = 2*WALL_HEIGHT-ballY;
+            double bounceAxis = direction > Math.PI/2 ? Math.PI : 2*Math.PI;
+            m_predictedDirection[slot] = ((2*bounceAxis-direction)+(2*Math.PI))%(2*Math.PI);
+        } else if (ballY + BALL_SIZE > COURT_HEIGHT - WALL_HEIGHT) {
+            m_predictedY[slot] = 2*(COURT_HEIGHT-WALL_HEIGHT-BALL_SIZE)-ballY;
+            double bounceAxis = direction > 3*Math.PI/2 ? 2*Math.PI : Math.PI;
+            m_predictedDirection[slot] = ((2*bounceAxis-direction)+(2*Math.PI))%(2*Math.PI);
+        }
+    }
+
+    /**
+     * Bounces a ball off a wall. Essentially flips the angle over a given
+     * axis. 0(360) degrees is to the right increasing counter-clockwise.
+     * Eg. a ball moving left and bouncing off the bottom wall would be
+     * "flipped" over the 180 degree axis.
+     *
+     * @param slot the slot of the room
+     * @param bounceAxis the axis to flip around
+     */
+    private void bounceBall(int slot, double bounceAxis) {
+        m_ballDirection[slot] = ((2*bounceAxis-m_ballDirection[slot])+(2*Math.PI))%(2*Math.PI);
+    }
+
+    /**
+     * Reset the ball of a room.
+     *
+     * @param slot the slot of the room
+     * @param random used to pick the direction of the ball
+     */
+    private void resetBall(int slot, Random random) {
+        // --- place it in the middle with initial ball speed
+        m_ballX[slot] = COURT_WIDTH/2-BALL_SIZE/2;
+        m_ballY[slot] = COURT_HEIGHT/2-BALL_SIZE/2;
+        m_ballSpeed[slot] = INITIAL_BALL_SPEED;
+        // --- make ball reset moving towards a player
+        if (random.nextDouble() < .5) {
+            // --- towards left player (between 135 and 225 degrees)
+            m_ballDirection[slot] = random.nextDouble()*Math.PI/2+3*Math.PI/4;
+        } else {
+            // --- towards right player (between 315 and 45 degrees)
+            m_ballDirection[slot] = (random.nextDouble()*Math.PI/2+7*Math.PI/4) % (2*Math.PI);
+        }
+    }
+
+    /**
+     * Resize the per slot arrays.
+     */
+    private void grow(int capacity) {
+        m_listeners = Arrays.copyOf(m_listeners, capacity);
+        m_isGameRunning = Arrays.copyOf(m_isGameRunning, capacity);
+        m_ballX = Arrays.copyOf(m_ballX, capacity);
+        m_ballY = Arrays.copyOf(m_ballY, capacity);
+        m_ballSpeed = Arrays.copyOf(m_ballSpeed, capacity);
+        m_ballDirection = Arrays.copyOf(m_ballDirection, capacity);
+        m_paddleY = Arrays.copyOf(m_paddleY, capacity*2);
+        m_paddleSpeed = Arrays.copyOf(m_paddleSpeed, capacity*2);
+        m_paddleDirection = Arrays.copyOf(m_paddleDirection, capacity*2);
+        m_predictedX = Arrays.copyOf(m_predictedX, capacity);
+        m_predictedY = Arrays.copyOf(m_predictedY, capacity);
+        m_predictedSpeed = Arrays.copyOf(m_predictedSpeed, capacity);
+        m_predictedDirection = Arrays.copyOf(m_predictedDirection, capacity);
+        m_sequence = Arrays.copyOf(m_sequence, capacity);
+        m_snapshotTick = Arrays.copyOf(m_snapshotTick, capacity);
+        m_acknowledged = Arrays.copyOf(m_acknowledged, capacity*2);
+        m_leftScore = Arrays.copyOf(m_leftScore, capacity);
+        m_rightScore = Arrays.copyOf(m_rightScore, capacity);
+        m_events = Arrays.copyOf(m_events, capacity);
+        m_freeSlots = Arrays.copyOf(m_freeSlots, capacity);
+    }
+
+    /**
+     * The first shards of the engine, stepped from outside the pool.
+     */
+    private class Shards extends RecursiveAction {
+        private int m_numShards;
+
+        public Shards(int numShards) {
+            m_numShards = numShards;
+        }
+
+        protected void compute() {
+            invokeAll(Arrays.asList(m_shards).subList(0, m_numShards));
+        }
+    }
+
+    /**
+     * A range of slots stepped by one thread. Each shard has its own Random
+     * so threads don't contend on the one behind Math.random(). Shards are
+     * reused from tick to tick.
+     */
+    private class Shard extends RecursiveAction {
+        private int m_first;
+        private int m_end;
+        private long m_tick;
+        private int m_steps;
+        private Random m_random = new Random();
+
+        public void set(int first, int end, long tick, int steps) {
+            reinitialize();
+            m_first = first;
+            m_end = end;
+            m_tick = tick;
+            m_steps = steps;
+        }
+
+        protected void compute() {
+            for (int slot = m_first; slot < m_end; slot++) {
+                if (m_isGameRunning[slot]) {
+                    for (int i = 0; i < m_steps; i++) {
+                        step(slot, m_tick + i + 1, m_random);
+                    }
+                }
+            }
+        }
+    }
+}
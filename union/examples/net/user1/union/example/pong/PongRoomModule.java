@@ -1,6 +1,5 @@
 package net.user1.union.example.pong;
 
-import java.text.DecimalFormat;
 import net.user1.union.api.Client;
 import net.user1.union.api.Module;
 import net.user1.union.core.attribute.Attribute;
@@ -8,6 +7,8 @@ import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.event.ClientEvent;
 import net.user1.union.core.event.RoomEvent;
 import net.user1.union.core.exception.AttributeException;
+import net.user1.union.example.util.ArgParser;
+import net.user1.union.example.util.ListenerProfiler;
 
 /**
  * This is the RoomModule that controls the pong game. The Reactor (Flash) 
@@ -15,46 +16,44 @@ import net.user1.union.core.exception.AttributeException;
  * roomManager()'s createRoom() method. 
  * 
  * The server will create a new instance of this module for each room.
+ * 
+ * The game itself is simulated by the GameWorldEngine together with the games
+ * of all other rooms. This module registers its room with the engine, feeds 
+ * it the players' paddles and tells clients about the scores and ball updates
+ * the engine reports.
+ * 
+ * The "ball" attribute is "x,y,speed,direction,sequence,tick": a snapshot of
+ * the ball at the given engine tick. It is only updated when the ball is no
+ * longer where clients predict it to be. Clients that set the room scoped
+ * attribute "ballAck" to the sequence number of each snapshot they apply are
+ * sent nothing more; others also get a snapshot every few seconds.
  */
-public class PongRoomModule implements Module, Runnable {
+public class PongRoomModule implements Module, GameWorldEngine.Listener {
     // --- the module context
     // --- use this to get access to the server and the room this module
     // --- is attached to
     private ModuleContext m_ctx;
-    // --- the thread for the app
-    private Thread m_thread;
-    // --- players and their objects
+    // --- the slot of this room in the GameWorldEngine, -1 once shut down
+    private int m_slot = -1;
+    // --- players
     private Client m_leftPlayer;
     private Client m_rightPlayer;
-    private PongObject m_leftPaddle;
-    private PongObject m_rightPaddle;
-    private int m_leftPlayerScore;
-    private int m_rightPlayerScore;
-    // --- world objects
-    private PongObject m_ball;
-    // --- flag that a game is being played
-    private boolean m_isGameRunning;
-    // --- how often the game loop should pause (in milliseconds) between updates
-    private static final int GAME_UPDATE_INTERVAL = 20;
-    // --- how often the server should update clients with the world state
-    // --- (i.e. the position and velocity of the ball)
-    private static final long BALL_UPDATE_INTERVAL = 5000L;
-    // --- game metrics
-    private static final int COURT_HEIGHT = 480;            // pixels
-    private static final int COURT_WIDTH = 640;             // pixels
-    private static final int BALL_SIZE = 10;                // pixels
-    private static final int INITIAL_BALL_SPEED = 150;      // pixels / sec
-    private static final int BALL_SPEEDUP = 25;             // pixels / sec
-    private static final int PADDLE_HEIGHT = 60;            // pixels 
-    private static final int PADDLE_WIDTH = 10;             // pixels
-    private static final int PADDLE_SPEED = 300;            // pixels / sec
-    private static final int WALL_HEIGHT = 10;              // pixels
+    // --- receives the state of the ball from the engine
+    private double[] m_ball = new double[4];
+    // --- receives the sequence number of the ball snapshot and the tick
+    private long[] m_clock = new long[2];
+    // --- receives the x, y, speed and direction of a paddle from a client
+    private double[] m_paddle = new double[4];
+    // --- buffer that attribute values are written into before being sent
+    private StringBuilder m_buffer = new StringBuilder(64);
     // --- attribute constants
     private static final String ATTR_PADDLE = "paddle";
+    private static final String ATTR_BALL_ACK = "ballAck";
     private static final String ATTR_SIDE = "side";
     private static final String ATTR_STATUS = "status";
-    // --- decimal format for sending rounded values to clients
-    private DecimalFormat m_decFmt = new DecimalFormat("0.##########");
+    // --- decimal places of the rounded values sent to clients
+    private static final int DECIMALS = 6;
+    private static final double DECIMAL_SCALE = 1e6;
     
     /**
      * The init method is called when the instance is created.
@@ -62,209 +61,53 @@ public class PongRoomModule implements Module, Runnable {
     public boolean init(ModuleContext ctx) {
         m_ctx = ctx;
       
-        // --- create our world objects
-        m_ball = new PongObject(0,0,INITIAL_BALL_SPEED,0);
+        // --- add our game to the world
+        synchronized (this) {
+            m_slot = GameWorldEngine.getInstance().register(this);
+        }
         
         // --- register to receive events
-        m_ctx.getRoom().addEventListener(RoomEvent.ADD_CLIENT, this, 
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this, 
                 "onAddClient");
-        m_ctx.getRoom().addEventListener(RoomEvent.REMOVE_CLIENT, this, 
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this, 
                 "onRemoveClient");
-      
-        // --- create the app thread and start it
-        m_thread = new Thread(this);
-        m_thread.start();
         
         // --- the module initialized fine
         return true;
     }
 
     /**
-     * Called by the game thread. Contains the main game loop.
-     */
-    public void run() {
-        long lastBallUpdate = 0;
-        
-        // --- while the room module is running
-        while (m_thread != null) {
-            // --- init the ticks
-            long lastTick = System.currentTimeMillis();
-            long thisTick;
-            
-            // --- while a game is running
-            while (m_isGameRunning) {
-                thisTick = System.currentTimeMillis();
-                
-                // --- update the game with the difference in ms since the 
-                // --- last tick
-                lastBallUpdate += thisTick-lastTick;
-                update(thisTick-lastTick);
-                lastTick = thisTick;
-                
-                // --- check if time to send a ball update
-                if (lastBallUpdate > BALL_UPDATE_INTERVAL) {
-                    sendBallUpdate();
-                    lastBallUpdate -= BALL_UPDATE_INTERVAL;
-                }
-                
-                // --- pause game
-                try {
-                    Thread.sleep(GAME_UPDATE_INTERVAL);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } 
-            }
-            
-            // --- game has stopped
-            // --- wait for game to run again when enough clients join
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }      
-    }
-
-    /**
-     * Update the world.
+     * Called by the GameWorldEngine after a tick in which a player scored or
+     * clients are due a ball update.
      * 
-     * @param tick the time in milliseconds since the last update 
+     * @param events the GameWorldEngine.EVENT_ constants, or'ed together
      */
-    public void update(long tick) {
-        // --- update players      
-        updatePaddle(m_leftPaddle, tick);
-        updatePaddle(m_rightPaddle, tick);
-        
-        // --- update the ball
-        updateBall(tick);
-    }
-    
-    /**
-     * Update the position of a paddle.
-     * 
-     * @param paddle the paddle to update
-     * @param tick the time in milliseconds since the last update 
-     */
-    private void updatePaddle(PongObject paddle, long tick) {
-        paddle.setY(Math.max(Math.min(paddle.getY()-
-                Math.sin(paddle.getDirection())*paddle.getSpeed()*tick/1000,
-                COURT_HEIGHT-WALL_HEIGHT-PADDLE_HEIGHT), WALL_HEIGHT));
-    }
-    
-    /**
-     * Update the ball
-     * 
-     * @param tick the time in milliseconds since the last update 
-     */
-    private void updateBall(long tick) {
-        // --- determine the new X,Y without regard to game boundaries
-        double ballX = m_ball.getX() + 
-                Math.cos(m_ball.getDirection())*m_ball.getSpeed()*tick/1000;
-        double ballY = m_ball.getY() - 
-                Math.sin(m_ball.getDirection())*m_ball.getSpeed()*tick/1000;
-        
-        // --- set the potential new ball position which may be overridden below
-        m_ball.setX(ballX);
-        m_ball.setY(ballY);
-        
-        // --- determine if the ball hit a boundary
-        // --- NOTE: this is a rough calculation and does not attempt to 
-        // --- interpolate within a tick to determine the exact position
-        // --- of the ball and paddle at the potential time of a collision
-        if (ballX < PADDLE_WIDTH) {
-            // --- left side
-            if ((ballY + BALL_SIZE > m_leftPaddle.getY()) && 
-                    ballY < (m_leftPaddle.getY() + PADDLE_HEIGHT)) {
-                // --- paddle hit the ball so it will appear the same distance 
-                // --- on the other side of the collision point and angle will
-                // --- flip
-                m_ball.setX(2*PADDLE_WIDTH - ballX);
-                bounceBall(m_ball.getDirection() > Math.PI ? 3*Math.PI/2 : Math.PI/2);
-                m_ball.setSpeed(m_ball.getSpeed() + BALL_SPEEDUP);
-            } else {
-                // --- increase score
-                m_rightPlayerScore++;
-                sendScoreUpdate();
-                
-                // --- reset ball
-                resetBall();
-                sendBallUpdate();
+    public void onGameEvent(int events) {
+        synchronized (this) {
+            // --- the game may have stopped since the tick
+            if (m_slot == -1 || m_leftPlayer == null || m_rightPlayer == null) {
+                return;
             }
-        } else if (ballX > (COURT_WIDTH-PADDLE_WIDTH-BALL_SIZE)) {
-            // --- right side
-            if ((ballY + BALL_SIZE > m_rightPaddle.getY()) && 
-                    ballY < (m_rightPaddle.getY() + PADDLE_HEIGHT)) {
-                // --- paddle hit the ball so it will appear the same distance 
-                // --- on the other side of the collision point and angle will
-                // --- flip
-                m_ball.setX(2*(COURT_WIDTH-PADDLE_WIDTH-BALL_SIZE) - ballX);
-                bounceBall(m_ball.getDirection() > 3*Math.PI/2 ? 3*Math.PI/2 : Math.PI/2);
-                m_ball.setSpeed(m_ball.getSpeed() + BALL_SPEEDUP);
-            } else {
-                // --- increase score
-                m_leftPlayerScore++;
+            if ((events & (GameWorldEngine.EVENT_LEFT_SCORED | 
+                    GameWorldEngine.EVENT_RIGHT_SCORED)) != 0) {
                 sendScoreUpdate();
-                
-                // --- reset ball
-                resetBall();
+            }
+            if ((events & GameWorldEngine.EVENT_BALL_UPDATE) != 0) {
                 sendBallUpdate();
-            } 
-        }
-        
-        // --- the ball may also have hit a top or bottom wall 
-        if (ballY < WALL_HEIGHT) {
-            // --- top wall
-            m_ball.setY(2*WALL_HEIGHT-ballY);
-            bounceBall(m_ball.getDirection() > Math.PI/2 ? Math.PI : 2*Math.PI);
-        } else if (ballY + BALL_SIZE > COURT_HEIGHT - WALL_HEIGHT) {
-            // --- bottom wall
-            m_ball.setY(2*(COURT_HEIGHT-WALL_HEIGHT-BALL_SIZE)-ballY);
-            bounceBall(m_ball.getDirection() > 3*Math.PI/2 ? 2*Math.PI : Math.PI);
-        }
-    }
-    
-    /**
-     * Bounces the ball off a wall. Essentially flips the angle over a given 
-     * axis. 0(360) degrees is to the right increasing counter-clockwise. 
-     * Eg. a ball moving left and bouncing off the bottom wall would be 
-     * "flipped" over the 180 degree axis.
-     * 
-     * @param bounceAxis the axis to flip around
-     */
-    private void bounceBall(double bounceAxis) {
-        m_ball.setDirection(((2*bounceAxis-m_ball.getDirection())+(2*Math.PI))%
-                (2*Math.PI));
-    }
-    
-    /**
-     * Reset the ball.
-     */
-    private void resetBall() {
-        // --- place it in the middle with initial ball speed
-        m_ball.setX(COURT_WIDTH/2-BALL_SIZE/2);
-        m_ball.setY(COURT_HEIGHT/2-BALL_SIZE/2);
-        m_ball.setSpeed(INITIAL_BALL_SPEED);
-        // --- make ball reset moving towards a player
-        double dir = 0;
-        if (Math.random() < .5) {
-            // --- towards left player (between 135 and 225 degrees)
-            dir = Math.random()*Math.PI/2+3*Math.PI/4;
-        } else {
-            // --- towards right player (between 315 and 45 degrees)
-            dir = (Math.random()*Math.PI/2+7*Math.PI/4) % (2*Math.PI);
+            }
         }
-        m_ball.setDirection(dir);
     }
     
     /**
      * Send a score update to clients.
      */
     private void sendScoreUpdate() {
+        m_buffer.setLength(0);
+        m_buffer.append(GameWorldEngine.getInstance().getLeftScore(m_slot)).append(',').
+                append(GameWorldEngine.getInstance().getRightScore(m_slot));
         try {
-            m_ctx.getRoom().setAttribute("score", m_leftPlayerScore + "," + 
-                    m_rightPlayerScore, Attribute.SCOPE_GLOBAL, 
+            m_ctx.getRoom().setAttribute("score", m_buffer.toString(), 
+                    Attribute.SCOPE_GLOBAL, 
                     Attribute.FLAG_SERVER_ONLY | Attribute.FLAG_SHARED);
         } catch (AttributeException e) {
             e.printStackTrace();
@@ -275,16 +118,57 @@ public class PongRoomModule implements Module, Runnable {
      * Send a ball update to clients.
      */
     private void sendBallUpdate() {
+        GameWorldEngine.getInstance().getBall(m_slot, m_ball, m_clock);
+        m_buffer.setLength(0);
+        appendDecimal(m_buffer, m_ball[0]).append(',');
+        appendDecimal(m_buffer, m_ball[1]).append(',');
+        m_buffer.append((int)m_ball[2]).append(',');
+        appendDecimal(m_buffer, m_ball[3]).append(',');
+        m_buffer.append(m_clock[0]).append(',').append(m_clock[1]);
         try {
-            m_ctx.getRoom().setAttribute("ball", m_decFmt.format(m_ball.getX()) +
-                    "," + m_decFmt.format(m_ball.getY()) + "," + m_ball.getSpeed() + 
-                    "," + m_decFmt.format(m_ball.getDirection()), Attribute.SCOPE_GLOBAL, 
+            m_ctx.getRoom().setAttribute("ball", m_buffer.toString(), 
+                    Attribute.SCOPE_GLOBAL, 
                     Attribute.FLAG_SERVER_ONLY | Attribute.FLAG_SHARED);
         } catch (AttributeException e) {
             e.printStackTrace();
         }
     }
     
+    /**
+     * Append a value rounded to DECIMALS decimal places, without trailing 
+     * zeros. Unlike DecimalFormat this does not allocate.
+     * 
+     * @param buffer the buffer to append to
+     * @param value the value to append
+     * @return the buffer
+     */
+    static StringBuilder appendDecimal(StringBuilder buffer, double value) {
+        long scaled = Math.round(value*DECIMAL_SCALE);
+        if (scaled < 0) {
+            buffer.append('-');
+            scaled = -scaled;
+        }
+        buffer.append(scaled/(long)DECIMAL_SCALE);
+        long fraction = scaled%(long)DECIMAL_SCALE;
+        if (fraction != 0) {
+            buffer.append('.');
+            // --- leading zeros, then the digits without trailing zeros
+            int digits = DECIMALS;
+            while (fraction%10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            for (long f = fraction; f > 0; f /= 10) {
+                digits--;
+            }
+            while (digits-- > 0) {
+                buffer.append('0');
+            }
+            buffer.append(fraction);
+        }
+        return buffer;
+    }
+    
     /**
      * Client joined the game.
      * 
@@ -293,14 +177,12 @@ public class PongRoomModule implements Module, Runnable {
     public void onAddClient(RoomEvent evt) {
         synchronized (this) {
             // --- listen for client attribute updates
-            evt.getClient().addEventListener(ClientEvent.ATTRIBUTE_CHANGED, this, 
-                    "onClientAttributeChanged");
+            ListenerProfiler.addEventListener(evt.getClient(), ClientEvent.ATTRIBUTE_CHANGED,
+                    this, "onClientAttributeChanged");
             
             // --- assign them a player
             if (m_leftPlayer == null) {
                 m_leftPlayer = evt.getClient();
-                m_leftPaddle = new PongObject(0,COURT_HEIGHT/2 - PADDLE_HEIGHT/2, 
-                        PADDLE_SPEED, 0);
                 try {
                     m_leftPlayer.setAttribute(ATTR_SIDE, "left", 
                             m_ctx.getRoom().getQualifiedID(), 
@@ -313,8 +195,6 @@ public class PongRoomModule implements Module, Runnable {
                 }
             } else if (m_rightPlayer == null) {
                 m_rightPlayer = evt.getClient();
-                m_rightPaddle = new PongObject(COURT_WIDTH-PADDLE_WIDTH,
-                        COURT_HEIGHT/2 - PADDLE_HEIGHT/2, PADDLE_SPEED, 0);
                 try {
                     m_rightPlayer.setAttribute(ATTR_SIDE, "right", 
                             evt.getRoom().getQualifiedID(), 
@@ -329,16 +209,11 @@ public class PongRoomModule implements Module, Runnable {
             
             // --- is the game ready?
             if (m_leftPlayer != null && m_rightPlayer != null) {
-                m_leftPlayerScore = 0;
-                m_rightPlayerScore = 0;
-                resetBall();
+                // --- serve a new game in the engine
+                GameWorldEngine.getInstance().startGame(m_slot);
                 evt.getRoom().sendMessage("START_GAME");
                 sendBallUpdate();
                 sendScoreUpdate();
-                m_isGameRunning = true;
-                
-                // --- start the game loop going again
-                notify();
             }
         }
     }
@@ -351,7 +226,7 @@ public class PongRoomModule implements Module, Runnable {
     public void onRemoveClient(RoomEvent evt) {
         synchronized (this) {
             // --- stop listening for attribute changes for this client
-            evt.getClient().removeEventListener(ClientEvent.ATTRIBUTE_CHANGED, 
+            ListenerProfiler.removeEventListener(evt.getClient(), ClientEvent.ATTRIBUTE_CHANGED, 
                     this, "onClientAttributeChanged");
             
             // --- remove them as a player
@@ -362,11 +237,9 @@ public class PongRoomModule implements Module, Runnable {
             }
             
             // --- game must be stopped
+            GameWorldEngine.getInstance().stopGame(m_slot);
             evt.getRoom().sendMessage("STOP_GAME");
-            m_leftPlayerScore = 0;
-            m_rightPlayerScore = 0;
             sendScoreUpdate();
-            m_isGameRunning = false;
         }
     }
     
@@ -376,86 +249,72 @@ public class PongRoomModule implements Module, Runnable {
      * @param evt the ClientEvent
      */
     public void onClientAttributeChanged(ClientEvent evt) {
-        // --- was the attribute scoped to this room and for the paddle?
-        if (evt.getAttribute().getScope().equals(m_ctx.getRoom().getQualifiedID()) 
-                && evt.getAttribute().getName().equals(ATTR_PADDLE)) {
-            // --- then update the paddle object
-            PongObject paddle = null;
-            String[] paddleAttrs = evt.getAttribute().nullSafeGetValue().split(",");
-            if (evt.getClient().equals(m_leftPlayer)) {
-                paddle = m_leftPaddle;
-            } else if (evt.getClient().equals(m_rightPlayer)) {
-                paddle = m_rightPaddle;
+        // --- was the attribute scoped to this room?
+        if (!evt.getAttribute().getScope().equals(m_ctx.getRoom().getQualifiedID())) {
+            return;
+        }
+        
+        if (evt.getAttribute().getName().equals(ATTR_PADDLE)) {
+            // --- then update the paddle
+            synchronized (this) {
+                int paddle = getPaddle(evt.getClient());
+                
+                // --- parse the attribute and set the paddle; the engine
+                // --- only needs y, speed and direction
+                if (paddle != -1 && m_slot != -1 && ArgParser.parseDoubles(
+                        evt.getAttribute().nullSafeGetValue(), ',', m_paddle) == 4) {
+                    GameWorldEngine.getInstance().setPaddle(m_slot, paddle, 
+                            m_paddle[1], (int)m_paddle[2], m_paddle[3]);
+                }
             }
-            
-            // --- parse the attribute and set the paddle
-            if (paddle != null) {
-                paddle.setX(Float.parseFloat(paddleAttrs[0]));
-                paddle.setY(Float.parseFloat(paddleAttrs[1]));
-                paddle.setSpeed(Integer.parseInt(paddleAttrs[2]));
-                paddle.setDirection(Float.parseFloat(paddleAttrs[3]));
+        } else if (evt.getAttribute().getName().equals(ATTR_BALL_ACK)) {
+            // --- the player applied a ball snapshot
+            try {
+                int sequence = ArgParser.parseInt(evt.getAttribute().nullSafeGetValue());
+                synchronized (this) {
+                    int paddle = getPaddle(evt.getClient());
+                    if (paddle != -1 && m_slot != -1) {
+                        GameWorldEngine.getInstance().acknowledge(m_slot, paddle, sequence);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // --- ignore a malformed ack; the player keeps getting snapshots
             }
         }
     }
     
+    /**
+     * Return the paddle of a client, or -1 if the client isn't a player.
+     * Must be called while holding the module's lock.
+     * 
+     * @param client the client
+     */
+    private int getPaddle(Client client) {
+        if (client.equals(m_leftPlayer)) {
+            return GameWorldEngine.LEFT;
+        } else if (client.equals(m_rightPlayer)) {
+            return GameWorldEngine.RIGHT;
+        }
+        return -1;
+    }
+    
     /**
      * The shutdown method is called when the server removes the room which
      * also removes the room module.
      */
     public void shutdown() {
         // --- deregister for events
-        m_ctx.getRoom().removeEventListener(RoomEvent.ADD_CLIENT, this, "onAddClient");
-        m_ctx.getRoom().removeEventListener(RoomEvent.REMOVE_CLIENT, this, "onRemoveClient");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this,
+                "onAddClient");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
       
-        m_thread = null;
-    }
-    
-    /**
-     * A Object within the Pong game (ball and paddle).
-     */
-    public class PongObject {
-        private double m_x; // x pixel position
-        private double m_y; // y pixel position
-        private int m_speed; // pixels per second
-        private double m_direction; // direction the ball is traveling in radians
-        
-        public PongObject(float x, float y, int speed, float direction) {
-            m_x = x;
-            m_y = y;
-            m_speed = speed;
-            m_direction = direction;
-        }
-        
-        public void setX(double x) {
-            m_x = x;
-        }
-        
-        public double getX() {
-            return m_x;
-        }
-
-        public void setY(double y) {
-            m_y = y;
-        }
-        
-        public double getY() {
-            return m_y;
-        }
-
-        public double getDirection() {
-            return m_direction;
-        }
-
-        public void setDirection(double direction) {
-            m_direction = direction;
-        }
-
-        public void setSpeed(int speed) {
-            m_speed = speed;
-        }
-        
-        public int getSpeed() {
-            return m_speed;
+        synchronized (this) {
+            if (m_slot != -1) {
+                GameWorldEngine.getInstance().unregister(m_slot);
+                m_slot = -1;
+            }
         }
     }
+
 }
\ No newline at end of file
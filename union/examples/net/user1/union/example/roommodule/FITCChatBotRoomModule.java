@@ -1,8 +1,12 @@
 package net.user1.union.example.roommodule;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import net.user1.union.api.Module;
 import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.event.RoomEvent;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.RoomModuleScheduler;
 
 /**
  * Joins a chat room (see Your First Union Application at www.unionplatform.com) and welcomes users, says goodbye, 
@@ -10,7 +14,10 @@ import net.user1.union.core.event.RoomEvent;
  */
 public class FITCChatBotRoomModule implements Module, Runnable {
     private ModuleContext m_ctx;
-    private Thread m_thrThis;
+    private ScheduledFuture<?> m_task;
+    private boolean m_isShutdown;
+    // --- the index of the last message said
+    private int m_lastMessage = -1;
     
     // --- the random messages the module will add to the chat
     private String[] m_messages = {
@@ -25,12 +32,13 @@ public class FITCChatBotRoomModule implements Module, Runnable {
         m_ctx = ctx;
         
         // --- register to receive notification when a client is added or removed to the room
-        m_ctx.getRoom().addEventListener(RoomEvent.ADD_CLIENT, this, "onAddClient");
-        m_ctx.getRoom().addEventListener(RoomEvent.REMOVE_CLIENT, this, "onRemoveClient");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this,
+                "onAddClient");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
         
-        // --- start our thread
-        m_thrThis = new Thread(this);
-        m_thrThis.start();
+        // --- schedule the first thing to say
+        scheduleNext();
         
         // --- everything is OK!
         return true;
@@ -53,31 +61,38 @@ public class FITCChatBotRoomModule implements Module, Runnable {
     }
     
     public void run() {
-        int c = -1;
-        
-        while (m_thrThis != null) {
-            // --- if there are clients in the room then say something random
-            if (m_ctx.getRoom().getNumClients() > 0) {
-                if (++c > m_messages.length-1) {
-                    c = 0;
-                }
-                m_ctx.getRoom().sendMessage("CHAT_MESSAGE", m_messages[c]);
-            }
-
-            // --- sleep for 1-60 seconds before we say something else
-            try {
-                Thread.sleep((long)(Math.random()*2000+4000));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        // --- if there are clients in the room then say the next message
+        if (m_ctx.getRoom().getNumClients() > 0) {
+            if (++m_lastMessage > m_messages.length-1) {
+                m_lastMessage = 0;
             }
+            m_ctx.getRoom().sendMessage("CHAT_MESSAGE", m_messages[m_lastMessage]);
+        }
+        
+        scheduleNext();
+    }
+    
+    /**
+     * Wait for 4-6 seconds before we say something else. Does nothing once the module is shut down.
+     */
+    private synchronized void scheduleNext() {
+        if (!m_isShutdown) {
+            m_task = RoomModuleScheduler.getInstance().schedule(this, (long)(Math.random()*2000+4000), 
+                    TimeUnit.MILLISECONDS);
         }
     }
     
     public void shutdown() {
         // --- stop listening for the events we registered for in the init method
-        m_ctx.getRoom().removeEventListener(RoomEvent.ADD_CLIENT, this, "onRemoveClient");
-        m_ctx.getRoom().removeEventListener(RoomEvent.REMOVE_CLIENT, this, "onRemoveClient");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.ADD_CLIENT, this,
+                "onAddClient");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
         
-        m_thrThis = null;
+        // --- stop talking
+        synchronized (this) {
+            m_isShutdown = true;
+            m_task.cancel(false);
+        }
     }
 }
@@ -1,25 +1,37 @@
 package net.user1.union.example.roommodule;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import net.user1.union.api.Message;
 import net.user1.union.api.Module;
 import net.user1.union.core.attribute.Attribute;
 import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.event.RoomEvent;
-import net.user1.union.core.exception.AttributeException;
+import net.user1.union.example.util.ArgParser;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.AttributeCoalescer;
+import net.user1.union.example.util.RoomModuleScheduler;
 
 /**
  * This is the RoomModule that controls the fridge magnets game. The fridge 
  * magnet Reactor (Flash) client requests that the module be attached when it 
  * sends the CREATE_ROOM (u24) UPC request. The server will create a new 
  * instance of this module for each fridge magnets room.
+ * 
+ * Letter positions are written through an AttributeCoalescer, so while a 
+ * letter is dragged clients are sent at most one position per frame.
  */
 public class FridgeMagnetsRoomModule implements Module, Runnable {
     // --- the module context
     // --- use this to get access to the server and the room this module
     // --- is attached to
     private ModuleContext m_ctx;
-    // --- the thread for the fridge magnet app
-    private Thread m_thread;
+    // --- the scheduled task that resets the letters
+    private ScheduledFuture<?> m_task;
+    // --- coalesces the letter attributes
+    private AttributeCoalescer m_attributes;
+    // --- how often the letters are reset (in milliseconds)
+    private static final long RESET_INTERVAL = 30000L;
     // --- letter pool
     String[] m_letterPool = new String[] {"A","B","C","D","E","F","G","H","I",
            "J","K","L","M","N","O","P","Q","R","S","T","U","V","W","X","Y","Z"};
@@ -29,18 +41,25 @@ public class FridgeMagnetsRoomModule implements Module, Runnable {
      */
     public boolean init(ModuleContext ctx) {
         m_ctx = ctx;
+        try {
+            m_attributes = new AttributeCoalescer(ctx);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
       
         // --- initialize our letter attributes
         resetLetters();
+        m_attributes.flush();
         
-        // --- create the app thread and start it
-        m_thread = new Thread(this);
-        m_thread.start();
+        // --- reset the letters periodically on the shared scheduler
+        m_task = RoomModuleScheduler.getInstance().scheduleAtFixedRate(this,
+                RESET_INTERVAL, RESET_INTERVAL, TimeUnit.MILLISECONDS);
       
         // --- register to receive room module messages
         // --- the onModuleMessage method will be called whenever a 
         // --- room module message (u70) is sent to the room
-        m_ctx.getRoom().addEventListener(RoomEvent.MODULE_MESSAGE, this, 
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this, 
                 "onModuleMessage");
       
         // --- the module initialized fine
@@ -48,22 +67,11 @@ public class FridgeMagnetsRoomModule implements Module, Runnable {
     }
 
     /**
-     * The main game loop. Reset the letters every 30 seconds.
+     * Called by the scheduler every 30 seconds, after clients have had a while
+     * to move the letters around. Reset the letters.
      */
     public void run() {
-        // --- while the room module is running
-        while (m_thread != null) {
-            // --- reset the letters
-            resetLetters();
-           
-            // --- pause to let clients move the letters around for a bit 
-            // --- before resetting them
-            try {
-                Thread.sleep(30000L);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }      
+        resetLetters();
     }
 
     /**
@@ -73,14 +81,10 @@ public class FridgeMagnetsRoomModule implements Module, Runnable {
         // --- reset the position of the letters
         for (int i=0;i<m_letterPool.length;i++) {
             // --- set a room scoped attribute for the letter
-            try {
-                m_ctx.getRoom().setAttribute("magnet"+i, 
-                        m_letterPool[i]+","+(140+(i%13)*25)+","+((i/13+1)*25), 
-                        Attribute.SCOPE_GLOBAL, Attribute.FLAG_SHARED | 
-                        Attribute.FLAG_SERVER_ONLY);
-            } catch (AttributeException e) {
-                e.printStackTrace();
-            }
+            m_attributes.setAttribute("magnet"+i, 
+                    m_letterPool[i]+","+(140+(i%13)*25)+","+((i/13+1)*25), 
+                    Attribute.SCOPE_GLOBAL, Attribute.FLAG_SHARED | 
+                    Attribute.FLAG_SERVER_ONLY);
         }
     }
     
@@ -95,19 +99,21 @@ public class FridgeMagnetsRoomModule implements Module, Runnable {
         if ("MOVE".equals(msg.getMessageName())) {
             // --- get letter index and set the attribute
             try {
-                int magnet = Integer.parseInt(msg.getArg("MAGNET").substring(6));
-                int x = Integer.parseInt(msg.getArg("X"));
-                int y = Integer.parseInt(msg.getArg("Y"));
+                String name = msg.getArg("MAGNET");
+                if (name == null || !name.startsWith("magnet")) {
+                    throw new NumberFormatException("Not a magnet: " + name);
+                }
+                int magnet = ArgParser.parseInt(name, 6, name.length());
+                int x = ArgParser.parseInt(msg.getArg("X"));
+                int y = ArgParser.parseInt(msg.getArg("Y"));
                 if ((x >= 0 && x <= 600) && (y >= 0 && y <= 400)) {                
-                    m_ctx.getRoom().setAttribute(msg.getArg("MAGNET"),
+                    m_attributes.setAttribute(name,
                             m_letterPool[magnet]+","+msg.getArg("X")+","+
                             msg.getArg("Y"), Attribute.SCOPE_GLOBAL, 
                             Attribute.FLAG_SHARED | Attribute.FLAG_SERVER_ONLY);
                 }
             } catch (NumberFormatException e) {
                 e.printStackTrace();
-            } catch (AttributeException e) {
-                e.printStackTrace();
             }
         }
     }
@@ -118,9 +124,11 @@ public class FridgeMagnetsRoomModule implements Module, Runnable {
      */
     public void shutdown() {
         // --- deregister for module messages
-        m_ctx.getRoom().removeEventListener(RoomEvent.MODULE_MESSAGE, this, 
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this, 
                 "onModuleMessage");
       
-        m_thread = null;
+        // --- stop resetting the letters and send the last positions
+        m_task.cancel(false);
+        m_attributes.shutdown();
     }
 }
\ No newline at end of file
@@ -1,7 +1,21 @@
 package net.user1.union.example.servermodule;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.user1.union.api.Client;
 import net.user1.union.api.Message;
@@ -9,33 +23,189 @@ import net.user1.union.api.Module;
 import net.user1.union.core.attribute.Attribute;
 import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.exception.AttributeException;
+import net.user1.union.example.util.AttributeBatch;
 
+/**
+ * Logs clients in with a token checked by an outside service. The service is
+ * called from a small pool of login threads rather than from the thread that
+ * delivered the message, so a slow service doesn't hold up other messages.
+ * When all login threads are busy and loginQueueSize (default 100) logins are
+ * waiting, further logins are answered with INVALID_LOGIN straight away.
+ * On Java 21 and later the login threads are virtual threads, which cost
+ * little while they wait on the service; the pool still bounds how many
+ * calls are made at once.
+ *
+ * Results are cached per token, valid tokens for loginCacheTTL seconds
+ * (default 300) and invalid ones for loginNegativeCacheTTL seconds (default
+ * 30). If the module attribute serviceURL is set the service is called over
+ * HTTP, see authenticateWithServer() and loadCustomFields(), which makes it
+ * easy to try against a local stub.
+ *
+ * The custom fields of a token are set on the client as global attributes,
+ * one per field, and only the fields whose value changed are set. If the
+ * module attribute packProfile is "true" they are instead set as one global
+ * attribute, "profile", packed by AttributeBatch, so a login costs one
+ * attribute update however many fields the service returns; client code then
+ * reads a field such as "color" by splitting "profile" on '&' and '=' and
+ * decoding each part with decodeURIComponent().
+ */
 public class OutsideServiceIntegration implements Module {
+    // --- module attribute defaults
+    private static final int DEFAULT_LOGIN_THREADS = 8;
+    private static final int DEFAULT_LOGIN_QUEUE_SIZE = 100;
+    private static final long DEFAULT_CACHE_TTL = 300L;
+    private static final long DEFAULT_NEGATIVE_CACHE_TTL = 30L;
+    // --- the most tokens cached
+    private static final int MAX_CACHED_TOKENS = 10000;
+    // --- timeouts when calling the service (in milliseconds)
+    private static final int SERVICE_TIMEOUT = 5000;
+    // --- client attribute holding the custom fields
+    private static final String ATTR_PROFILE = "profile";
+
+    private String m_serviceURL;
+    private long m_cacheTTL;
+    private long m_negativeCacheTTL;
+    private boolean m_isProfilePacked;
+    private ThreadPoolExecutor m_executor;
+    // --- login results by token, least recently used first
+    private Map<String, LoginResult> m_cache = new LinkedHashMap<String, LoginResult>(16,
+            0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, LoginResult> eldest) {
+            return size() > MAX_CACHED_TOKENS;
+        }
+    };
 
     public boolean init(ModuleContext ctx) {
+        // --- read the settings
+        int numThreads = DEFAULT_LOGIN_THREADS;
+        int queueSize = DEFAULT_LOGIN_QUEUE_SIZE;
+        m_cacheTTL = DEFAULT_CACHE_TTL*1000L;
+        m_negativeCacheTTL = DEFAULT_NEGATIVE_CACHE_TTL*1000L;
+        try {
+            Object attr = ctx.getAttributes().get("loginThreads");
+            if (attr != null) {
+                numThreads = Integer.parseInt(attr.toString());
+            }
+            attr = ctx.getAttributes().get("loginQueueSize");
+            if (attr != null) {
+                queueSize = Integer.parseInt(attr.toString());
+            }
+            attr = ctx.getAttributes().get("loginCacheTTL");
+            if (attr != null) {
+                m_cacheTTL = Long.parseLong(attr.toString())*1000L;
+            }
+            attr = ctx.getAttributes().get("loginNegativeCacheTTL");
+            if (attr != null) {
+                m_negativeCacheTTL = Long.parseLong(attr.toString())*1000L;
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Object attr = ctx.getAttributes().get("serviceURL");
+        m_serviceURL = attr == null ? null : attr.toString();
+        attr = ctx.getAttributes().get("packProfile");
+        m_isProfilePacked = attr != null && Boolean.parseBoolean(attr.toString());
+
+        // --- a full queue rejects the login rather than blocking the caller
+        m_executor = new ThreadPoolExecutor(numThreads, numThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), createThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        m_executor.allowCoreThreadTimeOut(true);
         return true;
     }
 
-    public void LOGIN_OUTSIDE_SERVICE(Message message, Client client) {
+    /**
+     * Create virtual login threads if the runtime has them (Java 21 and later),
+     * otherwise daemon platform threads. Virtual threads are looked up by
+     * reflection so the module still runs on older runtimes.
+     */
+    static ThreadFactory createThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder,
+                    "OutsideServiceIntegration");
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // --- no virtual threads
+        }
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OutsideServiceIntegration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public void LOGIN_OUTSIDE_SERVICE(Message message, final Client client) {
         // --- get the token from the message
-        String token = message.getArg("token");
-        
+        final String token = message.getArg("token");
+
+        // --- a cached result is answered right away
+        LoginResult result = getCachedResult(token);
+        if (result != null) {
+            completeLogin(client, token, result);
+            return;
+        }
+
+        // --- otherwise ask the outside service on a login thread
+        try {
+            m_executor.execute(new Runnable() {
+                public void run() {
+                    LoginResult result;
+                    try {
+                        result = login(token);
+                    } catch (IOException e) {
+                        // --- the service could not be reached, don't cache that
+                        e.printStackTrace();
+                        client.sendMessage("INVALID_LOGIN", token);
+                        return;
+                    }
+                    cacheResult(token, result);
+                    completeLogin(client, token, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // --- too many logins waiting
+            client.sendMessage("INVALID_LOGIN", token);
+        }
+    }
+
+    /**
+     * Ask the outside service about a token.
+     */
+    private LoginResult login(String token)
+    throws IOException {
         // --- determine if the token is valid
-        boolean authenticated = authenticateWithServer(token);       
-        if (authenticated) {
-            // --- get any custom fields for this token
-            Map<String, String> customFields = loadCustomFields(token);
-            
-            // --- load them as attributes so they can be used in the Union app
-            for (String key : customFields.keySet()) {
-                String value = customFields.get(key);
-                try {
-                    client.setAttribute(key, value, Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE);
-                } catch (AttributeException e) {
-                    e.printStackTrace();
+        if (!authenticateWithServer(token)) {
+            return new LoginResult(false, null,
+                    System.currentTimeMillis() + m_negativeCacheTTL);
+        }
+
+        // --- get any custom fields for this token
+        return new LoginResult(true, loadCustomFields(token),
+                System.currentTimeMillis() + m_cacheTTL);
+    }
+
+    private void completeLogin(Client client, String token, LoginResult result) {
+        if (result.m_isAuthenticated) {
+            // --- load the custom fields as attributes so they can be used in the
+            // --- Union app
+            try {
+                if (m_isProfilePacked) {
+                    AttributeBatch.setPacked(client, ATTR_PROFILE, result.m_customFields,
+                            Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE);
+                } else {
+                    AttributeBatch.setAttributes(client, result.m_customFields,
+                            Attribute.SCOPE_GLOBAL, Attribute.FLAG_NONE);
                 }
+            } catch (AttributeException e) {
+                e.printStackTrace();
             }
-            
+
             // --- tell the client they have completed login
             client.sendMessage("LOGGED_IN", token);
         } else {
@@ -44,24 +214,109 @@ public class OutsideServiceIntegration implements Module {
             client.sendMessage("INVALID_LOGIN", token);
         }
     }
-    
-    private boolean authenticateWithServer(String token) {
+
+    private synchronized LoginResult getCachedResult(String token) {
+        LoginResult result = m_cache.get(token);
+        if (result != null && result.m_expires < System.currentTimeMillis()) {
+            m_cache.remove(token);
+            return null;
+        }
+        return result;
+    }
+
+    private synchronized void cacheResult(String token, LoginResult result) {
+        m_cache.put(token, result);
+    }
+
+    private boolean authenticateWithServer(String token)
+    throws IOException {
         // Code here would contact the outside service using the token
         // and determine if the client is legitimate. If the outside service
         // takes a userID and password then the client would instead
         // have passed these arguments to this method.
-        
-        return true;
+        //
+        // With a serviceURL this asks [serviceURL]/authenticate?token=...
+        // and takes a 200 response to mean the token is valid.
+        if (m_serviceURL == null) {
+            return true;
+        }
+
+        HttpURLConnection con = openConnection("authenticate", token);
+        try {
+            return con.getResponseCode() == HttpURLConnection.HTTP_OK;
+        } finally {
+            con.disconnect();
+        }
     }
-    
-    private Map<String, String> loadCustomFields(String token) {
+
+    private Map<String, String> loadCustomFields(String token)
+    throws IOException {
         // Code here would contact the outside service and load any custom
-        // fields for the given token. For example, it might return the 
+        // fields for the given token. For example, it might return the
         // favorite color of a Facebook user.
-        
-        return new HashMap<String, String>();
+        //
+        // With a serviceURL this reads name=value lines from
+        // [serviceURL]/fields?token=...
+        Map<String, String> fields = new HashMap<String, String>();
+        if (m_serviceURL == null) {
+            return fields;
+        }
+
+        HttpURLConnection con = openConnection("fields", token);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    con.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int i = line.indexOf('=');
+                    if (i > 0) {
+                        fields.put(line.substring(0, i), line.substring(i + 1));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            con.disconnect();
+        }
+        return fields;
+    }
+
+    private HttpURLConnection openConnection(String path, String token)
+    throws IOException {
+        String url;
+        try {
+            url = m_serviceURL + "/" + path + "?token=" + URLEncoder.encode(
+                    token == null ? "" : token, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        }
+        HttpURLConnection con = (HttpURLConnection)new URL(url).openConnection();
+        con.setConnectTimeout(SERVICE_TIMEOUT);
+        con.setReadTimeout(SERVICE_TIMEOUT);
+        return con;
     }
-    
+
     public void shutdown() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * What the outside service said about a token.
+     */
+    private static class LoginResult {
+        private boolean m_isAuthenticated;
+        private Map<String, String> m_customFields;
+        private long m_expires;
+
+        public LoginResult(boolean isAuthenticated, Map<String, String> customFields,
+                long expires) {
+            m_isAuthenticated = isAuthenticated;
+            m_customFields = customFields;
+            m_expires = expires;
+        }
     }
 }
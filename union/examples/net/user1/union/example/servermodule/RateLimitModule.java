@@ -0,0 +1,214 @@
+package net.user1.union.example.servermodule;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.user1.union.api.Client;
+import net.user1.union.api.Module;
+import net.user1.union.api.UPCProcessingRecord;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.context.ModuleContext;
+import net.user1.union.core.event.ServerEvent;
+import net.user1.union.core.event.UPCEvent;
+import net.user1.union.core.exception.AttributeException;
+import net.user1.union.core.upc.UPCMethod;
+import net.user1.union.example.util.AttributeBatch;
+import net.user1.union.example.util.RoomModuleScheduler;
+import net.user1.union.example.util.StripedCounter;
+import net.user1.union.example.util.TokenBuckets;
+
+/**
+ * Limits how fast clients can send the UPCs that cost the server the most. A UPC over its
+ * limit is dropped before it is queued, so it never reaches a room or causes a broadcast.
+ *
+ * Each limited UPC has a token bucket per client and one per address, the address bucket
+ * allowing ipFactor (default 4) times the client's rate for clients sharing an address. A
+ * limit is set with a module attribute named after the UPC, as rate per second and burst
+ * separated by '/', or "0" to turn a default limit off:
+ *
+ * <pre>
+ *     <module>
+ *         <id>RateLimit</id>
+ *         <source type="class">net.user1.union.example.servermodule.RateLimitModule</source>
+ *         <attributes>
+ *             <attribute name="SEND_ROOMMODULE_MESSAGE">10/20</attribute>
+ *             <attribute name="CREATE_ROOM">0</attribute>
+ *         </attributes>
+ *     </module>
+ * </pre>
+ *
+ * The UPCs dropped so far are counted by type in the server only server attribute
+ * "rateLimitRejected", packed by AttributeBatch and updated every minute.
+ */
+public class RateLimitModule implements Module {
+    // --- limits when not set by attributes, as UPC name, rate per second and burst;
+    // --- UnionDraw sends a PATH every 500 ms
+    private static final String[][] DEFAULT_LIMITS = {
+            {"SEND_MESSAGE_TO_ROOMS", "10/20"},
+            {"SEND_ROOMMODULE_MESSAGE", "10/20"},
+            {"SET_CLIENT_ATTR", "5/20"},
+            {"CREATE_ROOM", "1/5"}
+    };
+    private static final double DEFAULT_IP_FACTOR = 4;
+    // --- how often idle buckets are dropped and the counts published
+    private static final long SWEEP_INTERVAL = 60000L;
+    // --- server attribute with the counts of dropped UPCs
+    private static final String ATTR_REJECTED = "rateLimitRejected";
+
+    private ModuleContext m_ctx;
+    // --- limits by UPC method ID
+    private Map<String,Limit> m_limits = new HashMap<String,Limit>();
+    private ScheduledFuture<?> m_sweepTask;
+
+    public boolean init(ModuleContext ctx) {
+        m_ctx = ctx;
+
+        // --- read the limits
+        Map<String,String> limits = new LinkedHashMap<String,String>();
+        for (String[] limit : DEFAULT_LIMITS) {
+            limits.put(limit[0], limit[1]);
+        }
+        double ipFactor = DEFAULT_IP_FACTOR;
+        try {
+            for (Object entry : m_ctx.getAttributes().entrySet()) {
+                String name = ((Map.Entry<?,?>)entry).getKey().toString();
+                String value = String.valueOf(((Map.Entry<?,?>)entry).getValue()).trim();
+                if ("ipFactor".equals(name)) {
+                    ipFactor = Double.parseDouble(value);
+                } else {
+                    limits.put(name, value);
+                }
+            }
+            for (Map.Entry<String,String> limit : limits.entrySet()) {
+                UPCMethod method;
+                try {
+                    method = UPCMethod.valueOf("C2S_" + limit.getKey());
+                } catch (IllegalArgumentException e) {
+                    // --- not the name of a UPC
+                    e.printStackTrace();
+                    return false;
+                }
+                if ("0".equals(limit.getValue())) {
+                    continue;
+                }
+                String[] rate = limit.getValue().split("/");
+                double perSecond = Double.parseDouble(rate[0]);
+                double burst = rate.length > 1 ? Double.parseDouble(rate[1]) : perSecond;
+                m_limits.put(method.id, new Limit(limit.getKey(), perSecond, burst, ipFactor));
+            }
+        } catch (IllegalArgumentException e) {
+            // --- a number could not be parsed, or a rate was not positive
+            e.printStackTrace();
+            return false;
+        }
+
+        // --- check UPCs before they are queued, and forget clients that leave
+        m_ctx.getServer().getUPCMessageProcessor().addEventListener(
+                UPCEvent.UPC_QUEUE_REQUESTED, this, "onUPCQueueRequested");
+        m_ctx.getServer().addEventListener(ServerEvent.CLIENT_REMOVED, this,
+                "onClientRemoved");
+
+        m_sweepTask = RoomModuleScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Invoked before a UPC from a client is queued. Dropping it here costs the server
+     * nothing more.
+     */
+    public void onUPCQueueRequested(UPCEvent evt) {
+        UPCProcessingRecord record = evt.getUPCProcessingRecord();
+        Limit limit = m_limits.get(record.getUPC().getMethod());
+        if (limit == null) {
+            return;
+        }
+
+        Client client = record.getClient();
+        long now = System.currentTimeMillis();
+        String address = client.getAddress();
+        if (!limit.m_clients.tryAcquire(client.getClientID(), now)) {
+            reject(evt, limit);
+        } else if (address != null && !limit.m_addresses.tryAcquire(address, now)) {
+            // --- a UPC dropped for its address doesn't cost the client a token
+            limit.m_clients.giveBack(client.getClientID());
+            reject(evt, limit);
+        }
+    }
+
+    private void reject(UPCEvent evt, Limit limit) {
+        evt.preventDefault();
+        limit.m_rejected.increment();
+    }
+
+    public void onClientRemoved(ServerEvent evt) {
+        for (Limit limit : m_limits.values()) {
+            limit.m_clients.remove(evt.getClient().getClientID());
+        }
+    }
+
+    /**
+     * Drop the buckets that have refilled and publish the counts of dropped UPCs.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Map<String,String> rejected = new LinkedHashMap<String,String>();
+        for (Limit limit : m_limits.values()) {
+            limit.m_clients.removeIdle(now);
+            limit.m_addresses.removeIdle(now);
+            rejected.put(limit.m_name, String.valueOf(limit.m_rejected.sum()));
+        }
+        try {
+            AttributeBatch.setPacked(m_ctx.getServer(), ATTR_REJECTED, rejected,
+                    Attribute.SCOPE_GLOBAL, Attribute.FLAG_SERVER_ONLY);
+        } catch (AttributeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the number of UPCs of a type dropped so far.
+     *
+     * @param upc the UPC name, such as SEND_MESSAGE_TO_ROOMS
+     */
+    public long getRejected(String upc) {
+        for (Limit limit : m_limits.values()) {
+            if (limit.m_name.equals(upc)) {
+                return limit.m_rejected.sum();
+            }
+        }
+        return 0;
+    }
+
+    public void shutdown() {
+        m_ctx.getServer().getUPCMessageProcessor().removeEventListener(
+                UPCEvent.UPC_QUEUE_REQUESTED, this, "onUPCQueueRequested");
+        m_ctx.getServer().removeEventListener(ServerEvent.CLIENT_REMOVED, this,
+                "onClientRemoved");
+        if (m_sweepTask != null) {
+            m_sweepTask.cancel(false);
+        }
+    }
+
+    /**
+     * The buckets and count of dropped UPCs for one type of UPC.
+     */
+    private static class Limit {
+        private String m_name;
+        private TokenBuckets m_clients;
+        private TokenBuckets m_addresses;
+        private StripedCounter m_rejected = new StripedCounter();
+
+        public Limit(String name, double perSecond, double burst, double ipFactor) {
+            m_name = name;
+            m_clients = new TokenBuckets(perSecond, burst);
+            m_addresses = new TokenBuckets(perSecond*ipFactor, burst*ipFactor);
+        }
+    }
+}
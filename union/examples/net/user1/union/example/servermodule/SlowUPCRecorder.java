@@ -0,0 +1,323 @@
+package net.user1.union.example.servermodule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.user1.union.api.Client;
+import net.user1.union.api.Message;
+import net.user1.union.api.Module;
+import net.user1.union.api.UPCProcessingRecord;
+import net.user1.union.core.context.ModuleContext;
+import net.user1.union.core.event.UPCEvent;
+import net.user1.union.core.upc.UPCMessage;
+import net.user1.union.core.upc.UPCMethod;
+import net.user1.union.diagnostic.DiagnosticWriter;
+import net.user1.union.diagnostic.FileDiagnosticWriter;
+import net.user1.union.diagnostic.StringDiagnosticWriter;
+import net.user1.union.example.util.DirectRingBuffer;
+
+/**
+ * Records the UPCs that took longer than threshold milliseconds (default 100) to process,
+ * with the client that sent them, the room they were for and what the processing thread
+ * was doing, so a stall can be traced to the module handler that caused it.
+ *
+ * A sampler thread looks at each thread that processes UPCs every sampleInterval
+ * milliseconds (default 10, 0 for none). Taking a stack stops the thread at a safepoint,
+ * so a stack is only taken of a thread that has been busy for half the threshold since it
+ * last finished a UPC; a thread waiting for work, or getting through UPCs quickly, is
+ * never stopped. When a UPC turns out to be slow, the stack sampled most often while it
+ * was processed is recorded with it. Records are kept in a DirectRingBuffer of ringSlots
+ * slots (default 256) of slotSize bytes (default 4096).
+ *
+ * The records are written to dumpFile (default logs/slowupcs.txt) when the module shuts
+ * down with the server, and when an admin client, such as one connected to the admin port,
+ * sends the server module message DUMP_SLOW_UPCS, which also sends them back to it in a
+ * SLOW_UPCS message.
+ */
+public class SlowUPCRecorder implements Module {
+    // --- module attribute defaults
+    private static final long DEFAULT_THRESHOLD = 100L;
+    private static final long DEFAULT_SAMPLE_INTERVAL = 10L;
+    private static final int DEFAULT_RING_SLOTS = 256;
+    private static final int DEFAULT_SLOT_SIZE = 4096;
+    private static final String DEFAULT_DUMP_FILE = "logs/slowupcs.txt";
+    // --- stacks kept for each thread, enough to cover a second at the default interval
+    private static final int SAMPLES_PER_THREAD = 128;
+    // --- the argument holding the room ID of UPCs sent to a room, by UPC method ID
+    private static final Map<String,Integer> ROOM_ARGS = new HashMap<String,Integer>();
+    static {
+        ROOM_ARGS.put(UPCMethod.C2S_SEND_MESSAGE_TO_ROOMS.id, 1);
+        ROOM_ARGS.put(UPCMethod.C2S_JOIN_ROOM.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_LEAVE_ROOM.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_SET_ROOM_ATTR.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_REMOVE_ROOM_ATTR.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_CREATE_ROOM.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_REMOVE_ROOM.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_OBSERVE_ROOM.id, 0);
+        ROOM_ARGS.put(UPCMethod.C2S_SEND_ROOMMODULE_MESSAGE.id, 0);
+    }
+
+    private ModuleContext m_ctx;
+    private long m_threshold;
+    private long m_sampleInterval;
+    private String m_dumpFile;
+    private DirectRingBuffer m_records;
+    // --- recent stacks of the threads that have processed UPCs
+    private ConcurrentMap<Thread,Samples> m_samples = new ConcurrentHashMap<Thread,Samples>();
+    private volatile Thread m_samplerThread;
+
+    public boolean init(ModuleContext ctx) {
+        m_ctx = ctx;
+
+        // --- read the settings
+        m_threshold = DEFAULT_THRESHOLD;
+        m_sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+        int ringSlots = DEFAULT_RING_SLOTS;
+        int slotSize = DEFAULT_SLOT_SIZE;
+        try {
+            Object attr = m_ctx.getAttributes().get("threshold");
+            if (attr != null) {
+                m_threshold = Long.parseLong(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("sampleInterval");
+            if (attr != null) {
+                m_sampleInterval = Long.parseLong(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("ringSlots");
+            if (attr != null) {
+                ringSlots = Integer.parseInt(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("slotSize");
+            if (attr != null) {
+                slotSize = Integer.parseInt(attr.toString());
+            }
+            m_records = new DirectRingBuffer(ringSlots, slotSize);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Object attr = m_ctx.getAttributes().get("dumpFile");
+        m_dumpFile = attr == null ? DEFAULT_DUMP_FILE : attr.toString();
+
+        m_ctx.getServer().getUPCMessageProcessor().addEventListener(UPCEvent.UPC_PROCESSED,
+                this, "onUPCProcessed");
+
+        if (m_sampleInterval > 0) {
+            m_samplerThread = new Thread(new Runnable() {
+                public void run() {
+                    sample();
+                }
+            }, "SlowUPCRecorder");
+            m_samplerThread.setDaemon(true);
+            m_samplerThread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Invoked by the thread that processed a UPC, once it is done.
+     */
+    public void onUPCProcessed(UPCEvent evt) {
+        // --- sample this thread from now on
+        Thread thread = Thread.currentThread();
+        Samples samples = m_samples.get(thread);
+        if (samples == null && m_sampleInterval > 0) {
+            samples = new Samples();
+            Samples existing = m_samples.putIfAbsent(thread, samples);
+            if (existing != null) {
+                samples = existing;
+            }
+        }
+
+        if (samples != null) {
+            samples.finished(System.currentTimeMillis());
+        }
+
+        UPCProcessingRecord record = evt.getUPCProcessingRecord();
+        if (record.getProcessDuration() < m_threshold) {
+            return;
+        }
+
+        UPCMessage upc = record.getUPC();
+        UPCMethod method = UPCMethod.getMethod(upc.getMethod());
+        Integer roomArg = ROOM_ARGS.get(upc.getMethod());
+        Client client = record.getClient();
+
+        StringDiagnosticWriter writer = new StringDiagnosticWriter();
+        writer.writeObjectStart("Slow UPC");
+        writer.write("processed at", record.getProcessStartedAt());
+        writer.write("upc", method == null ? upc.getMethod() :
+                method.name().replaceFirst("^C2S_", ""));
+        writer.write("client", client == null ? "" : client.getClientID());
+        writer.write("room", roomArg != null && roomArg < upc.argSize() ?
+                upc.getArgText(roomArg) : "");
+        writer.write("queued ms", record.getQueuedDuration());
+        writer.write("process ms", record.getProcessDuration());
+        writer.write("thread", thread.getName());
+        if (samples != null) {
+            samples.write(writer, record.getProcessStartedAt(), record.getProcessFinishedAt());
+        }
+        writer.writeObjectEnd("Slow UPC");
+
+        m_records.add(writer.toString());
+    }
+
+    /**
+     * Invoked when a client sends the server module message DUMP_SLOW_UPCS.
+     */
+    public void DUMP_SLOW_UPCS(Message message, Client client) {
+        if (!client.isAdmin()) {
+            return;
+        }
+        dump();
+        StringDiagnosticWriter writer = new StringDiagnosticWriter();
+        writeRecords(writer);
+        client.sendMessage("SLOW_UPCS", writer.toString());
+    }
+
+    /**
+     * Write the records to the dump file.
+     */
+    public void dump() {
+        FileDiagnosticWriter writer;
+        try {
+            writer = new FileDiagnosticWriter(m_dumpFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            writeRecords(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeRecords(DiagnosticWriter writer) {
+        writer.writeObjectStart("Slow UPCs");
+        writer.write("recorded", m_records.getNumAdded());
+        for (String record : m_records.getRecords()) {
+            writer.write(record);
+        }
+        writer.writeObjectEnd("Slow UPCs");
+    }
+
+    /**
+     * Run by the sampler thread until the module shuts down.
+     */
+    private void sample() {
+        while (m_samplerThread == Thread.currentThread()) {
+            for (Map.Entry<Thread,Samples> entry : m_samples.entrySet()) {
+                Thread thread = entry.getKey();
+                if (!thread.isAlive()) {
+                    m_samples.remove(thread);
+                    continue;
+                }
+                long time = System.currentTimeMillis();
+                Samples samples = entry.getValue();
+                if (samples.isBusy(thread.getState(), time, m_threshold/2)) {
+                    samples.add(time, thread.getStackTrace());
+                }
+            }
+            try {
+                Thread.sleep(m_sampleInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public void shutdown() {
+        m_ctx.getServer().getUPCMessageProcessor().removeEventListener(UPCEvent.UPC_PROCESSED,
+                this, "onUPCProcessed");
+        Thread sampler = m_samplerThread;
+        m_samplerThread = null;
+        if (sampler != null) {
+            sampler.interrupt();
+        }
+        dump();
+    }
+
+    /**
+     * The last stacks sampled from one thread.
+     */
+    private static class Samples {
+        private long[] m_times = new long[SAMPLES_PER_THREAD];
+        private StackTraceElement[][] m_stacks = new StackTraceElement[SAMPLES_PER_THREAD][];
+        private int m_next;
+        // --- when the thread last finished a UPC
+        private volatile long m_lastFinished;
+        // --- when the sampler first saw the thread busy since it last waited, 0 while
+        // --- it waits; only used by the sampler thread
+        private long m_busySince;
+
+        public void finished(long time) {
+            m_lastFinished = time;
+        }
+
+        /**
+         * Return whether the thread has been busy on one UPC for at least a given time.
+         * Called by the sampler thread with the thread's state, which unlike its stack can
+         * be read without stopping it.
+         */
+        public boolean isBusy(Thread.State state, long time, long after) {
+            if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                m_busySince = 0;
+                return false;
+            }
+            if (m_busySince == 0) {
+                m_busySince = time;
+            }
+            return time - Math.max(m_busySince, m_lastFinished) >= after;
+        }
+
+        public synchronized void add(long time, StackTraceElement[] stack) {
+            m_times[m_next] = time;
+            m_stacks[m_next] = stack;
+            m_next = (m_next + 1) % SAMPLES_PER_THREAD;
+        }
+
+        /**
+         * Write the stack sampled most often between two times.
+         */
+        public void write(DiagnosticWriter writer, long from, long to) {
+            List<StackTraceElement[]> stacks = new ArrayList<StackTraceElement[]>();
+            synchronized (this) {
+                for (int i = 0; i < SAMPLES_PER_THREAD; i++) {
+                    if (m_stacks[i] != null && m_times[i] >= from && m_times[i] <= to) {
+                        stacks.add(m_stacks[i]);
+                    }
+                }
+            }
+
+            // --- count each stack without holding the lock the sampler adds under
+            Map<List<StackTraceElement>,Integer> counts =
+                    new HashMap<List<StackTraceElement>,Integer>();
+            StackTraceElement[] mostSeen = null;
+            int mostSeenCount = 0;
+            for (StackTraceElement[] stack : stacks) {
+                List<StackTraceElement> key = Arrays.asList(stack);
+                Integer count = counts.get(key);
+                count = count == null ? 1 : count + 1;
+                counts.put(key, count);
+                if (count > mostSeenCount) {
+                    mostSeen = stack;
+                    mostSeenCount = count;
+                }
+            }
+
+            writer.write("samples", mostSeenCount + " of " + stacks.size());
+            if (mostSeen != null) {
+                for (StackTraceElement frame : mostSeen) {
+                    writer.write("    at " + frame);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package net.user1.union.example.servermodule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.user1.union.api.Module;
+import net.user1.union.api.UPCProcessingRecord;
+import net.user1.union.core.context.ModuleContext;
+import net.user1.union.core.event.UPCEvent;
+import net.user1.union.core.upc.UPCMethod;
+import net.user1.union.diagnostic.DiagnosticWriter;
+import net.user1.union.diagnostic.FileDiagnosticWriter;
+import net.user1.union.diagnostic.StringDiagnosticWriter;
+import net.user1.union.example.util.LatencyHistogram;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.RoomModuleScheduler;
+
+/**
+ * Records how long the server takes over each UPC, by UPC type: the time spent waiting in
+ * the queue, the time spent processing it and the total. Every processed UPC is counted in
+ * a LatencyHistogram for each, which costs three array increments.
+ *
+ * Every reportInterval seconds (default 60) the percentiles of the UPCs processed since the
+ * last report are written to reportFile (default logs/upcstats.txt) with a
+ * FileDiagnosticWriter. If scrapePort is set, the percentiles since the server started are
+ * also served as plain text at http://host:scrapePort/upcstats. When listeners are being
+ * measured by the ListenerProfiler, both also include its totals.
+ */
+public class UPCStatsModule implements Module {
+    // --- module attribute defaults
+    private static final long DEFAULT_REPORT_INTERVAL = 60L;
+    private static final String DEFAULT_REPORT_FILE = "logs/upcstats.txt";
+    // --- the path the stats are served at
+    private static final String SCRAPE_PATH = "/upcstats";
+    // --- the percentiles reported
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private ModuleContext m_ctx;
+    private String m_reportFile;
+    // --- histograms by UPC method ID
+    private ConcurrentMap<String,UPCStats> m_stats = new ConcurrentHashMap<String,UPCStats>();
+    private ScheduledFuture<?> m_reportTask;
+    private HttpServer m_scrapeServer;
+
+    public boolean init(ModuleContext ctx) {
+        m_ctx = ctx;
+
+        // --- read the settings
+        long reportInterval = DEFAULT_REPORT_INTERVAL;
+        int scrapePort = 0;
+        try {
+            Object attr = m_ctx.getAttributes().get("reportInterval");
+            if (attr != null) {
+                reportInterval = Long.parseLong(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("scrapePort");
+            if (attr != null) {
+                scrapePort = Integer.parseInt(attr.toString());
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Object attr = m_ctx.getAttributes().get("reportFile");
+        m_reportFile = attr == null ? DEFAULT_REPORT_FILE : attr.toString();
+
+        if (scrapePort > 0) {
+            try {
+                m_scrapeServer = HttpServer.create(new InetSocketAddress(scrapePort), 0);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            m_scrapeServer.createContext(SCRAPE_PATH, new HttpHandler() {
+                public void handle(HttpExchange exchange)
+                throws IOException {
+                    StringDiagnosticWriter writer = new StringDiagnosticWriter();
+                    writeStats(writer, false);
+                    if (ListenerProfiler.isEnabled()) {
+                        ListenerProfiler.writeReport(writer);
+                    }
+                    byte[] body = writer.toString().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            m_scrapeServer.start();
+        }
+
+        m_ctx.getServer().getUPCMessageProcessor().addEventListener(UPCEvent.UPC_PROCESSED,
+                this, "onUPCProcessed");
+
+        if (reportInterval > 0) {
+            m_reportTask = RoomModuleScheduler.getInstance().scheduleAtFixedRate(
+                    new Runnable() {
+                        public void run() {
+                            writeReport();
+                        }
+                    }, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Invoked after the server has processed a UPC.
+     */
+    public void onUPCProcessed(UPCEvent evt) {
+        UPCProcessingRecord record = evt.getUPCProcessingRecord();
+        String method = record.getUPC().getMethod();
+        UPCStats stats = m_stats.get(method);
+        if (stats == null) {
+            UPCMethod upc = UPCMethod.getMethod(method);
+            stats = new UPCStats(upc == null ? method : upc.name().replaceFirst("^C2S_", ""));
+            UPCStats existing = m_stats.putIfAbsent(method, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.m_queued.record(record.getQueuedDuration());
+        stats.m_process.record(record.getProcessDuration());
+        stats.m_total.record(record.getTotalDuration());
+    }
+
+    /**
+     * Write the stats since the last report to the report file.
+     */
+    private void writeReport() {
+        FileDiagnosticWriter writer;
+        try {
+            writer = new FileDiagnosticWriter(m_reportFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            writeStats(writer, true);
+            if (ListenerProfiler.isEnabled()) {
+                ListenerProfiler.writeReport(writer);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the count and percentiles of each UPC type, sorted by name.
+     *
+     * @param sinceReport true for the UPCs processed since the last report, which starts a
+     *          new report period, false for all of them
+     */
+    private synchronized void writeStats(DiagnosticWriter writer, boolean sinceReport) {
+        Map<String,UPCStats> byName = new TreeMap<String,UPCStats>();
+        for (UPCStats stats : m_stats.values()) {
+            byName.put(stats.m_name, stats);
+        }
+
+        writer.writeObjectStart("UPC Latency");
+        writer.write("period", sinceReport ? "since last report" : "since start");
+        for (UPCStats stats : byName.values()) {
+            LatencyHistogram.Snapshot queued = stats.m_queued.snapshot();
+            LatencyHistogram.Snapshot process = stats.m_process.snapshot();
+            LatencyHistogram.Snapshot total = stats.m_total.snapshot();
+            if (sinceReport) {
+                LatencyHistogram.Snapshot[] last = stats.m_lastReport;
+                stats.m_lastReport = new LatencyHistogram.Snapshot[] {queued, process, total};
+                if (last != null) {
+                    queued = queued.minus(last[0]);
+                    process = process.minus(last[1]);
+                    total = total.minus(last[2]);
+                }
+            }
+            if (total.getCount() == 0) {
+                continue;
+            }
+            writer.writeObjectStart(stats.m_name);
+            writer.write("count", total.getCount());
+            writeTimes(writer, "queue", queued);
+            writeTimes(writer, "process", process);
+            writeTimes(writer, "total", total);
+            writer.writeObjectEnd(stats.m_name);
+        }
+        writer.writeObjectEnd("UPC Latency");
+    }
+
+    private void writeTimes(DiagnosticWriter writer, String name, LatencyHistogram.Snapshot times) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            writer.write(name + " " + PERCENTILE_NAMES[i] + " ms",
+                    times.getValueAtPercentile(PERCENTILES[i]));
+        }
+        writer.write(name + " max ms", times.getMax());
+        writer.write(name + " mean ms", Math.round(times.getMean()*100)/100.0);
+    }
+
+    public void shutdown() {
+        m_ctx.getServer().getUPCMessageProcessor().removeEventListener(UPCEvent.UPC_PROCESSED,
+                this, "onUPCProcessed");
+        if (m_reportTask != null) {
+            m_reportTask.cancel(false);
+        }
+        if (m_scrapeServer != null) {
+            m_scrapeServer.stop(0);
+        }
+    }
+
+    /**
+     * The histograms of one UPC type.
+     */
+    private static class UPCStats {
+        private String m_name;
+        private LatencyHistogram m_queued = new LatencyHistogram();
+        private LatencyHistogram m_process = new LatencyHistogram();
+        private LatencyHistogram m_total = new LatencyHistogram();
+        // --- the snapshots taken by the last report
+        private LatencyHistogram.Snapshot[] m_lastReport;
+
+        public UPCStats(String name) {
+            m_name = name;
+        }
+    }
+}
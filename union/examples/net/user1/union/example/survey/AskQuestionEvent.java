@@ -9,26 +9,49 @@ import net.user1.union.core.event.BaseEvent;
 import net.user1.union.core.event.RemoteEvent;
 
 /**
- * The AskQuestionEvent is dispatched by the master when a new survey question is asked.
+ * The AskQuestionEvent is dispatched by the master when a new survey question is asked. When
+ * it is addressed to a single node it carries that node's ID, and the slave room there
+ * answers with SLAVE_ROOM so the master knows to expect its results.
  */
 public class AskQuestionEvent extends BaseEvent implements RemoteEvent, Externalizable {
     private String m_question;
+    private String m_nodeID;
     
+    public AskQuestionEvent() {
+    }
+
     public AskQuestionEvent(String question) {
         m_question = question;
     }
 
+    public AskQuestionEvent(String question, String nodeID) {
+        m_question = question;
+        m_nodeID = nodeID;
+    }
+
     public String getQuestion() {
         return m_question;
     }
 
+    /**
+     * The node the question was addressed to, or null if it was sent to every node.
+     */
+    public String getNodeID() {
+        return m_nodeID;
+    }
+
     public void readExternal(ObjectInput in)
     throws IOException, ClassNotFoundException {
         m_question = in.readUTF();
+        m_nodeID = in.readBoolean() ? in.readUTF() : null;
     }
 
     public void writeExternal(ObjectOutput out)
     throws IOException {
         out.writeUTF(m_question);
+        out.writeBoolean(m_nodeID != null);
+        if (m_nodeID != null) {
+            out.writeUTF(m_nodeID);
+        }
     }
 }
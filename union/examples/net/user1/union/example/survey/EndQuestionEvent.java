@@ -9,17 +9,80 @@ import net.user1.union.core.event.BaseEvent;
 import net.user1.union.core.event.RemoteEvent;
 
 /**
- * The EndQuestionEvent is dispatched by the master at the end of a survey question.
+ * The EndQuestionEvent is dispatched by the master at the end of a survey question. It is
+ * sent to each slave node separately and tells the node where it sits in the aggregation
+ * tree: which nodes send their results to it and where it sends the combined results.
  */
 public class EndQuestionEvent extends BaseEvent implements RemoteEvent, Externalizable {    
+    private int m_round;
+    private String m_nodeID;
+    private String m_parentNodeID;
+    private String[] m_childNodeIDs;
+    private long m_timeout;
+
     public EndQuestionEvent() {
     }
+
+    /**
+     * @param round the number of the question
+     * @param nodeID the node the event is sent to
+     * @param parentNodeID the node to send results to, or null for the master
+     * @param childNodeIDs the nodes that send their results to this node
+     * @param timeout how long to wait for the child nodes (in milliseconds)
+     */
+    public EndQuestionEvent(int round, String nodeID, String parentNodeID,
+            String[] childNodeIDs, long timeout) {
+        m_round = round;
+        m_nodeID = nodeID;
+        m_parentNodeID = parentNodeID;
+        m_childNodeIDs = childNodeIDs;
+        m_timeout = timeout;
+    }
+
+    public int getRound() {
+        return m_round;
+    }
+
+    public String getNodeID() {
+        return m_nodeID;
+    }
+
+    public String getParentNodeID() {
+        return m_parentNodeID;
+    }
+
+    public String[] getChildNodeIDs() {
+        return m_childNodeIDs;
+    }
+
+    public long getTimeout() {
+        return m_timeout;
+    }
     
     public void readExternal(ObjectInput in)
     throws IOException, ClassNotFoundException {
+        m_round = in.readInt();
+        m_nodeID = in.readUTF();
+        m_parentNodeID = in.readBoolean() ? in.readUTF() : null;
+        m_childNodeIDs = new String[in.readInt()];
+        for (int i = 0; i < m_childNodeIDs.length; i++) {
+            m_childNodeIDs[i] = in.readUTF();
+        }
+        m_timeout = in.readLong();
     }
 
     public void writeExternal(ObjectOutput out)
     throws IOException {
+        out.writeInt(m_round);
+        out.writeUTF(m_nodeID);
+        out.writeBoolean(m_parentNodeID != null);
+        if (m_parentNodeID != null) {
+            out.writeUTF(m_parentNodeID);
+        }
+        out.writeInt(m_childNodeIDs.length);
+        for (String nodeID : m_childNodeIDs) {
+            out.writeUTF(nodeID);
+        }
+        out.writeLong(m_timeout);
     }
 }
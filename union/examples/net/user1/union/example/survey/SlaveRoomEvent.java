@@ -0,0 +1,38 @@
+package net.user1.union.example.survey;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import net.user1.union.core.event.BaseEvent;
+import net.user1.union.core.event.RemoteEvent;
+
+/**
+ * The SlaveRoomEvent is dispatched by a slave in answer to an ASK_QUESTION addressed to its
+ * node, telling the master there is a slave room on that node to expect results from.
+ */
+public class SlaveRoomEvent extends BaseEvent implements RemoteEvent, Externalizable {
+    private String m_nodeID;
+
+    public SlaveRoomEvent() {
+    }
+
+    public SlaveRoomEvent(String nodeID) {
+        m_nodeID = nodeID;
+    }
+
+    public String getNodeID() {
+        return m_nodeID;
+    }
+
+    public void readExternal(ObjectInput in)
+    throws IOException, ClassNotFoundException {
+        m_nodeID = in.readUTF();
+    }
+
+    public void writeExternal(ObjectOutput out)
+    throws IOException {
+        out.writeUTF(m_nodeID);
+    }
+}
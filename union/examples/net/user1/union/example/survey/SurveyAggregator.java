@@ -0,0 +1,120 @@
+package net.user1.union.example.survey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the results of one survey question from a known set of nodes. The round is
+ * complete as soon as every expected node is covered by a result, and is closed either then
+ * or when its owner gives up waiting. Results for another round, or that arrive after the
+ * round was closed, are not added.
+ *
+ * Used by the master for the whole cluster and by slaves that pre-aggregate the results of
+ * their child nodes.
+ */
+class SurveyAggregator {
+    private int m_round = -1;
+    // --- expected nodes that haven't been covered yet
+    private Set<String> m_pending = new HashSet<String>();
+    private List<String> m_covered = new ArrayList<String>();
+    private int m_yes;
+    private int m_no;
+    private boolean m_isClosed = true;
+
+    /**
+     * Start collecting a round, dropping whatever was collected before.
+     */
+    public synchronized void start(int round, Collection<String> nodeIDs) {
+        m_round = round;
+        m_pending = new HashSet<String>(nodeIDs);
+        m_covered = new ArrayList<String>();
+        m_yes = 0;
+        m_no = 0;
+        m_isClosed = false;
+        notifyAll();
+    }
+
+    /**
+     * Add the results of some nodes.
+     *
+     * @return false if the results are not for the open round
+     */
+    public synchronized boolean add(int round, String[] nodeIDs, int yes, int no) {
+        if (round != m_round || m_isClosed) {
+            return false;
+        }
+        for (String nodeID : nodeIDs) {
+            m_pending.remove(nodeID);
+            m_covered.add(nodeID);
+        }
+        m_yes += yes;
+        m_no += no;
+        if (m_pending.isEmpty()) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every expected node is covered or the timeout passes.
+     *
+     * @param timeout how long to wait at most (in milliseconds)
+     * @return true if every expected node is covered
+     */
+    public synchronized boolean awaitCompletion(long timeout)
+    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!m_pending.isEmpty() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return m_pending.isEmpty();
+    }
+
+    /**
+     * Close the round so no more results are added.
+     *
+     * @return false if it was closed already
+     */
+    public synchronized boolean close() {
+        if (m_isClosed) {
+            return false;
+        }
+        m_isClosed = true;
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        return m_pending.isEmpty();
+    }
+
+    public synchronized int getRound() {
+        return m_round;
+    }
+
+    public synchronized int getYes() {
+        return m_yes;
+    }
+
+    public synchronized int getNo() {
+        return m_no;
+    }
+
+    /**
+     * Return the nodes whose results were added.
+     */
+    public synchronized String[] getCoveredNodeIDs() {
+        return m_covered.toArray(new String[m_covered.size()]);
+    }
+
+    /**
+     * Return the expected nodes whose results were not added.
+     */
+    public synchronized Set<String> getMissingNodeIDs() {
+        return new HashSet<String>(m_pending);
+    }
+}
@@ -0,0 +1,37 @@
+package net.user1.union.example.survey;
+
+import net.user1.union.api.Room;
+import net.user1.union.example.util.ExternalizableCodec;
+import net.user1.union.example.util.RemoteEventChannel;
+
+/**
+ * The remote events of the survey application. They are sent through a RemoteEventChannel
+ * so that each event costs a few bytes on the cluster instead of a serialized object.
+ */
+class SurveyEvents {
+    /**
+     * Create the channel the master or a slave room sends and receives survey events with.
+     * The master and slaves must register the same events with the same IDs.
+     */
+    public static RemoteEventChannel createChannel(Room room) {
+        return createChannel(room, 0);
+    }
+
+    /**
+     * Create the channel with a flush delay, see RemoteEventChannel.
+     */
+    static RemoteEventChannel createChannel(Room room, long flushDelay) {
+        RemoteEventChannel channel = new RemoteEventChannel(room, flushDelay);
+        channel.register("ASK_QUESTION", 1,
+                new ExternalizableCodec<AskQuestionEvent>(AskQuestionEvent.class));
+        channel.register("END_QUESTION", 2,
+                new ExternalizableCodec<EndQuestionEvent>(EndQuestionEvent.class));
+        channel.register("SURVEY_RESULTS", 3,
+                new ExternalizableCodec<SurveyResultsEvent>(SurveyResultsEvent.class));
+        channel.register("SURVEY_PARTIAL", 4,
+                new ExternalizableCodec<SurveyResultsEvent>(SurveyResultsEvent.class));
+        channel.register("SLAVE_ROOM", 5,
+                new ExternalizableCodec<SlaveRoomEvent>(SlaveRoomEvent.class));
+        return channel;
+    }
+}
@@ -1,16 +1,37 @@
 package net.user1.union.example.survey;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.user1.union.api.Cluster;
 import net.user1.union.api.Module;
 import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.event.RemoteEvent;
 import net.user1.union.core.event.RemoteRoomEvent;
 import net.user1.union.core.event.RoomEvent;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.RemoteEventChannel;
+import net.user1.union.example.util.StripedCounter;
 
 /**
  * The class that is created when the local room is the MASTER room.
+ *
+ * Results are gathered up a tree of slave nodes. Each node sends its results to its parent,
+ * which adds them to its own and to those of its other children before passing them on, so
+ * the master only hears from its direct children. The master only expects nodes that have a
+ * slave room: those that answer the first question, which is addressed to each node on the
+ * cluster, with SLAVE_ROOM, and those announced later with ADD_SLAVE_ROOM. It prints the
+ * results as soon as all of them are covered, or after resultsTimeout milliseconds (default
+ * 5000). Each node has at most aggregationFanout children (default 8).
  */
 public class SurveyMasterModule implements Module, Runnable {
     private ModuleContext m_ctx;
+    // sends and receives the survey events
+    private RemoteEventChannel m_channel;
     
     // the game thread
     private Thread m_gameThread;
@@ -21,10 +42,23 @@ public class SurveyMasterModule implements Module, Runnable {
             "Can you ice skate?",
             "Have you ever been to Australia?"
     };
+    private volatile String m_currentQuestion;
     
-    // results
-    private int m_yes;
-    private int m_no;
+    // settings
+    private long m_resultsTimeout = 5000L;
+    private int m_fanout = 8;
+    // how much sooner each level of the tree gives up waiting than its parent
+    private static final long HOP_MARGIN = 250L;
+
+    // responses from clients connected to this server, counted without locking so a
+    // vote never waits for the end of a question
+    private StripedCounter m_yes = new StripedCounter();
+    private StripedCounter m_no = new StripedCounter();
+
+    // the slave nodes, and the results sent by them
+    private Set<String> m_slaveNodeIDs = new HashSet<String>();
+    private SurveyAggregator m_results = new SurveyAggregator();
+    private int m_round;
     
     /**
      * Invoked by the server when the room is being created and the module should initialize 
@@ -33,20 +67,45 @@ public class SurveyMasterModule implements Module, Runnable {
     public boolean init(ModuleContext ctx) {
         m_ctx = ctx;
         
-        m_gameThread = new Thread(this);
-        m_gameThread.start();
+        // read the settings
+        try {
+            Object attr = m_ctx.getAttributes().get("resultsTimeout");
+            if (attr != null) {
+                m_resultsTimeout = Long.parseLong(attr.toString());
+            }
+            attr = m_ctx.getAttributes().get("aggregationFanout");
+            if (attr != null) {
+                m_fanout = Math.max(1, Integer.parseInt(attr.toString()));
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        m_channel = SurveyEvents.createChannel(m_ctx.getRoom());
         
         // listen for when a client has sent a response (it is sent with a module message)
-        m_ctx.getRoom().addEventListener(RoomEvent.MODULE_MESSAGE, this, "onModuleMessage");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
         
         // listen for when a new slave room as been added to the cluster so that we can 
-        // initialize that slave with the current state of the survey
+        // initialize that slave with the current state of the survey, and for when one is
+        // removed so that we stop waiting for its results
         m_ctx.getRoom().addRemoteEventListener(RemoteRoomEvent.ADD_SLAVE_ROOM, this, 
                 "onAddSlaveRoom");
+        m_ctx.getRoom().addRemoteEventListener(RemoteRoomEvent.REMOVE_SLAVE_ROOM, this,
+                "onRemoveSlaveRoom");
         
         // listen for when a slave room has sent us the results from clients connected to that
-        // node 
-        m_ctx.getRoom().addRemoteEventListener("SURVEY_RESULTS", this, "onSurveyResults");
+        // node and the nodes below it
+        m_channel.addRemoteEventListener("SURVEY_RESULTS", this, "onSurveyResults");
+
+        // listen for when a slave room answers the first question, so that we know to expect
+        // its results
+        m_channel.addRemoteEventListener("SLAVE_ROOM", this, "onSlaveRoom");
+
+        m_gameThread = new Thread(this);
+        m_gameThread.start();
               
         return true;
     }
@@ -58,12 +117,22 @@ public class SurveyMasterModule implements Module, Runnable {
             // ask a question by dispatching a remote event containing the question
             // the event will automatically be sent to all nodes on the cluster
             // and dispatched by the slave instances of this room
-            m_ctx.getRoom().dispatchRemoteEvent("ASK_QUESTION", 
-                    new AskQuestionEvent(m_questions[currentQuestion]));
+            m_currentQuestion = m_questions[currentQuestion];
+            if (m_round == 0) {
+                // the first question goes to each node on its own so that the slave rooms
+                // already on the cluster answer with SLAVE_ROOM
+                for (String nodeID : getClusterNodeIDs()) {
+                    m_channel.dispatchRemoteEvent("ASK_QUESTION",
+                            new AskQuestionEvent(m_currentQuestion, nodeID), nodeID);
+                }
+            } else {
+                m_channel.dispatchRemoteEvent("ASK_QUESTION", 
+                        new AskQuestionEvent(m_currentQuestion));
+            }
             
             // and send to clients connected to our server
             // broadcast the question to the clients connected to this server
-            m_ctx.getRoom().sendMessage("QUESTION", m_questions[currentQuestion]);
+            m_ctx.getRoom().sendMessage("QUESTION", m_currentQuestion);
             
             // advance to the next question
             currentQuestion = (currentQuestion+1) % m_questions.length;
@@ -72,26 +141,104 @@ public class SurveyMasterModule implements Module, Runnable {
             try {
                 Thread.sleep(10000L);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // shutdown() interrupts the game thread
+                return;
             }
             
-            // then end the question
-            m_ctx.getRoom().dispatchRemoteEvent("END_QUESTION", new EndQuestionEvent());
-            
-            // wait 5 seconds for results to come in
+            // then end the question and wait for results to come in, no longer than the
+            // timeout
+            endQuestion();
             try {
-                Thread.sleep(5000L);
+                awaitResults();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                return;
             }
             
-            // output results to System.out and reset results
-            System.out.println("Yes: " + m_yes + " No: " + m_no);
-            synchronized (this) {
-                m_yes = 0;
-                m_no = 0;
+            // output results to System.out
+            int yes = m_results.getYes();
+            int no = m_results.getNo();
+            Set<String> missing = m_results.getMissingNodeIDs();
+            System.out.println("Yes: " + yes + " No: " + no +
+                    (missing.isEmpty() ? "" : " (no results from " + missing + ")"));
+        }
+    }
+
+    /**
+     * Tell every slave node the question has ended and where to send its results.
+     *
+     * @return the round the results are collected for
+     */
+    int endQuestion() {
+        List<String> nodeIDs = getSlaveNodeIDs();
+        int round = ++m_round;
+
+        // our own results count as the first ones in
+        m_results.start(round, nodeIDs);
+        m_results.add(round, new String[0], (int)m_yes.drain(), (int)m_no.drain());
+
+        // the master's children are the first m_fanout nodes, and node i's children are the
+        // m_fanout nodes from m_fanout + i*m_fanout on
+        int[] depth = new int[nodeIDs.size()];
+        for (int i = 0; i < nodeIDs.size(); i++) {
+            int parent = i < m_fanout ? -1 : (i - m_fanout)/m_fanout;
+            depth[i] = parent == -1 ? 1 : depth[parent] + 1;
+
+            int firstChild = Math.min(m_fanout + i*m_fanout, nodeIDs.size());
+            int lastChild = Math.min(firstChild + m_fanout, nodeIDs.size());
+            String[] children = nodeIDs.subList(firstChild, lastChild).toArray(
+                    new String[lastChild - firstChild]);
+
+            // a node gives up waiting for its children soon enough for its parent to still
+            // use what it got
+            long timeout = Math.max(m_resultsTimeout - depth[i]*HOP_MARGIN, HOP_MARGIN);
+            m_channel.dispatchRemoteEvent("END_QUESTION", new EndQuestionEvent(round,
+                    nodeIDs.get(i), parent == -1 ? null : nodeIDs.get(parent), children,
+                    timeout), nodeIDs.get(i));
+        }
+        return round;
+    }
+
+    /**
+     * Wait for the results of the current round, no longer than the timeout, then close it.
+     *
+     * @return true if every slave node was covered in time
+     */
+    boolean awaitResults()
+    throws InterruptedException {
+        try {
+            return m_results.awaitCompletion(m_resultsTimeout);
+        } finally {
+            m_results.close();
+        }
+    }
+
+    /**
+     * Return the slave nodes still on the cluster, sorted so the tree is laid out the same
+     * way for the same nodes.
+     */
+    private List<String> getSlaveNodeIDs() {
+        Set<String> nodeIDs;
+        synchronized (m_slaveNodeIDs) {
+            nodeIDs = new HashSet<String>(m_slaveNodeIDs);
+        }
+        nodeIDs.retainAll(getClusterNodeIDs());
+        List<String> sorted = new ArrayList<String>(nodeIDs);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Return the nodes on the cluster, which may include our own.
+     */
+    private Collection<String> getClusterNodeIDs() {
+        List<String> nodeIDs = new ArrayList<String>();
+        Cluster cluster = m_ctx.getServer().getCluster();
+        if (cluster != null) {
+            for (Object nodeID : cluster.getNodeIDs()) {
+                nodeIDs.add(nodeID.toString());
             }
         }
+        return nodeIDs;
     }
     
     /**
@@ -103,26 +250,56 @@ public class SurveyMasterModule implements Module, Runnable {
     public void onModuleMessage(RoomEvent evt) {
         if ("RESPONSE".equals(evt.getMessage().getMessageName())) {
             // add the response to our totals 
-            synchronized (this) {
-                if ("yes".equals(evt.getMessage().getArg("response"))) {
-                    m_yes++;
-                } else if ("no".equals(evt.getMessage().getArg("response"))) {
-                    m_no++;
-                }
+            if ("yes".equals(evt.getMessage().getArg("response"))) {
+                m_yes.increment();
+            } else if ("no".equals(evt.getMessage().getArg("response"))) {
+                m_no.increment();
             }
         }
     }
+
+    /**
+     * This method is invoked when a slave room has been added to the cluster.
+     */
+    public void onAddSlaveRoom(RemoteEvent evt) {
+        String nodeID = ((RemoteRoomEvent)evt).getNodeID();
+        synchronized (m_slaveNodeIDs) {
+            m_slaveNodeIDs.add(nodeID);
+        }
+
+        // ask the new slave the current question
+        String question = m_currentQuestion;
+        if (question != null) {
+            m_channel.dispatchRemoteEvent("ASK_QUESTION", new AskQuestionEvent(question),
+                    nodeID);
+        }
+    }
+
+    /**
+     * This method is invoked when a slave room has answered the first question.
+     */
+    public void onSlaveRoom(RemoteEvent evt) {
+        synchronized (m_slaveNodeIDs) {
+            m_slaveNodeIDs.add(((SlaveRoomEvent)evt).getNodeID());
+        }
+    }
+
+    /**
+     * This method is invoked when a slave room has been removed from the cluster.
+     */
+    public void onRemoveSlaveRoom(RemoteEvent evt) {
+        synchronized (m_slaveNodeIDs) {
+            m_slaveNodeIDs.remove(((RemoteRoomEvent)evt).getNodeID());
+        }
+    }
     
     /**
      * This method is invoked when a slave room has dispatched its results to the master room.
      */
     public void onSurveyResults(RemoteEvent evt) {
-        // get the event Object and increment yes and no 
+        // get the event Object and add its results to the round they were collected for
         SurveyResultsEvent event = (SurveyResultsEvent)evt;
-        synchronized (this) {
-            m_yes += event.getYes();
-            m_no += event.getNo();
-        }
+        m_results.add(event.getRound(), event.getNodeIDs(), event.getYes(), event.getNo());
     }
     
     /**
@@ -130,11 +307,20 @@ public class SurveyMasterModule implements Module, Runnable {
      */
     public void shutdown() {
         // clean up event listeners
-        m_ctx.getRoom().removeEventListener(RoomEvent.MODULE_MESSAGE, this, "onModuleMessage");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
         m_ctx.getRoom().removeRemoteEventListener(RemoteRoomEvent.ADD_SLAVE_ROOM, this, 
                 "onAddSlaveRoom");
-        m_ctx.getRoom().removeRemoteEventListener("SURVEY_RESULTS", this, "onSurveyResults");
+        m_ctx.getRoom().removeRemoteEventListener(RemoteRoomEvent.REMOVE_SLAVE_ROOM, this,
+                "onRemoveSlaveRoom");
+        m_channel.removeRemoteEventListener("SURVEY_RESULTS", this, "onSurveyResults");
+        m_channel.removeRemoteEventListener("SLAVE_ROOM", this, "onSlaveRoom");
         
+        m_channel.shutdown();
+
+        // stop the game thread, which is most likely waiting for answers
+        Thread gameThread = m_gameThread;
         m_gameThread = null;
+        gameThread.interrupt();
     }
 }
\ No newline at end of file
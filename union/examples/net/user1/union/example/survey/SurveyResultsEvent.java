@@ -9,16 +9,39 @@ import net.user1.union.core.event.BaseEvent;
 import net.user1.union.core.event.RemoteEvent;
 
 /**
- * The SurveyResultsEvent is dispatched by a slave to send results back to the master.
+ * The SurveyResultsEvent is dispatched by a slave to send results back to the master, or to
+ * the slave that aggregates its results. It carries the results of every node listed in
+ * getNodeIDs().
  */
 public class SurveyResultsEvent extends BaseEvent implements RemoteEvent, Externalizable {
+    private int m_round;
+    private String[] m_nodeIDs;
     private int m_yes;
     private int m_no;
     
-    public SurveyResultsEvent(int yes, int no) {
+    public SurveyResultsEvent() {
+    }
+
+    public SurveyResultsEvent(int round, String[] nodeIDs, int yes, int no) {
+        m_round = round;
+        m_nodeIDs = nodeIDs;
         m_yes = yes;
         m_no = no;
     }
+
+    /**
+     * The question the results are for, as numbered by the master.
+     */
+    public int getRound() {
+        return m_round;
+    }
+
+    /**
+     * The nodes whose results are included.
+     */
+    public String[] getNodeIDs() {
+        return m_nodeIDs;
+    }
     
     public int getYes() {
         return m_yes;
@@ -30,12 +53,22 @@ public class SurveyResultsEvent extends BaseEvent implements RemoteEvent, Extern
 
     public void readExternal(ObjectInput in)
     throws IOException, ClassNotFoundException {
+        m_round = in.readInt();
+        m_nodeIDs = new String[in.readInt()];
+        for (int i = 0; i < m_nodeIDs.length; i++) {
+            m_nodeIDs[i] = in.readUTF();
+        }
         m_yes = in.readInt();
         m_no = in.readInt();
     }
 
     public void writeExternal(ObjectOutput out)
     throws IOException {
+        out.writeInt(m_round);
+        out.writeInt(m_nodeIDs.length);
+        for (String nodeID : m_nodeIDs) {
+            out.writeUTF(nodeID);
+        }
         out.writeInt(m_yes);
         out.writeInt(m_no);
     }
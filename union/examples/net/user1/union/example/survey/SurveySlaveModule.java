@@ -1,32 +1,59 @@
 package net.user1.union.example.survey;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import net.user1.union.api.Module;
 import net.user1.union.core.context.ModuleContext;
 import net.user1.union.core.event.RemoteEvent;
 import net.user1.union.core.event.RoomEvent;
+import net.user1.union.example.util.ListenerProfiler;
+import net.user1.union.example.util.RemoteEventChannel;
+import net.user1.union.example.util.RoomModuleScheduler;
+import net.user1.union.example.util.StripedCounter;
 
 /**
  * The class that is created when the local room is a SLAVE room.
+ *
+ * When a question ends the master tells each slave where it sits in the aggregation tree. A
+ * slave with child nodes waits for their results, up to the timeout it was given, and sends
+ * them on together with its own.
  */
 public class SurveySlaveModule implements Module {
     private ModuleContext m_ctx;
+    // sends and receives the survey events
+    private RemoteEventChannel m_channel;
     
-    // results
-    private int m_yes;
-    private int m_no;
+    // responses from clients connected to this server, counted without locking so a
+    // vote never waits for the end of a question
+    private StripedCounter m_yes = new StripedCounter();
+    private StripedCounter m_no = new StripedCounter();
+
+    // results of the child nodes, and where to send them
+    private SurveyAggregator m_results = new SurveyAggregator();
+    private String m_parentNodeID;
+    // results from children that arrived before the question ended here
+    private List<SurveyResultsEvent> m_early = new ArrayList<SurveyResultsEvent>();
     
     public boolean init(ModuleContext ctx) {
         m_ctx = ctx;
+        m_channel = SurveyEvents.createChannel(m_ctx.getRoom());
         
         // listen for when a client has sent a response (it is sent with a module message)
-        m_ctx.getRoom().addEventListener(RoomEvent.MODULE_MESSAGE, this, "onModuleMessage");
+        ListenerProfiler.addEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
         
         // listen for when the master room is asking a question 
-        m_ctx.getRoom().addRemoteEventListener("ASK_QUESTION", this, "onAskQuestion");
+        m_channel.addRemoteEventListener("ASK_QUESTION", this, "onAskQuestion");
         
         // listen for when the master room has finished asking a question
-        m_ctx.getRoom().addRemoteEventListener("END_QUESTION", this, "onEndQuestion");
+        m_channel.addRemoteEventListener("END_QUESTION", this, "onEndQuestion");
         
+        // listen for when a child node has sent us its results
+        m_channel.addRemoteEventListener("SURVEY_PARTIAL", this, "onSurveyPartial");
+
         return true;
     }
 
@@ -39,12 +66,10 @@ public class SurveySlaveModule implements Module {
     public void onModuleMessage(RoomEvent evt) {
         if ("RESPONSE".equals(evt.getMessage().getMessageName())) {
             // add the response to our totals 
-            synchronized (this) {
-                if ("yes".equals(evt.getMessage().getArg("response"))) {
-                    m_yes++;
-                } else if ("no".equals(evt.getMessage().getArg("response"))) {
-                    m_no++;
-                }
+            if ("yes".equals(evt.getMessage().getArg("response"))) {
+                m_yes.increment();
+            } else if ("no".equals(evt.getMessage().getArg("response"))) {
+                m_no.increment();
             }
         }
     }
@@ -58,26 +83,100 @@ public class SurveySlaveModule implements Module {
         
         // broadcast the question to the clients connected to this server
         m_ctx.getRoom().sendMessage("QUESTION", event.getQuestion());
+
+        // a question addressed to this node asks whether there is a slave room here
+        if (event.getNodeID() != null) {
+            m_channel.dispatchRemoteEvent("SLAVE_ROOM", new SlaveRoomEvent(event.getNodeID()));
+        }
     }
 
     /**
      * This method is invoked when the master room has finished asking a question.
      */
     public void onEndQuestion(RemoteEvent evt) {
+        EndQuestionEvent event = (EndQuestionEvent)evt;
+        int yes = (int)m_yes.drain();
+        int no = (int)m_no.drain();
+        final int round = event.getRound();
+
+        // a node without children sends its results right away
+        if (event.getChildNodeIDs().length == 0) {
+            send(event.getParentNodeID(), new SurveyResultsEvent(round,
+                    new String[] {event.getNodeID()}, yes, no));
+            return;
+        }
+
+        // otherwise collect the children's results with our own and send them when all
+        // children have reported or the timeout passes
         synchronized (this) {
-            // send the results to the master room and reset results
-            m_ctx.getRoom().dispatchRemoteEvent("SURVEY_RESULTS", 
-                    new SurveyResultsEvent(m_yes, m_no));
+            m_parentNodeID = event.getParentNodeID();
+            m_results.start(round, Arrays.asList(event.getChildNodeIDs()));
+            m_results.add(round, new String[] {event.getNodeID()}, yes, no);
+            for (SurveyResultsEvent early : m_early) {
+                m_results.add(early.getRound(), early.getNodeIDs(), early.getYes(),
+                        early.getNo());
+            }
+            m_early.clear();
+            if (m_results.isComplete()) {
+                sendResults(round);
+                return;
+            }
+        }
+        RoomModuleScheduler.getInstance().schedule(new Runnable() {
+            public void run() {
+                sendResults(round);
+            }
+        }, event.getTimeout(), TimeUnit.MILLISECONDS);
+    }
             
-            m_yes = 0;
-            m_no = 0;
+    /**
+     * This method is invoked when a child node has sent us its results.
+     */
+    public synchronized void onSurveyPartial(RemoteEvent evt) {
+        SurveyResultsEvent event = (SurveyResultsEvent)evt;
+        if (m_results.add(event.getRound(), event.getNodeIDs(), event.getYes(),
+                event.getNo())) {
+            if (m_results.isComplete()) {
+                sendResults(event.getRound());
+            }
+        } else if (event.getRound() == m_results.getRound()) {
+            // we already sent this round on, the master may still be waiting for it
+            send(null, event);
+        } else if (event.getRound() > m_results.getRound()) {
+            // the child was quicker than the master's END_QUESTION to us
+            m_early.add(event);
+        }
+    }
+
+    /**
+     * Send the collected results of a round on, unless they were sent already.
+     */
+    private synchronized void sendResults(int round) {
+        if (round != m_results.getRound() || !m_results.close()) {
+            return;
+        }
+        send(m_parentNodeID, new SurveyResultsEvent(round, m_results.getCoveredNodeIDs(),
+                m_results.getYes(), m_results.getNo()));
+    }
+
+    /**
+     * Send results to a node, or to the master room if the node is null.
+     */
+    private void send(String nodeID, SurveyResultsEvent event) {
+        if (nodeID == null) {
+            m_channel.dispatchRemoteEvent("SURVEY_RESULTS", event);
+        } else {
+            m_channel.dispatchRemoteEvent("SURVEY_PARTIAL", event, nodeID);
         }
     }
     
     public void shutdown() {
         // clean up events
-        m_ctx.getRoom().removeEventListener(RoomEvent.MODULE_MESSAGE, this, "onModuleMessage");
-        m_ctx.getRoom().removeRemoteEventListener("ASK_QUESTION", this, "onAskQuestion");
-        m_ctx.getRoom().removeRemoteEventListener("END_QUESTION", this, "onEndQuestion");
+        ListenerProfiler.removeEventListener(m_ctx.getRoom(), RoomEvent.MODULE_MESSAGE, this,
+                "onModuleMessage");
+        m_channel.removeRemoteEventListener("ASK_QUESTION", this, "onAskQuestion");
+        m_channel.removeRemoteEventListener("END_QUESTION", this, "onEndQuestion");
+        m_channel.removeRemoteEventListener("SURVEY_PARTIAL", this, "onSurveyPartial");
+        m_channel.shutdown();
     }
 }
@@ -0,0 +1,204 @@
+package net.user1.union.example.util;
+
+/**
+ * Parses numbers out of message arguments and attribute values in place,
+ * without the substrings, split arrays and boxed values that
+ * Integer.parseInt(s.substring(...)) or s.split(",") create. Meant for
+ * handlers that run for every message a room receives.
+ *
+ * Numbers are read from a CharSequence between a start and an end offset.
+ * All methods throw NumberFormatException for malformed input, as
+ * Integer.parseInt() does, so callers can keep their existing error handling.
+ */
+public class ArgParser {
+    // --- powers of ten that are exact in a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // --- message of the exception thrown for malformed input
+    private static final String MALFORMED = "Malformed number.";
+
+    /**
+     * Parse a whole CharSequence as a decimal int.
+     *
+     * @param s the text
+     * @throws NumberFormatException if the text is not an int
+     */
+    public static int parseInt(CharSequence s) {
+        if (s == null) {
+            throw new NumberFormatException("null");
+        }
+        return parseInt(s, 0, s.length());
+    }
+
+    /**
+     * Parse a decimal int from part of a CharSequence.
+     *
+     * @param s the text
+     * @param start index of the first character
+     * @param end index after the last character
+     * @throws NumberFormatException if the characters are not an int
+     */
+    public static int parseInt(CharSequence s, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException(MALFORMED);
+        }
+        boolean isNegative = false;
+        char c = s.charAt(start);
+        if (c == '-' || c == '+') {
+            isNegative = c == '-';
+            if (++start == end) {
+                throw new NumberFormatException(MALFORMED);
+            }
+        }
+
+        // --- accumulate negatively so Integer.MIN_VALUE fits
+        int limit = isNegative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < limit/10 ||
+                    result*10 < limit + digit) {
+                throw new NumberFormatException(MALFORMED);
+            }
+            result = result*10 - digit;
+        }
+        return isNegative ? result : -result;
+    }
+
+    /**
+     * Parse a whole CharSequence as a decimal number such as "-12.5" or
+     * "1e-3".
+     *
+     * @param s the text
+     * @throws NumberFormatException if the text is not a number
+     */
+    public static double parseDouble(CharSequence s) {
+        if (s == null) {
+            throw new NumberFormatException("null");
+        }
+        return parseDouble(s, 0, s.length());
+    }
+
+    /**
+     * Parse a decimal number from part of a CharSequence. The result is
+     * exact for up to 15 significant digits and otherwise within a unit or
+     * so of the last place, which is plenty for positions and angles.
+     *
+     * @param s the text
+     * @param start index of the first character
+     * @param end index after the last character
+     * @throws NumberFormatException if the characters are not a number
+     */
+    public static double parseDouble(CharSequence s, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException(MALFORMED);
+        }
+        int i = start;
+        boolean isNegative = false;
+        char c = s.charAt(i);
+        if (c == '-' || c == '+') {
+            isNegative = c == '-';
+            i++;
+        }
+
+        // --- read the digits into a long, remembering where the point was;
+        // --- digits past what a long holds only move the exponent
+        long mantissa = 0;
+        int exponent = 0;
+        int numDigits = 0;
+        boolean isAfterPoint = false;
+        for (; i < end; i++) {
+            c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                numDigits++;
+                if (mantissa < Long.MAX_VALUE/10 - 9) {
+                    mantissa = mantissa*10 + (c - '0');
+                    if (isAfterPoint) {
+                        exponent--;
+                    }
+                } else if (!isAfterPoint) {
+                    exponent++;
+                }
+            } else if (c == '.' && !isAfterPoint) {
+                isAfterPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (numDigits == 0) {
+            throw new NumberFormatException(MALFORMED);
+        }
+
+        // --- an optional exponent
+        if (i < end && (c == 'e' || c == 'E')) {
+            exponent += parseInt(s, i + 1, end);
+        } else if (i < end) {
+            throw new NumberFormatException(MALFORMED);
+        }
+
+        double result = mantissa;
+        if (exponent < 0) {
+            result = exponent >= -22 ? result/POWERS_OF_TEN[-exponent] :
+                    result/Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            result = exponent <= 22 ? result*POWERS_OF_TEN[exponent] :
+                    result*Math.pow(10, exponent);
+        }
+        return isNegative ? -result : result;
+    }
+
+    /**
+     * Parse a list of decimal numbers separated by a character, such as
+     * "120,45.5,300,1.57".
+     *
+     * @param s the text
+     * @param separator the character between numbers
+     * @param values receives the numbers
+     * @return the number of values parsed
+     * @throws NumberFormatException if a value is not a number or there are
+     *          more values than fit
+     */
+    public static int parseDoubles(CharSequence s, char separator, double[] values) {
+        int numValues = 0;
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || s.charAt(i) == separator) {
+                if (numValues == values.length) {
+                    throw new NumberFormatException("Too many values.");
+                }
+                values[numValues++] = parseDouble(s, start, i);
+                start = i + 1;
+            }
+        }
+        return numValues;
+    }
+
+    /**
+     * Parse a list of decimal ints separated by a character, such as
+     * "140,25".
+     *
+     * @param s the text
+     * @param separator the character between ints
+     * @param values receives the ints
+     * @return the number of values parsed
+     * @throws NumberFormatException if a value is not an int or there are
+     *          more values than fit
+     */
+    public static int parseInts(CharSequence s, char separator, int[] values) {
+        int numValues = 0;
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || s.charAt(i) == separator) {
+                if (numValues == values.length) {
+                    throw new NumberFormatException("Too many values.");
+                }
+                values[numValues++] = parseInt(s, start, i);
+                start = i + 1;
+            }
+        }
+        return numValues;
+    }
+}
@@ -0,0 +1,171 @@
+package net.user1.union.example.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.attribute.AttributeHolder;
+import net.user1.union.core.exception.AttributeException;
+
+/**
+ * Sets a map of fields on a client, room, account or the server as one
+ * update. Every setAttribute() on a holder is its own update message to the
+ * clients that see the attribute, and its own datasource write if the
+ * attribute is persistent, so setting 30 profile fields one by one costs 30
+ * of each.
+ *
+ * setPacked() stores the fields together as the value of a single attribute,
+ * which costs one update and at most one write. The value is name=value
+ * pairs separated by '&', with '%', '&' and '=' in names and values escaped
+ * as %25, %26 and %3D, so a client can split it and decode each part with
+ * decodeURIComponent(). unpack() reads it back on the server.
+ *
+ * setAttributes() keeps one attribute per field but only sets the fields
+ * whose value changed, for holders where clients already read the fields
+ * separately.
+ */
+public class AttributeBatch {
+    /**
+     * Set fields as a single attribute. Nothing is set if the packed value is
+     * the same as the attribute's current value.
+     *
+     * @param holder the holder to set the attribute on
+     * @param name the name of the attribute
+     * @param fields the fields, in the order they should be packed
+     * @param scope the scope of the attribute
+     * @param flags the Attribute.FLAG_ constants, or'ed together
+     * @return true if the attribute was set
+     * @throws AttributeException if the holder refused the attribute
+     */
+    public static boolean setPacked(AttributeHolder holder, String name,
+            Map<String,String> fields, String scope, int flags)
+    throws AttributeException {
+        String value = pack(fields);
+        if (value.equals(holder.getAttributeValue(name, scope))) {
+            return false;
+        }
+        holder.setAttribute(name, value, scope, flags);
+        return true;
+    }
+
+    /**
+     * Set each field as its own attribute, skipping fields whose attribute
+     * already has the value.
+     *
+     * @param holder the holder to set the attributes on
+     * @param fields the attribute values by name
+     * @param scope the scope of the attributes
+     * @param flags the Attribute.FLAG_ constants, or'ed together
+     * @return the number of attributes set
+     * @throws AttributeException if the holder refused an attribute; the
+     *          attributes before it have been set
+     */
+    public static int setAttributes(AttributeHolder holder, Map<String,String> fields,
+            String scope, int flags)
+    throws AttributeException {
+        int numSet = 0;
+        for (Map.Entry<String,String> field : fields.entrySet()) {
+            Attribute attr = holder.getAttribute(field.getKey(), scope);
+            if (attr != null && field.getValue() != null &&
+                    field.getValue().equals(attr.getValue())) {
+                continue;
+            }
+            holder.setAttribute(field.getKey(), field.getValue(), scope, flags);
+            numSet++;
+        }
+        return numSet;
+    }
+
+    /**
+     * Pack fields into one attribute value.
+     */
+    public static String pack(Map<String,String> fields) {
+        StringBuilder buffer = new StringBuilder();
+        for (Map.Entry<String,String> field : fields.entrySet()) {
+            if (buffer.length() > 0) {
+                buffer.append('&');
+            }
+            escape(buffer, field.getKey());
+            buffer.append('=');
+            escape(buffer, field.getValue());
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Unpack an attribute value written by pack(). A null value gives an
+     * empty map.
+     *
+     * @throws IllegalArgumentException if the value is not packed fields
+     */
+    public static Map<String,String> unpack(String value) {
+        Map<String,String> fields = new LinkedHashMap<String,String>();
+        if (value == null || value.length() == 0) {
+            return fields;
+        }
+        int start = 0;
+        while (start <= value.length()) {
+            int end = value.indexOf('&', start);
+            if (end == -1) {
+                end = value.length();
+            }
+            int equals = value.indexOf('=', start);
+            if (equals == -1 || equals > end) {
+                throw new IllegalArgumentException("Malformed packed attribute.");
+            }
+            fields.put(unescape(value, start, equals), unescape(value, equals + 1, end));
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    private static void escape(StringBuilder buffer, String s) {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '%':
+                    buffer.append("%25");
+                    break;
+                case '&':
+                    buffer.append("%26");
+                    break;
+                case '=':
+                    buffer.append("%3D");
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s, int start, int end) {
+        if (s.indexOf('%', start) == -1 || s.indexOf('%', start) >= end) {
+            return s.substring(start, end);
+        }
+        StringBuilder buffer = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '%') {
+                buffer.append(c);
+                continue;
+            }
+            if (i + 3 > end) {
+                throw new IllegalArgumentException("Malformed packed attribute.");
+            }
+            String code = s.substring(i + 1, i + 3);
+            if ("25".equals(code)) {
+                buffer.append('%');
+            } else if ("26".equals(code)) {
+                buffer.append('&');
+            } else if ("3D".equalsIgnoreCase(code)) {
+                buffer.append('=');
+            } else {
+                throw new IllegalArgumentException("Malformed packed attribute.");
+            }
+            i += 2;
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package net.user1.union.example.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.user1.union.api.Room;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.context.ModuleContext;
+import net.user1.union.core.exception.AttributeException;
+
+/**
+ * Coalesces writes to a room's attributes. Instead of every write becoming
+ * its own update to every client in the room, a module writes through the
+ * coalescer, which keeps only the latest value of each attribute and sets the
+ * attributes that changed once per frame. Values written and replaced within
+ * a frame are never sent.
+ *
+ * The frame length is read from the module attribute "attributeFlushInterval"
+ * (in milliseconds, default 33). The share of writes that were actually sent
+ * is kept in the room attribute "attributeCoalescing", which is not shared
+ * with clients.
+ *
+ * Attributes are keyed by name only, so a module should write a given name
+ * with a single scope.
+ */
+public class AttributeCoalescer implements Runnable {
+    // --- module attribute giving the frame length in milliseconds
+    public static final String ATTR_FLUSH_INTERVAL = "attributeFlushInterval";
+    // --- room attribute reporting the coalescing ratio
+    private static final String ATTR_COALESCING = "attributeCoalescing";
+    // --- default frame length (in milliseconds)
+    private static final long DEFAULT_FLUSH_INTERVAL = 33L;
+    // --- how often the coalescing ratio is reported (in frames)
+    private static final int REPORT_INTERVAL = 30;
+
+    private Room m_room;
+    // --- the latest write of each attribute since the last flush, in order
+    private Map<String,Write> m_dirty = new LinkedHashMap<String,Write>();
+    // --- the writes being flushed, swapped with m_dirty on each flush
+    private Map<String,Write> m_flushing = new LinkedHashMap<String,Write>();
+    // --- held while flushing so explicit and scheduled flushes don't overlap
+    private final Object m_flushLock = new Object();
+    private ScheduledFuture<?> m_task;
+    // --- writes requested and writes sent, and the frames since the last report
+    private long m_numWrites;
+    private long m_numFlushed;
+    private boolean m_isReportDue;
+    private int m_framesSinceReport;
+
+    /**
+     * Create a coalescer for the room of a module and start flushing it.
+     *
+     * @param ctx the context of the module
+     * @throws NumberFormatException if the flush interval is not a number
+     */
+    public AttributeCoalescer(ModuleContext ctx) {
+        m_room = ctx.getRoom();
+
+        long interval = DEFAULT_FLUSH_INTERVAL;
+        Object attr = ctx.getAttributes().get(ATTR_FLUSH_INTERVAL);
+        if (attr != null) {
+            interval = Long.parseLong(attr.toString());
+        }
+        m_task = RoomModuleScheduler.getInstance().scheduleAtFixedRate(this,
+                interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set a room attribute at the next flush, replacing any value written for
+     * it since the last flush.
+     *
+     * @param name the name of the attribute
+     * @param value the value of the attribute
+     * @param scope the scope of the attribute
+     * @param flags the Attribute.FLAG_ constants, or'ed together
+     */
+    public synchronized void setAttribute(String name, String value, String scope,
+            int flags) {
+        Write write = m_dirty.get(name);
+        if (write == null) {
+            write = new Write();
+            m_dirty.put(name, write);
+        }
+        write.m_value = value;
+        write.m_scope = scope;
+        write.m_flags = flags;
+        m_numWrites++;
+        m_isReportDue = true;
+    }
+
+    /**
+     * Called by the scheduler once per frame.
+     */
+    public void run() {
+        flush();
+    }
+
+    /**
+     * Set every attribute written since the last flush now.
+     */
+    public void flush() {
+        synchronized (m_flushLock) {
+            boolean isReportDue;
+            synchronized (this) {
+                if (m_dirty.isEmpty() && !m_isReportDue) {
+                    return;
+                }
+                Map<String,Write> dirty = m_dirty;
+                m_dirty = m_flushing;
+                m_flushing = dirty;
+                m_numFlushed += dirty.size();
+                isReportDue = m_isReportDue && ++m_framesSinceReport >= REPORT_INTERVAL;
+                if (isReportDue) {
+                    m_isReportDue = false;
+                    m_framesSinceReport = 0;
+                }
+            }
+
+            // --- set the attributes without holding the lock so writes can
+            // --- carry on into the next frame
+            for (Iterator<Map.Entry<String,Write>> i = m_flushing.entrySet().iterator();
+                    i.hasNext();) {
+                Map.Entry<String,Write> entry = i.next();
+                try {
+                    m_room.setAttribute(entry.getKey(), entry.getValue().m_value,
+                            entry.getValue().m_scope, entry.getValue().m_flags);
+                } catch (AttributeException e) {
+                    e.printStackTrace();
+                }
+                i.remove();
+            }
+
+            if (isReportDue) {
+                try {
+                    m_room.setAttribute(ATTR_COALESCING,
+                            String.valueOf(Math.round(getCoalescingRatio()*100)/100.0),
+                            Attribute.SCOPE_GLOBAL, Attribute.FLAG_SERVER_ONLY);
+                } catch (AttributeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the share of writes that were sent to clients: 1 if every write
+     * was sent, lower the more writes were coalesced.
+     */
+    public synchronized double getCoalescingRatio() {
+        return m_numWrites == 0 ? 1 : (double)m_numFlushed/m_numWrites;
+    }
+
+    /**
+     * Stop flushing, after setting any attributes still waiting.
+     */
+    public void shutdown() {
+        m_task.cancel(false);
+        flush();
+    }
+
+    /**
+     * The latest write of an attribute.
+     */
+    private static class Write {
+        private String m_value;
+        private String m_scope;
+        private int m_flags;
+    }
+}
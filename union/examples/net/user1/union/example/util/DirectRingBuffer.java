@@ -0,0 +1,78 @@
+package net.user1.union.example.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last numSlots text records added, in a direct buffer allocated once, so a
+ * recorder that runs for the life of the server neither grows nor adds to the garbage
+ * collector's work. Each record is kept as UTF-8 in one slot of slotSize bytes, four of
+ * them holding its length, and a longer record is cut short at the last whole character
+ * that fits.
+ */
+public class DirectRingBuffer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteBuffer m_buffer;
+    private int m_numSlots;
+    private int m_slotSize;
+    // --- records added since the buffer was created
+    private long m_numAdded;
+
+    /**
+     * @param numSlots the number of records kept
+     * @param slotSize the bytes kept of each record, including four for its length
+     */
+    public DirectRingBuffer(int numSlots, int slotSize) {
+        if (numSlots < 1 || slotSize < 5) {
+            throw new IllegalArgumentException("Need at least one slot of at least 5 bytes.");
+        }
+        m_numSlots = numSlots;
+        m_slotSize = slotSize;
+        m_buffer = ByteBuffer.allocateDirect(numSlots*slotSize);
+    }
+
+    /**
+     * Add a record, replacing the oldest if the buffer is full.
+     */
+    public void add(String record) {
+        byte[] bytes = record.getBytes(UTF_8);
+        int length = Math.min(bytes.length, m_slotSize - 4);
+        // --- don't keep the first bytes of a character whose last ones don't fit
+        while (length > 0 && length < bytes.length && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        synchronized (this) {
+            int slot = (int)(m_numAdded % m_numSlots)*m_slotSize;
+            m_buffer.putInt(slot, length);
+            m_buffer.position(slot + 4);
+            m_buffer.put(bytes, 0, length);
+            m_numAdded++;
+        }
+    }
+
+    /**
+     * Return the records kept, oldest first.
+     */
+    public synchronized List<String> getRecords() {
+        long first = Math.max(0, m_numAdded - m_numSlots);
+        List<String> records = new ArrayList<String>((int)(m_numAdded - first));
+        for (long n = first; n < m_numAdded; n++) {
+            int slot = (int)(n % m_numSlots)*m_slotSize;
+            byte[] record = new byte[m_buffer.getInt(slot)];
+            m_buffer.position(slot + 4);
+            m_buffer.get(record);
+            records.add(new String(record, UTF_8));
+        }
+        return records;
+    }
+
+    /**
+     * Return the number of records added, including those since replaced.
+     */
+    public synchronized long getNumAdded() {
+        return m_numAdded;
+    }
+}
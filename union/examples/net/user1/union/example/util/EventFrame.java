@@ -0,0 +1,40 @@
+package net.user1.union.example.util;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.user1.union.core.event.BaseEvent;
+import net.user1.union.core.event.RemoteEvent;
+
+/**
+ * The remote event a RemoteEventChannel sends: one or more encoded events as a single block
+ * of bytes, so the cluster's serialization describes one class per frame rather than one per
+ * event.
+ */
+public class EventFrame extends BaseEvent implements RemoteEvent, Externalizable {
+    private byte[] m_data;
+
+    public EventFrame() {
+    }
+
+    public EventFrame(byte[] data) {
+        m_data = data;
+    }
+
+    public byte[] getData() {
+        return m_data;
+    }
+
+    public void readExternal(ObjectInput in)
+    throws IOException, ClassNotFoundException {
+        m_data = new byte[in.readInt()];
+        in.readFully(m_data);
+    }
+
+    public void writeExternal(ObjectOutput out)
+    throws IOException {
+        out.writeInt(m_data.length);
+        out.write(m_data);
+    }
+}
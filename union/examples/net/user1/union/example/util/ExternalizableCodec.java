@@ -0,0 +1,43 @@
+package net.user1.union.example.util;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.user1.union.core.event.RemoteEvent;
+
+/**
+ * A RemoteEventCodec for events that are Externalizable, using their own writeExternal() and
+ * readExternal() as the layout. The event class needs a public no-argument constructor.
+ */
+public class ExternalizableCodec<T extends RemoteEvent & Externalizable>
+        implements RemoteEventCodec<T> {
+    private Class<T> m_type;
+
+    public ExternalizableCodec(Class<T> type) {
+        m_type = type;
+    }
+
+    public void write(T event, ObjectOutput out)
+    throws IOException {
+        event.writeExternal(out);
+    }
+
+    public T read(ObjectInput in)
+    throws IOException {
+        T event;
+        try {
+            event = m_type.newInstance();
+        } catch (InstantiationException e) {
+            throw new IOException("Could not create " + m_type.getName() + ": " + e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Could not create " + m_type.getName() + ": " + e);
+        }
+        try {
+            event.readExternal(in);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read " + m_type.getName() + ": " + e);
+        }
+        return event;
+    }
+}
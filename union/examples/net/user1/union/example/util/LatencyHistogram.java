@@ -0,0 +1,144 @@
+package net.user1.union.example.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets whose width grows with the value, so percentiles can be read
+ * to within 1/64 (about 1.6%) of the value for anything from 0 to 2^37. Values below 128 have
+ * a bucket each; above that, each power of two is split into 64 buckets. Larger values are
+ * counted in the last bucket.
+ *
+ * record() only increments one cell of an AtomicLongArray, so it never blocks and costs
+ * about the same as incrementing an AtomicLong. Percentiles are read from a Snapshot, which
+ * can be subtracted from a later one to see only the values recorded in between.
+ */
+public class LatencyHistogram {
+    // --- buckets per power of two, and the values below which each value has its own bucket
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS*2;
+    // --- the highest power of two split into buckets
+    private static final int MAX_SHIFT = 30;
+    private static final int NUM_BUCKETS = MAX_SHIFT*SUB_BUCKETS + LINEAR_LIMIT;
+
+    private AtomicLongArray m_counts = new AtomicLongArray(NUM_BUCKETS);
+
+    /**
+     * Count a value. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        m_counts.incrementAndGet(indexOf(value));
+    }
+
+    /**
+     * Return the counts so far. Values recorded while the snapshot is taken may or may not be
+     * in it.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = m_counts.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return value < 0 ? 0 : (int)value;
+        }
+        // --- shift the value down to 7 bits, the top one always set
+        int shift = 64 - Long.numberOfLeadingZeros(value) - 7;
+        if (shift > MAX_SHIFT) {
+            return NUM_BUCKETS - 1;
+        }
+        return shift*SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /**
+     * Return the highest value counted in a bucket.
+     */
+    private static long highestValueOf(int index) {
+        int shift = Math.max(0, index/SUB_BUCKETS - 1);
+        long lowest = (long)(index - shift*SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one time.
+     */
+    public static class Snapshot {
+        private long[] m_counts;
+        private long m_count;
+
+        private Snapshot(long[] counts) {
+            m_counts = counts;
+            for (long count : counts) {
+                m_count += count;
+            }
+        }
+
+        /**
+         * Return the values counted in this snapshot but not in an earlier one.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] counts = new long[m_counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = m_counts[i] - earlier.m_counts[i];
+            }
+            return new Snapshot(counts);
+        }
+
+        public long getCount() {
+            return m_count;
+        }
+
+        /**
+         * Return the value that percentile percent of the values are at or below, rounded up
+         * to the top of its bucket, or 0 if nothing was counted.
+         *
+         * @param percentile from 0 to 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (m_count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(m_count*percentile/100));
+            long seen = 0;
+            for (int i = 0; i < m_counts.length; i++) {
+                seen += m_counts[i];
+                if (seen >= rank) {
+                    return highestValueOf(i);
+                }
+            }
+            return highestValueOf(m_counts.length - 1);
+        }
+
+        /**
+         * Return the largest value counted, rounded up to the top of its bucket.
+         */
+        public long getMax() {
+            for (int i = m_counts.length - 1; i >= 0; i--) {
+                if (m_counts[i] > 0) {
+                    return highestValueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Return the mean of the values, taking each to be at the middle of its bucket.
+         */
+        public double getMean() {
+            if (m_count == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < m_counts.length; i++) {
+                if (m_counts[i] > 0) {
+                    int shift = Math.max(0, i/SUB_BUCKETS - 1);
+                    sum += m_counts[i]*(highestValueOf(i) - ((1L << shift) - 1)/2.0);
+                }
+            }
+            return sum/m_count;
+        }
+    }
+}
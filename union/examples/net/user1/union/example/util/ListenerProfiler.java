@@ -0,0 +1,372 @@
+package net.user1.union.example.util;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.user1.union.core.event.ClientEvent;
+import net.user1.union.core.event.Event;
+import net.user1.union.core.event.EventProducer;
+import net.user1.union.core.event.ModuleEvent;
+import net.user1.union.core.event.RoomEvent;
+import net.user1.union.core.event.SecurityEvent;
+import net.user1.union.core.event.ServerEvent;
+import net.user1.union.core.event.UPCEvent;
+import net.user1.union.diagnostic.DiagnosticWriter;
+
+/**
+ * Adds modules' event listeners to rooms, clients and the server, and measures them when
+ * the server is started with -Dunion.profileListeners=true. Each listener is then added
+ * through a Dispatcher that counts its calls, the time they take and the bytes they
+ * allocate, by listener class, event and method; writeReport() writes the totals.
+ * Without the property addEventListener() adds the listener to the producer directly, so
+ * it costs nothing.
+ *
+ * The server calls the Dispatcher through reflection. So that profiling doesn't add a
+ * second reflective call, the Dispatcher calls the listener through a class generated by
+ * LambdaMetafactory, or through reflection if the listener's class is not public or not
+ * visible to this class.
+ *
+ * The Dispatchers added to a room or client are forgotten when it dispatches its SHUTDOWN
+ * event, so a module that doesn't remove every listener it added doesn't keep the room,
+ * or itself, reachable for the life of the server.
+ */
+public class ListenerProfiler {
+    // --- read once, so the checks below compile away when profiling is off
+    private static final boolean ENABLED = Boolean.getBoolean("union.profileListeners");
+    // --- the method the server calls on a Dispatcher
+    private static final String DISPATCH = "dispatch";
+    // --- the method the server calls on a producer's Registrations when it shuts down
+    private static final String FORGET = "forget";
+
+    // --- the Dispatchers added, by producer
+    private static Map<EventProducer,Registrations> s_dispatchers =
+            new HashMap<EventProducer,Registrations>();
+    // --- totals by listener class, event and method
+    private static ConcurrentMap<String,Stats> s_stats = new ConcurrentHashMap<String,Stats>();
+    // --- measures allocation, if the JVM can
+    private static com.sun.management.ThreadMXBean s_threads;
+
+    static {
+        if (ENABLED) {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean &&
+                    ((com.sun.management.ThreadMXBean)threads)
+                    .isThreadAllocatedMemorySupported()) {
+                s_threads = (com.sun.management.ThreadMXBean)threads;
+                s_threads.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+    }
+
+    /**
+     * Return true if listeners are being measured.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Add a listener, as EventProducer.addEventListener() does.
+     */
+    public static void addEventListener(EventProducer producer, String type, Object listener,
+            String methodName) {
+        if (!ENABLED) {
+            producer.addEventListener(type, listener, methodName);
+            return;
+        }
+        Class<?> eventClass = getEventClass(producer, type);
+        Method method;
+        try {
+            method = listener.getClass().getMethod(methodName, eventClass);
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        if (method == null || !canDispatch(eventClass)) {
+            // --- let the producer call it, or report it as it would have
+            producer.addEventListener(type, listener, methodName);
+            return;
+        }
+        Dispatcher dispatcher = new Dispatcher(getStats(listener, type, methodName), listener,
+                method, createInvoker(method));
+        Registrations registrations;
+        boolean isNew = false;
+        synchronized (s_dispatchers) {
+            registrations = s_dispatchers.get(producer);
+            if (registrations == null) {
+                registrations = new Registrations(producer);
+                s_dispatchers.put(producer, registrations);
+                isNew = true;
+            }
+            List<Object> key = Arrays.asList(type, listener, methodName);
+            if (registrations.m_dispatchers.containsKey(key)) {
+                return;
+            }
+            registrations.m_dispatchers.put(key, dispatcher);
+        }
+        if (isNew && registrations.m_hasShutdown) {
+            producer.addEventListener(RoomEvent.SHUTDOWN, registrations, FORGET);
+        }
+        producer.addEventListener(type, dispatcher, DISPATCH);
+    }
+
+    public static void removeEventListener(EventProducer producer, String type,
+            Object listener, String methodName) {
+        Dispatcher dispatcher = null;
+        Registrations emptied = null;
+        synchronized (s_dispatchers) {
+            Registrations registrations = s_dispatchers.get(producer);
+            if (registrations != null) {
+                dispatcher = registrations.m_dispatchers.remove(Arrays.asList(type,
+                        listener, methodName));
+                if (registrations.m_dispatchers.isEmpty()) {
+                    s_dispatchers.remove(producer);
+                    emptied = registrations;
+                }
+            }
+        }
+        if (dispatcher == null) {
+            producer.removeEventListener(type, listener, methodName);
+        } else {
+            producer.removeEventListener(type, dispatcher, DISPATCH);
+        }
+        if (emptied != null && emptied.m_hasShutdown) {
+            producer.removeEventListener(RoomEvent.SHUTDOWN, emptied, FORGET);
+        }
+    }
+
+    /**
+     * Return the number of rooms, clients and other producers that have Dispatchers.
+     */
+    public static int getNumProducers() {
+        synchronized (s_dispatchers) {
+            return s_dispatchers.size();
+        }
+    }
+
+    private static boolean canDispatch(Class<?> eventClass) {
+        try {
+            Dispatcher.class.getMethod(DISPATCH, eventClass);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an Invoker for a listener method, or return null if it has to be called
+     * through reflection.
+     */
+    private static Invoker createInvoker(Method method) {
+        Class<?> listenerClass = method.getDeclaringClass();
+        try {
+            // --- the generated class is defined beside this one, so it has to be able to
+            // --- see the listener's class
+            if (!Modifier.isPublic(listenerClass.getModifiers()) ||
+                    Class.forName(listenerClass.getName(), false,
+                    ListenerProfiler.class.getClassLoader()) != listenerClass) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle target = lookup.unreflect(method);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "invoke",
+                    MethodType.methodType(Invoker.class),
+                    MethodType.methodType(void.class, Object.class, Event.class), target,
+                    target.type().changeReturnType(void.class));
+            return (Invoker)site.getTarget().invoke();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static Class<?> getEventClass(EventProducer producer, String type) {
+        Object eventClass = producer.getEventClassMap().get(type);
+        return eventClass instanceof Class ? (Class<?>)eventClass : Event.class;
+    }
+
+    private static Stats getStats(Object listener, String type, String methodName) {
+        String key = listener.getClass().getName() + " " + type + " " + methodName;
+        Stats stats = s_stats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            Stats existing = s_stats.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Write the totals of each listener, sorted by listener class.
+     */
+    public static void writeReport(DiagnosticWriter writer) {
+        writer.writeObjectStart("Listeners");
+        writer.write("enabled", ENABLED);
+        for (Map.Entry<String,Stats> entry : new TreeMap<String,Stats>(s_stats).entrySet()) {
+            Stats stats = entry.getValue();
+            long calls = stats.m_calls.get();
+            writer.writeObjectStart(entry.getKey());
+            writer.write("calls", calls);
+            writer.write("total ms", stats.m_nanos.get()/1000000);
+            writer.write("mean us", calls == 0 ? 0 :
+                    Math.round(stats.m_nanos.get()/(double)calls/10)/100.0);
+            if (s_threads != null) {
+                writer.write("allocated bytes", stats.m_bytes.get());
+                writer.write("bytes per call", calls == 0 ? 0 : stats.m_bytes.get()/calls);
+            }
+            writer.writeObjectEnd(entry.getKey());
+        }
+        writer.writeObjectEnd("Listeners");
+    }
+
+    /**
+     * Clear the totals.
+     */
+    public static void reset() {
+        s_stats.clear();
+    }
+
+    /**
+     * The totals of one listener.
+     */
+    private static class Stats {
+        private AtomicLong m_calls = new AtomicLong();
+        private AtomicLong m_nanos = new AtomicLong();
+        private AtomicLong m_bytes = new AtomicLong();
+    }
+
+    /**
+     * Calls a listener method with an event.
+     */
+    private interface Invoker {
+        void invoke(Object listener, Event evt);
+    }
+
+    /**
+     * The Dispatchers added to one producer, by event, listener and method. Listens for
+     * the producer's SHUTDOWN event, if it has one, to forget them.
+     */
+    public static class Registrations {
+        private EventProducer m_producer;
+        private boolean m_hasShutdown;
+        private Map<List<Object>,Dispatcher> m_dispatchers =
+                new HashMap<List<Object>,Dispatcher>();
+
+        private Registrations(EventProducer producer) {
+            m_producer = producer;
+            // --- rooms and clients both name the event SHUTDOWN
+            m_hasShutdown = producer.getEventClassMap().containsKey(RoomEvent.SHUTDOWN);
+        }
+
+        public void forget(Event evt) {
+            synchronized (s_dispatchers) {
+                if (s_dispatchers.get(m_producer) == this) {
+                    s_dispatchers.remove(m_producer);
+                }
+            }
+        }
+
+        public void forget(RoomEvent evt) {
+            forget((Event)evt);
+        }
+
+        public void forget(ClientEvent evt) {
+            forget((Event)evt);
+        }
+    }
+
+    /**
+     * The object the server calls in place of a listener. It has a dispatch() method for
+     * each kind of event the server dispatches to modules.
+     */
+    public static class Dispatcher {
+        private Stats m_stats;
+        private Object m_listener;
+        private Method m_method;
+        // --- null to call the method through reflection
+        private Invoker m_invoker;
+
+        private Dispatcher(Stats stats, Object listener, Method method, Invoker invoker) {
+            m_stats = stats;
+            m_listener = listener;
+            m_method = method;
+            m_invoker = invoker;
+        }
+
+        public void dispatch(Event evt) {
+            long threadID = Thread.currentThread().getId();
+            long bytes = s_threads == null ? 0 : s_threads.getThreadAllocatedBytes(threadID);
+            long start = System.nanoTime();
+            try {
+                call(evt);
+            } finally {
+                m_stats.m_nanos.addAndGet(System.nanoTime() - start);
+                m_stats.m_calls.incrementAndGet();
+                if (s_threads != null) {
+                    m_stats.m_bytes.addAndGet(s_threads.getThreadAllocatedBytes(threadID) -
+                            bytes);
+                }
+            }
+        }
+
+        public void dispatch(RoomEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        public void dispatch(ClientEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        public void dispatch(ServerEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        public void dispatch(UPCEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        public void dispatch(ModuleEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        public void dispatch(SecurityEvent evt) {
+            dispatch((Event)evt);
+        }
+
+        private void call(Event evt) {
+            if (m_invoker != null) {
+                m_invoker.invoke(m_listener, evt);
+                return;
+            }
+            try {
+                m_method.invoke(m_listener, evt);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e.toString());
+            } catch (InvocationTargetException e) {
+                // --- pass on what the listener threw, as if it had been called directly
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error)e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
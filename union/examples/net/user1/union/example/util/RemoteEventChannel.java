@@ -0,0 +1,372 @@
+package net.user1.union.example.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.user1.union.api.Room;
+import net.user1.union.core.event.RemoteEvent;
+
+/**
+ * Sends a room's remote events to the other nodes of the cluster in a compact binary form.
+ * Each event name is registered with a small ID and a RemoteEventCodec, and an event is
+ * written as its ID followed by the codec's fixed layout, with no class descriptors. Events
+ * dispatched within flushDelay milliseconds of each other to the same node (or to every node)
+ * are sent together as one EventFrame, up to MAX_FRAME_SIZE bytes; flush() sends them right
+ * away.
+ *
+ * The channel on the receiving node decodes the frame and passes each event to the listeners
+ * added to it with addRemoteEventListener(), in the order they were dispatched. Both nodes
+ * must register the same names with the same IDs. Order is kept between events sent to the
+ * same target, not between a broadcast and an event sent to a single node: frames are taken
+ * and sent under one lock, so a full frame can't overtake an older one being flushed.
+ */
+public class RemoteEventChannel {
+    // --- name of the remote event frames are sent as
+    public static final String FRAME_EVENT = "EVENT_FRAME";
+    // --- size at which a frame is sent without waiting for the flush delay
+    public static final int MAX_FRAME_SIZE = 32*1024;
+
+    private Room m_room;
+    private long m_flushDelay;
+    // --- codecs by event name and by ID
+    private Map<String,Registration> m_byName = new HashMap<String,Registration>();
+    private Registration[] m_byID = new Registration[256];
+    // --- listeners by event name, replaced rather than changed so they can be read unlocked
+    private volatile Map<String,List<Listener>> m_listeners =
+            new HashMap<String,List<Listener>>();
+    // --- frames being filled, by target node ID (null for every node)
+    private Map<String,ByteArrayOutputStream> m_frames =
+            new LinkedHashMap<String,ByteArrayOutputStream>();
+    private ScheduledFuture<?> m_flushTask;
+    // --- held while frames are taken and sent, before the channel's own lock
+    private Object m_sendLock = new Object();
+    // --- encodes one event before it is added to a frame
+    private ByteArrayOutputStream m_eventBytes = new ByteArrayOutputStream();
+    private FrameOutput m_eventOut = new FrameOutput(m_eventBytes);
+    // --- metrics
+    private long m_numEvents;
+    private long m_numFrames;
+    private long m_numBytes;
+
+    private Runnable m_flushRunner = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create a channel for a room and start receiving frames.
+     *
+     * @param room the room
+     * @param flushDelay how long events wait for others to share their frame (in
+     *          milliseconds), 0 to send each event in its own frame
+     */
+    public RemoteEventChannel(Room room, long flushDelay) {
+        m_room = room;
+        m_flushDelay = flushDelay;
+        m_room.addRemoteEventListener(FRAME_EVENT, this, "onEventFrame");
+    }
+
+    /**
+     * Register the codec for an event name.
+     *
+     * @param name the name the event is dispatched with
+     * @param id the ID written for the event, from 0 to 255
+     * @param codec the codec
+     * @throws IllegalArgumentException if the name or ID is registered already
+     */
+    public synchronized <T extends RemoteEvent> void register(String name, int id,
+            RemoteEventCodec<T> codec) {
+        if (id < 0 || id >= m_byID.length) {
+            throw new IllegalArgumentException("Event ID " + id + " is out of range.");
+        }
+        if (m_byName.containsKey(name) || m_byID[id] != null) {
+            throw new IllegalArgumentException("Event [" + name + "] or ID " + id +
+                    " is registered already.");
+        }
+        Registration registration = new Registration(name, id, codec);
+        m_byName.put(name, registration);
+        m_byID[id] = registration;
+    }
+
+    /**
+     * Call a method of a listener with each event of the given name that arrives. The method
+     * takes a RemoteEvent, as with Room.addRemoteEventListener().
+     *
+     * @throws IllegalArgumentException if the listener has no such method
+     */
+    public synchronized void addRemoteEventListener(String name, Object listener,
+            String methodName) {
+        Method method;
+        try {
+            method = listener.getClass().getMethod(methodName, RemoteEvent.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Listener has no method " + methodName +
+                    "(RemoteEvent).");
+        }
+        Map<String,List<Listener>> listeners = new HashMap<String,List<Listener>>(m_listeners);
+        List<Listener> forName = listeners.get(name) == null ? new ArrayList<Listener>() :
+                new ArrayList<Listener>(listeners.get(name));
+        forName.add(new Listener(listener, methodName, method));
+        listeners.put(name, forName);
+        m_listeners = listeners;
+    }
+
+    public synchronized void removeRemoteEventListener(String name, Object listener,
+            String methodName) {
+        Map<String,List<Listener>> listeners = new HashMap<String,List<Listener>>(m_listeners);
+        List<Listener> forName = listeners.get(name);
+        if (forName == null) {
+            return;
+        }
+        forName = new ArrayList<Listener>(forName);
+        for (int i = forName.size() - 1; i >= 0; i--) {
+            Listener l = forName.get(i);
+            if (l.m_listener == listener && l.m_methodName.equals(methodName)) {
+                forName.remove(i);
+            }
+        }
+        listeners.put(name, forName);
+        m_listeners = listeners;
+    }
+
+    /**
+     * Send an event to every other node.
+     *
+     * @throws IllegalArgumentException if the event name is not registered
+     */
+    public void dispatchRemoteEvent(String name, RemoteEvent event) {
+        dispatchRemoteEvent(name, event, null);
+    }
+
+    /**
+     * Send an event to one node, or to every other node if nodeID is null.
+     *
+     * @throws IllegalArgumentException if the event name is not registered
+     */
+    public void dispatchRemoteEvent(String name, RemoteEvent event, String nodeID) {
+        synchronized (m_sendLock) {
+            dispatchLocked(name, event, nodeID);
+        }
+    }
+
+    private void dispatchLocked(String name, RemoteEvent event, String nodeID) {
+        byte[] full = null;
+        synchronized (this) {
+            Registration registration = m_byName.get(name);
+            if (registration == null) {
+                throw new IllegalArgumentException("Event [" + name + "] is not registered.");
+            }
+
+            // --- encode the event on its own first so a failing codec can't
+            // --- leave half an event in the frame
+            m_eventBytes.reset();
+            try {
+                m_eventOut.writeByte(registration.m_id);
+                registration.m_codec.write(event, m_eventOut);
+                m_eventOut.flush();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not encode event [" + name + "]: " + e);
+            }
+
+            ByteArrayOutputStream frame = m_frames.get(nodeID);
+            if (frame == null) {
+                frame = new ByteArrayOutputStream();
+                m_frames.put(nodeID, frame);
+            }
+            try {
+                m_eventBytes.writeTo(frame);
+            } catch (IOException e) {
+                // --- not thrown by a ByteArrayOutputStream
+                throw new IllegalStateException(e.toString());
+            }
+            m_numEvents++;
+
+            if (frame.size() >= MAX_FRAME_SIZE || m_flushDelay <= 0) {
+                m_frames.remove(nodeID);
+                full = frame.toByteArray();
+            } else if (m_flushTask == null) {
+                m_flushTask = RoomModuleScheduler.getInstance().schedule(m_flushRunner,
+                        m_flushDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(nodeID, full);
+        }
+    }
+
+    /**
+     * Send every frame being filled now.
+     */
+    public void flush() {
+        synchronized (m_sendLock) {
+            Map<String,ByteArrayOutputStream> frames;
+            synchronized (this) {
+                if (m_flushTask != null) {
+                    m_flushTask.cancel(false);
+                    m_flushTask = null;
+                }
+                if (m_frames.isEmpty()) {
+                    return;
+                }
+                frames = m_frames;
+                m_frames = new LinkedHashMap<String,ByteArrayOutputStream>();
+            }
+            for (Map.Entry<String,ByteArrayOutputStream> frame : frames.entrySet()) {
+                send(frame.getKey(), frame.getValue().toByteArray());
+            }
+        }
+    }
+
+    private void send(String nodeID, byte[] data) {
+        synchronized (this) {
+            m_numFrames++;
+            m_numBytes += data.length;
+        }
+        if (nodeID == null) {
+            m_room.dispatchRemoteEvent(FRAME_EVENT, new EventFrame(data));
+        } else {
+            m_room.dispatchRemoteEvent(FRAME_EVENT, new EventFrame(data), nodeID);
+        }
+    }
+
+    /**
+     * Invoked when another node's channel has sent this room a frame.
+     */
+    public void onEventFrame(RemoteEvent evt) {
+        FrameInput in = new FrameInput(new ByteArrayInputStream(((EventFrame)evt).getData()));
+        try {
+            while (in.available() > 0) {
+                int id = in.readUnsignedByte();
+                Registration registration;
+                synchronized (this) {
+                    registration = m_byID[id];
+                }
+                if (registration == null) {
+                    // --- the rest of the frame can't be read without the codec
+                    throw new IOException("Unknown event ID " + id + ".");
+                }
+                deliver(registration.m_name, registration.m_codec.read(in));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void deliver(String name, RemoteEvent event) {
+        List<Listener> listeners = m_listeners.get(name);
+        if (listeners == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.m_method.invoke(listener.m_listener, event);
+            } catch (InvocationTargetException e) {
+                e.getCause().printStackTrace();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Send what is waiting and stop receiving frames.
+     */
+    public void shutdown() {
+        flush();
+        m_room.removeRemoteEventListener(FRAME_EVENT, this, "onEventFrame");
+    }
+
+    /**
+     * Return the number of events dispatched.
+     */
+    public synchronized long getNumEvents() {
+        return m_numEvents;
+    }
+
+    /**
+     * Return the number of frames sent.
+     */
+    public synchronized long getNumFrames() {
+        return m_numFrames;
+    }
+
+    /**
+     * Return the encoded bytes sent, not counting the cluster's own framing.
+     */
+    public synchronized long getNumBytes() {
+        return m_numBytes;
+    }
+
+    /**
+     * An event name with its ID and codec.
+     */
+    private static class Registration {
+        private String m_name;
+        private int m_id;
+        private RemoteEventCodec<RemoteEvent> m_codec;
+
+        @SuppressWarnings("unchecked")
+        public Registration(String name, int id, RemoteEventCodec<?> codec) {
+            m_name = name;
+            m_id = id;
+            m_codec = (RemoteEventCodec<RemoteEvent>)codec;
+        }
+    }
+
+    private static class Listener {
+        private Object m_listener;
+        private String m_methodName;
+        private Method m_method;
+
+        public Listener(Object listener, String methodName, Method method) {
+            m_listener = listener;
+            m_methodName = methodName;
+            m_method = method;
+        }
+    }
+
+    /**
+     * The stream codecs write to: primitives and UTF strings only.
+     */
+    private static class FrameOutput extends DataOutputStream implements ObjectOutput {
+        public FrameOutput(OutputStream out) {
+            super(out);
+        }
+
+        public void writeObject(Object obj)
+        throws IOException {
+            throw new NotSerializableException("Codecs write fields, not objects.");
+        }
+    }
+
+    /**
+     * The stream codecs read from: primitives and UTF strings only.
+     */
+    private static class FrameInput extends DataInputStream implements ObjectInput {
+        public FrameInput(InputStream in) {
+            super(in);
+        }
+
+        public Object readObject()
+        throws IOException {
+            throw new NotSerializableException("Codecs read fields, not objects.");
+        }
+    }
+}
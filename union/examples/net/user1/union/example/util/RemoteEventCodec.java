@@ -0,0 +1,22 @@
+package net.user1.union.example.util;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.user1.union.core.event.RemoteEvent;
+
+/**
+ * Writes a type of remote event as a fixed binary layout for a RemoteEventChannel, and reads
+ * it back. The reader must consume exactly the bytes the writer wrote, since events follow
+ * one another in a frame without lengths. Only the primitive and UTF methods of the streams
+ * may be used; writeObject() and readObject() fail.
+ *
+ * @see ExternalizableCodec
+ */
+public interface RemoteEventCodec<T extends RemoteEvent> {
+    void write(T event, ObjectOutput out)
+    throws IOException;
+
+    T read(ObjectInput in)
+    throws IOException;
+}
@@ -0,0 +1,266 @@
+package net.user1.union.example.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import net.user1.union.api.Client;
+import net.user1.union.api.Room;
+import net.user1.union.core.attribute.Attribute;
+import net.user1.union.core.event.ClientEvent;
+import net.user1.union.core.event.RoomEvent;
+
+/**
+ * Sends a module's messages to the clients in a room that have been sorted into groups, for
+ * instance by the message format they understand. Each client is put in a group by the
+ * Classifier when it joins, and again when one of the watched attributes changes in the
+ * room's scope, so nothing is looked up per client when a message is sent.
+ *
+ * A message goes to a group as a single Room.sendMessage() call with the group as the set of
+ * recipients. In union.jar that call (LocalRoom) builds one UPCMessage for the whole set,
+ * whose toBytes() builds the XML on the first call and caches it, so each socket connection
+ * copies the same bytes into its own write buffer. The API has no way to send bytes encoded
+ * by a module, so this is as close to encoding once as a module can get; BroadcastBenchmark's
+ * encodeOnce and encodePerClient measure the difference. The sets are fixed arrays replaced
+ * when a client joins, leaves or moves, so sending neither copies nor locks them. Observers are not included, and the clients' update
+ * levels are not checked.
+ */
+public class RoomBroadcaster {
+    private Room m_room;
+    private Classifier m_classifier;
+    private Set<String> m_attributes;
+    // --- the clients in each group, and in all of them; both are replaced, never changed
+    private volatile Client[][] m_groups;
+    private volatile Client[] m_all = new Client[0];
+
+    /**
+     * Decides which group a client is in.
+     */
+    public interface Classifier {
+        /**
+         * Return the client's group, from 0 to the number of groups less one.
+         */
+        int classify(Client client);
+    }
+
+    /**
+     * Create a broadcaster for a room and sort the clients in it.
+     *
+     * @param room the room
+     * @param numGroups the number of groups
+     * @param classifier puts clients in groups
+     * @param attributes the client attributes the classifier reads
+     */
+    public RoomBroadcaster(Room room, int numGroups, Classifier classifier,
+            String... attributes) {
+        m_room = room;
+        m_classifier = classifier;
+        m_attributes = new HashSet<String>(Arrays.asList(attributes));
+        m_groups = new Client[numGroups][0];
+
+        ListenerProfiler.addEventListener(m_room, RoomEvent.ADD_CLIENT, this, "onAddClient");
+        ListenerProfiler.addEventListener(m_room, RoomEvent.REMOVE_CLIENT, this, "onRemoveClient");
+        for (Object client : m_room.getClients()) {
+            addClient((Client)client);
+        }
+    }
+
+    /**
+     * Send a message to every client in the room except one.
+     *
+     * @param except the client to leave out, or null
+     */
+    public void broadcast(Client except, String messageName, String... args) {
+        send(m_all, except, messageName, args);
+    }
+
+    /**
+     * Send a message to every client in a group except one. Nothing is sent if no one would
+     * receive it.
+     *
+     * @param except the client to leave out, or null
+     */
+    public void broadcast(int group, Client except, String messageName, String... args) {
+        send(m_groups[group], except, messageName, args);
+    }
+
+    private void send(Client[] clients, Client except, String messageName, String... args) {
+        if (clients.length == 0 || (clients.length == 1 && clients[0] == except)) {
+            return;
+        }
+        m_room.sendMessage(new Recipients(clients, except), messageName, args);
+    }
+
+    /**
+     * Return the number of clients in a group.
+     */
+    public int getNumClients(int group) {
+        return m_groups[group].length;
+    }
+
+    public void onAddClient(RoomEvent evt) {
+        addClient(evt.getClient());
+    }
+
+    public void onRemoveClient(RoomEvent evt) {
+        Client client = evt.getClient();
+        ListenerProfiler.removeEventListener(client, ClientEvent.ATTRIBUTE_CHANGED, this,
+                "onClientAttribute");
+        ListenerProfiler.removeEventListener(client, ClientEvent.ATTRIBUTE_REMOVED, this,
+                "onClientAttribute");
+        synchronized (this) {
+            Client[][] groups = m_groups.clone();
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = without(groups[i], client);
+            }
+            m_groups = groups;
+            m_all = without(m_all, client);
+        }
+    }
+
+    /**
+     * Invoked when an attribute of a client in the room is changed or removed.
+     */
+    public void onClientAttribute(ClientEvent evt) {
+        Attribute attr = evt.getAttribute();
+        if (attr == null || !m_attributes.contains(attr.getName()) ||
+                !m_room.getQualifiedID().equals(attr.getScope())) {
+            return;
+        }
+        Client client = evt.getClient();
+        int group = m_classifier.classify(client);
+        synchronized (this) {
+            if (!contains(m_all, client)) {
+                // --- left the room already
+                return;
+            }
+            Client[][] groups = m_groups.clone();
+            for (int i = 0; i < groups.length; i++) {
+                if (i == group) {
+                    if (!contains(groups[i], client)) {
+                        groups[i] = with(groups[i], client);
+                    }
+                } else {
+                    groups[i] = without(groups[i], client);
+                }
+            }
+            m_groups = groups;
+        }
+    }
+
+    private void addClient(Client client) {
+        int group = m_classifier.classify(client);
+        synchronized (this) {
+            if (contains(m_all, client)) {
+                return;
+            }
+            Client[][] groups = m_groups.clone();
+            groups[group] = with(groups[group], client);
+            m_groups = groups;
+            m_all = with(m_all, client);
+        }
+        if (!m_attributes.isEmpty()) {
+            ListenerProfiler.addEventListener(client, ClientEvent.ATTRIBUTE_CHANGED, this,
+                    "onClientAttribute");
+            ListenerProfiler.addEventListener(client, ClientEvent.ATTRIBUTE_REMOVED, this,
+                    "onClientAttribute");
+        }
+    }
+
+    /**
+     * Stop following the room's clients.
+     */
+    public void shutdown() {
+        ListenerProfiler.removeEventListener(m_room, RoomEvent.ADD_CLIENT, this, "onAddClient");
+        ListenerProfiler.removeEventListener(m_room, RoomEvent.REMOVE_CLIENT, this,
+                "onRemoveClient");
+        Client[] clients;
+        synchronized (this) {
+            clients = m_all;
+            m_all = new Client[0];
+            m_groups = new Client[m_groups.length][0];
+        }
+        for (Client client : clients) {
+            ListenerProfiler.removeEventListener(client, ClientEvent.ATTRIBUTE_CHANGED, this,
+                    "onClientAttribute");
+            ListenerProfiler.removeEventListener(client, ClientEvent.ATTRIBUTE_REMOVED, this,
+                    "onClientAttribute");
+        }
+    }
+
+    private static boolean contains(Client[] clients, Client client) {
+        for (Client c : clients) {
+            if (c == client) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Client[] with(Client[] clients, Client client) {
+        Client[] result = new Client[clients.length + 1];
+        System.arraycopy(clients, 0, result, 0, clients.length);
+        result[clients.length] = client;
+        return result;
+    }
+
+    private static Client[] without(Client[] clients, Client client) {
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == client) {
+                Client[] result = new Client[clients.length - 1];
+                System.arraycopy(clients, 0, result, 0, i);
+                System.arraycopy(clients, i + 1, result, i, clients.length - i - 1);
+                return result;
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * The clients of a group less one, as the set Room.sendMessage() walks. Only iterated,
+     * never copied.
+     */
+    private static class Recipients extends AbstractSet<Client> {
+        private Client[] m_clients;
+        private Client m_except;
+
+        public Recipients(Client[] clients, Client except) {
+            m_clients = clients;
+            m_except = except;
+        }
+
+        public Iterator<Client> iterator() {
+            return new Iterator<Client>() {
+                private int m_next = skip(0);
+
+                public boolean hasNext() {
+                    return m_next < m_clients.length;
+                }
+
+                public Client next() {
+                    if (m_next >= m_clients.length) {
+                        throw new NoSuchElementException();
+                    }
+                    Client client = m_clients[m_next];
+                    m_next = skip(m_next + 1);
+                    return client;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private int skip(int i) {
+            return i < m_clients.length && m_clients[i] == m_except ? i + 1 : i;
+        }
+
+        public int size() {
+            return m_except != null && RoomBroadcaster.contains(m_clients, m_except) ?
+                    m_clients.length - 1 : m_clients.length;
+        }
+    }
+}
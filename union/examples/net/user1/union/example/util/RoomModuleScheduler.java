@@ -0,0 +1,111 @@
+package net.user1.union.example.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the periodic work of room modules on a small pool of threads shared by
+ * every room, instead of each module starting its own thread and sleeping in a
+ * loop. A module schedules its tasks in init and cancels the returned
+ * ScheduledFuture in shutdown, which stops the task right away rather than
+ * after the module's next sleep.
+ *
+ * Tasks must not block; a task that sleeps holds one of the shared threads.
+ * A task that throws is logged and keeps its schedule.
+ */
+public class RoomModuleScheduler {
+    // --- the scheduler shared by all room modules
+    private static final RoomModuleScheduler s_instance = new RoomModuleScheduler(
+            Runtime.getRuntime().availableProcessors());
+
+    private ScheduledExecutorService m_executor;
+
+    /**
+     * Create a scheduler with the given number of threads. Modules normally
+     * use the shared instance returned by getInstance().
+     *
+     * @param numThreads the number of threads that run tasks
+     */
+    public RoomModuleScheduler(int numThreads) {
+        final AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(numThreads,
+                new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                // --- daemon threads so the scheduler never keeps the server running
+                Thread thread = new Thread(r, "RoomModuleScheduler-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // --- a cancelled task, and the module it refers to, leaves the queue right away
+        // --- instead of when its delay would have run out
+        executor.setRemoveOnCancelPolicy(true);
+        m_executor = executor;
+    }
+
+    /**
+     * Return the scheduler shared by all room modules.
+     */
+    public static RoomModuleScheduler getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param task the task to run
+     * @param delay the time to wait before running the task
+     * @param unit the unit of the delay
+     * @return the future used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return m_executor.schedule(new LoggingTask(task), delay, unit);
+    }
+
+    /**
+     * Run a task periodically. Each run starts period after the previous run
+     * started, so the task keeps its rate even if a run takes a while.
+     *
+     * @param task the task to run
+     * @param initialDelay the time to wait before the first run
+     * @param period the time between runs
+     * @param unit the unit of initialDelay and period
+     * @return the future used to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay,
+            long period, TimeUnit unit) {
+        return m_executor.scheduleAtFixedRate(new LoggingTask(task), initialDelay,
+                period, unit);
+    }
+
+    /**
+     * Stop all tasks. Only used by schedulers created with the constructor.
+     */
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Wraps a task so that an exception is logged instead of silently
+     * cancelling the task's schedule.
+     */
+    private static class LoggingTask implements Runnable {
+        private Runnable m_task;
+
+        public LoggingTask(Runnable task) {
+            m_task = task;
+        }
+
+        public void run() {
+            try {
+                m_task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.user1.union.example.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter for values that many threads add to at once, such as votes. Additions go to a
+ * LongAdder, which spreads contended updates over several cells instead of having every
+ * thread retry on one AtomicLong. Adding never blocks.
+ *
+ * drain() returns what was added since the previous drain() without resetting the adder:
+ * the adder's cells only grow, so successive sums never decrease, and drain() subtracts the
+ * sum it saw last time. An add that races with a drain is therefore counted by that drain or
+ * the next one, never by both and never lost. LongAdder.sumThenReset() would lose such adds.
+ */
+public class StripedCounter {
+    private LongAdder m_adder = new LongAdder();
+    // --- the total seen by the last drain()
+    private long m_drained;
+
+    public void increment() {
+        m_adder.increment();
+    }
+
+    /**
+     * Add a value, which must not be negative.
+     */
+    public void add(long x) {
+        m_adder.add(x);
+    }
+
+    /**
+     * Return everything added so far.
+     */
+    public long sum() {
+        return m_adder.sum();
+    }
+
+    /**
+     * Return what was added since the last call to drain().
+     */
+    public synchronized long drain() {
+        long sum = m_adder.sum();
+        long drained = sum - m_drained;
+        m_drained = sum;
+        return drained;
+    }
+}
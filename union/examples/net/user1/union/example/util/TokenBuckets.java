@@ -0,0 +1,145 @@
+package net.user1.union.example.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A token bucket for each of many keys, such as client IDs or addresses. Each bucket holds
+ * up to burst tokens and gains rate tokens a second; tryAcquire() takes a token if there is
+ * one. A new key starts with a full bucket.
+ *
+ * The buckets are split over stripes by the hash of their key, each with its own lock, so
+ * threads checking different keys rarely wait on each other. A bucket is two primitive
+ * fields and is refilled when it is used rather than by a timer.
+ */
+public class TokenBuckets {
+    // --- number of stripes, a power of two
+    private static final int NUM_STRIPES = 32;
+
+    private Stripe[] m_stripes = new Stripe[NUM_STRIPES];
+    // --- tokens added each millisecond
+    private double m_rate;
+    private double m_burst;
+
+    /**
+     * @param ratePerSecond the tokens added to a bucket each second
+     * @param burst the most tokens a bucket holds
+     */
+    public TokenBuckets(double ratePerSecond, double burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1.");
+        }
+        m_rate = ratePerSecond/1000;
+        m_burst = burst;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            m_stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Take a token from a key's bucket.
+     *
+     * @param now the current time in milliseconds
+     * @return true if there was a token, false if the key is over its rate
+     */
+    public boolean tryAcquire(String key, long now) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.m_buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(m_burst, now);
+                stripe.m_buckets.put(key, bucket);
+            } else if (now > bucket.m_last) {
+                bucket.m_tokens = Math.min(m_burst,
+                        bucket.m_tokens + (now - bucket.m_last)*m_rate);
+                bucket.m_last = now;
+            }
+            if (bucket.m_tokens < 1) {
+                return false;
+            }
+            bucket.m_tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Return a token taken by tryAcquire() to a key's bucket, for a caller that took tokens
+     * from more than one bucket and could not use them all.
+     */
+    public void giveBack(String key) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.m_buckets.get(key);
+            if (bucket != null) {
+                bucket.m_tokens = Math.min(m_burst, bucket.m_tokens + 1);
+            }
+        }
+    }
+
+    /**
+     * Forget a key's bucket.
+     */
+    public void remove(String key) {
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.m_buckets.remove(key);
+        }
+    }
+
+    /**
+     * Forget the buckets that have refilled since they were last used, which is the same as
+     * starting them again.
+     *
+     * @param now the current time in milliseconds
+     * @return the number of buckets removed
+     */
+    public int removeIdle(long now) {
+        int removed = 0;
+        for (Stripe stripe : m_stripes) {
+            synchronized (stripe) {
+                Iterator<Bucket> it = stripe.m_buckets.values().iterator();
+                while (it.hasNext()) {
+                    Bucket bucket = it.next();
+                    if (bucket.m_tokens + (now - bucket.m_last)*m_rate >= m_burst) {
+                        it.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Return the number of keys with a bucket.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : m_stripes) {
+            synchronized (stripe) {
+                size += stripe.m_buckets.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe getStripe(String key) {
+        int hash = key.hashCode();
+        return m_stripes[(hash ^ (hash >>> 16)) & (NUM_STRIPES - 1)];
+    }
+
+    private static class Stripe {
+        private Map<String,Bucket> m_buckets = new HashMap<String,Bucket>();
+    }
+
+    private static class Bucket {
+        private double m_tokens;
+        private long m_last;
+
+        public Bucket(double tokens, long last) {
+            m_tokens = tokens;
+            m_last = last;
+        }
+    }
+}